@@ -0,0 +1,56 @@
+package mod.rp.railnet.benchmark;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of this package with the JMH runner, so they can be run
+ * without a build plugin.
+ * <p>
+ * The arguments are those of the JMH command line. Without a benchmark
+ * pattern, every benchmark of this package is run. The benchmarks have to be
+ * compiled with <code>jmh-generator-annprocess</code> on the processor path,
+ * which generates the benchmark list the runner reads.
+ * </p>
+ * Usage:
+ *
+ * <pre>
+ * javac -cp jmh-core.jar:jmh-generator-annprocess.jar:&lt;mod classes&gt; -d out $(find src/jmh/java -name '*.java')
+ * java -cp jmh-core.jar:out:&lt;mod classes&gt; mod.rp.railnet.benchmark.BenchmarkMain [jmh options] [pattern]
+ * </pre>
+ *
+ * For example <code>BenchmarkMain -p clients=1000,10000 RoutingBenchmark</code>
+ *
+ * @author MajorR
+ *
+ */
+public final class BenchmarkMain {
+
+	private BenchmarkMain() {
+	}
+
+	public static void main(String[] args) throws RunnerException, IOException {
+		CommandLineOptions options;
+		try {
+			options = new CommandLineOptions(args);
+		} catch (CommandLineOptionException e) {
+			System.err.println("Invalid options: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		if (options.shouldHelp()) {
+			options.showHelp();
+			return;
+		}
+		ChainedOptionsBuilder builder = new OptionsBuilder().parent(options).shouldFailOnError(true);
+		if (options.getIncludes().isEmpty())
+			builder.include(BenchmarkMain.class.getPackage().getName() + "\\..*Benchmark");
+		new Runner(builder.build()).run();
+	}
+}
@@ -0,0 +1,84 @@
+package mod.rp.railnet.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mod.rp.railnet.common.core.clients.RailNetClient;
+import mod.rp.railnet.common.core.routing.RailNetSegment;
+
+/**
+ * Measures the client and segment operations every other part of the network
+ * is built on: connecting and disconnecting segments, and finding the clients
+ * on the other ends.
+ *
+ * @author MajorR
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class ClientBenchmark {
+
+	/** Random picks per trial, a power of two */
+	private static final int SAMPLES = 1 << 12;
+
+	@Param({ "GRID", "TREE", "MAINLINE" })
+	public SyntheticNetwork.Shape shape;
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int clients;
+
+	private SyntheticNetwork network;
+	private int[] clientSample;
+	private int[] segmentSample;
+	private int cursor;
+
+	@Setup
+	public void setUp() {
+		network = SyntheticNetwork.build(shape, clients);
+		Random random = new Random(42L);
+		clientSample = network.sampleClients(random, SAMPLES);
+		segmentSample = network.sampleSegments(random, SAMPLES);
+		// Build the indexes that segment changes keep up to date
+		network.network.isReachable(network.clients[0], network.clients[clients - 1]);
+		network.network.getGraph();
+	}
+
+	/**
+	 * Disconnects client B of a segment and connects it again.
+	 */
+	@Benchmark
+	public RailNetSegment connectDisconnect() {
+		RailNetSegment segment = network.segments[segmentSample[cursor++ & SAMPLES - 1]];
+		RailNetClient client = segment.getClientB();
+		client.disconnectSegment(segment);
+		client.connectSegment(segment);
+		return segment;
+	}
+
+	@Benchmark
+	public Object getConnectedClients() {
+		return RailNetClient.getConnectedClients(network.clients[clientSample[cursor++ & SAMPLES - 1]]);
+	}
+
+	@Benchmark
+	public RailNetClient getConnectingClient() {
+		RailNetSegment segment = network.segments[segmentSample[cursor++ & SAMPLES - 1]];
+		return segment.getConnectingClient(segment.getClientA());
+	}
+}
@@ -0,0 +1,88 @@
+package mod.rp.railnet.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mod.rp.railnet.common.core.routing.RailNetRoute;
+import mod.rp.railnet.common.core.routing.RailNetRouter;
+import mod.rp.railnet.common.core.routing.RouteProfile;
+
+/**
+ * Measures route computation between random clients: searched in full,
+ * answered from the routing table, and costed without building the route.
+ *
+ * @author MajorR
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class RoutingBenchmark {
+
+	/** Random picks per trial, a power of two */
+	private static final int SAMPLES = 1 << 10;
+
+	@Param({ "GRID", "TREE", "MAINLINE" })
+	public SyntheticNetwork.Shape shape;
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int clients;
+
+	private SyntheticNetwork network;
+	private RailNetRouter router;
+	private int[] origins;
+	private int[] destinations;
+	private int cursor;
+
+	@Setup
+	public void setUp() {
+		network = SyntheticNetwork.build(shape, clients);
+		router = network.network.getRouter();
+		Random random = new Random(42L);
+		origins = network.sampleClients(random, SAMPLES);
+		destinations = network.sampleClients(random, SAMPLES);
+		// Build the graph, its contraction and the segment costs up front
+		router.calculateRoute(network.clients[0], network.clients[clients - 1], RouteProfile.DEFAULT);
+	}
+
+	/**
+	 * Searches a route, bypassing the routing table.
+	 */
+	@Benchmark
+	public RailNetRoute calculateRoute() {
+		int i = cursor++ & SAMPLES - 1;
+		return router.calculateRoute(network.clients[origins[i]], network.clients[destinations[i]],
+				RouteProfile.DEFAULT);
+	}
+
+	/**
+	 * Finds a route through the routing table, which answers most picks once
+	 * they were searched.
+	 */
+	@Benchmark
+	public RailNetRoute findRoute() {
+		int i = cursor++ & SAMPLES - 1;
+		return router.findRoute(network.clients[origins[i]], network.clients[destinations[i]], RouteProfile.DEFAULT);
+	}
+
+	@Benchmark
+	public float getCost() {
+		int i = cursor++ & SAMPLES - 1;
+		return router.getCost(network.clients[origins[i]], network.clients[destinations[i]], RouteProfile.DEFAULT);
+	}
+}
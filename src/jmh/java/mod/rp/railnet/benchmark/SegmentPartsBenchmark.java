@@ -0,0 +1,85 @@
+package mod.rp.railnet.benchmark;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mod.rp.railnet.common.core.routing.RailNetSegment;
+import mod.rp.railnet.common.core.routing.RailNetSegment.SegmentParts;
+import mod.rp.railnet.common.core.routing.SegmentGeometry;
+
+/**
+ * Measures reading the mapped parts of segments, through the
+ * {@link SegmentParts} views and through a {@link SegmentGeometry.Cursor}.
+ *
+ * @author MajorR
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class SegmentPartsBenchmark {
+
+	/** Random picks per trial, a power of two */
+	private static final int SAMPLES = 1 << 12;
+
+	@Param({ "GRID", "TREE", "MAINLINE" })
+	public SyntheticNetwork.Shape shape;
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int clients;
+
+	private SyntheticNetwork network;
+	private int[] segmentSample;
+	private int cursor;
+	private final SegmentGeometry.Cursor geometryCursor = new SegmentGeometry.Cursor();
+
+	@Setup
+	public void setUp() {
+		network = SyntheticNetwork.build(shape, clients);
+		segmentSample = network.sampleSegments(new Random(42L), SAMPLES);
+	}
+
+	/**
+	 * Sums the points of every part of a segment through its views.
+	 */
+	@Benchmark
+	public int segmentParts() {
+		RailNetSegment segment = network.segments[segmentSample[cursor++ & SAMPLES - 1]];
+		List<SegmentParts> parts = segment.getSegmentParts();
+		int sum = 0;
+		for (int i = 0, size = parts.size(); i < size; i++) {
+			SegmentParts part = parts.get(i);
+			sum += part.getPointA()[0] + part.getPointB()[2];
+		}
+		return sum;
+	}
+
+	/**
+	 * Sums the same points through a cursor.
+	 */
+	@Benchmark
+	public int geometryCursor() {
+		RailNetSegment segment = network.segments[segmentSample[cursor++ & SAMPLES - 1]];
+		geometryCursor.reset(segment.getGeometry());
+		int sum = 0;
+		while (geometryCursor.next())
+			sum += geometryCursor.getXA() + geometryCursor.getZB();
+		return sum;
+	}
+}
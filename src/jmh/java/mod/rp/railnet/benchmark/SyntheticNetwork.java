@@ -0,0 +1,195 @@
+package mod.rp.railnet.benchmark;
+
+import java.util.Random;
+
+import mod.rp.railnet.common.core.clients.ClientRegistry;
+import mod.rp.railnet.common.core.clients.PassThroughClient;
+import mod.rp.railnet.common.core.clients.RailNetClient;
+import mod.rp.railnet.common.core.routing.RailNetSegment;
+import mod.rp.railnet.common.core.routing.RailNetwork;
+import mod.rp.railnet.common.core.routing.SegmentGeometry;
+
+/**
+ * A generated network for the benchmarks, built from plain clients and
+ * segments so that no Minecraft world is needed.
+ * <p>
+ * Clients are laid out 16 blocks apart. Every segment is mapped as two
+ * straight parts, an L from client A to client B, with a length and base time
+ * to match, so routing scores it like mapped track.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+public final class SyntheticNetwork {
+
+	/** Blocks between neighbouring clients */
+	static final int SPACING = 16;
+
+	/** Base time of a segment, at the speed of a cart on plain rail */
+	static final long BASE_TIME = 40L;
+
+	/**
+	 * The layouts of the generated networks.
+	 */
+	public static enum Shape {
+		/** A square grid, every client joined to its right and lower one */
+		GRID,
+		/** A binary tree, every client joined to its parent */
+		TREE,
+		/**
+		 * One long line of pass-through clients with a loop passing a client
+		 * every 16 clients
+		 */
+		MAINLINE
+	}
+
+	final RailNetwork network;
+	final RailNetClient[] clients;
+	final RailNetSegment[] segments;
+	private int segmentCount;
+
+	private SyntheticNetwork(int clientCount, int segmentCapacity) {
+		this.network = new RailNetwork();
+		this.clients = new RailNetClient[clientCount];
+		this.segments = new RailNetSegment[segmentCapacity];
+	}
+
+	/**
+	 * Builds a network. The registry of clients is reset first so that networks
+	 * of earlier trials can be reclaimed.
+	 *
+	 * @param shape
+	 * @param clientCount
+	 * @return the network.
+	 */
+	public static SyntheticNetwork build(Shape shape, int clientCount) {
+		RailNetwork.unloadAll();
+		ClientRegistry.open();
+		switch (shape) {
+		case GRID:
+			return buildGrid(clientCount);
+		case TREE:
+			return buildTree(clientCount);
+		default:
+			return buildMainline(clientCount);
+		}
+	}
+
+	private static SyntheticNetwork buildGrid(int clientCount) {
+		int width = (int) Math.ceil(Math.sqrt(clientCount));
+		SyntheticNetwork net = new SyntheticNetwork(clientCount, 2 * clientCount);
+		for (int i = 0; i < clientCount; i++)
+			net.addClient(i, i % width, i / width);
+		for (int i = 0; i < clientCount; i++) {
+			if ((i + 1) % width != 0 && i + 1 < clientCount)
+				net.link(i, i + 1);
+			if (i + width < clientCount)
+				net.link(i, i + width);
+		}
+		return net;
+	}
+
+	private static SyntheticNetwork buildTree(int clientCount) {
+		SyntheticNetwork net = new SyntheticNetwork(clientCount, clientCount);
+		// Laid out as an H-tree, so the track grows linearly with the clients
+		int height = 31 - Integer.numberOfLeadingZeros(clientCount);
+		int[] xs = new int[clientCount];
+		int[] zs = new int[clientCount];
+		net.addClient(0, 0, 0);
+		for (int i = 1; i < clientCount; i++) {
+			int parent = (i - 1) / 2;
+			int above = height - (31 - Integer.numberOfLeadingZeros(parent + 1));
+			int offset = (i & 1) != 0 ? -(1 << (above - 1) / 2) : 1 << (above - 1) / 2;
+			xs[i] = xs[parent] + ((above & 1) != 0 ? offset : 0);
+			zs[i] = zs[parent] + ((above & 1) != 0 ? 0 : offset);
+			net.addClient(i, xs[i], zs[i]);
+			net.link(parent, i);
+		}
+		return net;
+	}
+
+	private static SyntheticNetwork buildMainline(int clientCount) {
+		SyntheticNetwork net = new SyntheticNetwork(clientCount, clientCount + clientCount / 16);
+		for (int i = 0; i < clientCount; i++) {
+			net.addClient(i, i, 0);
+			if (i > 0)
+				net.link(i - 1, i);
+		}
+		for (int i = 0; i + 2 < clientCount; i += 16)
+			net.link(i, i + 2);
+		return net;
+	}
+
+	private void addClient(int index, int x, int z) {
+		if (clients[index] == null)
+			clients[index] = new Positioned(network, x * SPACING, z * SPACING);
+	}
+
+	private void link(int a, int b) {
+		RailNetClient clientA = clients[a];
+		RailNetClient clientB = clients[b];
+		RailNetSegment segment = new RailNetSegment(null);
+		clientA.connectSegment(segment);
+		clientB.connectSegment(segment);
+		// Mapped once connected, as connecting a client invalidates the map
+		Positioned from = (Positioned) clientA;
+		Positioned to = (Positioned) clientB;
+		SegmentGeometry geometry = new SegmentGeometry();
+		geometry.add(from.x, 64, from.z, to.x, 64, from.z, null);
+		geometry.add(to.x, 64, from.z, to.x, 64, to.z, null);
+		segment.setGeometry(geometry);
+		segment.setActualLength(Math.abs(to.x - from.x) + Math.abs(to.z - from.z));
+		segment.setBaseTime(BASE_TIME);
+		segments[segmentCount++] = segment;
+	}
+
+	// ===========================
+	// Sampling
+	// ===========================
+
+	/**
+	 * @param random
+	 * @param count
+	 * @return random client indices.
+	 */
+	int[] sampleClients(Random random, int count) {
+		int[] sample = new int[count];
+		for (int i = 0; i < count; i++)
+			sample[i] = random.nextInt(clients.length);
+		return sample;
+	}
+
+	/**
+	 * @param random
+	 * @param count
+	 * @return random segment indices.
+	 */
+	int[] sampleSegments(Random random, int count) {
+		int[] sample = new int[count];
+		for (int i = 0; i < count; i++)
+			sample[i] = random.nextInt(segmentCount);
+		return sample;
+	}
+
+	public RailNetwork getNetwork() {
+		return network;
+	}
+
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+
+	/**
+	 * A client that remembers where it was placed.
+	 */
+	private static final class Positioned extends PassThroughClient {
+		private final int x, z;
+
+		private Positioned(RailNetwork network, int x, int z) {
+			super(network);
+			this.x = x;
+			this.z = z;
+		}
+	}
+}
@@ -0,0 +1,325 @@
+package mod.rp.railnet.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import mod.rp.railnet.common.core.clients.RailNetClient;
+import mod.rp.railnet.common.core.routing.RailNetLineWrapper;
+import mod.rp.railnet.common.core.routing.RailNetRoute;
+import mod.rp.railnet.common.core.routing.RailNetRoute.RoutePathSegment;
+import mod.rp.railnet.common.core.routing.RailNetRouter;
+import mod.rp.railnet.common.core.routing.RailNetSegment;
+import mod.rp.railnet.common.core.routing.SegmentReservations;
+import mod.rp.railnet.common.core.routing.SegmentReservations.Reservation;
+
+/**
+ * Drives virtual trains over a {@link SyntheticNetwork} tick by tick, without
+ * Minecraft, to measure how the routing core holds up under load.
+ * <p>
+ * Every train is a {@link RailNetLineWrapper} of the network. It travels its
+ * route one segment at a time, taking the base time of the segment plus some
+ * noise, or twice as long on the congested segments, and records each
+ * traversal with the {@link mod.rp.railnet.common.core.routing.TravelTimes
+ * TravelTimes} of the network. On arrival it is routed to a new random
+ * destination. Each tick the simulator does the work the server tick would:
+ * it advances the {@link SegmentReservations} and publishes drifted travel
+ * times. The first departures are spread over {@link #DEPARTURES} ticks. In
+ * scheduled mode trains are routed with {@link RailNetRouter#scheduleRoute}
+ * and wait for their booked windows.
+ * </p>
+ * <p>
+ * Runs are repeatable for a seed. The report gives the routing latency, the
+ * tick time percentiles and the heap used by the network.
+ * </p>
+ * Usage:
+ *
+ * <pre>
+ * TrafficSimulator [shape] [clients] [trains] [ticks] [scheduled] [seed]
+ * </pre>
+ *
+ * @author MajorR
+ *
+ */
+public final class TrafficSimulator {
+
+	/** Share of segments that take twice their base time */
+	static final float CONGESTED = 0.05f;
+
+	/** Noise on the time of a traversal, as a share of the base time */
+	static final float NOISE = 0.2f;
+
+	/** Ticks over which the first departures are spread */
+	static final int DEPARTURES = 200;
+
+	private final SyntheticNetwork net;
+	private final RailNetRouter router;
+	private final SegmentReservations reservations;
+	private final boolean scheduled;
+	private final Random random;
+	private final Set<RailNetSegment> congested = Collections
+			.newSetFromMap(new IdentityHashMap<RailNetSegment, Boolean>());
+	private final Train[] trains;
+	private long tick;
+
+	private final Samples routeLatency = new Samples();
+	private final Samples tickTime = new Samples();
+	private int unrouted;
+	private long traversals;
+
+	public TrafficSimulator(SyntheticNetwork net, int trainCount, boolean scheduled, long seed) {
+		this.net = net;
+		this.router = net.network.getRouter();
+		this.reservations = net.network.getReservations();
+		this.scheduled = scheduled;
+		this.random = new Random(seed);
+		for (int i = 0; i < net.getSegmentCount(); i++)
+			if (random.nextFloat() < CONGESTED)
+				congested.add(net.segments[i]);
+		this.trains = new Train[trainCount];
+		for (int i = 0; i < trainCount; i++) {
+			Train train = new Train(new RailNetLineWrapper(UUID.randomUUID()));
+			net.network.addLine(train.line);
+			train.at = randomClient();
+			train.until = 1 + i % DEPARTURES;
+			trains[i] = train;
+		}
+	}
+
+	/**
+	 * One virtual train.
+	 */
+	private static final class Train {
+		private final RailNetLineWrapper line;
+		private RailNetClient at;
+		private RailNetRoute route;
+		private List<RoutePathSegment> path;
+		/** Index of the segment travelled in the path */
+		private int index;
+		/** Tick the train leaves the segment travelled or stops waiting */
+		private long until;
+		/** Tick the train entered the segment travelled */
+		private long entered;
+		/** Booked windows still ahead, in path order */
+		private List<Reservation> windows;
+		private int window;
+
+		private Train(RailNetLineWrapper line) {
+			this.line = line;
+		}
+	}
+
+	// ===========================
+	// Simulation
+	// ===========================
+
+	/**
+	 * Runs the simulation.
+	 *
+	 * @param ticks
+	 */
+	public void run(int ticks) {
+		for (int i = 0; i < ticks; i++) {
+			long start = System.nanoTime();
+			step();
+			tickTime.add(System.nanoTime() - start);
+		}
+	}
+
+	private void step() {
+		tick++;
+		reservations.advance(tick);
+		for (Train train : trains) {
+			if (tick < train.until)
+				continue;
+			if (train.route == null)
+				route(train);
+			else
+				move(train);
+		}
+		net.network.getTravelTimes().publish();
+	}
+
+	/**
+	 * Moves a train that finished the segment it travels, or its wait, on.
+	 */
+	private void move(Train train) {
+		if (train.index >= 0 && train.entered <= train.until) {
+			RailNetSegment segment = train.path.get(train.index).getSegment();
+			net.network.getTravelTimes().record(segment, train.line, tick - train.entered);
+			traversals++;
+			train.at = segment.getConnectingClient(train.at);
+			train.entered = Long.MAX_VALUE;
+		}
+		if (train.index + 1 >= train.path.size()) {
+			train.route = null;
+			route(train);
+			return;
+		}
+		RoutePathSegment part = train.path.get(train.index + 1);
+		RailNetSegment segment = part.getSegment();
+		long window = nextWindow(train, segment);
+		if (window > tick) {
+			// Wait before the segment until the booked window opens
+			train.until = window;
+			return;
+		}
+		train.index++;
+		train.entered = tick;
+		train.until = tick + travelTime(segment, part.getAverageTime());
+	}
+
+	private long nextWindow(Train train, RailNetSegment segment) {
+		if (train.windows == null || train.window >= train.windows.size())
+			return tick;
+		Reservation reservation = train.windows.get(train.window);
+		if (reservation.getSegment() != segment)
+			return tick;
+		train.window++;
+		return reservation.getStart();
+	}
+
+	private long travelTime(RailNetSegment segment, long base) {
+		float time = Math.max(1L, base) * (1f + NOISE * (random.nextFloat() * 2f - 1f));
+		if (congested.contains(segment))
+			time *= 2f;
+		return Math.max(1L, Math.round(time));
+	}
+
+	/**
+	 * Routes a train from where it stands to a random destination.
+	 */
+	private void route(Train train) {
+		RailNetClient destination = randomClient();
+		if (destination == train.at)
+			return;
+		long start = System.nanoTime();
+		RailNetRoute route;
+		if (scheduled)
+			route = router.scheduleRoute(train.at, destination, train.line.getRouteProfile(),
+					train.line.getTrainID(), tick);
+		else
+			route = router.findRoute(train.line, train.at, destination);
+		routeLatency.add(System.nanoTime() - start);
+		if (route == null || route.getPath().isEmpty()) {
+			unrouted++;
+			return;
+		}
+		train.line.setPrimaryRoute(route);
+		train.route = route;
+		train.path = route.getPath();
+		train.index = -1;
+		train.until = tick;
+		train.entered = Long.MAX_VALUE;
+		train.windows = scheduled ? new ArrayList<Reservation>(reservations.getReservations(train.line.getTrainID()))
+				: null;
+		train.window = 0;
+	}
+
+	private RailNetClient randomClient() {
+		return net.clients[random.nextInt(net.clients.length)];
+	}
+
+	// ===========================
+	// Report
+	// ===========================
+
+	/**
+	 * Latencies in nanoseconds, kept in full so that percentiles are exact.
+	 */
+	static final class Samples {
+		private long[] values = new long[1024];
+		private int size;
+		private boolean sorted;
+
+		void add(long value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+			sorted = false;
+		}
+
+		int size() {
+			return size;
+		}
+
+		long percentile(double p) {
+			if (size == 0)
+				return 0L;
+			if (!sorted) {
+				Arrays.sort(values, 0, size);
+				sorted = true;
+			}
+			int index = (int) Math.ceil(p / 100.0 * size) - 1;
+			return values[Math.max(0, Math.min(size - 1, index))];
+		}
+
+		double mean() {
+			if (size == 0)
+				return 0.0;
+			double sum = 0.0;
+			for (int i = 0; i < size; i++)
+				sum += values[i];
+			return sum / size;
+		}
+	}
+
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ROOT, "%d ticks, %d trains, %d traversals, %d unrouted%n", tick,
+				trains.length, traversals, unrouted));
+		append(sb, "route", routeLatency);
+		append(sb, "tick", tickTime);
+		sb.append(String.format(Locale.ROOT, "reservations %d, routing table %d%n", reservations.size(),
+				net.network.getRoutingTable().size()));
+		return sb.toString();
+	}
+
+	private static void append(StringBuilder sb, String name, Samples samples) {
+		sb.append(String.format(Locale.ROOT,
+				"%-6s n=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus%n", name,
+				samples.size(), samples.mean() / 1e3, samples.percentile(50) / 1e3, samples.percentile(90) / 1e3,
+				samples.percentile(99) / 1e3, samples.percentile(99.9) / 1e3, samples.percentile(100) / 1e3));
+	}
+
+	/**
+	 * @return the heap in use after a garbage collection, in bytes.
+	 */
+	static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public static void main(String[] args) {
+		SyntheticNetwork.Shape shape = args.length > 0 ? SyntheticNetwork.Shape.valueOf(args[0].toUpperCase(Locale.ROOT))
+				: SyntheticNetwork.Shape.GRID;
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int trainCount = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		int ticks = args.length > 3 ? Integer.parseInt(args[3]) : 6000;
+		boolean scheduled = args.length > 4 && Boolean.parseBoolean(args[4]);
+		long seed = args.length > 5 ? Long.parseLong(args[5]) : 42L;
+
+		long before = usedMemory();
+		long start = System.nanoTime();
+		SyntheticNetwork net = SyntheticNetwork.build(shape, clients);
+		long built = System.nanoTime() - start;
+		long network = usedMemory() - before;
+		TrafficSimulator simulator = new TrafficSimulator(net, trainCount, scheduled, seed);
+		simulator.run(ticks);
+		long loaded = usedMemory() - before;
+
+		System.out.printf(Locale.ROOT, "%s network of %d clients and %d segments built in %d ms%s%n", shape,
+				clients, net.getSegmentCount(), built / 1000000L, scheduled ? ", scheduled routing" : "");
+		System.out.print(simulator.report());
+		System.out.printf(Locale.ROOT, "memory network=%.1f MB (%d B/client), after run=%.1f MB%n",
+				network / 1048576.0, network / Math.max(1, clients), loaded / 1048576.0);
+	}
+}
@@ -0,0 +1,10 @@
+/**
+ * JMH benchmarks of the routing core, run on generated networks without
+ * Minecraft. {@link mod.rp.railnet.benchmark.BenchmarkMain} runs them and
+ * {@link mod.rp.railnet.benchmark.TrafficSimulator} simulates trains.
+ */
+/**
+ * @author MajorR
+ *
+ */
+package mod.rp.railnet.benchmark;
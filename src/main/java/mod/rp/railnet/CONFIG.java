@@ -1,5 +1,7 @@
 package mod.rp.railnet;
 
+import mod.rp.railnet.common.core.routing.RouteBatch;
+
 public class CONFIG {
 
 	/**
@@ -30,6 +32,138 @@ public class CONFIG {
 		public static final String VERSION = "[1.7.10,1.8)";
 	}
 
+	/**
+	 * Properties related to routing
+	 * 
+	 * @author MajorR
+	 *
+	 */
+	public static class ROUTING {
+		/** The maximum number of routes kept in the routing table of a network */
+		public static int ROUTE_CACHE_SIZE = 4096;
+		/** The maximum estimated memory of the routing table of a network */
+		public static long ROUTE_CACHE_BYTES = 16L * 1024 * 1024;
+		/** The maximum number of requests in one route batch */
+		public static int BATCH_SIZE = 512;
+		/** How the requests of a route batch share searches */
+		public static RouteBatch.Grouping BATCH_GROUPING = RouteBatch.Grouping.AUTO;
+		/** Groups with fewer requests than this are searched one by one */
+		public static int BATCH_MIN_GROUP = 2;
+		/** Weight of a new sample in the learned travel times, 0 to 1 */
+		public static float TRAVEL_TIME_ALPHA = 0.2f;
+		/** Samples needed before a learned travel time affects routing */
+		public static int TRAVEL_TIME_MIN_SAMPLES = 3;
+		/** Relative change of a learned travel time that rescores the segment */
+		public static float TRAVEL_TIME_TOLERANCE = 0.1f;
+		/** Ticks added to every window booked on bidirectional track */
+		public static long RESERVATION_MARGIN = 20L;
+		/** Passes of local search improving the checkpoint order of a line */
+		public static int SEQUENCER_PASSES = 50;
+	}
+
+	/**
+	 * Properties related to work done off the server tick
+	 * 
+	 * @author MajorR
+	 *
+	 */
+	public static class BACKGROUND {
+		/** The number of threads calculating routes */
+		public static int PLANNER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		/** Time per server tick spent handing finished routes back, in ns */
+		public static long PLANNER_TICK_BUDGET = 2000000L;
+		/** Times a route invalidated while being calculated is retried */
+		public static int PLANNER_RETRIES = 2;
+		/** Time per server tick spent walking track for the mapper, in ns */
+		public static long MAPPER_TICK_BUDGET = 1000000L;
+		/** Blocks of track walked before a segment is given up as unmappable */
+		public static int MAPPER_MAX_BLOCKS = 32768;
+		/** Ticks the mapper waits for an unloaded chunk before giving up */
+		public static int MAPPER_WAIT_TICKS = 1200;
+		/** Deviation in blocks allowed when merging track into straight parts */
+		public static float MAPPER_MERGE_TOLERANCE = 0.75f;
+		/** Time per server tick spent handing commands to clients, in ns */
+		public static long COMMAND_TICK_BUDGET = 1000000L;
+		/** Clients waiting for commands before new ones are refused */
+		public static int COMMAND_MAX_PENDING = 65536;
+	}
+
+	/**
+	 * Properties related to keeping players up to date
+	 * 
+	 * @author MajorR
+	 *
+	 */
+	public static class SYNC {
+		/** Distance in chunks from a player within which networks are sent */
+		public static int INTEREST_RADIUS = 8;
+		/** Ticks between checks of which networks a player is near */
+		public static int INTEREST_INTERVAL = 20;
+		/** Distance in blocks from a player within which trains are sent */
+		public static int TRAIN_RADIUS = 160;
+		/** The maximum size of a sync packet in bytes */
+		public static int MAX_PACKET = 30000;
+	}
+
+	/**
+	 * Properties related to drawing the network map
+	 * 
+	 * @author MajorR
+	 *
+	 */
+	public static class RENDER {
+		/** Size of a map region in blocks, as a power of two */
+		public static int REGION_SHIFT = 6;
+		/** Deviation in blocks allowed when simplifying track, per level of detail */
+		public static float[] LOD_TOLERANCE = { 0f, 1f, 4f, 16f };
+		/** Deviation in pixels below which a coarser level of detail is used */
+		public static float LOD_PIXELS = 1f;
+		/** Map regions rebuilt at most per frame; stale ones are drawn meanwhile */
+		public static int REBUILDS_PER_FRAME = 4;
+		/** Width of drawn track in pixels */
+		public static float LINE_WIDTH = 2f;
+	}
+
+	/**
+	 * Properties related to saving networks
+	 * 
+	 * @author MajorR
+	 *
+	 */
+	public static class STORAGE {
+		/** Folder in the world save holding the networks */
+		public static String FOLDER = "railnet";
+		/** Files per kind of record for new networks; a power of two */
+		public static int BUCKETS = 64;
+		/** Write a mapped snapshot of each network when the server stops */
+		public static boolean SNAPSHOTS = true;
+		/** Verify the checksum of a snapshot before using it */
+		public static boolean VERIFY_SNAPSHOTS = false;
+		/** Size in bytes past which a journal is folded into the network */
+		public static long JOURNAL_LIMIT = 4L << 20;
+		/** Force every journal write to the disk, not just to the system */
+		public static boolean JOURNAL_SYNC = false;
+	}
+
+	/**
+	 * Properties related to measuring what RailNet costs per tick
+	 * 
+	 * @author MajorR
+	 *
+	 */
+	public static class PROFILING {
+		/** Profile from the start of the server rather than on command */
+		public static boolean ENABLED = false;
+		/** Ticks measured into each frame of the rolling window */
+		public static int FRAME_TICKS = 100;
+		/** Longest window kept, in ticks */
+		public static int WINDOW_TICKS = 6000;
+		/** Networks and lines listed in chat, by time taken */
+		public static int TOP = 5;
+		/** Folder in the world save the profiles are dumped to */
+		public static String FOLDER = "profiles";
+	}
+
 	/**
 	 * Set up and load the configuration file. Should be called in the mod
 	 * preInit() event handler.
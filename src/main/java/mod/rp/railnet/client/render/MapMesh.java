@@ -0,0 +1,166 @@
+package mod.rp.railnet.client.render;
+
+import java.util.Arrays;
+
+import org.lwjgl.opengl.GL11;
+
+/**
+ * The lines of a map region while it is being built, compiled into a display
+ * list once complete. Polylines are simplified as they are added.
+ *
+ * @author MajorR
+ *
+ */
+final class MapMesh {
+
+	/** Height above the rail block at which track is drawn */
+	private static final float RAIL_HEIGHT = 0.125f;
+
+	/** Ends of the lines, three coordinates each */
+	private float[] vertices = new float[384];
+
+	/** Colour of each line, 0xRRGGBB */
+	private int[] colors = new int[64];
+
+	private int lines;
+
+	/** Scratch for simplifying */
+	private boolean[] keep = new boolean[64];
+	private int[] stack = new int[64];
+
+	void clear() {
+		lines = 0;
+	}
+
+	/**
+	 * @return the number of lines in the mesh.
+	 */
+	int getLines() {
+		return lines;
+	}
+
+	/**
+	 * Adds a polyline, leaving out the points that deviate from it by at most
+	 * the tolerance.
+	 *
+	 * @param points
+	 *            x, y and z of each point, relative to the region
+	 * @param count
+	 *            The number of points
+	 * @param tolerance
+	 *            The allowed deviation in blocks; 0 keeps every point
+	 * @param color
+	 *            0xRRGGBB
+	 */
+	void addPolyline(int[] points, int count, float tolerance, int color) {
+		if (count < 2)
+			return;
+		if (keep.length < count)
+			keep = new boolean[Math.max(count, keep.length * 2)];
+		if (tolerance > 0) {
+			simplify(points, count, tolerance * tolerance);
+		} else {
+			Arrays.fill(keep, 0, count, true);
+		}
+
+		int previous = 0;
+		for (int i = 1; i < count; i++) {
+			if (!keep[i])
+				continue;
+			addLine(points, previous, i, color);
+			previous = i;
+		}
+	}
+
+	/**
+	 * Marks the points kept by the Douglas-Peucker algorithm.
+	 */
+	private void simplify(int[] points, int count, float tolerance2) {
+		Arrays.fill(keep, 0, count, false);
+		keep[0] = true;
+		keep[count - 1] = true;
+		int top = 0;
+		stack = push(stack, top++, 0);
+		stack = push(stack, top++, count - 1);
+		while (top > 0) {
+			int last = stack[--top];
+			int first = stack[--top];
+			float worst = tolerance2;
+			int split = -1;
+			for (int i = first + 1; i < last; i++) {
+				float distance = distance2(points, i, first, last);
+				if (distance > worst) {
+					worst = distance;
+					split = i;
+				}
+			}
+			if (split < 0)
+				continue;
+			keep[split] = true;
+			stack = push(stack, top++, first);
+			stack = push(stack, top++, split);
+			stack = push(stack, top++, split);
+			stack = push(stack, top++, last);
+		}
+	}
+
+	private static int[] push(int[] stack, int index, int value) {
+		if (index == stack.length)
+			stack = Arrays.copyOf(stack, stack.length * 2);
+		stack[index] = value;
+		return stack;
+	}
+
+	/**
+	 * @return the squared distance of a point from the line between two
+	 *         others.
+	 */
+	private static float distance2(int[] points, int point, int first, int last) {
+		float ax = points[first * 3], ay = points[first * 3 + 1], az = points[first * 3 + 2];
+		float dx = points[last * 3] - ax, dy = points[last * 3 + 1] - ay, dz = points[last * 3 + 2] - az;
+		float px = points[point * 3] - ax, py = points[point * 3 + 1] - ay, pz = points[point * 3 + 2] - az;
+		float length2 = dx * dx + dy * dy + dz * dz;
+		float t = length2 == 0 ? 0 : Math.max(0, Math.min(1, (px * dx + py * dy + pz * dz) / length2));
+		px -= t * dx;
+		py -= t * dy;
+		pz -= t * dz;
+		return px * px + py * py + pz * pz;
+	}
+
+	private void addLine(int[] points, int from, int to, int color) {
+		if (lines == colors.length) {
+			colors = Arrays.copyOf(colors, lines * 2);
+			vertices = Arrays.copyOf(vertices, lines * 12);
+		}
+		int v = lines * 6;
+		vertices[v] = points[from * 3] + 0.5f;
+		vertices[v + 1] = points[from * 3 + 1] + RAIL_HEIGHT;
+		vertices[v + 2] = points[from * 3 + 2] + 0.5f;
+		vertices[v + 3] = points[to * 3] + 0.5f;
+		vertices[v + 4] = points[to * 3 + 1] + RAIL_HEIGHT;
+		vertices[v + 5] = points[to * 3 + 2] + 0.5f;
+		colors[lines++] = color;
+	}
+
+	/**
+	 * Compiles the lines into a display list, replacing what it held.
+	 *
+	 * @param list
+	 */
+	void compile(int list) {
+		GL11.glNewList(list, GL11.GL_COMPILE);
+		GL11.glBegin(GL11.GL_LINES);
+		int color = -1;
+		for (int i = 0; i < lines; i++) {
+			if (colors[i] != color) {
+				color = colors[i];
+				GL11.glColor4f((color >> 16 & 0xFF) / 255f, (color >> 8 & 0xFF) / 255f, (color & 0xFF) / 255f, 1f);
+			}
+			int v = i * 6;
+			GL11.glVertex3f(vertices[v], vertices[v + 1], vertices[v + 2]);
+			GL11.glVertex3f(vertices[v + 3], vertices[v + 4], vertices[v + 5]);
+		}
+		GL11.glEnd();
+		GL11.glEndList();
+	}
+}
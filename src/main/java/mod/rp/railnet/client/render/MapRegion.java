@@ -0,0 +1,181 @@
+package mod.rp.railnet.client.render;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.lwjgl.opengl.GL11;
+
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.routing.RailNetSegment.SegmentDirection;
+import mod.rp.railnet.common.core.routing.SegmentGeometry;
+import mod.rp.railnet.common.util.network.NetworkMirror.Segment;
+
+/**
+ * A square of the map holding the track whose parts start inside it. Its
+ * track is compiled into one display list per level of detail, which is kept
+ * until one of its segments changes.
+ *
+ * @author MajorR
+ *
+ */
+final class MapRegion {
+
+	final int x;
+	final int z;
+
+	/** Segments with a part starting in this region */
+	final Set<Segment> segments = new HashSet<Segment>();
+
+	/** First of the display lists, one per level of detail; 0 until built */
+	private int lists;
+
+	/** Levels of detail whose list holds track, perhaps stale */
+	private final boolean[] compiled;
+
+	/** Levels of detail whose list matches the segments */
+	private final boolean[] current;
+
+	/** Scratch for one run of points */
+	private int[] points = new int[96];
+
+	MapRegion(int x, int z, int levels) {
+		this.x = x;
+		this.z = z;
+		this.compiled = new boolean[levels];
+		this.current = new boolean[levels];
+	}
+
+	/**
+	 * Marks every level of detail for rebuilding. The stale lists are still
+	 * drawn until then.
+	 */
+	void invalidate() {
+		Arrays.fill(current, false);
+	}
+
+	boolean isCurrent(int level) {
+		return current[level];
+	}
+
+	int getOriginX() {
+		return x << CONFIG.RENDER.REGION_SHIFT;
+	}
+
+	int getOriginZ() {
+		return z << CONFIG.RENDER.REGION_SHIFT;
+	}
+
+	/**
+	 * Rebuilds the display list of a level of detail.
+	 *
+	 * @param level
+	 * @param tolerance
+	 *            The allowed deviation in blocks
+	 * @param mesh
+	 *            Scratch mesh
+	 * @param cursor
+	 *            Scratch cursor
+	 * @return the number of lines compiled.
+	 */
+	int build(int level, float tolerance, MapMesh mesh, SegmentGeometry.Cursor cursor) {
+		bake(tolerance, mesh, cursor);
+		if (lists == 0)
+			lists = GL11.glGenLists(current.length);
+		mesh.compile(lists + level);
+		compiled[level] = true;
+		current[level] = true;
+		return mesh.getLines();
+	}
+
+	/**
+	 * Fills the mesh with the track of this region. Consecutive parts are
+	 * joined into polylines so they can be simplified as one.
+	 */
+	void bake(float tolerance, MapMesh mesh, SegmentGeometry.Cursor cursor) {
+		mesh.clear();
+		int originX = getOriginX();
+		int originZ = getOriginZ();
+		int shift = CONFIG.RENDER.REGION_SHIFT;
+		for (Segment segment : segments) {
+			int color = colorOf(segment.getDirection());
+			int count = 0;
+			cursor.reset(segment.getGeometry());
+			while (cursor.next()) {
+				int xA = cursor.getXA(), zA = cursor.getZA();
+				if (xA >> shift != x || zA >> shift != z) {
+					mesh.addPolyline(points, count, tolerance, color);
+					count = 0;
+					continue;
+				}
+				int yA = cursor.getYA();
+				if (count > 0 && (points[count * 3 - 3] != xA - originX || points[count * 3 - 2] != yA
+						|| points[count * 3 - 1] != zA - originZ)) {
+					mesh.addPolyline(points, count, tolerance, color);
+					count = 0;
+				}
+				if (count == 0)
+					count = addPoint(count, xA - originX, yA, zA - originZ);
+				count = addPoint(count, cursor.getXB() - originX, cursor.getYB(), cursor.getZB() - originZ);
+			}
+			mesh.addPolyline(points, count, tolerance, color);
+		}
+	}
+
+	private int addPoint(int count, int x, int y, int z) {
+		if (count * 3 == points.length)
+			points = Arrays.copyOf(points, points.length * 2);
+		points[count * 3] = x;
+		points[count * 3 + 1] = y;
+		points[count * 3 + 2] = z;
+		return count + 1;
+	}
+
+	/**
+	 * Draws the list of a level of detail, or the closest one compiled if it
+	 * was never built.
+	 *
+	 * @return <code>true</code> if anything was drawn.
+	 */
+	boolean draw(int level) {
+		for (int offset = 0; offset < compiled.length; offset++) {
+			if (level + offset < compiled.length && compiled[level + offset]) {
+				GL11.glCallList(lists + level + offset);
+				return true;
+			}
+			if (level - offset >= 0 && compiled[level - offset]) {
+				GL11.glCallList(lists + level - offset);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Frees the display lists.
+	 */
+	void delete() {
+		if (lists != 0)
+			GL11.glDeleteLists(lists, compiled.length);
+		lists = 0;
+		Arrays.fill(compiled, false);
+		invalidate();
+	}
+
+	static int colorOf(SegmentDirection direction) {
+		if (direction == null)
+			return 0x808080;
+		switch (direction) {
+		case FORWARD:
+		case REVERSE:
+			return 0x4CC94C;
+		case BIDIRECTIONAL:
+			return 0xE0E0E0;
+		case REVERSABLE:
+			return 0xE0C040;
+		case CLOSED:
+		default:
+			return 0xC04040;
+		}
+	}
+}
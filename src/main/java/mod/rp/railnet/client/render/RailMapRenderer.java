@@ -0,0 +1,235 @@
+package mod.rp.railnet.client.render;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.lwjgl.opengl.GL11;
+
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.routing.SegmentGeometry;
+import mod.rp.railnet.common.util.network.NetworkMirror;
+import mod.rp.railnet.common.util.network.NetworkMirror.Segment;
+
+/**
+ * Draws the track of the mirrored networks as a map.
+ * <p>
+ * Track is grouped into square regions of {@link CONFIG.RENDER#REGION_SHIFT}
+ * blocks, each compiled into a display list, so a frame costs one call per
+ * visible region however much track there is. A region is rebuilt only after
+ * one of its segments changed, and no more than
+ * {@link CONFIG.RENDER#REBUILDS_PER_FRAME} regions are rebuilt per frame; the
+ * stale list is drawn until then. The further out the map is zoomed, the more
+ * the track is simplified, following {@link CONFIG.RENDER#LOD_TOLERANCE}.
+ * </p>
+ * <p>
+ * Must be used on the client thread, with a GL context.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+public class RailMapRenderer implements NetworkMirror.Listener {
+
+	private final Map<Long, MapRegion> regions = new HashMap<Long, MapRegion>();
+
+	/** The regions each segment has parts in */
+	private final Map<Segment, long[]> segmentRegions = new HashMap<Segment, long[]>();
+
+	private final float[] tolerances;
+
+	private final MapMesh mesh = new MapMesh();
+
+	private final SegmentGeometry.Cursor cursor = new SegmentGeometry.Cursor();
+
+	private final List<MapRegion> visible = new ArrayList<MapRegion>();
+
+	private final Set<Long> scratch = new HashSet<Long>();
+
+	/** Regions rebuilt since created */
+	private long rebuilds;
+
+	/**
+	 * Creates a renderer of the networks mirrored now and later.
+	 */
+	public RailMapRenderer() {
+		this.tolerances = CONFIG.RENDER.LOD_TOLERANCE.clone();
+		for (NetworkMirror mirror : NetworkMirror.getMirrors())
+			for (Segment segment : mirror.getSegments())
+				segmentChanged(mirror, segment);
+		NetworkMirror.addListener(this);
+	}
+
+	// ===========================
+	// Invalidation
+	// ===========================
+
+	@Override
+	public void segmentChanged(NetworkMirror mirror, Segment segment) {
+		removeSegment(segment);
+
+		scratch.clear();
+		int shift = CONFIG.RENDER.REGION_SHIFT;
+		cursor.reset(segment.getGeometry());
+		while (cursor.next())
+			scratch.add(key(cursor.getXA() >> shift, cursor.getZA() >> shift));
+		if (scratch.isEmpty())
+			return;
+
+		long[] keys = new long[scratch.size()];
+		int i = 0;
+		for (Long key : scratch) {
+			keys[i++] = key;
+			MapRegion region = regions.get(key);
+			if (region == null)
+				regions.put(key, region = new MapRegion((int) (key >> 32), (int) (long) key, tolerances.length));
+			region.segments.add(segment);
+			region.invalidate();
+		}
+		segmentRegions.put(segment, keys);
+	}
+
+	@Override
+	public void segmentRemoved(NetworkMirror mirror, Segment segment) {
+		removeSegment(segment);
+	}
+
+	@Override
+	public void mirrorRemoved(NetworkMirror mirror) {
+		for (Segment segment : mirror.getSegments())
+			removeSegment(segment);
+	}
+
+	private void removeSegment(Segment segment) {
+		long[] keys = segmentRegions.remove(segment);
+		if (keys == null)
+			return;
+		for (long key : keys) {
+			MapRegion region = regions.get(key);
+			if (region == null)
+				continue;
+			region.segments.remove(segment);
+			if (region.segments.isEmpty()) {
+				region.delete();
+				regions.remove(key);
+			} else {
+				region.invalidate();
+			}
+		}
+	}
+
+	// ===========================
+	// Drawing
+	// ===========================
+
+	/**
+	 * Draws the track within a square around the camera. Coordinates are drawn
+	 * relative to the camera, so the caller sets up the projection as if it
+	 * were at the origin.
+	 *
+	 * @param cameraX
+	 * @param cameraY
+	 * @param cameraZ
+	 * @param radius
+	 *            Half the side of the square in blocks
+	 * @param pixelsPerBlock
+	 *            The zoom of the map, to choose the level of detail
+	 * @return the number of regions drawn.
+	 */
+	public int render(double cameraX, double cameraY, double cameraZ, double radius, double pixelsPerBlock) {
+		int level = getLevel(pixelsPerBlock);
+		collectVisible(cameraX - radius, cameraZ - radius, cameraX + radius, cameraZ + radius);
+
+		int budget = CONFIG.RENDER.REBUILDS_PER_FRAME;
+		for (MapRegion region : visible)
+			if (!region.isCurrent(level) && budget > 0) {
+				region.build(level, tolerances[level], mesh, cursor);
+				rebuilds++;
+				budget--;
+			}
+
+		GL11.glDisable(GL11.GL_TEXTURE_2D);
+		GL11.glDisable(GL11.GL_LIGHTING);
+		GL11.glLineWidth(CONFIG.RENDER.LINE_WIDTH);
+		int drawn = 0;
+		for (MapRegion region : visible) {
+			GL11.glPushMatrix();
+			GL11.glTranslated(region.getOriginX() - cameraX, -cameraY, region.getOriginZ() - cameraZ);
+			if (region.draw(level))
+				drawn++;
+			GL11.glPopMatrix();
+		}
+		GL11.glEnable(GL11.GL_LIGHTING);
+		GL11.glEnable(GL11.GL_TEXTURE_2D);
+		return drawn;
+	}
+
+	/**
+	 * @return the coarsest level of detail whose deviation stays below
+	 *         {@link CONFIG.RENDER#LOD_PIXELS} at a zoom.
+	 */
+	int getLevel(double pixelsPerBlock) {
+		int level = 0;
+		while (level + 1 < tolerances.length && tolerances[level + 1] * pixelsPerBlock <= CONFIG.RENDER.LOD_PIXELS)
+			level++;
+		return level;
+	}
+
+	/**
+	 * Fills {@link #visible} with the regions overlapping an area, looking
+	 * them up by coordinate or scanning them all, whichever is fewer.
+	 */
+	private void collectVisible(double minX, double minZ, double maxX, double maxZ) {
+		visible.clear();
+		int shift = CONFIG.RENDER.REGION_SHIFT;
+		int fromX = (int) Math.floor(minX) >> shift, toX = (int) Math.floor(maxX) >> shift;
+		int fromZ = (int) Math.floor(minZ) >> shift, toZ = (int) Math.floor(maxZ) >> shift;
+		long area = (long) (toX - fromX + 1) * (toZ - fromZ + 1);
+		if (area <= regions.size()) {
+			for (int x = fromX; x <= toX; x++)
+				for (int z = fromZ; z <= toZ; z++) {
+					MapRegion region = regions.get(key(x, z));
+					if (region != null)
+						visible.add(region);
+				}
+		} else {
+			for (MapRegion region : regions.values())
+				if (region.x >= fromX && region.x <= toX && region.z >= fromZ && region.z <= toZ)
+					visible.add(region);
+		}
+	}
+
+	/**
+	 * Frees every display list and stops following the mirrors.
+	 */
+	public void dispose() {
+		NetworkMirror.removeListener(this);
+		for (MapRegion region : regions.values())
+			region.delete();
+		regions.clear();
+		segmentRegions.clear();
+		visible.clear();
+	}
+
+	// ===========================
+	// Getters
+	// ===========================
+
+	public int getRegionCount() {
+		return regions.size();
+	}
+
+	/**
+	 * @return the number of regions rebuilt since this renderer was created.
+	 */
+	public long getRebuilds() {
+		return rebuilds;
+	}
+
+	private static long key(int regionX, int regionZ) {
+		return (long) regionX << 32 | regionZ & 0xFFFFFFFFL;
+	}
+}
@@ -0,0 +1,56 @@
+package mod.rp.railnet.common.background;
+
+import java.util.ArrayList;
+
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
+import cpw.mods.fml.common.gameevent.TickEvent.Phase;
+import mod.rp.railnet.common.core.clients.CommandBus;
+import mod.rp.railnet.common.core.routing.RailNetwork;
+import mod.rp.railnet.common.util.profiling.Profiler;
+import net.minecraft.server.MinecraftServer;
+
+/**
+ * Hands the results of background work back to the server at the end of every
+ * server tick: networks split apart, learned travel times, then planned routes,
+ * then walks track for the mapper, then hands queued commands to clients. Also
+ * drops the segment reservations that ended, and advances the
+ * {@link Profiler}.
+ *
+ * @author MajorR
+ *
+ */
+public class BackgroundTickHandler {
+
+	private final RoutePlanner planner;
+
+	private final TrackMapper mapper;
+
+	private final CommandBus commands;
+
+	public BackgroundTickHandler(RoutePlanner planner, TrackMapper mapper, CommandBus commands) {
+		this.planner = planner;
+		this.mapper = mapper;
+		this.commands = commands;
+	}
+
+	@SubscribeEvent
+	public void onServerTick(TickEvent.ServerTickEvent event) {
+		if (event.phase != Phase.END)
+			return;
+		long now = MinecraftServer.getServer().getTickCounter();
+		Profiler.tick(now);
+		long start = Profiler.start();
+		for (RailNetwork network : new ArrayList<RailNetwork>(RailNetwork.getNetworks()))
+			network.splitDisconnected();
+		for (RailNetwork network : RailNetwork.getNetworks()) {
+			network.getTravelTimes().publish();
+			network.getRouter().repairTracked();
+			network.getReservations().advance(now);
+		}
+		planner.tick();
+		mapper.tick();
+		commands.tick();
+		Profiler.stop(Profiler.Section.TICK, start);
+	}
+}
@@ -0,0 +1,374 @@
+package mod.rp.railnet.common.background;
+
+import java.util.Arrays;
+
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.routing.RailNetSegment;
+import mod.rp.railnet.common.core.routing.SegmentGeometry;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockRailBase;
+import net.minecraft.world.World;
+
+/**
+ * A segment being mapped by the {@link TrackMapper}: the track is walked block
+ * by block from the rail of client A to the rail of client B, a few hundred
+ * blocks per tick, and the walked blocks are merged into straight parts.
+ * <p>
+ * The walk only reads chunks that are loaded. When it reaches one that is not,
+ * it waits for the chunk to be loaded by something else, for at most
+ * {@link CONFIG.BACKGROUND#MAPPER_WAIT_TICKS}.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+public class MappingRequest {
+
+	/**
+	 * Receives the result of a request on the server thread.
+	 */
+	public static interface Callback {
+		/**
+		 * @param request
+		 * @param mapped
+		 *            <code>true</code> if the segment was given its new map;
+		 *            otherwise <code>false</code> if the track could not be
+		 *            walked.
+		 */
+		public void segmentMapped(MappingRequest request, boolean mapped);
+	}
+
+	public static enum State {
+		/** Walking, or queued to walk */
+		WALKING,
+		/** Stopped at a chunk that is not loaded */
+		WAITING,
+		/** The segment was given its new map */
+		MAPPED,
+		/** The track does not lead from client A to client B */
+		FAILED,
+		CANCELLED
+	}
+
+	/**
+	 * The two directions a rail leads, by its basic metadata: x, y and z of
+	 * each, where y is 1 if the rail ascends that way.
+	 */
+	private static final int[][] EXITS = {
+			{ 0, 0, -1, 0, 0, 1 }, // North - South
+			{ -1, 0, 0, 1, 0, 0 }, // West - East
+			{ -1, 0, 0, 1, 1, 0 }, // Ascending east
+			{ -1, 1, 0, 1, 0, 0 }, // Ascending west
+			{ 0, 1, -1, 0, 0, 1 }, // Ascending north
+			{ 0, 0, -1, 0, 1, 1 }, // Ascending south
+			{ 0, 0, 1, 1, 0, 0 }, // South - East
+			{ 0, 0, 1, -1, 0, 0 }, // South - West
+			{ 0, 0, -1, -1, 0, 0 }, // North - West
+			{ 0, 0, -1, 1, 0, 0 } // North - East
+	};
+
+	/** Points a straight part is merged from at most */
+	private static final int MAX_RUN = 256;
+
+	/** Blocks walked between checks of the clock */
+	private static final int CLOCK_INTERVAL = 16;
+
+	private final World world;
+	private final RailNetSegment segment;
+	private final int startX, startY, startZ;
+	private final int endX, endY, endZ;
+	private final Callback callback;
+
+	private volatile State state = State.WALKING;
+
+	/** The exit of the starting rail being followed */
+	private int attempt;
+
+	private int x, y, z;
+	private int previousX, previousZ;
+	private boolean started;
+	/** Whether the current rail was added to the map */
+	private boolean recorded;
+
+	private int blocks;
+	private float ticks;
+	private int waited;
+
+	private SegmentGeometry geometry;
+
+	/** Points of the straight part being merged */
+	private int[] run = new int[48];
+	private int runCount;
+	private Class<? extends BlockRailBase> runType;
+
+	MappingRequest(World world, RailNetSegment segment, int startX, int startY, int startZ, int endX, int endY,
+			int endZ, Callback callback) {
+		this.world = world;
+		this.segment = segment;
+		this.startX = startX;
+		this.startY = startY;
+		this.startZ = startZ;
+		this.endX = endX;
+		this.endY = endY;
+		this.endZ = endZ;
+		this.callback = callback;
+		restart();
+	}
+
+	/**
+	 * Starts the walk over from client A.
+	 */
+	private void restart() {
+		x = startX;
+		y = startY;
+		z = startZ;
+		started = false;
+		recorded = false;
+		blocks = 0;
+		ticks = 0f;
+		geometry = new SegmentGeometry();
+		runCount = 0;
+		runType = null;
+	}
+
+	// ===========================
+	// Walking
+	// ===========================
+
+	/**
+	 * Walks the track until the deadline, the end of the segment or an unloaded
+	 * chunk. Must be called on the server thread.
+	 *
+	 * @param deadline
+	 *            {@link System#nanoTime()} at which to stop
+	 * @return the number of blocks walked.
+	 */
+	int walk(long deadline) {
+		if (state == State.WAITING)
+			state = State.WALKING;
+		int walked = 0;
+		while (state == State.WALKING) {
+			if (walked % CLOCK_INTERVAL == 0 && walked > 0 && System.nanoTime() >= deadline)
+				break;
+			step();
+			walked++;
+		}
+		if (state == State.WAITING && ++waited > CONFIG.BACKGROUND.MAPPER_WAIT_TICKS)
+			state = State.FAILED;
+		return walked;
+	}
+
+	/**
+	 * Adds the current rail to the map and moves to the next.
+	 */
+	private void step() {
+		if (!world.blockExists(x, y, z)) {
+			state = State.WAITING;
+			return;
+		}
+		Block block = world.getBlock(x, y, z);
+		if (!(block instanceof BlockRailBase)) {
+			state = State.FAILED;
+			return;
+		}
+		BlockRailBase rail = (BlockRailBase) block;
+		if (!recorded) {
+			addPoint(rail.getClass());
+			recorded = true;
+		}
+
+		if (started && x == endX && y == endY && z == endZ) {
+			finish();
+			return;
+		}
+
+		int meta = rail.getBasicRailMetadata(world, null, x, y, z);
+		if (meta < 0 || meta >= EXITS.length) {
+			state = State.FAILED;
+			return;
+		}
+		int[] exits = EXITS[meta];
+		int exit;
+		if (!started)
+			exit = attempt * 3;
+		else if (x + exits[0] == previousX && z + exits[2] == previousZ)
+			exit = 3;
+		else
+			exit = 0;
+
+		int nextX = x + exits[exit];
+		int nextZ = z + exits[exit + 2];
+		// Up a slope the next rail is a block higher; otherwise it is level,
+		// or a block lower if it ascends towards this one
+		int nextY = y + exits[exit + 1];
+		int lowest = exits[exit + 1] == 1 ? nextY : y - 1;
+		while (true) {
+			if (!world.blockExists(nextX, nextY, nextZ)) {
+				state = State.WAITING;
+				return;
+			}
+			if (world.getBlock(nextX, nextY, nextZ) instanceof BlockRailBase)
+				break;
+			if (--nextY < lowest) {
+				deadEnd();
+				return;
+			}
+		}
+		if (nextX == startX && nextY == startY && nextZ == startZ) {
+			// A loop that never passed client B
+			deadEnd();
+			return;
+		}
+
+		float speed = rail.getRailMaxSpeed(world, null, x, y, z);
+		ticks += speed > 0f ? 1f / speed : 1f / 0.4f;
+		blocks++;
+		if (blocks > CONFIG.BACKGROUND.MAPPER_MAX_BLOCKS) {
+			state = State.FAILED;
+			return;
+		}
+		previousX = x;
+		previousZ = z;
+		x = nextX;
+		y = nextY;
+		z = nextZ;
+		started = true;
+		recorded = false;
+	}
+
+	/**
+	 * The track ended or looped before client B. Tries the other way from
+	 * client A, once.
+	 */
+	private void deadEnd() {
+		if (attempt == 0) {
+			attempt = 1;
+			restart();
+		} else {
+			state = State.FAILED;
+		}
+	}
+
+	private void finish() {
+		closeRun();
+		geometry.trimToSize();
+		state = State.MAPPED;
+	}
+
+	// ===========================
+	// Merging
+	// ===========================
+
+	/**
+	 * Adds the current rail to the straight part being merged, or starts a new
+	 * part if it strays from the line or is a different kind of rail.
+	 */
+	private void addPoint(Class<? extends BlockRailBase> type) {
+		if (runCount > 0 && (type != runType || runCount == MAX_RUN || !fitsRun(x, y, z))) {
+			int lastX = run[runCount * 3 - 3], lastY = run[runCount * 3 - 2], lastZ = run[runCount * 3 - 1];
+			closeRun();
+			runCount = 0;
+			addRunPoint(lastX, lastY, lastZ);
+		}
+		if (runCount <= 1)
+			runType = type;
+		addRunPoint(x, y, z);
+	}
+
+	/**
+	 * @return <code>true</code> if every point of the run lies within the
+	 *         merge tolerance of the line from its first point to a new one.
+	 */
+	private boolean fitsRun(int px, int py, int pz) {
+		float tolerance = CONFIG.BACKGROUND.MAPPER_MERGE_TOLERANCE;
+		float tolerance2 = tolerance * tolerance;
+		float dx = px - run[0], dy = py - run[1], dz = pz - run[2];
+		float length2 = dx * dx + dy * dy + dz * dz;
+		if (length2 == 0f)
+			return false;
+		for (int i = 1; i < runCount; i++) {
+			float qx = run[i * 3] - run[0], qy = run[i * 3 + 1] - run[1], qz = run[i * 3 + 2] - run[2];
+			float t = (qx * dx + qy * dy + qz * dz) / length2;
+			if (t < 0f || t > 1f)
+				return false;
+			qx -= t * dx;
+			qy -= t * dy;
+			qz -= t * dz;
+			if (qx * qx + qy * qy + qz * qz > tolerance2)
+				return false;
+		}
+		return true;
+	}
+
+	private void addRunPoint(int px, int py, int pz) {
+		if (runCount * 3 == run.length)
+			run = Arrays.copyOf(run, run.length * 2);
+		run[runCount * 3] = px;
+		run[runCount * 3 + 1] = py;
+		run[runCount * 3 + 2] = pz;
+		runCount++;
+	}
+
+	private void closeRun() {
+		if (runCount < 2)
+			return;
+		int last = (runCount - 1) * 3;
+		geometry.add(run[0], run[1], run[2], run[last], run[last + 1], run[last + 2], runType);
+	}
+
+	/**
+	 * Gives the segment its new map and hands the result to the callback.
+	 * Called on the server thread.
+	 */
+	void complete() {
+		boolean mapped = state == State.MAPPED && segment.getNetwork() != null;
+		if (mapped) {
+			segment.setGeometry(geometry);
+			segment.setActualLength(blocks);
+			segment.setBaseTime(Math.round(ticks));
+		} else if (state == State.MAPPED) {
+			// The segment was removed while it was walked
+			state = State.CANCELLED;
+		}
+		if (callback != null && state != State.CANCELLED)
+			callback.segmentMapped(this, mapped);
+	}
+
+	/**
+	 * Stops the request; its callback will not be called.
+	 */
+	public void cancel() {
+		state = State.CANCELLED;
+	}
+
+	/**
+	 * @return <code>true</code> once the walk is over, whether it succeeded or
+	 *         not.
+	 */
+	public boolean isFinished() {
+		return state == State.MAPPED || state == State.FAILED || state == State.CANCELLED;
+	}
+
+	// ===========================
+	// Getters
+	// ===========================
+
+	public State getState() {
+		return state;
+	}
+
+	public RailNetSegment getSegment() {
+		return segment;
+	}
+
+	public World getWorld() {
+		return world;
+	}
+
+	/**
+	 * @return the number of blocks walked so far.
+	 */
+	public int getBlocks() {
+		return blocks;
+	}
+}
@@ -0,0 +1,217 @@
+package mod.rp.railnet.common.background;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.clients.RailNetClient;
+import mod.rp.railnet.common.core.routing.RailNetLineWrapper;
+import mod.rp.railnet.common.core.routing.RailNetRoute;
+import mod.rp.railnet.common.core.routing.RailNetRouter;
+import mod.rp.railnet.common.core.routing.RailNetwork;
+import mod.rp.railnet.common.core.routing.RouteProfile;
+import mod.rp.railnet.common.util.profiling.Profiler;
+
+/**
+ * Calculates routes on a pool of worker threads so that expensive searches do
+ * not add to the server tick.
+ * <ol>
+ * <li>{@link #submit} is called on the server thread and takes a snapshot of
+ * the network's graph, which the worker searches.</li>
+ * <li>Finished requests are queued until {@link #tick()} hands them to their
+ * callbacks on the server thread, for at most
+ * {@link CONFIG.BACKGROUND#PLANNER_TICK_BUDGET} per tick. Requests left over
+ * are handed back on the next tick.</li>
+ * <li>If the network changed while a request was being calculated and the
+ * route can no longer be travelled, the request is calculated again on a new
+ * snapshot, up to {@link CONFIG.BACKGROUND#PLANNER_RETRIES} times.</li>
+ * </ol>
+ *
+ * @author MajorR
+ *
+ */
+public class RoutePlanner {
+
+	private final ExecutorService workers;
+
+	/** Requests calculated and waiting to be handed back */
+	private final Queue<RouteRequest> finished = new ConcurrentLinkedQueue<RouteRequest>();
+
+	/** Requests submitted and not yet handed back */
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final long tickBudget;
+
+	private final int maxRetries;
+
+	private final int threads;
+
+	public RoutePlanner(int threads, long tickBudget, int maxRetries) {
+		this.threads = threads;
+		this.tickBudget = tickBudget;
+		this.maxRetries = maxRetries;
+		this.workers = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new PlannerThreadFactory());
+	}
+
+	public RoutePlanner() {
+		this(CONFIG.BACKGROUND.PLANNER_THREADS, CONFIG.BACKGROUND.PLANNER_TICK_BUDGET,
+				CONFIG.BACKGROUND.PLANNER_RETRIES);
+	}
+
+	// ===========================
+	// Planner Methods
+	// ===========================
+
+	/**
+	 * Requests a route. Must be called on the server thread. A request between
+	 * clients no track joins is not searched and is handed back on the next
+	 * tick without a route.
+	 *
+	 * @param network
+	 * @param origin
+	 * @param destination
+	 * @param profile
+	 * @param callback
+	 *            Called on the server thread once the route is calculated.
+	 * @return the request, which may be cancelled.
+	 */
+	public RouteRequest submit(RailNetwork network, RailNetClient origin, RailNetClient destination,
+			RouteProfile profile, RouteRequest.Callback callback) {
+		RouteRequest request = new RouteRequest(network, origin, destination, profile, callback);
+		pending.incrementAndGet();
+		if (!network.isReachable(origin, destination)) {
+			request.topologyVersion = network.getTopologyVersion();
+			finished.add(request);
+			return request;
+		}
+		request.snapshot();
+		dispatch(request);
+		return request;
+	}
+
+	private void dispatch(final RouteRequest request) {
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (!request.isCancelled()) {
+						RailNetRouter router = request.getNetwork().getRouter();
+						long start = Profiler.start();
+						request.route = router.findRoute(request.graph, request.getOrigin(),
+								request.getDestination(), request.getProfile(), request.topologyVersion,
+								request.weightsVersion);
+						Profiler.stop(Profiler.Section.PLANNING, request.getNetwork(),
+								request.getProfile().getLine(), start);
+					}
+				} finally {
+					// A failed search is still handed back, without a route
+					finished.add(request);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Puts the checkpoints of a line that does not need them in order into a
+	 * cheap order, searching the costs between them on the worker threads as
+	 * well as the calling one. Must be called on the server thread.
+	 *
+	 * @param line
+	 *            A line of a network
+	 * @return <code>true</code> if the order of the checkpoints changed.
+	 * @see RailNetRouter#sequenceCheckpoints
+	 */
+	public boolean sequence(RailNetLineWrapper line) {
+		List<RailNetClient> checkpoints = line.getCheckpoints();
+		RailNetwork network = line.getNetwork();
+		if (network == null)
+			return false;
+		List<RailNetClient> ordered = network.getRouter().sequenceCheckpoints(line, workers, threads);
+		if (ordered == checkpoints || ordered.equals(checkpoints))
+			return false;
+		line.setCheckpoints(ordered);
+		return true;
+	}
+
+	/**
+	 * Hands finished routes to their callbacks until the tick budget is spent.
+	 * Must be called once per server tick.
+	 *
+	 * @return the number of routes handed back.
+	 */
+	public int tick() {
+		long deadline = System.nanoTime() + tickBudget;
+		int handed = 0;
+		RouteRequest request;
+		while ((request = finished.poll()) != null) {
+			if (request.isCancelled()) {
+				pending.decrementAndGet();
+				continue;
+			}
+			if (isStale(request) && request.retries++ < maxRetries) {
+				request.snapshot();
+				dispatch(request);
+				continue;
+			}
+			pending.decrementAndGet();
+			long start = Profiler.start();
+			request.complete();
+			Profiler.stop(Profiler.Section.ROUTING, request.getNetwork(), request.getProfile().getLine(), start);
+			handed++;
+			if (System.nanoTime() >= deadline)
+				break;
+		}
+		return handed;
+	}
+
+	/**
+	 * @return <code>true</code> if the network changed since the snapshot of
+	 *         the request and the route is no longer usable.
+	 */
+	private boolean isStale(RouteRequest request) {
+		RailNetwork network = request.getNetwork();
+		if (request.topologyVersion == network.getTopologyVersion())
+			return false;
+		RailNetRoute route = request.route;
+		return route == null || !network.getRouter().isTraversable(route);
+	}
+
+	/**
+	 * @return the number of requests submitted and not yet handed back.
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * Stops the worker threads. Requests still queued are dropped.
+	 */
+	public void shutdown() {
+		workers.shutdownNow();
+		finished.clear();
+		pending.set(0);
+	}
+
+	/**
+	 * Creates low priority daemon threads so planners never hold up the server.
+	 */
+	private static class PlannerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "RailNet Planner #" + count.incrementAndGet());
+			thread.setDaemon(true);
+			thread.setPriority(Thread.NORM_PRIORITY - 1);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package mod.rp.railnet.common.background;
+
+import mod.rp.railnet.common.core.clients.RailNetClient;
+import mod.rp.railnet.common.core.routing.RailNetGraph;
+import mod.rp.railnet.common.core.routing.RailNetRoute;
+import mod.rp.railnet.common.core.routing.RailNetwork;
+import mod.rp.railnet.common.core.routing.RouteProfile;
+
+/**
+ * A route requested from the {@link RoutePlanner}. The request is created on
+ * the server thread, calculated on a planner thread and handed back to its
+ * {@link Callback} on the server thread.
+ *
+ * @author MajorR
+ *
+ */
+public class RouteRequest {
+
+	/**
+	 * Receives the result of a request on the server thread.
+	 */
+	public static interface Callback {
+		/**
+		 * @param request
+		 * @param route
+		 *            The calculated route; otherwise <code>null</code> if no
+		 *            route exists.
+		 */
+		public void routeReady(RouteRequest request, RailNetRoute route);
+	}
+
+	private final RailNetwork network;
+	private final RailNetClient origin;
+	private final RailNetClient destination;
+	private final RouteProfile profile;
+	private final Callback callback;
+
+	/** The snapshot being searched */
+	RailNetGraph graph;
+
+	/** Network versions when the snapshot was taken */
+	long topologyVersion;
+	long weightsVersion;
+
+	/** The result, once calculated */
+	volatile RailNetRoute route;
+
+	/** Times the request was calculated again after the network changed */
+	int retries;
+
+	private volatile boolean cancelled;
+
+	private volatile boolean done;
+
+	RouteRequest(RailNetwork network, RailNetClient origin, RailNetClient destination, RouteProfile profile,
+			Callback callback) {
+		this.network = network;
+		this.origin = origin;
+		this.destination = destination;
+		this.profile = profile;
+		this.callback = callback;
+	}
+
+	/**
+	 * Takes a snapshot of the network to search. Must be called on the server
+	 * thread.
+	 */
+	void snapshot() {
+		weightsVersion = network.getWeightsVersion();
+		graph = network.getGraph();
+		topologyVersion = graph.getTopologyVersion();
+	}
+
+	/**
+	 * Stops the request; its callback will not be called.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/** @return <code>true</code> once the callback has been called. */
+	public boolean isDone() {
+		return done;
+	}
+
+	void complete() {
+		done = true;
+		callback.routeReady(this, route);
+	}
+
+	// ===========================
+	// Getters
+	// ===========================
+
+	public RailNetwork getNetwork() {
+		return network;
+	}
+
+	public RailNetClient getOrigin() {
+		return origin;
+	}
+
+	public RailNetClient getDestination() {
+		return destination;
+	}
+
+	public RouteProfile getProfile() {
+		return profile;
+	}
+}
@@ -0,0 +1,129 @@
+package mod.rp.railnet.common.background;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.routing.RailNetSegment;
+import mod.rp.railnet.common.util.profiling.Profiler;
+import net.minecraft.world.World;
+
+/**
+ * Maps segments by walking their track on the server thread, a little every
+ * tick, so mapping a long line never holds up the server.
+ * <ol>
+ * <li>{@link #map} queues a {@link MappingRequest} for a segment, replacing
+ * any request already queued for it.</li>
+ * <li>{@link #tick()} shares {@link CONFIG.BACKGROUND#MAPPER_TICK_BUDGET}
+ * between the queued requests; each walks until its share is spent and
+ * carries on next tick.</li>
+ * <li>Once a request reaches client B, the segment is given its parts, length
+ * and base time, and the callback is called.</li>
+ * </ol>
+ * Unlike routing, walking track reads the world, so it cannot be moved off the
+ * server thread.
+ *
+ * @author MajorR
+ *
+ */
+public class TrackMapper {
+
+	private final Deque<MappingRequest> queue = new ArrayDeque<MappingRequest>();
+
+	/** The queued request of each segment */
+	private final Map<RailNetSegment, MappingRequest> requests = new IdentityHashMap<RailNetSegment, MappingRequest>();
+
+	private final long tickBudget;
+
+	public TrackMapper(long tickBudget) {
+		this.tickBudget = tickBudget;
+	}
+
+	public TrackMapper() {
+		this(CONFIG.BACKGROUND.MAPPER_TICK_BUDGET);
+	}
+
+	// ===========================
+	// Mapper Methods
+	// ===========================
+
+	/**
+	 * Requests a new map of a segment. Clients do not know where their rails
+	 * are, so the caller gives the rail each end of the segment is at. Must be
+	 * called on the server thread.
+	 *
+	 * @param world
+	 * @param segment
+	 * @param xA
+	 * @param yA
+	 * @param zA
+	 *            The rail of client A, where the walk starts
+	 * @param xB
+	 * @param yB
+	 * @param zB
+	 *            The rail of client B
+	 * @param callback
+	 *            Called on the server thread once the segment is mapped; may be
+	 *            <code>null</code>.
+	 * @return the request, which may be cancelled.
+	 */
+	public MappingRequest map(World world, RailNetSegment segment, int xA, int yA, int zA, int xB, int yB, int zB,
+			MappingRequest.Callback callback) {
+		MappingRequest previous = requests.get(segment);
+		if (previous != null)
+			previous.cancel();
+		MappingRequest request = new MappingRequest(world, segment, xA, yA, zA, xB, yB, zB, callback);
+		requests.put(segment, request);
+		queue.add(request);
+		return request;
+	}
+
+	/**
+	 * Walks the queued requests until the tick budget is spent. Must be called
+	 * once per server tick.
+	 *
+	 * @return the number of blocks walked.
+	 */
+	public int tick() {
+		long start = System.nanoTime();
+		long deadline = start + tickBudget;
+		int walked = 0;
+		for (int remaining = queue.size(); remaining > 0; remaining--) {
+			long now = System.nanoTime();
+			if (now >= deadline)
+				break;
+			MappingRequest request = queue.poll();
+			long started = Profiler.start();
+			if (request.getState() != MappingRequest.State.CANCELLED)
+				walked += request.walk(now + (deadline - now) / remaining);
+			if (request.isFinished()) {
+				if (requests.get(request.getSegment()) == request)
+					requests.remove(request.getSegment());
+				request.complete();
+			} else {
+				queue.add(request);
+			}
+			Profiler.stop(Profiler.Section.MAPPING, request.getSegment().getNetwork(), started);
+		}
+		return walked;
+	}
+
+	/**
+	 * @return the number of requests not yet finished.
+	 */
+	public int getPending() {
+		return queue.size();
+	}
+
+	/**
+	 * Drops every request; their callbacks are not called.
+	 */
+	public void shutdown() {
+		for (MappingRequest request : queue)
+			request.cancel();
+		queue.clear();
+		requests.clear();
+	}
+}
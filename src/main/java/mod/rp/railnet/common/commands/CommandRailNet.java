@@ -0,0 +1,131 @@
+package mod.rp.railnet.common.commands;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.RailNet;
+import mod.rp.railnet.common.core.storage.RailNetStorage;
+import mod.rp.railnet.common.util.profiling.ProfileReport;
+import mod.rp.railnet.common.util.profiling.Profiler;
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
+import net.minecraft.util.ChatComponentText;
+
+/**
+ * The <code>/railnet</code> server command.
+ * <ul>
+ * <li><code>/railnet profile [seconds]</code> shows what RailNet cost per tick
+ * over the last seconds, by section and for the networks and lines taking the
+ * most time.</li>
+ * <li><code>/railnet profile on|off|reset</code> turns the {@link Profiler} on
+ * or off, or drops what it measured.</li>
+ * <li><code>/railnet profile dump [seconds]</code> writes the whole report to a
+ * file in the world save.</li>
+ * </ul>
+ *
+ * @author MajorR
+ *
+ */
+public class CommandRailNet extends CommandBase {
+
+	private static final String USAGE = "/railnet profile [on|off|reset|dump] [seconds]";
+
+	@Override
+	public String getCommandName() {
+		return "railnet";
+	}
+
+	@Override
+	public String getCommandUsage(ICommandSender sender) {
+		return USAGE;
+	}
+
+	@Override
+	public int getRequiredPermissionLevel() {
+		return 2;
+	}
+
+	@Override
+	public void processCommand(ICommandSender sender, String[] args) {
+		if (args.length == 0 || !"profile".equals(args[0]))
+			throw new WrongUsageException(USAGE);
+		String action = args.length > 1 ? args[1] : "";
+		if ("on".equals(action)) {
+			Profiler.setEnabled(true);
+			send(sender, "RailNet profiling is on");
+		} else if ("off".equals(action)) {
+			Profiler.setEnabled(false);
+			send(sender, "RailNet profiling is off");
+		} else if ("reset".equals(action)) {
+			Profiler.reset();
+			send(sender, "RailNet profile reset");
+		} else if ("dump".equals(action)) {
+			File file = dump(report(sender, args, 2));
+			send(sender, "RailNet profile written to " + file.getPath());
+		} else {
+			for (String line : report(sender, args, 1).format(CONFIG.PROFILING.TOP))
+				send(sender, line);
+		}
+	}
+
+	@Override
+	public List addTabCompletionOptions(ICommandSender sender, String[] args) {
+		if (args.length == 1)
+			return getListOfStringsMatchingLastWord(args, "profile");
+		if (args.length == 2 && "profile".equals(args[0]))
+			return getListOfStringsMatchingLastWord(args, "on", "off", "reset", "dump");
+		return null;
+	}
+
+	/**
+	 * @param sender
+	 * @param args
+	 * @param index
+	 *            The argument holding the seconds, if given
+	 * @return the report of the window asked for.
+	 */
+	private static ProfileReport report(ICommandSender sender, String[] args, int index) {
+		int maxSeconds = CONFIG.PROFILING.WINDOW_TICKS / 20;
+		int seconds = args.length > index ? parseIntBounded(sender, args[index], 1, maxSeconds) : maxSeconds;
+		ProfileReport report = Profiler.report(seconds * 20);
+		if (report.getTicks() == 0 && !Profiler.isEnabled())
+			send(sender, "RailNet profiling is off, turn it on with /railnet profile on");
+		return report;
+	}
+
+	private static File dump(ProfileReport report) {
+		RailNetStorage storage = RailNet.INSTANCE.getStorage();
+		if (storage == null)
+			throw new CommandException("No server is running");
+		File folder = new File(storage.getFolder().getParentFile(), CONFIG.PROFILING.FOLDER);
+		String name = "profile-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT).format(new Date()) + ".txt";
+		File file = new File(folder, name);
+		PrintWriter writer = null;
+		try {
+			if (!folder.isDirectory() && !folder.mkdirs())
+				throw new IOException("cannot create " + folder);
+			writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+			report.write(writer);
+		} catch (IOException e) {
+			throw new CommandException("RailNet profile could not be written: " + e.getMessage());
+		} finally {
+			if (writer != null)
+				writer.close();
+		}
+		return file;
+	}
+
+	private static void send(ICommandSender sender, String message) {
+		sender.addChatMessage(new ChatComponentText(message));
+	}
+}
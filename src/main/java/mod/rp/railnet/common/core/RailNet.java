@@ -2,10 +2,26 @@ package mod.rp.railnet.common.core;
 
 import java.io.File;
 
+import cpw.mods.fml.common.FMLCommonHandler;
 import cpw.mods.fml.common.Mod;
 import cpw.mods.fml.common.Mod.Instance;
 import cpw.mods.fml.common.event.FMLPreInitializationEvent;
+import cpw.mods.fml.common.event.FMLServerStartingEvent;
+import cpw.mods.fml.common.event.FMLServerStoppingEvent;
 import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.background.BackgroundTickHandler;
+import mod.rp.railnet.common.background.RoutePlanner;
+import mod.rp.railnet.common.background.TrackMapper;
+import mod.rp.railnet.common.commands.CommandRailNet;
+import mod.rp.railnet.common.core.clients.ClientRegistry;
+import mod.rp.railnet.common.core.clients.CommandBus;
+import mod.rp.railnet.common.core.routing.RailNetwork;
+import mod.rp.railnet.common.core.storage.RailNetStorage;
+import mod.rp.railnet.common.util.network.NetworkSync;
+import mod.rp.railnet.common.util.network.PacketHandler;
+import mod.rp.railnet.common.util.profiling.Profiler;
+import net.minecraftforge.common.DimensionManager;
+import net.minecraftforge.common.MinecraftForge;
 
 /**
  * TODO Update comments
@@ -35,6 +51,23 @@ public final class RailNet {
 	/** The pointer to the configuration folder */
 	private File configFolder;
 
+	/** Calculates routes off the server thread while a server is running */
+	private RoutePlanner planner;
+
+	/** Maps segments by walking their track a little every tick */
+	private TrackMapper mapper;
+
+	/** Hands commands to clients a batch per tick */
+	private CommandBus commands;
+
+	private BackgroundTickHandler tickHandler;
+
+	/** Saves the networks of the running server's world */
+	private RailNetStorage storage;
+
+	/** Keeps the players' copies of the networks up to date */
+	private NetworkSync sync;
+
 	// ========================================
 	// Event Handlers
 	// ========================================
@@ -52,7 +85,7 @@ public final class RailNet {
 		CONFIG.preInit();
 
 		// Setup how data is transfered between MC Clients
-		// PacketHandler.init();
+		PacketHandler.init();
 
 		// Check for latest version of mod. May be disabled in railnet.cfg
 		// StartupChecks.checkForNewVersion();
@@ -70,4 +103,120 @@ public final class RailNet {
 
 	}
 
+	/**
+	 * Run when a server starts. Restores the saved networks, starts the
+	 * background workers and the sync to the players, and registers the
+	 * <code>/railnet</code> command.
+	 * 
+	 * @param event
+	 */
+	@Mod.EventHandler
+	public void serverStarting(FMLServerStartingEvent event) {
+		ClientRegistry.open();
+		Profiler.reset();
+		Profiler.setEnabled(CONFIG.PROFILING.ENABLED);
+		storage = new RailNetStorage(DimensionManager.getCurrentSaveRootDirectory());
+		storage.load();
+		MinecraftForge.EVENT_BUS.register(storage);
+		FMLCommonHandler.instance().bus().register(storage);
+
+		planner = new RoutePlanner();
+		mapper = new TrackMapper();
+		commands = new CommandBus();
+		tickHandler = new BackgroundTickHandler(planner, mapper, commands);
+		FMLCommonHandler.instance().bus().register(tickHandler);
+
+		sync = new NetworkSync();
+		MinecraftForge.EVENT_BUS.register(sync);
+		FMLCommonHandler.instance().bus().register(sync);
+
+		event.registerServerCommand(new CommandRailNet());
+	}
+
+	/**
+	 * Run when a server stops. Stops the background workers, saves the
+	 * networks and forgets them and their clients.
+	 * 
+	 * @param event
+	 */
+	@Mod.EventHandler
+	public void serverStopping(FMLServerStoppingEvent event) {
+		// Before anything is saved or unloaded, so no worker touches a
+		// network that is being forgotten
+		if (tickHandler != null)
+			FMLCommonHandler.instance().bus().unregister(tickHandler);
+		if (planner != null)
+			planner.shutdown();
+		if (mapper != null)
+			mapper.shutdown();
+		if (commands != null)
+			commands.shutdown();
+		tickHandler = null;
+		planner = null;
+		mapper = null;
+		commands = null;
+		if (sync != null) {
+			MinecraftForge.EVENT_BUS.unregister(sync);
+			FMLCommonHandler.instance().bus().unregister(sync);
+			sync.close();
+			sync = null;
+		}
+		if (storage != null) {
+			MinecraftForge.EVENT_BUS.unregister(storage);
+			FMLCommonHandler.instance().bus().unregister(storage);
+			if (CONFIG.STORAGE.SNAPSHOTS)
+				storage.saveSnapshots();
+			else
+				storage.save();
+			storage.close();
+			storage = null;
+		}
+		RailNetwork.unloadAll();
+		ClientRegistry.close();
+	}
+
+	// ========================================
+	// Getters
+	// ========================================
+
+	/**
+	 * @return the route planner; otherwise <code>null</code> if no server is
+	 *         running.
+	 */
+	public RoutePlanner getPlanner() {
+		return planner;
+	}
+
+	/**
+	 * @return the track mapper; otherwise <code>null</code> if no server is
+	 *         running.
+	 */
+	public TrackMapper getMapper() {
+		return mapper;
+	}
+
+	/**
+	 * @return the command bus; otherwise <code>null</code> if no server is
+	 *         running.
+	 */
+	public CommandBus getCommandBus() {
+		return commands;
+	}
+
+	/**
+	 * @return the storage of the networks; otherwise <code>null</code> if no
+	 *         server is running.
+	 */
+	public RailNetStorage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * @return the sync of the networks to the players; otherwise
+	 *         <code>null</code> if no server is running.
+	 */
+	public NetworkSync getSync() {
+		return sync;
+	}
+
 }
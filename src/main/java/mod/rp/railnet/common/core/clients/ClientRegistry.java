@@ -0,0 +1,229 @@
+package mod.rp.railnet.common.core.clients;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import mod.rp.railnet.common.core.routing.RailNetwork;
+
+/**
+ * Finds clients by ID. There is one registry per world: it is opened when a
+ * server starts and dropped with every client in it when the server stops.
+ * <p>
+ * Clients are kept in one shard per network, plus one for clients without a
+ * network, and only weakly: a client stays registered while its network or
+ * anything else holds it, and is reclaimed once it is removed and forgotten.
+ * Clients removed from their network are also unregistered right away.
+ * </p>
+ * <p>
+ * Registering and unregistering happen on the server thread; lookups may come
+ * from any thread, such as the route planners.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+public final class ClientRegistry {
+
+	/** Shard key of the clients without a network */
+	private static final UUID NO_NETWORK = new UUID(0L, 0L);
+
+	private static volatile ClientRegistry current = new ClientRegistry();
+
+	/** Clients by ID, per network ID */
+	private final ConcurrentMap<UUID, ConcurrentMap<UUID, ClientReference>> shards = new ConcurrentHashMap<UUID, ConcurrentMap<UUID, ClientReference>>();
+
+	/** Shard of each client, to look clients up by ID alone */
+	private final ConcurrentMap<UUID, UUID> shardOf = new ConcurrentHashMap<UUID, UUID>();
+
+	private final ReferenceQueue<RailNetClient> collected = new ReferenceQueue<RailNetClient>();
+
+	private ClientRegistry() {
+	}
+
+	// ===========================
+	// Lifecycle
+	// ===========================
+
+	/**
+	 * @return the registry of the running world.
+	 */
+	public static ClientRegistry get() {
+		return current;
+	}
+
+	/**
+	 * Starts an empty registry for a world. Called when a server starts.
+	 */
+	public static void open() {
+		current = new ClientRegistry();
+	}
+
+	/**
+	 * Drops the registry of the world. Called when a server stops, once its
+	 * networks were saved.
+	 */
+	public static void close() {
+		ClientRegistry closing = current;
+		current = new ClientRegistry();
+		closing.shards.clear();
+		closing.shardOf.clear();
+	}
+
+	// ===========================
+	// Registering
+	// ===========================
+
+	/**
+	 * Registers a client under its current network, moving it from the shard
+	 * it was in before. Called by clients and networks.
+	 *
+	 * @param client
+	 */
+	public void register(RailNetClient client) {
+		expunge();
+		UUID shard = shardKey(client.getNetwork());
+		// Readers find the client in its new shard before it leaves the old one
+		getShard(shard).put(client.getID(), new ClientReference(client, shard, collected));
+		UUID previous = shardOf.put(client.getID(), shard);
+		if (previous != null && !previous.equals(shard)) {
+			ConcurrentMap<UUID, ClientReference> old = shards.get(previous);
+			if (old != null)
+				old.remove(client.getID());
+		}
+	}
+
+	/**
+	 * Unregisters a client that was removed from its network.
+	 *
+	 * @param client
+	 */
+	public void unregister(RailNetClient client) {
+		expunge();
+		UUID shard = shardOf.remove(client.getID());
+		if (shard == null)
+			return;
+		ConcurrentMap<UUID, ClientReference> clients = shards.get(shard);
+		if (clients != null) {
+			ClientReference reference = clients.get(client.getID());
+			if (reference != null && reference.get() == client)
+				clients.remove(client.getID(), reference);
+			if (clients.isEmpty() && !shard.equals(NO_NETWORK))
+				shards.remove(shard, clients);
+		}
+	}
+
+	/**
+	 * Drops the shard of a network that was merged into another or unloaded.
+	 *
+	 * @param network
+	 */
+	public void unregister(RailNetwork network) {
+		ConcurrentMap<UUID, ClientReference> clients = shards.remove(network.getID());
+		if (clients != null)
+			for (UUID id : clients.keySet())
+				shardOf.remove(id, network.getID());
+	}
+
+	/**
+	 * Removes the entries of clients that were reclaimed.
+	 */
+	private void expunge() {
+		ClientReference reference;
+		while ((reference = (ClientReference) collected.poll()) != null) {
+			ConcurrentMap<UUID, ClientReference> clients = shards.get(reference.shard);
+			if (clients != null && clients.remove(reference.id, reference))
+				shardOf.remove(reference.id, reference.shard);
+		}
+	}
+
+	private ConcurrentMap<UUID, ClientReference> getShard(UUID shard) {
+		ConcurrentMap<UUID, ClientReference> clients = shards.get(shard);
+		if (clients == null) {
+			ConcurrentMap<UUID, ClientReference> created = new ConcurrentHashMap<UUID, ClientReference>();
+			clients = shards.putIfAbsent(shard, created);
+			if (clients == null)
+				clients = created;
+		}
+		return clients;
+	}
+
+	private static UUID shardKey(RailNetwork network) {
+		return network == null ? NO_NETWORK : network.getID();
+	}
+
+	// ===========================
+	// Lookups
+	// ===========================
+
+	/**
+	 * @param id
+	 * @return the client; otherwise <code>null</code> if no live client has the
+	 *         ID in this world.
+	 */
+	public RailNetClient getClient(UUID id) {
+		UUID shard = shardOf.get(id);
+		return shard == null ? null : getClient(shard, id);
+	}
+
+	/**
+	 * @param network
+	 * @param id
+	 * @return the client of a network; otherwise <code>null</code> if the
+	 *         network has no live client with the ID.
+	 */
+	public RailNetClient getClient(RailNetwork network, UUID id) {
+		return getClient(shardKey(network), id);
+	}
+
+	private RailNetClient getClient(UUID shard, UUID id) {
+		ConcurrentMap<UUID, ClientReference> clients = shards.get(shard);
+		if (clients == null)
+			return null;
+		ClientReference reference = clients.get(id);
+		return reference == null ? null : reference.get();
+	}
+
+	/**
+	 * @param network
+	 * @return the live clients registered under a network, or under no
+	 *         network if <code>null</code>.
+	 */
+	public List<RailNetClient> getClients(RailNetwork network) {
+		List<RailNetClient> result = new ArrayList<RailNetClient>();
+		ConcurrentMap<UUID, ClientReference> clients = shards.get(shardKey(network));
+		if (clients != null)
+			for (ClientReference reference : clients.values()) {
+				RailNetClient client = reference.get();
+				if (client != null)
+					result.add(client);
+			}
+		return result;
+	}
+
+	/**
+	 * @return the number of registered clients, including any reclaimed but
+	 *         not yet expunged.
+	 */
+	public int size() {
+		return shardOf.size();
+	}
+
+	/**
+	 * A weak reference to a client that remembers where it is registered.
+	 */
+	private static final class ClientReference extends WeakReference<RailNetClient> {
+		private final UUID id;
+		private final UUID shard;
+
+		private ClientReference(RailNetClient client, UUID shard, ReferenceQueue<RailNetClient> queue) {
+			super(client, queue);
+			this.id = client.getID();
+			this.shard = shard;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package mod.rp.railnet.common.core.clients;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.routing.RailNetwork;
+import mod.rp.railnet.common.core.routing.RailNetwork.RailNetCommand;
+import mod.rp.railnet.common.util.profiling.Profiler;
+
+/**
+ * Hands {@link RailNetCommand commands} to clients on the server tick rather
+ * than when they are sent.
+ * <ol>
+ * <li>{@link #send} and {@link #broadcast} queue a command in the
+ * {@link CommandQueue} of each client, where it replaces any queued command it
+ * supersedes, such as a <code>ROUTE</code> followed by
+ * <code>ROUTE_DEFAULT</code> or an <code>UPDATE_DISABLE</code> followed by
+ * <code>UPDATE_ENABLE</code>.</li>
+ * <li>{@link #tick()} hands the queued commands to the waiting clients, in the
+ * order the clients were queued, until
+ * {@link CONFIG.BACKGROUND#COMMAND_TICK_BUDGET} is spent; the rest wait for
+ * the next tick.</li>
+ * </ol>
+ * Broadcasts skip clients that disabled updates with a single check. Once
+ * {@link CONFIG.BACKGROUND#COMMAND_MAX_PENDING} clients are waiting, commands
+ * to clients that are not already waiting are refused, so senders can back
+ * off. Must be used on the server thread.
+ *
+ * @author MajorR
+ *
+ */
+public class CommandBus {
+
+	/** Clients with queued commands, in order */
+	private final ArrayDeque<RailNetClient> pending = new ArrayDeque<RailNetClient>();
+
+	private final long tickBudget;
+
+	/** Commands handed over since created */
+	private long delivered;
+
+	private final RailNetCommand[] scratchCommands = new RailNetCommand[CommandQueue.KINDS];
+	private final Object[] scratchParams = new Object[CommandQueue.KINDS];
+
+	public CommandBus(long tickBudget) {
+		this.tickBudget = tickBudget;
+	}
+
+	public CommandBus() {
+		this(CONFIG.BACKGROUND.COMMAND_TICK_BUDGET);
+	}
+
+	// ===========================
+	// Sending
+	// ===========================
+
+	/**
+	 * Queues a command for a client.
+	 *
+	 * @param client
+	 * @param command
+	 * @param param
+	 * @return <code>false</code> if the bus is full and the command was
+	 *         refused; otherwise <code>true</code>, even if the command
+	 *         cancelled out.
+	 */
+	public boolean send(RailNetClient client, RailNetCommand command, Object param) {
+		CommandQueue queue = client.commands;
+		if (!queue.pending && pending.size() >= CONFIG.BACKGROUND.COMMAND_MAX_PENDING)
+			return false;
+		if (queue.offer(client, command, param) && !queue.pending) {
+			queue.pending = true;
+			pending.add(client);
+		}
+		return true;
+	}
+
+	/**
+	 * Queues a command for every client that did not disable updates, in one
+	 * pass.
+	 *
+	 * @param clients
+	 * @param command
+	 * @param param
+	 * @return the number of clients the command was queued for; fewer than
+	 *         were listed if some disabled updates or the bus filled up.
+	 */
+	public int broadcast(Collection<? extends RailNetClient> clients, RailNetCommand command, Object param) {
+		boolean enable = command == RailNetCommand.UPDATE_ENABLE;
+		int sent = 0;
+		for (RailNetClient client : clients) {
+			if (client.isUpdateDisabled() && !enable)
+				continue;
+			if (send(client, command, param))
+				sent++;
+		}
+		return sent;
+	}
+
+	// ===========================
+	// Delivery
+	// ===========================
+
+	/**
+	 * Hands queued commands to clients until the tick budget is spent. Must be
+	 * called once per server tick.
+	 *
+	 * @return the number of commands handed over.
+	 */
+	public int tick() {
+		long deadline = System.nanoTime() + tickBudget;
+		int count = 0;
+		int clients = 0;
+		long start = Profiler.start();
+		long split = start;
+		RailNetwork network = null;
+		RailNetClient client;
+		while ((client = pending.poll()) != null) {
+			CommandQueue queue = client.commands;
+			queue.pending = false;
+			// Each run of clients of one network is profiled at once
+			if (client.getNetwork() != network) {
+				split = Profiler.split(Profiler.Section.COMMANDS, network, split);
+				network = client.getNetwork();
+			}
+			count += queue.drain(client, scratchCommands, scratchParams);
+			// The clock is read every few clients as it costs more than most
+			// commands
+			if ((++clients & 15) == 0 && System.nanoTime() >= deadline)
+				break;
+		}
+		Profiler.split(Profiler.Section.COMMANDS, network, split);
+		Profiler.stop(Profiler.Section.COMMANDS, start);
+		delivered += count;
+		return count;
+	}
+
+	/**
+	 * @return the number of clients with queued commands.
+	 */
+	public int getPending() {
+		return pending.size();
+	}
+
+	/**
+	 * @return the number of commands handed over since the bus was created.
+	 */
+	public long getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * Drops every queued command.
+	 */
+	public void shutdown() {
+		RailNetClient client;
+		while ((client = pending.poll()) != null) {
+			client.commands.pending = false;
+			client.commands.clear();
+		}
+	}
+}
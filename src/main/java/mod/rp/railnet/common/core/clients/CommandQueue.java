@@ -0,0 +1,113 @@
+package mod.rp.railnet.common.core.clients;
+
+import mod.rp.railnet.common.core.routing.RailNetwork.RailNetCommand;
+
+/**
+ * The commands waiting to be handed to one client by the {@link CommandBus}.
+ * <p>
+ * A newer command replaces a queued one of the same kind: routing commands
+ * replace each other, as do {@link RailNetCommand#ROUTE_SET ROUTE_SET} and the
+ * two update toggles. The queue therefore never holds more than one command
+ * of each kind. Commands are handed over in the order they were last queued.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+final class CommandQueue {
+
+	static final int KINDS = 3;
+
+	private final RailNetCommand[] commands = new RailNetCommand[KINDS];
+	private final Object[] params = new Object[KINDS];
+	private int size;
+
+	/** Whether the client is waiting in the bus */
+	boolean pending;
+
+	/**
+	 * Queues a command, replacing the queued command of the same kind. An
+	 * update toggle that leaves the client as it is cancels out.
+	 *
+	 * @param client
+	 * @param command
+	 * @param param
+	 * @return <code>true</code> if the queue holds a command afterwards.
+	 */
+	boolean offer(RailNetClient client, RailNetCommand command, Object param) {
+		int kind = kindOf(command);
+		for (int i = 0; i < size; i++)
+			if (kindOf(commands[i]) == kind) {
+				remove(i);
+				break;
+			}
+		boolean toggle = command == RailNetCommand.UPDATE_ENABLE || command == RailNetCommand.UPDATE_DISABLE;
+		if (!toggle || client.isUpdateDisabled() != (command == RailNetCommand.UPDATE_DISABLE)) {
+			commands[size] = command;
+			params[size] = param;
+			size++;
+		}
+		return size > 0;
+	}
+
+	/**
+	 * Hands every queued command to the client, in order. The queue is emptied
+	 * first, so the client may be sent new commands while it handles these.
+	 *
+	 * @param client
+	 * @param scratchCommands
+	 * @param scratchParams
+	 *            Space for a copy of the queue, of at least {@link #KINDS}
+	 * @return the number of commands handed over.
+	 */
+	int drain(RailNetClient client, RailNetCommand[] scratchCommands, Object[] scratchParams) {
+		int count = size;
+		System.arraycopy(commands, 0, scratchCommands, 0, count);
+		System.arraycopy(params, 0, scratchParams, 0, count);
+		clear();
+		for (int i = 0; i < count; i++) {
+			RailNetCommand command = scratchCommands[i];
+			Object param = scratchParams[i];
+			scratchCommands[i] = null;
+			scratchParams[i] = null;
+			boolean complied = client.netCommand(command, param);
+			if (complied && command == RailNetCommand.UPDATE_DISABLE)
+				client.setUpdateDisabled(true);
+			else if (complied && command == RailNetCommand.UPDATE_ENABLE)
+				client.setUpdateDisabled(false);
+		}
+		return count;
+	}
+
+	void clear() {
+		for (int i = 0; i < size; i++) {
+			commands[i] = null;
+			params[i] = null;
+		}
+		size = 0;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	private void remove(int index) {
+		size--;
+		System.arraycopy(commands, index + 1, commands, index, size - index);
+		System.arraycopy(params, index + 1, params, index, size - index);
+		commands[size] = null;
+		params[size] = null;
+	}
+
+	private static int kindOf(RailNetCommand command) {
+		switch (command) {
+		case ROUTE_SET:
+			return 1;
+		case UPDATE_DISABLE:
+		case UPDATE_ENABLE:
+			return 2;
+		default:
+			return 0;
+		}
+	}
+}
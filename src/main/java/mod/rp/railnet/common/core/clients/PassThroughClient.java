@@ -1,5 +1,7 @@
 package mod.rp.railnet.common.core.clients;
 
+import java.util.UUID;
+
 import mod.rp.railnet.common.core.routing.RailNetwork;
 import mod.rp.railnet.common.core.routing.RailNetwork.RailNetCommand;
 
@@ -10,6 +12,10 @@ public class PassThroughClient extends RailNetClient {
 		// TODO Auto-generated constructor stub
 	}
 
+	public PassThroughClient(UUID id, RailNetwork network, String name) {
+		super(id, network, name);
+	}
+
 	public PassThroughClient(String name) {
 		super(name);
 		// TODO Auto-generated constructor stub
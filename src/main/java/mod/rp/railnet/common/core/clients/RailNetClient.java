@@ -1,9 +1,7 @@
 package mod.rp.railnet.common.core.clients;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.UUID;
 
 import mod.rp.railnet.common.core.routing.RailNetSegment;
@@ -17,9 +15,6 @@ import mod.rp.railnet.common.core.routing.RailNetwork.RailNetCommand;
  */
 public abstract class RailNetClient {
 
-	/** List of all RailNew Clients, regardless of domain */
-	private static final Map<UUID, RailNetClient> clients = new HashMap<UUID, RailNetClient>();
-
 	/**
 	 * Client can handle an the maximum number of segments of an integer (2
 	 * <sup>31</sup>-1)
@@ -42,7 +37,7 @@ public abstract class RailNetClient {
 	private RailNetwork network;
 
 	/** Rail segments connected to client */
-	private List<RailNetSegment> connectedSegments;
+	private List<RailNetSegment> connectedSegments = new ArrayList<RailNetSegment>();
 
 	/**
 	 * The maximum number of connecting segments that can be handled by this
@@ -50,14 +45,35 @@ public abstract class RailNetClient {
 	 */
 	private int maxSegments = RailNetClient.UNLIMITED_SEGMENTS;
 
+	/** Whether the client complied with an UPDATE_DISABLE command */
+	private boolean updateDisabled;
+
+	/** Commands waiting to be handed to the client */
+	final CommandQueue commands = new CommandQueue();
+
 	// ===========================
 	// Constructors
 	// ===========================
 	public RailNetClient(RailNetwork network, String name) {
-		uuid = UUID.randomUUID();
+		this(UUID.randomUUID(), network, name);
+	}
+
+	/**
+	 * Restores a saved client. Subclasses that can be saved provide a public
+	 * constructor with the same parameters.
+	 * 
+	 * @param id
+	 *            The unique ID the client was saved with
+	 * @param network
+	 * @param name
+	 */
+	protected RailNetClient(UUID id, RailNetwork network, String name) {
+		uuid = id;
 		setName(name);
 		setNetwork(network);
-		clients.put(getID(), this);
+		ClientRegistry.get().register(this);
+		if (network != null)
+			network.addClient(this);
 	}
 
 	public RailNetClient(String name) {
@@ -99,7 +115,9 @@ public abstract class RailNetClient {
 	// ===========================
 
 	/**
-	 * Perform action upon request from RailNetwork.
+	 * Perform action upon request from RailNetwork. Commands sent through the
+	 * {@link CommandBus} are handed over on the server tick, after superseded
+	 * ones were dropped.
 	 * 
 	 * @param commandID
 	 * @param param
@@ -118,10 +136,12 @@ public abstract class RailNetClient {
 	 * @param id
 	 * @return If Client exists, return array of connected clients; otherwise,
 	 *         return <code>null</code>.
+	 * @see ClientRegistry
 	 */
 	public static final List<RailNetClient> getConnectedClients(UUID id) {
-		if (clients.containsKey(id))
-			return getConnectedClients(clients.get(id));
+		RailNetClient client = ClientRegistry.get().getClient(id);
+		if (client != null)
+			return getConnectedClients(client);
 		return null;
 	}
 
@@ -157,9 +177,17 @@ public abstract class RailNetClient {
 		this.connectedSegments = connectedSegments;
 	}
 
+	/**
+	 * Connects a segment to the client and registers the segment with the
+	 * network of the client.
+	 * 
+	 * @param segment
+	 */
 	public void connectSegment(RailNetSegment segment) {
 		segment.connectClient(this);
 		getConnectedSegments().add(segment);
+		if (network != null)
+			network.addSegment(segment);
 	}
 
 	public boolean disconnectSegment(RailNetSegment segment) {
@@ -167,6 +195,19 @@ public abstract class RailNetClient {
 		return getConnectedSegments().remove(segment);
 	}
 
+	/**
+	 * @return <code>true</code> if the client complied with an
+	 *         <code>UPDATE_DISABLE</code> command and has not re-enabled
+	 *         updates since; broadcasts skip it.
+	 */
+	public boolean isUpdateDisabled() {
+		return updateDisabled;
+	}
+
+	void setUpdateDisabled(boolean updateDisabled) {
+		this.updateDisabled = updateDisabled;
+	}
+
 	public int getMaxSegments() {
 		return maxSegments;
 	}
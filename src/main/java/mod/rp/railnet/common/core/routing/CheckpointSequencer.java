@@ -0,0 +1,339 @@
+package mod.rp.railnet.common.core.routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.clients.RailNetClient;
+
+/**
+ * Finds a cheap order to visit the checkpoints of a line that does not need
+ * them in order.
+ * <ol>
+ * <li>The cost between every pair of checkpoints is found with one
+ * one-to-many {@link RouteSearch#searchMany search} per checkpoint, spread
+ * over the threads of an executor. The calling thread takes its share of the
+ * searches, so a busy executor delays the order but never blocks it. A
+ * search that fails is thrown again on the calling thread once the others
+ * are done.</li>
+ * <li>A first order is built by always travelling to the nearest checkpoint
+ * not yet visited.</li>
+ * <li>The order is improved by 2-opt, reversing a run of checkpoints, and
+ * Or-opt, moving a run of up to three checkpoints elsewhere, until neither
+ * finds a cheaper order or {@link CONFIG.ROUTING#SEQUENCER_PASSES} passes
+ * were made.</li>
+ * </ol>
+ * The first checkpoint stays first, as trains start the line there. A loop
+ * line is costed with the way back to the first checkpoint, and a line that
+ * does not loop without it. Costs may differ by direction, as on one-way
+ * track. A pair of checkpoints no route joins is given a cost higher than
+ * any route, so orders that can be travelled are always preferred.
+ *
+ * @author MajorR
+ *
+ */
+final class CheckpointSequencer {
+
+	/** Cost of travelling between checkpoints no route joins */
+	static final double UNREACHABLE = 1e18;
+
+	/** The longest run of checkpoints Or-opt moves */
+	private static final int MAX_RUN = 3;
+
+	/** Relative saving below which a move is not worth making */
+	private static final double EPSILON = 1e-9;
+
+	private CheckpointSequencer() {
+	}
+
+	// ===========================
+	// Costs
+	// ===========================
+
+	/**
+	 * Finds the cost of the best route between every pair of clients.
+	 *
+	 * @param graph
+	 * @param linkCosts
+	 *            Segment costs of the profile on the graph.
+	 * @param clients
+	 * @param executor
+	 *            Threads sharing the searches; may be <code>null</code> to
+	 *            search on the calling thread only.
+	 * @param helpers
+	 *            The most searches run on the executor at once
+	 * @return the costs from each client (rows) to each client (columns);
+	 *         {@link #UNREACHABLE} where no route exists.
+	 * @throws IllegalStateException
+	 *             if a search failed, with the failure as its cause.
+	 */
+	static double[][] getCosts(final RailNetGraph graph, final float[] linkCosts, List<RailNetClient> clients,
+			Executor executor, int helpers) {
+		final int n = clients.size();
+		final int[] nodes = new int[n];
+		for (int i = 0; i < n; i++)
+			nodes[i] = graph.indexOf(clients.get(i));
+		final double[][] costs = new double[n][];
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(n);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				int row;
+				while ((row = next.getAndIncrement()) < n) {
+					try {
+						// The remaining rows are only counted once a search failed
+						if (failure.get() == null)
+							costs[row] = getRow(graph, linkCosts, nodes, row);
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					} finally {
+						done.countDown();
+					}
+				}
+			}
+		};
+		if (executor != null && n > 1) {
+			try {
+				for (int i = 0; i < Math.min(n - 1, helpers); i++)
+					executor.execute(worker);
+			} catch (RejectedExecutionException e) {
+				// The executor is shutting down, the calling thread searches
+			}
+		}
+		worker.run();
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while costing checkpoints", e);
+		}
+		Throwable failed = failure.get();
+		if (failed instanceof Error)
+			throw (Error) failed;
+		if (failed != null)
+			throw new IllegalStateException("Costing checkpoints failed", failed);
+		return costs;
+	}
+
+	private static double[] getRow(RailNetGraph graph, float[] linkCosts, int[] nodes, int row) {
+		double[] costs = new double[nodes.length];
+		int source = nodes[row];
+		RouteSearch search = source < 0 ? null : RouteSearch.get();
+		if (search != null)
+			search.searchMany(graph, linkCosts, source, nodes);
+		for (int i = 0; i < nodes.length; i++) {
+			float cost = search == null || nodes[i] < 0 ? Float.POSITIVE_INFINITY : search.getCost(nodes[i]);
+			costs[i] = i == row ? 0.0 : cost == Float.POSITIVE_INFINITY ? UNREACHABLE : cost;
+		}
+		return costs;
+	}
+
+	// ===========================
+	// Ordering
+	// ===========================
+
+	/**
+	 * Orders the checkpoints given the costs between them.
+	 *
+	 * @param costs
+	 *            From each checkpoint (rows) to each checkpoint (columns)
+	 * @param loop
+	 *            <code>true</code> if the line returns to the first checkpoint
+	 * @return the indices of the checkpoints in visiting order, starting with
+	 *         0.
+	 */
+	static int[] solve(double[][] costs, boolean loop) {
+		int n = costs.length;
+		// The tour repeats the first checkpoint at the end of a loop
+		int[] tour = new int[loop ? n + 1 : n];
+		if (n == 0)
+			return tour;
+		nearestNeighbour(costs, tour, n);
+		if (loop)
+			tour[n] = tour[0];
+		double[] forward = new double[tour.length];
+		double[] backward = new double[tour.length];
+		for (int pass = 0; pass < CONFIG.ROUTING.SEQUENCER_PASSES; pass++) {
+			boolean improved = twoOpt(costs, tour, n, forward, backward);
+			improved |= orOpt(costs, tour, n);
+			if (!improved)
+				break;
+		}
+		return loop ? Arrays.copyOf(tour, n) : tour;
+	}
+
+	private static void nearestNeighbour(double[][] costs, int[] tour, int n) {
+		boolean[] visited = new boolean[n];
+		visited[0] = true;
+		for (int i = 1; i < n; i++) {
+			int from = tour[i - 1];
+			int best = -1;
+			for (int j = 0; j < n; j++)
+				if (!visited[j] && (best < 0 || costs[from][j] < costs[from][best]))
+					best = j;
+			tour[i] = best;
+			visited[best] = true;
+		}
+	}
+
+	/**
+	 * Reverses the first run of checkpoints whose reversal makes the tour
+	 * cheaper, repeatedly, up to <code>n * n</code> times. The costs of the run
+	 * itself are taken from prefix sums in both directions, so every move is
+	 * priced in constant time even when costs differ by direction.
+	 *
+	 * @return <code>true</code> if the tour was improved.
+	 */
+	private static boolean twoOpt(double[][] costs, int[] tour, int n, double[] forward, double[] backward) {
+		int length = tour.length;
+		boolean improved = false;
+		boolean changed = true;
+		for (int moves = 0; changed && moves < n * n; moves++) {
+			changed = false;
+			forward[0] = backward[0] = 0.0;
+			for (int e = 1; e < length; e++) {
+				forward[e] = forward[e - 1] + costs[tour[e - 1]][tour[e]];
+				backward[e] = backward[e - 1] + costs[tour[e]][tour[e - 1]];
+			}
+			search: for (int i = 1; i < n - 1; i++) {
+				for (int j = i + 1; j < n; j++) {
+					boolean tail = j + 1 < length;
+					double old = costs[tour[i - 1]][tour[i]] + forward[j] - forward[i]
+							+ (tail ? costs[tour[j]][tour[j + 1]] : 0.0);
+					double now = costs[tour[i - 1]][tour[j]] + backward[j] - backward[i]
+							+ (tail ? costs[tour[i]][tour[j + 1]] : 0.0);
+					if (isCheaper(now, old)) {
+						reverse(tour, i, j);
+						changed = improved = true;
+						break search;
+					}
+				}
+			}
+		}
+		return improved;
+	}
+
+	/**
+	 * Moves the first run of up to {@link #MAX_RUN} checkpoints, forwards or
+	 * reversed, whose move makes the tour cheaper, repeatedly, up to
+	 * <code>n * n</code> times.
+	 *
+	 * @return <code>true</code> if the tour was improved.
+	 */
+	private static boolean orOpt(double[][] costs, int[] tour, int n) {
+		int length = tour.length;
+		boolean improved = false;
+		boolean changed = true;
+		for (int moves = 0; changed && moves < n * n; moves++) {
+			changed = false;
+			search: for (int run = 1; run <= Math.min(MAX_RUN, n - 2); run++) {
+				for (int i = 1; i + run <= n; i++) {
+					int first = tour[i];
+					int last = tour[i + run - 1];
+					int before = tour[i - 1];
+					boolean hasAfter = i + run < length;
+					int after = hasAfter ? tour[i + run] : -1;
+					double removed = costs[before][first]
+							+ (hasAfter ? costs[last][after] - costs[before][after] : 0.0);
+					double inside = 0.0;
+					double insideReversed = 0.0;
+					for (int k = i; k < i + run - 1; k++) {
+						inside += costs[tour[k]][tour[k + 1]];
+						insideReversed += costs[tour[k + 1]][tour[k]];
+					}
+					// Insert between tour[p] and tour[p + 1], or after the last
+					for (int p = 0; p < length; p++) {
+						if (p >= i - 1 && p < i + run)
+							continue;
+						boolean hasNext = p + 1 < length;
+						if (!hasNext && length > n)
+							continue;
+						int a = tour[p];
+						int b = hasNext ? tour[p + 1] : -1;
+						double gap = hasNext ? costs[a][b] : 0.0;
+						double added = costs[a][first] + (hasNext ? costs[last][b] : 0.0) - gap;
+						double addedReversed = costs[a][last] + (hasNext ? costs[first][b] : 0.0) - gap
+								+ insideReversed - inside;
+						if (isCheaper(added, removed)) {
+							move(tour, i, run, p, false);
+							changed = improved = true;
+							break search;
+						}
+						if (run > 1 && isCheaper(addedReversed, removed)) {
+							move(tour, i, run, p, true);
+							changed = improved = true;
+							break search;
+						}
+					}
+				}
+			}
+		}
+		return improved;
+	}
+
+	private static boolean isCheaper(double cost, double than) {
+		return cost < than - EPSILON * Math.max(1.0, Math.abs(than));
+	}
+
+	private static void reverse(int[] tour, int i, int j) {
+		for (; i < j; i++, j--) {
+			int t = tour[i];
+			tour[i] = tour[j];
+			tour[j] = t;
+		}
+	}
+
+	/**
+	 * Moves the run starting at <code>i</code> to follow
+	 * <code>tour[p]</code>.
+	 */
+	private static void move(int[] tour, int i, int run, int p, boolean reversed) {
+		int[] moved = new int[run];
+		for (int k = 0; k < run; k++)
+			moved[k] = tour[reversed ? i + run - 1 - k : i + k];
+		if (p < i) {
+			// Shift tour[p + 1 .. i - 1] right by the run
+			System.arraycopy(tour, p + 1, tour, p + 1 + run, i - p - 1);
+			System.arraycopy(moved, 0, tour, p + 1, run);
+		} else {
+			// Shift tour[i + run .. p] left by the run
+			System.arraycopy(tour, i + run, tour, i, p - i - run + 1);
+			System.arraycopy(moved, 0, tour, p - run + 1, run);
+		}
+	}
+
+	/**
+	 * @param costs
+	 * @param order
+	 * @param loop
+	 * @return the cost of visiting the checkpoints in order.
+	 */
+	static double getCost(double[][] costs, int[] order, boolean loop) {
+		double total = 0.0;
+		for (int i = 1; i < order.length; i++)
+			total += costs[order[i - 1]][order[i]];
+		if (loop && order.length > 1)
+			total += costs[order[order.length - 1]][order[0]];
+		return total;
+	}
+
+	/**
+	 * @param clients
+	 * @param order
+	 * @return the clients in order.
+	 */
+	static List<RailNetClient> apply(List<RailNetClient> clients, int[] order) {
+		List<RailNetClient> ordered = new ArrayList<RailNetClient>(order.length);
+		for (int i : order)
+			ordered.add(clients.get(i));
+		return ordered;
+	}
+}
@@ -0,0 +1,355 @@
+package mod.rp.railnet.common.core.routing;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import mod.rp.railnet.common.core.clients.RailNetClient;
+
+/**
+ * Which clients of a {@link RailNetwork} are joined by track, regardless of
+ * the direction or state of the segments.
+ * <p>
+ * Clients are kept in a union-find forest, so whether two clients are joined
+ * is answered in nearly constant time, and connecting a segment is a union.
+ * Union-find cannot undo a union, so the index also keeps a spanning forest of
+ * the links: removing a link outside the forest cannot disconnect anything.
+ * Removing a link of the forest searches both halves of its tree at once and
+ * stops with the smaller one, then looks for another link out of that half to
+ * replace it. Without one, the smaller half is given new nodes of its own and
+ * the old ones are left in place for the larger half, which may still pass
+ * through them; the forest is rebuilt once the abandoned nodes outnumber the
+ * live ones.
+ * </p>
+ * <p>
+ * The index is built on first use and kept up to date from then on. It is only
+ * used on the server thread.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+final class ConnectivityIndex {
+
+	private final RailNetwork network;
+
+	private boolean built;
+
+	/** Union-find parents by node */
+	private int[] parent = new int[64];
+	private byte[] rank = new byte[64];
+	private int nodeCount;
+
+	/** Nodes no client uses anymore */
+	private int abandoned;
+
+	private final Map<RailNetClient, Integer> nodes = new IdentityHashMap<RailNetClient, Integer>();
+
+	/** Both ends of every segment linking two clients, as last seen */
+	private final Map<RailNetSegment, RailNetClient[]> links = new IdentityHashMap<RailNetSegment, RailNetClient[]>();
+
+	/** Links of the spanning forest */
+	private final Set<RailNetSegment> tree = Collections
+			.newSetFromMap(new IdentityHashMap<RailNetSegment, Boolean>());
+
+	/** Set when clients that were joined may have come apart */
+	private boolean split;
+
+	ConnectivityIndex(RailNetwork network) {
+		this.network = network;
+	}
+
+	// ===========================
+	// Queries
+	// ===========================
+
+	/**
+	 * @param a
+	 * @param b
+	 * @return <code>true</code> if both clients are in the network and joined
+	 *         by track.
+	 */
+	boolean isConnected(RailNetClient a, RailNetClient b) {
+		ensureBuilt();
+		Integer nodeA = nodes.get(a);
+		Integer nodeB = nodes.get(b);
+		if (nodeA == null || nodeB == null)
+			return false;
+		return a == b || find(nodeA) == find(nodeB);
+	}
+
+	/**
+	 * @return the clients of the network grouped by what they are joined to.
+	 */
+	List<List<RailNetClient>> getComponents() {
+		ensureBuilt();
+		Map<Integer, List<RailNetClient>> components = new HashMap<Integer, List<RailNetClient>>();
+		for (Map.Entry<RailNetClient, Integer> entry : nodes.entrySet()) {
+			int root = find(entry.getValue());
+			List<RailNetClient> component = components.get(root);
+			if (component == null)
+				components.put(root, component = new ArrayList<RailNetClient>());
+			component.add(entry.getKey());
+		}
+		return new ArrayList<List<RailNetClient>>(components.values());
+	}
+
+	/**
+	 * @return <code>true</code> if clients may have come apart since the last
+	 *         call.
+	 */
+	boolean takeSplit() {
+		boolean result = split;
+		split = false;
+		return result;
+	}
+
+	// ===========================
+	// Changes
+	// ===========================
+
+	void clientAdded(RailNetClient client) {
+		if (!built || nodes.containsKey(client))
+			return;
+		nodes.put(client, newNode());
+		// Segments may have been connected before the client joined
+		for (RailNetSegment segment : client.getConnectedSegments())
+			updateLink(segment);
+	}
+
+	void clientRemoved(RailNetClient client) {
+		if (!built || nodes.remove(client) == null)
+			return;
+		abandoned++;
+		for (RailNetSegment segment : client.getConnectedSegments()) {
+			RailNetClient[] ends = links.get(segment);
+			if (ends != null && (ends[0] == client || ends[1] == client))
+				removeLink(segment);
+		}
+		compactIfNeeded();
+	}
+
+	/**
+	 * Updates the link of a segment that was added, removed, connected or
+	 * disconnected.
+	 *
+	 * @param segment
+	 * @param removal
+	 *            <code>true</code> if the change may have cut a link.
+	 */
+	void segmentChanged(RailNetSegment segment, boolean removal) {
+		if (built) {
+			updateLink(segment);
+			compactIfNeeded();
+		} else if (removal) {
+			// The cut link is already gone, so see what the network is now
+			build();
+			split = true;
+		}
+	}
+
+	private void updateLink(RailNetSegment segment) {
+		RailNetClient a = segment.getClientA();
+		RailNetClient b = segment.getClientB();
+		boolean linked = a != null && b != null && a != b && segment.getNetwork() == network
+				&& nodes.containsKey(a) && nodes.containsKey(b);
+		RailNetClient[] old = links.get(segment);
+		if (old != null) {
+			if (linked && (old[0] == a && old[1] == b || old[0] == b && old[1] == a))
+				return;
+			removeLink(segment);
+		}
+		if (!linked)
+			return;
+		links.put(segment, new RailNetClient[] { a, b });
+		if (union(nodes.get(a), nodes.get(b)))
+			tree.add(segment);
+	}
+
+	private void removeLink(RailNetSegment segment) {
+		RailNetClient[] ends = links.remove(segment);
+		if (ends != null && tree.remove(segment) && !network.isMoving())
+			cut(ends[0], ends[1]);
+	}
+
+	/**
+	 * Handles the removal of a link of the spanning forest between two
+	 * clients.
+	 */
+	private void cut(RailNetClient a, RailNetClient b) {
+		Half halfA = new Half(a);
+		Half halfB = new Half(b);
+		Half smaller;
+		while (true) {
+			if (!halfA.step()) {
+				smaller = halfA;
+				break;
+			}
+			if (!halfB.step()) {
+				smaller = halfB;
+				break;
+			}
+		}
+
+		// A client being removed is still searched through, as its links are
+		// cut one at a time, but neither joins the halves nor gets a node
+		Set<RailNetClient> half = smaller.visited;
+		for (RailNetClient client : half)
+			for (RailNetSegment segment : client.getConnectedSegments()) {
+				RailNetClient other = otherEnd(segment, client);
+				if (other != null && !tree.contains(segment) && !half.contains(other)
+						&& nodes.containsKey(client) && nodes.containsKey(other)) {
+					tree.add(segment);
+					return;
+				}
+			}
+
+		// Nothing else joins the halves
+		int root = -1;
+		int moved = 0;
+		for (RailNetClient client : half) {
+			if (!nodes.containsKey(client))
+				continue;
+			int node = newNode();
+			if (root < 0)
+				root = node;
+			else
+				parent[node] = root;
+			nodes.put(client, node);
+			moved++;
+		}
+		if (moved > 1)
+			rank[root] = 1;
+		abandoned += moved;
+		split = true;
+	}
+
+	/**
+	 * @return the client at the other end of a link; otherwise
+	 *         <code>null</code> if the segment is not a link of the client.
+	 */
+	private RailNetClient otherEnd(RailNetSegment segment, RailNetClient client) {
+		RailNetClient[] ends = links.get(segment);
+		if (ends == null)
+			return null;
+		if (ends[0] == client)
+			return ends[1];
+		return ends[1] == client ? ends[0] : null;
+	}
+
+	/**
+	 * One side of a cut link, searched breadth first over the spanning forest.
+	 */
+	private final class Half {
+		private final Set<RailNetClient> visited = Collections
+				.newSetFromMap(new IdentityHashMap<RailNetClient, Boolean>());
+		private final ArrayDeque<RailNetClient> queue = new ArrayDeque<RailNetClient>();
+
+		private Half(RailNetClient start) {
+			visited.add(start);
+			queue.add(start);
+		}
+
+		/**
+		 * Visits one client.
+		 *
+		 * @return <code>false</code> if the half was already searched fully.
+		 */
+		private boolean step() {
+			RailNetClient client = queue.poll();
+			if (client == null)
+				return false;
+			for (RailNetSegment segment : client.getConnectedSegments()) {
+				if (!tree.contains(segment))
+					continue;
+				RailNetClient other = otherEnd(segment, client);
+				if (other != null && visited.add(other))
+					queue.add(other);
+			}
+			return true;
+		}
+	}
+
+	// ===========================
+	// Union-Find
+	// ===========================
+
+	private int newNode() {
+		if (nodeCount == parent.length) {
+			parent = Arrays.copyOf(parent, nodeCount * 2);
+			rank = Arrays.copyOf(rank, nodeCount * 2);
+		}
+		parent[nodeCount] = nodeCount;
+		rank[nodeCount] = 0;
+		return nodeCount++;
+	}
+
+	private int find(int node) {
+		while (parent[node] != node) {
+			parent[node] = parent[parent[node]];
+			node = parent[node];
+		}
+		return node;
+	}
+
+	/**
+	 * @return <code>true</code> if the nodes were in different sets.
+	 */
+	private boolean union(int a, int b) {
+		int rootA = find(a);
+		int rootB = find(b);
+		if (rootA == rootB)
+			return false;
+		if (rank[rootA] < rank[rootB]) {
+			parent[rootA] = rootB;
+		} else {
+			parent[rootB] = rootA;
+			if (rank[rootA] == rank[rootB])
+				rank[rootA]++;
+		}
+		return true;
+	}
+
+	// ===========================
+	// Building
+	// ===========================
+
+	private void ensureBuilt() {
+		if (!built)
+			build();
+	}
+
+	/**
+	 * Builds the index from the clients and segments of the network, loading
+	 * them if needed.
+	 */
+	private void build() {
+		Collection<RailNetClient> clients = network.getClients();
+		Collection<RailNetSegment> segments = network.getSegments();
+		int capacity = Math.max(64, Integer.highestOneBit(Math.max(1, clients.size())) * 2);
+		parent = new int[capacity];
+		rank = new byte[capacity];
+		nodeCount = 0;
+		abandoned = 0;
+		nodes.clear();
+		links.clear();
+		tree.clear();
+		for (RailNetClient client : clients)
+			nodes.put(client, newNode());
+		built = true;
+		for (RailNetSegment segment : segments)
+			updateLink(segment);
+	}
+
+	private void compactIfNeeded() {
+		if (abandoned > 64 && abandoned > nodes.size())
+			build();
+	}
+}
@@ -0,0 +1,364 @@
+package mod.rp.railnet.common.core.routing;
+
+import java.util.Arrays;
+
+import mod.rp.railnet.common.core.clients.PassThroughClient;
+
+/**
+ * A {@link RailNetGraph} with its chains of {@link PassThroughClient
+ * PassThroughClients} contracted into single links.
+ * <p>
+ * A pass-through client with exactly two edges makes no routing decision, so
+ * every maximal run of them between two other clients is replaced by one link.
+ * The remaining clients are the nodes of this graph. Each link keeps the base
+ * edges it was made of, in order, so a route found on this graph can be
+ * expanded back into the {@link RailNetSegment segments} it travels. The
+ * length and base time of a link are the sums over its segments.
+ * </p>
+ * <p>
+ * A link is open in a direction only if every segment in the chain is open in
+ * that direction. Chains that only loop back to the client they started from
+ * can never be part of a shortest route and are left out.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+public class ContractedGraph extends RoutingGraph {
+
+	/** The graph this was contracted from */
+	private final RailNetGraph base;
+
+	/** Client of the base graph per node */
+	private final int[] nodeClients;
+
+	/** Node per client of the base graph; otherwise <code>-1</code> */
+	private final int[] clientNodes;
+
+	/** Offset of the first base edge per link, length links+1 */
+	final int[] chainOffsets;
+
+	/** Base edges of each link, travelled from its first node */
+	final int[] chainEdges;
+
+	/** Link per segment of the base graph; otherwise <code>-1</code> */
+	final int[] segmentLinks;
+
+	/** Summed actual length of each link */
+	final int[] lengths;
+
+	/** Summed base time of each link */
+	final long[] baseTimes;
+
+	private ContractedGraph(RailNetGraph base, int[] nodeClients, int[] clientNodes, int links, int chainLength) {
+		super(nodeClients.length, links);
+		this.base = base;
+		this.nodeClients = nodeClients;
+		this.clientNodes = clientNodes;
+		this.chainOffsets = new int[links + 1];
+		this.chainEdges = new int[chainLength];
+		this.segmentLinks = new int[base.getSegmentCount()];
+		this.lengths = new int[links];
+		this.baseTimes = new long[links];
+		Arrays.fill(segmentLinks, -1);
+	}
+
+	private ContractedGraph(ContractedGraph other, RailNetGraph base, byte[] edgeFlags) {
+		super(other, edgeFlags);
+		this.base = base;
+		this.nodeClients = other.nodeClients;
+		this.clientNodes = other.clientNodes;
+		this.chainOffsets = other.chainOffsets;
+		this.chainEdges = other.chainEdges;
+		this.segmentLinks = other.segmentLinks;
+		this.lengths = other.lengths;
+		this.baseTimes = other.baseTimes;
+	}
+
+	/**
+	 * Contracts the chains of a graph.
+	 *
+	 * @param base
+	 * @return the contracted graph.
+	 */
+	static ContractedGraph build(RailNetGraph base) {
+		int clients = base.getClientCount();
+
+		// Every client that is not a two-way pass-through stays a node
+		boolean[] kept = new boolean[clients];
+		for (int v = 0; v < clients; v++)
+			kept[v] = !(base.getClient(v) instanceof PassThroughClient) || base.endEdge(v) - base.firstEdge(v) != 2;
+
+		// Pass-throughs on loops without a kept client keep one of the loop
+		boolean[] walked = new boolean[base.getEdgeCount()];
+		for (int v = 0; v < clients; v++)
+			if (kept[v])
+				walkChains(base, kept, walked, v, null);
+		for (int v = 0; v < clients; v++)
+			if (!kept[v] && !walked[base.firstEdge(v)]) {
+				kept[v] = true;
+				walkChains(base, kept, walked, v, null);
+			}
+
+		int nodes = 0;
+		int[] clientNodes = new int[clients];
+		for (int v = 0; v < clients; v++)
+			clientNodes[v] = kept[v] ? nodes++ : -1;
+		int[] nodeClients = new int[nodes];
+		for (int v = 0; v < clients; v++)
+			if (kept[v])
+				nodeClients[clientNodes[v]] = v;
+
+		// Collect the chains, each once from its lower numbered end
+		Arrays.fill(walked, false);
+		ChainList chains = new ChainList(base.getEdgeCount());
+		for (int n = 0; n < nodes; n++)
+			walkChains(base, kept, walked, nodeClients[n], chains);
+
+		ContractedGraph graph = new ContractedGraph(base, nodeClients, clientNodes, chains.count, chains.length);
+		int[] offsets = graph.offsets;
+		for (int l = 0; l < chains.count; l++) {
+			offsets[clientNodes[chains.from[l]] + 1]++;
+			offsets[clientNodes[chains.to[l]] + 1]++;
+		}
+		for (int n = 0; n < nodes; n++)
+			offsets[n + 1] += offsets[n];
+
+		int[] cursor = Arrays.copyOf(offsets, nodes);
+		System.arraycopy(chains.edges, 0, graph.chainEdges, 0, chains.length);
+		for (int l = 0; l < chains.count; l++) {
+			int a = clientNodes[chains.from[l]];
+			int b = clientNodes[chains.to[l]];
+			int forward = cursor[a]++;
+			int reverse = cursor[b]++;
+			graph.targets[forward] = b;
+			graph.targets[reverse] = a;
+			graph.edgeLinks[forward] = l;
+			graph.edgeLinks[reverse] = l;
+			graph.linkEdges[2 * l] = forward;
+			graph.linkEdges[2 * l + 1] = reverse;
+			graph.chainOffsets[l + 1] = chains.offsets[l + 1];
+
+			int length = 0;
+			long time = 0;
+			for (int i = chains.offsets[l]; i < chains.offsets[l + 1]; i++) {
+				int segment = base.getEdgeSegment(chains.edges[i]);
+				graph.segmentLinks[segment] = l;
+				length += base.getLength(segment);
+				long segmentTime = base.getBaseTime(segment);
+				time = time == RailNetSegment.UNDEFINED_BASE_TIME || segmentTime == RailNetSegment.UNDEFINED_BASE_TIME
+						? RailNetSegment.UNDEFINED_BASE_TIME : time + segmentTime;
+			}
+			graph.lengths[l] = length;
+			graph.baseTimes[l] = time;
+			graph.updateFlags(l);
+		}
+		return graph;
+	}
+
+	/**
+	 * Walks every chain starting at a kept client, marking the base edges of
+	 * the chain and their twins as walked.
+	 *
+	 * @param chains
+	 *            Receives the chains; otherwise <code>null</code> to only mark
+	 *            the edges.
+	 */
+	private static void walkChains(RailNetGraph base, boolean[] kept, boolean[] walked, int from, ChainList chains) {
+		for (int first = base.firstEdge(from), end = base.endEdge(from); first < end; first++) {
+			if (walked[first])
+				continue;
+			int start = chains == null ? 0 : chains.length;
+			int edge = first;
+			while (true) {
+				walked[edge] = true;
+				walked[base.getTwinEdge(edge)] = true;
+				if (chains != null)
+					chains.addEdge(edge);
+				int v = base.getTarget(edge);
+				if (kept[v])
+					break;
+				// Leave the pass-through by its other edge
+				int twin = base.getTwinEdge(edge);
+				edge = base.firstEdge(v) == twin ? base.firstEdge(v) + 1 : base.firstEdge(v);
+			}
+			int to = base.getTarget(edge);
+			if (chains != null) {
+				if (to == from)
+					chains.length = start;
+				else
+					chains.addChain(from, to);
+			}
+		}
+	}
+
+	/**
+	 * Carries this graph over to a patched copy of its base graph. Only the
+	 * edge flags are copied, and only if the patched segment is part of a
+	 * link.
+	 *
+	 * @param next
+	 *            The patched copy of the base graph.
+	 * @param segment
+	 *            The index of the patched segment; otherwise <code>-1</code>.
+	 * @return the contracted graph of the copy.
+	 */
+	ContractedGraph rebase(RailNetGraph next, int segment) {
+		int link = segment < 0 ? -1 : segmentLinks[segment];
+		ContractedGraph graph = new ContractedGraph(this, next, link < 0 ? edgeFlags : edgeFlags.clone());
+		if (link >= 0)
+			graph.updateFlags(link);
+		return graph;
+	}
+
+	/**
+	 * Recalculates whether a link is open in each direction from the flags of
+	 * the base edges of its chain.
+	 *
+	 * @param link
+	 */
+	void updateFlags(int link) {
+		boolean forward = true;
+		boolean reverse = true;
+		for (int i = chainOffsets[link]; i < chainOffsets[link + 1]; i++) {
+			forward &= base.isOpen(chainEdges[i]);
+			reverse &= base.isOpen(base.getTwinEdge(chainEdges[i]));
+		}
+		edgeFlags[linkEdges[2 * link]] = (byte) (forward ? FLAG_OPEN : 0);
+		edgeFlags[linkEdges[2 * link + 1]] = (byte) (FLAG_REVERSED | (reverse ? FLAG_OPEN : 0));
+	}
+
+	// ===========================
+	// Nodes and Links
+	// ===========================
+
+	/**
+	 * @param client
+	 *            Index of a client of the base graph.
+	 * @return the node of the client; otherwise <code>-1</code> if the client
+	 *         was contracted into a link.
+	 */
+	public int getNode(int client) {
+		return clientNodes[client];
+	}
+
+	/**
+	 * @param node
+	 * @return index of the client of the node in the base graph.
+	 */
+	public int getClient(int node) {
+		return nodeClients[node];
+	}
+
+	/**
+	 * @param segment
+	 *            Index of a segment of the base graph.
+	 * @return the link containing the segment; otherwise <code>-1</code>.
+	 */
+	public int getLink(int segment) {
+		return segmentLinks[segment];
+	}
+
+	/** @return the number of base edges an edge of this graph expands into */
+	public int getChainLength(int edge) {
+		int link = edgeLinks[edge];
+		return chainOffsets[link + 1] - chainOffsets[link];
+	}
+
+	/**
+	 * Writes the base edges travelled by an edge of this graph, in order of
+	 * travel.
+	 *
+	 * @param edge
+	 * @param out
+	 * @param offset
+	 *            First index of <code>out</code> to write to.
+	 * @return the index after the last written base edge.
+	 */
+	public int expand(int edge, int[] out, int offset) {
+		int link = edgeLinks[edge];
+		int first = chainOffsets[link];
+		int last = chainOffsets[link + 1];
+		if ((edgeFlags[edge] & FLAG_REVERSED) == 0)
+			for (int i = first; i < last; i++)
+				out[offset++] = chainEdges[i];
+		else
+			for (int i = last - 1; i >= first; i--)
+				out[offset++] = base.getTwinEdge(chainEdges[i]);
+		return offset;
+	}
+
+	/**
+	 * Sums the costs of the segments of each link.
+	 *
+	 * @param segmentCosts
+	 *            Costs of the segments of the base graph.
+	 * @return the cost of each link.
+	 */
+	public float[] getLinkCosts(float[] segmentCosts) {
+		float[] costs = new float[getLinkCount()];
+		for (int l = 0; l < costs.length; l++)
+			costs[l] = getLinkCost(l, segmentCosts);
+		return costs;
+	}
+
+	/**
+	 * Sums the costs of the segments of one link.
+	 *
+	 * @param link
+	 * @param segmentCosts
+	 *            Costs of the segments of the base graph.
+	 * @return the cost of the link.
+	 */
+	public float getLinkCost(int link, float[] segmentCosts) {
+		float cost = 0f;
+		for (int i = chainOffsets[link]; i < chainOffsets[link + 1]; i++)
+			cost += segmentCosts[base.getEdgeSegment(chainEdges[i])];
+		return cost;
+	}
+
+	public int getLength(int link) {
+		return lengths[link];
+	}
+
+	public long getBaseTime(int link) {
+		return baseTimes[link];
+	}
+
+	public RailNetGraph getBase() {
+		return base;
+	}
+
+	/**
+	 * Growable list of chains collected while contracting.
+	 */
+	private static class ChainList {
+		private int[] edges;
+		private int length;
+		private int[] offsets = new int[17];
+		private int[] from = new int[16];
+		private int[] to = new int[16];
+		private int count;
+
+		private ChainList(int edges) {
+			this.edges = new int[Math.max(16, edges / 2)];
+		}
+
+		private void addEdge(int edge) {
+			if (length == edges.length)
+				edges = Arrays.copyOf(edges, length * 2);
+			edges[length++] = edge;
+		}
+
+		private void addChain(int a, int b) {
+			if (count == from.length) {
+				from = Arrays.copyOf(from, count * 2);
+				to = Arrays.copyOf(to, count * 2);
+				offsets = Arrays.copyOf(offsets, count * 2 + 1);
+			}
+			from[count] = a;
+			to[count] = b;
+			offsets[++count] = length;
+		}
+	}
+}
@@ -0,0 +1,334 @@
+package mod.rp.railnet.common.core.routing;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import mod.rp.railnet.common.core.clients.RailNetClient;
+import mod.rp.railnet.common.core.routing.RailNetSegment.SegmentDirection;
+
+/**
+ * An int-indexed snapshot of the topology of a {@link RailNetwork}. Clients
+ * are numbered <code>0..n-1</code> and the adjacency is stored in compressed
+ * sparse row form so that routing can walk the graph using primitive arrays
+ * only.
+ * <ul>
+ * <li>The outgoing edges of client <code>v</code> are
+ * <code>firstEdge(v) .. endEdge(v) - 1</code>.</li>
+ * <li>Every segment with two distinct clients produces two edges, one for each
+ * direction of travel.</li>
+ * <li>The {@link SegmentDirection} of the segment is packed into the flags of
+ * each edge together with the traversal direction, so checking whether an
+ * edge may be used is a single bit test.</li>
+ * </ul>
+ * A snapshot is obtained with {@link RailNetwork#getGraph()} and never
+ * changes once published, so it may be searched on any thread. It is only
+ * rebuilt when clients or segments are added or connected; for other changes
+ * the network publishes a {@link #patch patched} copy that shares everything
+ * but the edge flags. Nodes of the {@link RoutingGraph} are clients and links
+ * are segments.
+ *
+ * @author MajorR
+ *
+ */
+public class RailNetGraph extends RoutingGraph {
+
+	private static final SegmentDirection[] DIRECTIONS = SegmentDirection.values();
+
+	/** The network this snapshot was built from */
+	private final RailNetwork network;
+
+	/** The structure version of the network when this snapshot was built */
+	private final long version;
+
+	/** The topology version of the network when this snapshot was published */
+	private final long topologyVersion;
+
+	/** Clients by index */
+	private final RailNetClient[] clients;
+
+	/** Segments by index */
+	private final RailNetSegment[] segments;
+
+	/** Index of clients and segments by identity */
+	private final Map<Object, Integer> index;
+
+	/** Actual length of each segment when the snapshot was built */
+	final int[] lengths;
+
+	/** Base time of each segment when the snapshot was built */
+	final long[] baseTimes;
+
+	/** The graph with pass-through chains contracted, built on first use */
+	private volatile ContractedGraph contracted;
+
+	private RailNetGraph(RailNetwork network, long version, long topologyVersion, RailNetClient[] clients,
+			RailNetSegment[] segments, Map<Object, Integer> index) {
+		super(clients.length, segments.length);
+		this.network = network;
+		this.version = version;
+		this.topologyVersion = topologyVersion;
+		this.clients = clients;
+		this.segments = segments;
+		this.index = index;
+		this.lengths = new int[segments.length];
+		this.baseTimes = new long[segments.length];
+	}
+
+	private RailNetGraph(RailNetGraph other, byte[] edgeFlags, long topologyVersion) {
+		super(other, edgeFlags);
+		this.network = other.network;
+		this.version = other.version;
+		this.topologyVersion = topologyVersion;
+		this.clients = other.clients;
+		this.segments = other.segments;
+		this.index = other.index;
+		this.lengths = other.lengths;
+		this.baseTimes = other.baseTimes;
+	}
+
+	/**
+	 * Builds a snapshot of the network. Segments without two distinct clients
+	 * are left out as they cannot be travelled.
+	 *
+	 * @param network
+	 * @param version
+	 *            The structure version of the network being built.
+	 * @param topologyVersion
+	 *            The topology version of the network being built.
+	 * @return the new snapshot.
+	 */
+	static RailNetGraph build(RailNetwork network, long version, long topologyVersion) {
+		Map<Object, Integer> index = new IdentityHashMap<Object, Integer>();
+
+		// Number the clients, including unregistered clients on segment ends
+		int clientCount = 0;
+		for (RailNetClient client : network.getClients())
+			index.put(client, clientCount++);
+		int segmentCount = 0;
+		for (RailNetSegment segment : network.getSegments()) {
+			RailNetClient a = segment.getClientA();
+			RailNetClient b = segment.getClientB();
+			if (a == null || b == null || a == b)
+				continue;
+			if (!index.containsKey(a))
+				index.put(a, clientCount++);
+			if (!index.containsKey(b))
+				index.put(b, clientCount++);
+			segmentCount++;
+		}
+
+		RailNetClient[] clients = new RailNetClient[clientCount];
+		RailNetSegment[] segments = new RailNetSegment[segmentCount];
+		for (Map.Entry<Object, Integer> entry : index.entrySet())
+			clients[entry.getValue()] = (RailNetClient) entry.getKey();
+		int s = 0;
+		for (RailNetSegment segment : network.getSegments()) {
+			RailNetClient a = segment.getClientA();
+			RailNetClient b = segment.getClientB();
+			if (a == null || b == null || a == b)
+				continue;
+			index.put(segment, s);
+			segments[s++] = segment;
+		}
+
+		RailNetGraph graph = new RailNetGraph(network, version, topologyVersion, clients, segments, index);
+
+		// Count the degree of each client, then turn into offsets
+		int[] offsets = graph.offsets;
+		for (RailNetSegment segment : segments) {
+			offsets[index.get(segment.getClientA()) + 1]++;
+			offsets[index.get(segment.getClientB()) + 1]++;
+		}
+		for (int v = 0; v < clientCount; v++)
+			offsets[v + 1] += offsets[v];
+
+		int[] cursor = new int[clientCount];
+		System.arraycopy(offsets, 0, cursor, 0, clientCount);
+		for (s = 0; s < segmentCount; s++) {
+			RailNetSegment segment = segments[s];
+			int a = index.get(segment.getClientA());
+			int b = index.get(segment.getClientB());
+			int forward = cursor[a]++;
+			int reverse = cursor[b]++;
+			graph.targets[forward] = b;
+			graph.targets[reverse] = a;
+			graph.edgeLinks[forward] = s;
+			graph.edgeLinks[reverse] = s;
+			graph.linkEdges[2 * s] = forward;
+			graph.linkEdges[2 * s + 1] = reverse;
+			graph.lengths[s] = segment.getActualLength();
+			graph.baseTimes[s] = segment.getBaseTime();
+			graph.setFlags(s, segment.getDirection());
+		}
+		return graph;
+	}
+
+	/**
+	 * Packs the direction of a segment into the flags of both of its edges.
+	 *
+	 * @param segment
+	 *            The index of the segment.
+	 * @param direction
+	 */
+	void setFlags(int segment, SegmentDirection direction) {
+		if (direction == null)
+			direction = SegmentDirection.CLOSED;
+		int forward = direction.ordinal();
+		int reverse = direction.ordinal() | FLAG_REVERSED;
+		switch (direction) {
+		case FORWARD:
+			forward |= FLAG_OPEN;
+			break;
+		case REVERSE:
+			reverse |= FLAG_OPEN;
+			break;
+		case BIDIRECTIONAL:
+		case REVERSABLE:
+			forward |= FLAG_OPEN;
+			reverse |= FLAG_OPEN;
+			break;
+		default:
+			break;
+		}
+		edgeFlags[linkEdges[2 * segment]] = (byte) forward;
+		edgeFlags[linkEdges[2 * segment + 1]] = (byte) reverse;
+	}
+
+	/**
+	 * Copies this snapshot for a segment that was closed, removed or
+	 * disconnected, or changed direction. Only the edge flags are copied, so
+	 * searches still running on this snapshot are not disturbed. A segment that
+	 * no longer joins the same two clients of this snapshot is treated as
+	 * closed.
+	 *
+	 * @param segment
+	 *            May be <code>null</code> to only take the new topology
+	 *            version.
+	 * @param topologyVersion
+	 *            The topology version of the network after the change.
+	 * @return the patched copy.
+	 */
+	RailNetGraph patch(RailNetSegment segment, long topologyVersion) {
+		int s = segment == null ? -1 : indexOf(segment);
+		RailNetGraph next = new RailNetGraph(this, s < 0 ? edgeFlags : edgeFlags.clone(), topologyVersion);
+		if (s >= 0) {
+			boolean attached = segment.getNetwork() == network
+					&& segment.getClientA() == clients[targets[linkEdges[2 * s + 1]]]
+					&& segment.getClientB() == clients[targets[linkEdges[2 * s]]];
+			next.setFlags(s, attached ? segment.getDirection() : SegmentDirection.CLOSED);
+		}
+		ContractedGraph current = contracted;
+		if (current != null)
+			next.contracted = current.rebase(next, s);
+		return next;
+	}
+
+	/**
+	 * @param other
+	 * @return <code>true</code> if the other snapshot is this one or a patched
+	 *         copy of the same build, so that clients, segments and edges have
+	 *         the same indices.
+	 */
+	public boolean isPatchOf(RailNetGraph other) {
+		return other != null && other.index == index;
+	}
+
+	// ===========================
+	// Clients and Segments
+	// ===========================
+
+	/**
+	 * @param client
+	 * @return the index of the client; otherwise <code>-1</code> if the client
+	 *         is not part of this snapshot.
+	 */
+	public int indexOf(RailNetClient client) {
+		Integer i = index.get(client);
+		return i == null ? -1 : i;
+	}
+
+	/**
+	 * @param segment
+	 * @return the index of the segment; otherwise <code>-1</code> if the
+	 *         segment is not part of this snapshot.
+	 */
+	public int indexOf(RailNetSegment segment) {
+		Integer i = index.get(segment);
+		return i == null ? -1 : i;
+	}
+
+	public RailNetClient getClient(int client) {
+		return clients[client];
+	}
+
+	public RailNetSegment getSegment(int segment) {
+		return segments[segment];
+	}
+
+	public int getClientCount() {
+		return clients.length;
+	}
+
+	public int getSegmentCount() {
+		return segments.length;
+	}
+
+	// ===========================
+	// Edges
+	// ===========================
+
+	/** @return the index of the segment of the edge */
+	public int getEdgeSegment(int edge) {
+		return edgeLinks[edge];
+	}
+
+	public SegmentDirection getDirection(int edge) {
+		return DIRECTIONS[edgeFlags[edge] & FLAG_DIRECTION];
+	}
+
+	public int getLength(int segment) {
+		return lengths[segment];
+	}
+
+	public long getBaseTime(int segment) {
+		return baseTimes[segment];
+	}
+
+	/**
+	 * Returns this graph with its chains of pass-through clients contracted
+	 * into single links. The contracted graph is built on first use and shares
+	 * the lifetime of this snapshot.
+	 *
+	 * @return the contracted graph.
+	 * @see ContractedGraph
+	 */
+	public ContractedGraph getContracted() {
+		ContractedGraph current = contracted;
+		if (current == null) {
+			synchronized (this) {
+				current = contracted;
+				if (current == null)
+					contracted = current = ContractedGraph.build(this);
+			}
+		}
+		return current;
+	}
+
+	// ===========================
+	// Getters
+	// ===========================
+
+	public RailNetwork getNetwork() {
+		return network;
+	}
+
+	/** @return the structure version of the network this was built from */
+	public long getVersion() {
+		return version;
+	}
+
+	/** @return the topology version of the network this was published at */
+	public long getTopologyVersion() {
+		return topologyVersion;
+	}
+}
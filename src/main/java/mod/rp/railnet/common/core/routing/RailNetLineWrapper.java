@@ -1,6 +1,7 @@
 package mod.rp.railnet.common.core.routing;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -41,6 +42,9 @@ public class RailNetLineWrapper {
 	 */
 	private final Map<UUID, LineSegmentWrapper> lineSegments = new HashMap<UUID, LineSegmentWrapper>();
 
+	/** The network the line runs on, to keep its segment usage up to date */
+	private RailNetwork network;
+
 	/** Checkpoints the train must visit or pass within route */
 	private List<RailNetClient> checkpoints = new ArrayList<RailNetClient>();
 
@@ -242,10 +246,389 @@ public class RailNetLineWrapper {
 	/** Weight of the length of a segment in determining routed segments */
 	private float weight_distance;
 
+	/** Incremented whenever a setting or line segment of the line changes */
+	private int revision;
+
+	/** The route profile of the current settings */
+	private RouteProfile profile;
+
 	// ===========================
 	// Constructors
 	// ===========================
 
+	public RailNetLineWrapper(UUID lineID, UUID trainID) {
+		this.lineID = lineID;
+		this.trainID = trainID;
+		this.orderedPoints = true;
+		this.loop = true;
+		this.allowSubroutine = true;
+		this.allowAutoRouteGen = true;
+		this.allowTemporaryRoutes = true;
+		this.ignoreOnError = false;
+		this.dockOnError = true;
+		this.alwaysUpdateRoute = false;
+		this.allowRealTimeSync = true;
+		this.allowRealTimeAssume = true;
+		this.allowAdvancedTimeCalc = false;
+		this.allowGhostPaths = true;
+		this.preferMappedPaths = false;
+		this.allowMapData = true;
+		this.allowBaseModel = true;
+		this.weightedFuel = true;
+		this.weightedSpeed = true;
+		this.weightedTime = true;
+		this.weightedDistance = true;
+		this.weightedSegments = true;
+		this.weight_fuel = LineSegmentWrapper.DEFAULT_WEIGHT;
+		this.weight_speed = LineSegmentWrapper.DEFAULT_WEIGHT;
+		this.weight_time = LineSegmentWrapper.DEFAULT_WEIGHT;
+		this.weight_distance = LineSegmentWrapper.DEFAULT_WEIGHT;
+	}
+
+	public RailNetLineWrapper(UUID trainID) {
+		this(UUID.randomUUID(), trainID);
+	}
+
+	public RailNetLineWrapper() {
+		this(UUID.randomUUID(), null);
+	}
+
+	// ===========================
+	// Line Methods
+	// ===========================
+
+	/**
+	 * Returns the route profile of the line's current settings. The profile is
+	 * cached until a setting or line segment of the line changes.
+	 * 
+	 * @return the route profile of the line.
+	 * @see RouteProfile
+	 */
+	public RouteProfile getRouteProfile() {
+		RouteProfile current = profile;
+		if (current == null)
+			profile = current = new RouteProfile(this);
+		return current;
+	}
+
+	/**
+	 * Flags the settings of the line as changed.
+	 */
+	private void changed() {
+		revision++;
+		profile = null;
+	}
+
+	/**
+	 * @return a number that changes whenever a setting or line segment of the
+	 *         line changes.
+	 */
+	public int getRevision() {
+		return revision;
+	}
+
+	/**
+	 * @param segmentID
+	 * @return the line segment of the segment; otherwise <code>null</code>.
+	 */
+	public LineSegmentWrapper getLineSegment(UUID segmentID) {
+		return lineSegments.get(segmentID);
+	}
+
+	public void putLineSegment(LineSegmentWrapper lineSegment) {
+		lineSegments.put(lineSegment.getSegmentID(), lineSegment);
+		if (network != null)
+			network.getSegmentUsage().lineSegmentAdded(this, lineSegment.getSegmentID());
+		changed();
+	}
+
+	public LineSegmentWrapper removeLineSegment(UUID segmentID) {
+		LineSegmentWrapper removed = lineSegments.remove(segmentID);
+		if (removed != null) {
+			if (network != null)
+				network.getSegmentUsage().lineSegmentRemoved(this, segmentID);
+			changed();
+		}
+		return removed;
+	}
+
+	/**
+	 * @return the network the line was added to; otherwise <code>null</code>.
+	 */
+	public RailNetwork getNetwork() {
+		return network;
+	}
+
+	void setNetwork(RailNetwork network) {
+		this.network = network;
+	}
+
+	public Map<UUID, LineSegmentWrapper> getLineSegments() {
+		return Collections.unmodifiableMap(lineSegments);
+	}
+
+	// ===========================
+	// Getters and Setters
+	// ===========================
+
+	public UUID getLineID() {
+		return lineID;
+	}
+
+	public UUID getTrainID() {
+		return trainID;
+	}
+
+	public void setTrainID(UUID trainID) {
+		this.trainID = trainID;
+	}
+
+	public RailNetRoute getPrimaryRoute() {
+		return primaryRoute;
+	}
+
+	public void setPrimaryRoute(RailNetRoute primaryRoute) {
+		RailNetRoute old = this.primaryRoute;
+		this.primaryRoute = primaryRoute;
+		if (network != null)
+			network.getSegmentUsage().routeAssigned(this, old, primaryRoute);
+	}
+
+	public RailNetRoute getSecondaryRoute() {
+		return secondaryRoute;
+	}
+
+	public void setSecondaryRoute(RailNetRoute secondaryRoute) {
+		RailNetRoute old = this.secondaryRoute;
+		this.secondaryRoute = secondaryRoute;
+		if (network != null)
+			network.getSegmentUsage().routeAssigned(this, old, secondaryRoute);
+	}
+
+	public List<RailNetClient> getCheckpoints() {
+		return checkpoints;
+	}
+
+	public void setCheckpoints(List<RailNetClient> checkpoints) {
+		this.checkpoints = checkpoints;
+	}
+
+	public boolean isOrderedPoints() {
+		return orderedPoints;
+	}
+
+	public void setOrderedPoints(boolean orderedPoints) {
+		this.orderedPoints = orderedPoints;
+		changed();
+	}
+
+	public boolean isLoop() {
+		return loop;
+	}
+
+	public void setLoop(boolean loop) {
+		this.loop = loop;
+		changed();
+	}
+
+	public boolean isAllowSubroutine() {
+		return allowSubroutine;
+	}
+
+	public void setAllowSubroutine(boolean allowSubroutine) {
+		this.allowSubroutine = allowSubroutine;
+		changed();
+	}
+
+	public boolean isAllowAutoRouteGen() {
+		return allowAutoRouteGen;
+	}
+
+	public void setAllowAutoRouteGen(boolean allowAutoRouteGen) {
+		this.allowAutoRouteGen = allowAutoRouteGen;
+		changed();
+	}
+
+	public boolean isAllowTemporaryRoutes() {
+		return allowTemporaryRoutes;
+	}
+
+	public void setAllowTemporaryRoutes(boolean allowTemporaryRoutes) {
+		this.allowTemporaryRoutes = allowTemporaryRoutes;
+		changed();
+	}
+
+	public boolean isIgnoreOnError() {
+		return ignoreOnError;
+	}
+
+	public void setIgnoreOnError(boolean ignoreOnError) {
+		this.ignoreOnError = ignoreOnError;
+		changed();
+	}
+
+	public boolean isDockOnError() {
+		return dockOnError;
+	}
+
+	public void setDockOnError(boolean dockOnError) {
+		this.dockOnError = dockOnError;
+		changed();
+	}
+
+	public boolean isAlwaysUpdateRoute() {
+		return alwaysUpdateRoute;
+	}
+
+	public void setAlwaysUpdateRoute(boolean alwaysUpdateRoute) {
+		this.alwaysUpdateRoute = alwaysUpdateRoute;
+		changed();
+	}
+
+	public boolean isAllowRealTimeSync() {
+		return allowRealTimeSync;
+	}
+
+	public void setAllowRealTimeSync(boolean allowRealTimeSync) {
+		this.allowRealTimeSync = allowRealTimeSync;
+		changed();
+	}
+
+	public boolean isAllowRealTimeAssume() {
+		return allowRealTimeAssume;
+	}
+
+	public void setAllowRealTimeAssume(boolean allowRealTimeAssume) {
+		this.allowRealTimeAssume = allowRealTimeAssume;
+		changed();
+	}
+
+	public boolean isAllowAdvancedTimeCalc() {
+		return allowAdvancedTimeCalc;
+	}
+
+	public void setAllowAdvancedTimeCalc(boolean allowAdvancedTimeCalc) {
+		this.allowAdvancedTimeCalc = allowAdvancedTimeCalc;
+		changed();
+	}
+
+	public boolean isAllowGhostPaths() {
+		return allowGhostPaths;
+	}
+
+	public void setAllowGhostPaths(boolean allowGhostPaths) {
+		this.allowGhostPaths = allowGhostPaths;
+		changed();
+	}
+
+	public boolean isPreferMappedPaths() {
+		return preferMappedPaths;
+	}
+
+	public void setPreferMappedPaths(boolean preferMappedPaths) {
+		this.preferMappedPaths = preferMappedPaths;
+		changed();
+	}
+
+	public boolean isAllowMapData() {
+		return allowMapData;
+	}
+
+	public void setAllowMapData(boolean allowMapData) {
+		this.allowMapData = allowMapData;
+		changed();
+	}
+
+	public boolean isAllowBaseModel() {
+		return allowBaseModel;
+	}
+
+	public void setAllowBaseModel(boolean allowBaseModel) {
+		this.allowBaseModel = allowBaseModel;
+		changed();
+	}
+
+	public boolean isWeightedFuel() {
+		return weightedFuel;
+	}
+
+	public void setWeightedFuel(boolean weightedFuel) {
+		this.weightedFuel = weightedFuel;
+		changed();
+	}
+
+	public boolean isWeightedSpeed() {
+		return weightedSpeed;
+	}
+
+	public void setWeightedSpeed(boolean weightedSpeed) {
+		this.weightedSpeed = weightedSpeed;
+		changed();
+	}
+
+	public boolean isWeightedTime() {
+		return weightedTime;
+	}
+
+	public void setWeightedTime(boolean weightedTime) {
+		this.weightedTime = weightedTime;
+		changed();
+	}
+
+	public boolean isWeightedDistance() {
+		return weightedDistance;
+	}
+
+	public void setWeightedDistance(boolean weightedDistance) {
+		this.weightedDistance = weightedDistance;
+		changed();
+	}
+
+	public boolean isWeightedSegments() {
+		return weightedSegments;
+	}
+
+	public void setWeightedSegments(boolean weightedSegments) {
+		this.weightedSegments = weightedSegments;
+		changed();
+	}
+
+	public float getWeight_fuel() {
+		return weight_fuel;
+	}
+
+	public void setWeight_fuel(float weight_fuel) {
+		this.weight_fuel = weight_fuel;
+		changed();
+	}
+
+	public float getWeight_speed() {
+		return weight_speed;
+	}
+
+	public void setWeight_speed(float weight_speed) {
+		this.weight_speed = weight_speed;
+		changed();
+	}
+
+	public float getWeight_time() {
+		return weight_time;
+	}
+
+	public void setWeight_time(float weight_time) {
+		this.weight_time = weight_time;
+		changed();
+	}
+
+	public float getWeight_distance() {
+		return weight_distance;
+	}
+
+	public void setWeight_distance(float weight_distance) {
+		this.weight_distance = weight_distance;
+		changed();
+	}
+
 	public class LineSegmentWrapper {
 
 		public static final long TIME_NOT_DETERMINED = -1L;
@@ -256,6 +639,9 @@ public class RailNetLineWrapper {
 
 		private long realTime;
 
+		/** Travel times learned from the trains of the line */
+		private final TravelTimeStats travelTime = new TravelTimeStats();
+
 		private boolean required;
 
 		private boolean restricted;
@@ -292,12 +678,32 @@ public class RailNetLineWrapper {
 			return segmentID;
 		}
 
+		/**
+		 * @return the time set, or the time learned from enough trains of the
+		 *         line otherwise; {@link #TIME_NOT_DETERMINED} if neither is
+		 *         known.
+		 */
 		public long getRealTime() {
+			if (realTime != TIME_NOT_DETERMINED || !travelTime.isSettled())
+				return realTime;
+			return Math.round(travelTime.getMean());
+		}
+
+		/**
+		 * @return the time set, ignoring learned times;
+		 *         {@link #TIME_NOT_DETERMINED} if none was set.
+		 */
+		public long getSetRealTime() {
 			return realTime;
 		}
 
+		public TravelTimeStats getTravelTime() {
+			return travelTime;
+		}
+
 		public void setRealTime(long realTime) {
 			this.realTime = realTime;
+			changed();
 		}
 
 		public boolean isRequired() {
@@ -306,6 +712,7 @@ public class RailNetLineWrapper {
 
 		public void setRequired(boolean required) {
 			this.required = required;
+			changed();
 		}
 
 		public float getWeight() {
@@ -317,6 +724,7 @@ public class RailNetLineWrapper {
 			if (weight == 0)
 				weight = DEFAULT_WEIGHT;
 			this.weight = weight;
+			changed();
 		}
 
 		public boolean isRestricted() {
@@ -325,6 +733,7 @@ public class RailNetLineWrapper {
 
 		public void setRestricted(boolean restricted) {
 			this.restricted = restricted;
+			changed();
 		}
 
 		public int getFuel_comsumption() {
@@ -333,6 +742,7 @@ public class RailNetLineWrapper {
 
 		public void setFuel_comsumption(int fuel_comsumption) {
 			this.fuel_comsumption = fuel_comsumption;
+			changed();
 		}
 
 	}
@@ -1,7 +1,12 @@
 package mod.rp.railnet.common.core.routing;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
+import mod.rp.railnet.common.core.clients.RailNetClient;
+
 public class RailNetRoute {
 
 	/** The ID of the train associated with this route */
@@ -9,10 +14,10 @@ public class RailNetRoute {
 
 	/**
 	 * Destroy route when complete
-	 * 
+	 *
 	 * @Default <code>true</code>
 	 */
-	private boolean destroyOnComplete;
+	private boolean destroyOnComplete = true;
 
 	/**
 	 * The number of route iterations completed. If <code>loop = false</code>,
@@ -20,6 +25,58 @@ public class RailNetRoute {
 	 */
 	private int loopCount = 0;
 
+	/** The client the route starts at */
+	private final RailNetClient origin;
+
+	/** The client the route ends at */
+	private final RailNetClient destination;
+
+	/** The segments to travel, in order */
+	private final List<RoutePathSegment> path = new ArrayList<RoutePathSegment>();
+
+	/** The total cost of the route as scored by its {@link RouteProfile} */
+	private float cost;
+
+	/** The profile the route was calculated with */
+	private final RouteProfile profile;
+
+	/** The topology version of the network when the route was calculated */
+	private long topologyVersion;
+
+	/** <code>false</code> if the destination can no longer be reached */
+	private boolean reachable = true;
+
+	/** Incremented every time the path of the route is repaired */
+	private int revision;
+
+	/** The index of the segments of the route while it is assigned to a line */
+	SegmentUsageIndex usage;
+
+	// ===========================
+	// Constructors
+	// ===========================
+
+	public RailNetRoute(RailNetClient origin, RailNetClient destination, RouteProfile profile, long topologyVersion) {
+		this.origin = origin;
+		this.destination = destination;
+		this.profile = profile;
+		this.topologyVersion = topologyVersion;
+	}
+
+	/**
+	 * Copies the path and settings of a route.
+	 *
+	 * @param route
+	 */
+	public RailNetRoute(RailNetRoute route) {
+		this(route.origin, route.destination, route.profile, route.topologyVersion);
+		this.trainID = route.trainID;
+		this.destroyOnComplete = route.destroyOnComplete;
+		this.reachable = route.reachable;
+		for (RoutePathSegment part : route.path)
+			addSegment(part.segment, part.required, part.averageTime, part.weight);
+	}
+
 	public class RoutePathSegment {
 
 		private RailNetSegment segment;
@@ -27,6 +84,139 @@ public class RailNetRoute {
 		private long averageTime;
 		private float weight;
 
+		public RoutePathSegment(RailNetSegment segment, boolean required, long averageTime, float weight) {
+			this.segment = segment;
+			this.required = required;
+			this.averageTime = averageTime;
+			this.weight = weight;
+		}
+
+		public RailNetSegment getSegment() {
+			return segment;
+		}
+
+		public boolean isRequired() {
+			return required;
+		}
+
+		public long getAverageTime() {
+			return averageTime;
+		}
+
+		public float getWeight() {
+			return weight;
+		}
+
+	}
+
+	// ===========================
+	// Route Methods
+	// ===========================
+
+	/**
+	 * Appends a segment to the end of the route and adds its weight to the
+	 * cost of the route.
+	 *
+	 * @param segment
+	 * @param required
+	 * @param averageTime
+	 * @param weight
+	 */
+	public void addSegment(RailNetSegment segment, boolean required, long averageTime, float weight) {
+		path.add(new RoutePathSegment(segment, required, averageTime, weight));
+		cost += weight;
+		if (usage != null)
+			usage.routeSegmentAdded(this, segment);
+	}
+
+	/**
+	 * Clears the path so that it can be rebuilt after a change to the network.
+	 *
+	 * @param topologyVersion
+	 *            The topology version of the network the new path is for.
+	 * @param reachable
+	 *            <code>false</code> if the destination can no longer be
+	 *            reached.
+	 * @see RailNetRouter#track(RailNetRoute)
+	 */
+	void reset(long topologyVersion, boolean reachable) {
+		if (usage != null)
+			usage.routeCleared(this);
+		path.clear();
+		cost = reachable ? 0f : Float.POSITIVE_INFINITY;
+		this.topologyVersion = topologyVersion;
+		this.reachable = reachable;
+		revision++;
+	}
+
+	/**
+	 * @return the segments of the route in order of travel.
+	 */
+	public List<RoutePathSegment> getPath() {
+		return Collections.unmodifiableList(path);
+	}
+
+	// ===========================
+	// Getters and Setters
+	// ===========================
+
+	public UUID getTrainID() {
+		return trainID;
+	}
+
+	public void setTrainID(UUID trainID) {
+		this.trainID = trainID;
+	}
+
+	public boolean isDestroyOnComplete() {
+		return destroyOnComplete;
+	}
+
+	public void setDestroyOnComplete(boolean destroyOnComplete) {
+		this.destroyOnComplete = destroyOnComplete;
+	}
+
+	public int getLoopCount() {
+		return loopCount;
+	}
+
+	public void setLoopCount(int loopCount) {
+		this.loopCount = loopCount;
+	}
+
+	public RailNetClient getOrigin() {
+		return origin;
+	}
+
+	public RailNetClient getDestination() {
+		return destination;
+	}
+
+	public float getCost() {
+		return cost;
+	}
+
+	public RouteProfile getProfile() {
+		return profile;
+	}
+
+	public long getTopologyVersion() {
+		return topologyVersion;
+	}
+
+	/**
+	 * @return <code>false</code> if a change to the network has left the
+	 *         destination unreachable.
+	 */
+	public boolean isReachable() {
+		return reachable;
+	}
+
+	/**
+	 * @return a number that changes every time the path is repaired.
+	 */
+	public int getRevision() {
+		return revision;
 	}
 
 }
@@ -0,0 +1,840 @@
+package mod.rp.railnet.common.core.routing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.clients.RailNetClient;
+import mod.rp.railnet.common.core.routing.RailNetLineWrapper.LineSegmentWrapper;
+import mod.rp.railnet.common.core.routing.RailNetworkListener.Change;
+import mod.rp.railnet.common.util.profiling.Profiler;
+
+/**
+ * Calculates weighted shortest routes over the {@link RailNetGraph} of a
+ * {@link RailNetwork}.
+ * <p>
+ * Segments are scored once per {@link RouteProfile} into a cost array that is
+ * kept until the graph, the times or lengths of the network, or the line of
+ * the profile change. Searches run on the per-thread {@link RouteSearch} so
+ * that calculating a route only allocates the resulting {@link RailNetRoute}.
+ * </p>
+ * <p>
+ * Routes between clients that make routing decisions are searched on the
+ * {@link ContractedGraph}, where chains of pass-through clients are single
+ * links, and expanded back into segments afterwards.
+ * </p>
+ * <p>
+ * Many requests can be answered together through a {@link RouteBatch}, with
+ * one full search per distinct origin or destination.
+ * </p>
+ * <p>
+ * Routes passed to {@link #track(RailNetRoute)} are repaired in place when
+ * segments close, open, change direction or change cost. Segment costs are
+ * patched for the changed segment only.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+public class RailNetRouter {
+
+	/** The maximum number of profiles whose segment costs are kept */
+	private static final int MAX_COST_TABLES = 32;
+
+	private final RailNetwork network;
+
+	/** Segment costs per profile, least recently used first */
+	private final Map<RouteProfile, CostTable> costTables = new LinkedHashMap<RouteProfile, CostTable>(16, 0.75f,
+			true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<RouteProfile, CostTable> eldest) {
+			return size() > MAX_COST_TABLES;
+		}
+	};
+
+	/** Trees of the tracked routes */
+	private final RouteTreeIndex trees = new RouteTreeIndex(this);
+
+	public RailNetRouter(RailNetwork network) {
+		this.network = network;
+	}
+
+	// ===========================
+	// Routing
+	// ===========================
+
+	/**
+	 * Calculates the best route of a line between two clients.
+	 *
+	 * @param line
+	 * @param origin
+	 * @param destination
+	 * @return the route; otherwise <code>null</code> if no route exists.
+	 */
+	public RailNetRoute findRoute(RailNetLineWrapper line, RailNetClient origin, RailNetClient destination) {
+		long start = Profiler.start();
+		RailNetRoute route = findRoute(origin, destination, line.getRouteProfile());
+		if (route != null)
+			route.setTrainID(line.getTrainID());
+		Profiler.stop(Profiler.Section.ROUTING, network, line, start);
+		return route;
+	}
+
+	/**
+	 * Returns the best route between two clients, answered from the
+	 * {@link RouteCache routing table} of the network when possible. The
+	 * returned route is owned by the caller.
+	 *
+	 * @param origin
+	 * @param destination
+	 * @param profile
+	 * @return the route; otherwise <code>null</code> if either client is not
+	 *         part of the network or no route exists.
+	 */
+	public RailNetRoute findRoute(RailNetClient origin, RailNetClient destination, RouteProfile profile) {
+		if (!network.isReachable(origin, destination))
+			return null;
+		long weights = network.getWeightsVersion();
+		RailNetGraph graph = network.getGraph();
+		return findRoute(graph, origin, destination, profile, graph.getTopologyVersion(), weights);
+	}
+
+	/**
+	 * Returns the best route between two clients on a given snapshot of the
+	 * network, answered from the routing table when possible. Used by planners
+	 * that search on another thread than the one changing the network.
+	 *
+	 * @param graph
+	 *            A graph of this router's network.
+	 * @param origin
+	 * @param destination
+	 * @param profile
+	 * @param topologyVersion
+	 *            The {@link RailNetGraph#getTopologyVersion() topology
+	 *            version} of the graph.
+	 * @param weightsVersion
+	 *            The weights version of the network when the graph was taken.
+	 * @return the route; otherwise <code>null</code> if either client is not
+	 *         part of the graph or no route exists.
+	 * @see #isTraversable(RailNetRoute)
+	 */
+	public RailNetRoute findRoute(RailNetGraph graph, RailNetClient origin, RailNetClient destination,
+			RouteProfile profile, long topologyVersion, long weightsVersion) {
+		RouteCache cache = network.getRoutingTable();
+		RouteCache.Entry cached = cache.get(origin, destination, profile);
+		if (cached != null)
+			return cached.copyRoute();
+		RailNetRoute route = calculateRoute(graph, origin, destination, profile);
+		cache.put(origin, destination, profile, route, topologyVersion, weightsVersion);
+		return route == null ? null : new RailNetRoute(route);
+	}
+
+	/**
+	 * Calculates the best route between two clients, bypassing the routing
+	 * table. The search runs on the {@link ContractedGraph} when both clients
+	 * are nodes of it, and on the full graph otherwise.
+	 *
+	 * @param origin
+	 * @param destination
+	 * @param profile
+	 * @return the route; otherwise <code>null</code> if either client is not
+	 *         part of the network or no route exists.
+	 */
+	public RailNetRoute calculateRoute(RailNetClient origin, RailNetClient destination, RouteProfile profile) {
+		return calculateRoute(network.getGraph(), origin, destination, profile);
+	}
+
+	/**
+	 * Calculates the best route between two clients on a given snapshot of the
+	 * network, bypassing the routing table.
+	 *
+	 * @param graph
+	 *            A graph of this router's network.
+	 * @param origin
+	 * @param destination
+	 * @param profile
+	 * @return the route; otherwise <code>null</code> if either client is not
+	 *         part of the graph or no route exists.
+	 * @see #isTraversable(RailNetRoute)
+	 */
+	public RailNetRoute calculateRoute(RailNetGraph graph, RailNetClient origin, RailNetClient destination,
+			RouteProfile profile) {
+		int source = graph.indexOf(origin);
+		int target = graph.indexOf(destination);
+		if (source < 0 || target < 0)
+			return null;
+		CostTable table = getCostTable(graph, profile);
+		ContractedGraph contracted = graph.getContracted();
+		RouteSearch search = RouteSearch.get();
+		int[] edges;
+		if (contracted.getNode(source) >= 0 && contracted.getNode(target) >= 0) {
+			int from = contracted.getNode(source);
+			int to = contracted.getNode(target);
+			if (!search.search(contracted, table.getLinkCosts(contracted), from, to))
+				return null;
+			edges = getPath(contracted, search, from, to);
+		} else {
+			if (!search.search(graph, table.costs, source, target))
+				return null;
+			edges = getPath(graph, search, source, target);
+		}
+		return buildRoute(graph, table.costs, edges, source, target, profile);
+	}
+
+	/**
+	 * Finds the route on which a train reaches its destination earliest
+	 * without meeting another train head-on, and books its windows on the
+	 * bidirectional segments. Windows the train booked before are released
+	 * first. Bypasses the routing table and the contracted graph, as the
+	 * booked windows differ for every departure. Must be called on the server
+	 * thread.
+	 *
+	 * @param origin
+	 * @param destination
+	 * @param profile
+	 * @param train
+	 * @param departure
+	 *            The server tick the train leaves the origin
+	 * @return the route, whose segments carry the ticks needed to travel them;
+	 *         otherwise <code>null</code> if no route exists.
+	 * @see SegmentReservations#getReservations(java.util.UUID)
+	 */
+	public RailNetRoute scheduleRoute(RailNetClient origin, RailNetClient destination, RouteProfile profile,
+			UUID train, long departure) {
+		long start = Profiler.start();
+		RailNetRoute route = schedule(origin, destination, profile, train, departure);
+		Profiler.stop(Profiler.Section.ROUTING, network, profile.getLine(), start);
+		return route;
+	}
+
+	private RailNetRoute schedule(RailNetClient origin, RailNetClient destination, RouteProfile profile, UUID train,
+			long departure) {
+		SegmentReservations reservations = network.getReservations();
+		reservations.release(train);
+		if (!network.isReachable(origin, destination))
+			return null;
+		RailNetGraph graph = network.getGraph();
+		int source = graph.indexOf(origin);
+		int target = graph.indexOf(destination);
+		if (source < 0 || target < 0)
+			return null;
+		CostTable table = getCostTable(graph, profile);
+		RouteSearch search = RouteSearch.get();
+		if (!search.searchScheduled(graph, table.costs, profile, reservations, departure, source, target))
+			return null;
+
+		RailNetRoute route = new RailNetRoute(origin, destination, profile, graph.getTopologyVersion());
+		route.setTrainID(train);
+		RailNetLineWrapper line = profile.getLine();
+		for (int edge : getPath(graph, search, source, target)) {
+			int s = graph.getEdgeSegment(edge);
+			RailNetSegment segment = graph.getSegment(s);
+			LineSegmentWrapper lineSegment = line == null ? null : line.getLineSegment(segment.getID());
+			long ticks = Math.max(1L, (long) Math.ceil(profile.getTime(segment)));
+			route.addSegment(segment, lineSegment != null && lineSegment.isRequired(), ticks, table.costs[s]);
+		}
+		reservations.reserve(route, departure);
+		return route;
+	}
+
+	/**
+	 * Gives a temporary route to every line whose current route can no longer
+	 * be travelled past a segment that was closed, turned, removed or
+	 * disconnected, if the line allows temporary routes. Only the lines found
+	 * through the {@link SegmentUsageIndex} are visited. The current route is
+	 * the secondary route of the line if it has one, and otherwise the primary
+	 * route, which is kept. The temporary route still calls at the checkpoints
+	 * of the line and travels the required segments the current route passes,
+	 * in the same order; only the legs between them are routed again. Called
+	 * by the network when a used segment is cut. Must be called on the server
+	 * thread.
+	 *
+	 * @param segment
+	 * @return the lines given a new secondary route.
+	 */
+	public List<RailNetLineWrapper> reroute(RailNetSegment segment) {
+		List<RailNetLineWrapper> rerouted = new ArrayList<RailNetLineWrapper>();
+		SegmentUsageIndex usage = network.getSegmentUsage();
+		Collection<RailNetRoute> affected = usage.getRoutes(segment.getID());
+		for (RailNetLineWrapper line : usage.getLines(segment.getID())) {
+			if (!line.isAllowTemporaryRoutes())
+				continue;
+			RailNetRoute current = line.getSecondaryRoute() != null ? line.getSecondaryRoute() : line.getPrimaryRoute();
+			if (current == null || !affected.contains(current) || isTraversable(current))
+				continue;
+			long start = Profiler.start();
+			RailNetRoute route = calculateDetour(line, current);
+			Profiler.stop(Profiler.Section.ROUTING, network, line, start);
+			if (route == null)
+				continue;
+			route.setTrainID(line.getTrainID());
+			line.setSecondaryRoute(route);
+			rerouted.add(line);
+		}
+		return rerouted;
+	}
+
+	/**
+	 * Calculates a route between the ends of the current route of a line that
+	 * keeps its stops: the checkpoints of the line and the required segments
+	 * it passes.
+	 *
+	 * @return the route; otherwise <code>null</code> if a leg between the stops
+	 *         has no route or a required segment can no longer be travelled.
+	 */
+	private RailNetRoute calculateDetour(RailNetLineWrapper line, RailNetRoute current) {
+		RouteProfile profile = line.getRouteProfile();
+		RailNetGraph graph = network.getGraph();
+		float[] costs = getCostTable(graph, profile).costs;
+		Set<RailNetClient> stops = Collections.newSetFromMap(new IdentityHashMap<RailNetClient, Boolean>());
+		if (line.getCheckpoints() != null)
+			stops.addAll(line.getCheckpoints());
+
+		RailNetRoute route = new RailNetRoute(current.getOrigin(), current.getDestination(), profile,
+				graph.getTopologyVersion());
+		List<RailNetRoute.RoutePathSegment> path = current.getPath();
+		RailNetClient from = current.getOrigin();
+		RailNetClient at = current.getOrigin();
+		for (int i = 0; i < path.size(); i++) {
+			RailNetSegment segment = path.get(i).getSegment();
+			// The ends are taken from the neighbouring segments, as the
+			// changed segment may have lost a client
+			RailNetClient next = i + 1 < path.size() ? getSharedClient(segment, path.get(i + 1).getSegment())
+					: current.getDestination();
+			if (next == null)
+				return null;
+			if (path.get(i).isRequired()) {
+				int s = graph.indexOf(segment);
+				if (s < 0 || !appendLeg(graph, route, from, at, profile))
+					return null;
+				route.addSegment(segment, true, segment.getBaseTime(), costs[s]);
+				from = next;
+			} else if (stops.contains(next)) {
+				if (!appendLeg(graph, route, from, next, profile))
+					return null;
+				from = next;
+			}
+			at = next;
+		}
+		if (!appendLeg(graph, route, from, at, profile))
+			return null;
+		return isTraversable(route) ? route : null;
+	}
+
+	/**
+	 * Appends the best route between two clients to a route.
+	 *
+	 * @return <code>false</code> if there is none.
+	 */
+	private boolean appendLeg(RailNetGraph graph, RailNetRoute route, RailNetClient from, RailNetClient to,
+			RouteProfile profile) {
+		if (from == to)
+			return true;
+		RailNetRoute leg = calculateRoute(graph, from, to, profile);
+		if (leg == null)
+			return false;
+		for (RailNetRoute.RoutePathSegment part : leg.getPath())
+			route.addSegment(part.getSegment(), part.isRequired(), part.getAverageTime(), part.getWeight());
+		return true;
+	}
+
+	/**
+	 * @return the client two segments share; otherwise <code>null</code>.
+	 */
+	private static RailNetClient getSharedClient(RailNetSegment a, RailNetSegment b) {
+		RailNetClient client = a.getClientA();
+		if (client != null && (client == b.getClientA() || client == b.getClientB()))
+			return client;
+		client = a.getClientB();
+		if (client != null && (client == b.getClientA() || client == b.getClientB()))
+			return client;
+		return null;
+	}
+
+	/**
+	 * Finds a cheap order to visit the checkpoints of a line, for lines that
+	 * do not need them in order. The first checkpoint stays first, and the way
+	 * back to it is costed if the line loops. Must not be called while the
+	 * network changes.
+	 *
+	 * @param line
+	 * @param executor
+	 *            Threads sharing the searches between checkpoints; may be
+	 *            <code>null</code>.
+	 * @param helpers
+	 *            The most searches run on the executor at once
+	 * @return the checkpoints in the order found; the current order if the
+	 *         line needs its checkpoints in order or has fewer than three.
+	 * @see CheckpointSequencer
+	 */
+	public List<RailNetClient> sequenceCheckpoints(RailNetLineWrapper line, Executor executor, int helpers) {
+		List<RailNetClient> checkpoints = line.getCheckpoints();
+		if (line.isOrderedPoints() || checkpoints == null || checkpoints.size() < 3)
+			return checkpoints;
+		long start = Profiler.start();
+		RailNetGraph graph = network.getGraph();
+		float[] linkCosts = getCostTable(graph, line.getRouteProfile()).costs;
+		double[][] costs = CheckpointSequencer.getCosts(graph, linkCosts, checkpoints, executor, helpers);
+		int[] order = CheckpointSequencer.solve(costs, line.isLoop());
+		Profiler.stop(Profiler.Section.ROUTING, network, line, start);
+		return CheckpointSequencer.apply(checkpoints, order);
+	}
+
+	/**
+	 * Answers every request of a batch, from the routing table where possible
+	 * and otherwise with one search per group of requests.
+	 *
+	 * @param batch
+	 * @see RouteBatch#getRoute(int)
+	 */
+	public void findRoutes(RouteBatch batch) {
+		long weights = network.getWeightsVersion();
+		RailNetGraph graph = network.getGraph();
+		findRoutes(graph, batch, graph.getTopologyVersion(), weights);
+	}
+
+	/**
+	 * Answers every request of a batch on a given snapshot of the network.
+	 *
+	 * @param graph
+	 *            A graph of this router's network.
+	 * @param batch
+	 * @param topologyVersion
+	 *            The {@link RailNetGraph#getTopologyVersion() topology
+	 *            version} of the graph.
+	 * @param weightsVersion
+	 *            The weights version of the network when the graph was taken.
+	 * @see #findRoute(RailNetGraph, RailNetClient, RailNetClient, RouteProfile,
+	 *      long, long)
+	 */
+	public void findRoutes(RailNetGraph graph, RouteBatch batch, long topologyVersion, long weightsVersion) {
+		RouteCache cache = network.getRoutingTable();
+		RailNetRoute[] routes = new RailNetRoute[batch.size()];
+		List<Integer> missed = new ArrayList<Integer>();
+		for (int i = 0; i < routes.length; i++) {
+			RouteCache.Entry cached = cache.get(batch.getOrigin(i), batch.getDestination(i), batch.getProfile(i));
+			if (cached != null)
+				routes[i] = cached.copyRoute();
+			else
+				missed.add(i);
+		}
+
+		boolean byOrigin = isGroupedByOrigin(batch, missed);
+		Map<GroupKey, List<Integer>> groups = new LinkedHashMap<GroupKey, List<Integer>>();
+		for (int i : missed) {
+			GroupKey key = new GroupKey(byOrigin ? batch.getOrigin(i) : batch.getDestination(i), batch.getProfile(i));
+			List<Integer> group = groups.get(key);
+			if (group == null)
+				groups.put(key, group = new ArrayList<Integer>());
+			group.add(i);
+		}
+
+		for (List<Integer> group : groups.values()) {
+			if (group.size() < CONFIG.ROUTING.BATCH_MIN_GROUP)
+				for (int i : group)
+					routes[i] = calculateRoute(graph, batch.getOrigin(i), batch.getDestination(i), batch.getProfile(i));
+			else
+				calculateGroup(graph, batch, group, byOrigin, routes);
+			for (int i : group) {
+				cache.put(batch.getOrigin(i), batch.getDestination(i), batch.getProfile(i), routes[i],
+						topologyVersion, weightsVersion);
+				if (routes[i] != null)
+					routes[i] = new RailNetRoute(routes[i]);
+			}
+		}
+
+		for (int i = 0; i < routes.length; i++)
+			if (routes[i] != null && batch.getLine(i) != null)
+				routes[i].setTrainID(batch.getLine(i).getTrainID());
+		batch.routes = routes;
+	}
+
+	/**
+	 * @return <code>true</code> if the requests are grouped by origin;
+	 *         otherwise by destination.
+	 */
+	private boolean isGroupedByOrigin(RouteBatch batch, List<Integer> requests) {
+		switch (batch.getGrouping()) {
+		case ORIGIN:
+			return true;
+		case DESTINATION:
+			return false;
+		default:
+			Set<GroupKey> origins = new HashSet<GroupKey>();
+			Set<GroupKey> destinations = new HashSet<GroupKey>();
+			for (int i : requests) {
+				origins.add(new GroupKey(batch.getOrigin(i), batch.getProfile(i)));
+				destinations.add(new GroupKey(batch.getDestination(i), batch.getProfile(i)));
+			}
+			return origins.size() <= destinations.size();
+		}
+	}
+
+	/**
+	 * Answers a group of requests sharing one end and a profile from a single
+	 * full search from that end.
+	 */
+	private void calculateGroup(RailNetGraph graph, RouteBatch batch, List<Integer> group, boolean byOrigin,
+			RailNetRoute[] routes) {
+		int first = group.get(0);
+		RouteProfile profile = batch.getProfile(first);
+		int root = graph.indexOf(byOrigin ? batch.getOrigin(first) : batch.getDestination(first));
+		if (root < 0)
+			return;
+		CostTable table = getCostTable(graph, profile);
+
+		// The contracted graph only holds the route if every end is a node of it
+		ContractedGraph contracted = graph.getContracted();
+		boolean useContracted = contracted.getNode(root) >= 0;
+		for (int k = 0; useContracted && k < group.size(); k++) {
+			int i = group.get(k);
+			int other = graph.indexOf(byOrigin ? batch.getDestination(i) : batch.getOrigin(i));
+			useContracted = other < 0 || contracted.getNode(other) >= 0;
+		}
+		RoutingGraph searched = useContracted ? contracted : graph;
+		int from = useContracted ? contracted.getNode(root) : root;
+		float[] costs = useContracted ? table.getLinkCosts(contracted) : table.costs;
+
+		RouteSearch search = RouteSearch.get();
+		if (byOrigin)
+			search.search(searched, costs, from, -1);
+		else
+			search.searchReverse(searched, costs, from, -1);
+
+		for (int i : group) {
+			int other = graph.indexOf(byOrigin ? batch.getDestination(i) : batch.getOrigin(i));
+			if (other < 0)
+				continue;
+			int node = useContracted ? contracted.getNode(other) : other;
+			if (!search.isReached(node))
+				continue;
+			if (byOrigin)
+				routes[i] = buildRoute(graph, table.costs, getPath(searched, search, from, node), root, other, profile);
+			else
+				routes[i] = buildRoute(graph, table.costs, getReversePath(searched, search, node, from), other, root,
+						profile);
+		}
+	}
+
+	/**
+	 * Checks that every segment of a route still belongs to the network, still
+	 * joins the clients the route travels and is open in the direction of
+	 * travel.
+	 *
+	 * @param route
+	 * @return <code>true</code> if the route can still be travelled.
+	 */
+	public boolean isTraversable(RailNetRoute route) {
+		if (!route.isReachable())
+			return false;
+		RailNetClient at = route.getOrigin();
+		for (RailNetRoute.RoutePathSegment part : route.getPath()) {
+			RailNetSegment segment = part.getSegment();
+			if (segment.getNetwork() != network || segment.getDirection() == null)
+				return false;
+			boolean forward = segment.getClientA() == at;
+			if (!forward && segment.getClientB() != at)
+				return false;
+			switch (segment.getDirection()) {
+			case FORWARD:
+				if (!forward)
+					return false;
+				break;
+			case REVERSE:
+				if (forward)
+					return false;
+				break;
+			case CLOSED:
+				return false;
+			default:
+				break;
+			}
+			at = segment.getConnectingClient(at);
+			if (at == null)
+				return false;
+		}
+		return at == route.getDestination();
+	}
+
+	/**
+	 * Calculates the cost of the best route between two clients without
+	 * building the route.
+	 *
+	 * @param origin
+	 * @param destination
+	 * @param profile
+	 * @return the cost; otherwise {@link Float#POSITIVE_INFINITY} if no route
+	 *         exists.
+	 */
+	public float getCost(RailNetClient origin, RailNetClient destination, RouteProfile profile) {
+		if (!network.isReachable(origin, destination))
+			return Float.POSITIVE_INFINITY;
+		RailNetGraph graph = network.getGraph();
+		int source = graph.indexOf(origin);
+		int target = graph.indexOf(destination);
+		if (source < 0 || target < 0)
+			return Float.POSITIVE_INFINITY;
+		CostTable table = getCostTable(graph, profile);
+		ContractedGraph contracted = graph.getContracted();
+		RouteSearch search = RouteSearch.get();
+		if (contracted.getNode(source) >= 0 && contracted.getNode(target) >= 0) {
+			search.search(contracted, table.getLinkCosts(contracted), contracted.getNode(source),
+					contracted.getNode(target));
+			return search.getCost(contracted.getNode(target));
+		}
+		search.search(graph, table.costs, source, target);
+		return search.getCost(target);
+	}
+
+	/**
+	 * Follows the parent edges of a finished search back from the target.
+	 *
+	 * @return the edges of the full graph from source to target, in order of
+	 *         travel.
+	 */
+	int[] getPath(RoutingGraph graph, RouteSearch search, int source, int target) {
+		ContractedGraph contracted = graph instanceof ContractedGraph ? (ContractedGraph) graph : null;
+		int length = 0;
+		for (int v = target; v != source; v = graph.getSource(search.getParentEdge(v)))
+			length += contracted == null ? 1 : contracted.getChainLength(search.getParentEdge(v));
+		int[] edges = new int[length];
+		for (int v = target; v != source; v = graph.getSource(search.getParentEdge(v))) {
+			int edge = search.getParentEdge(v);
+			if (contracted == null)
+				edges[--length] = edge;
+			else {
+				length -= contracted.getChainLength(edge);
+				contracted.expand(edge, edges, length);
+			}
+		}
+		return edges;
+	}
+
+	/**
+	 * Follows the parent edges of a finished reverse search forwards from a
+	 * node to the source of the search.
+	 *
+	 * @return the edges of the full graph from the node to the source, in
+	 *         order of travel.
+	 */
+	int[] getReversePath(RoutingGraph graph, RouteSearch search, int start, int source) {
+		ContractedGraph contracted = graph instanceof ContractedGraph ? (ContractedGraph) graph : null;
+		int length = 0;
+		for (int v = start; v != source; v = graph.getTarget(search.getParentEdge(v)))
+			length += contracted == null ? 1 : contracted.getChainLength(search.getParentEdge(v));
+		int[] edges = new int[length];
+		length = 0;
+		for (int v = start; v != source; v = graph.getTarget(search.getParentEdge(v))) {
+			int edge = search.getParentEdge(v);
+			if (contracted == null)
+				edges[length++] = edge;
+			else
+				length = contracted.expand(edge, edges, length);
+		}
+		return edges;
+	}
+
+	/**
+	 * Builds a route travelling the given edges of the full graph.
+	 */
+	RailNetRoute buildRoute(RailNetGraph graph, float[] costs, int[] edges, int source, int target,
+			RouteProfile profile) {
+		RailNetRoute route = new RailNetRoute(graph.getClient(source), graph.getClient(target), profile,
+				graph.getTopologyVersion());
+		RailNetLineWrapper line = profile.getLine();
+		for (int edge : edges) {
+			int s = graph.getEdgeSegment(edge);
+			RailNetSegment segment = graph.getSegment(s);
+			LineSegmentWrapper lineSegment = line == null ? null : line.getLineSegment(segment.getID());
+			route.addSegment(segment, lineSegment != null && lineSegment.isRequired(), segment.getBaseTime(), costs[s]);
+		}
+		return route;
+	}
+
+	// ===========================
+	// Route Repair
+	// ===========================
+
+	/**
+	 * Keeps a route valid as the network changes. Whenever a segment change
+	 * affects the route, its path is rebuilt in place and its
+	 * {@link RailNetRoute#getRevision() revision} changes; if the destination
+	 * becomes unreachable the route is marked as such.
+	 *
+	 * @param route
+	 * @see #untrack(RailNetRoute)
+	 */
+	public void track(RailNetRoute route) {
+		trees.track(route);
+	}
+
+	/**
+	 * Stops repairing a route.
+	 *
+	 * @param route
+	 */
+	public void untrack(RailNetRoute route) {
+		trees.untrack(route);
+	}
+
+	/**
+	 * Patches the segment costs and repairs the tracked routes after a segment
+	 * has changed. Called by the network.
+	 *
+	 * @param segment
+	 * @param change
+	 * @return the routes that were repaired.
+	 */
+	List<RailNetRoute> segmentChanged(RailNetSegment segment, Change change) {
+		if (change == Change.ADDED || change == Change.CONNECTED) {
+			// Repaired in bulk by repairTracked, as the graph is rebuilt
+			trees.segmentOpened();
+			return Collections.emptyList();
+		}
+		if (change == Change.MAP || change == Change.TIME)
+			patchCosts(segment);
+		return trees.segmentChanged(segment);
+	}
+
+	/**
+	 * Repairs the tracked routes for the track added or connected since the
+	 * last call, which may offer better routes. Called once per server tick.
+	 *
+	 * @return the routes that were repaired.
+	 */
+	public List<RailNetRoute> repairTracked() {
+		return trees.repairOpened();
+	}
+
+	// ===========================
+	// Segment Costs
+	// ===========================
+
+	/**
+	 * Returns the cost of every segment of the graph for a profile, scoring
+	 * the segments only if the cached costs are out of date.
+	 *
+	 * @param graph
+	 * @param profile
+	 * @return the segment costs indexed like the segments of the graph.
+	 */
+	public float[] getSegmentCosts(RailNetGraph graph, RouteProfile profile) {
+		return getCostTable(graph, profile).costs;
+	}
+
+	private CostTable getCostTable(RailNetGraph graph, RouteProfile profile) {
+		long weights = network.getWeightsVersion();
+		RailNetLineWrapper line = profile.getLine();
+		int revision = line == null ? 0 : line.getRevision();
+		synchronized (costTables) {
+			CostTable table = costTables.get(profile);
+			if (table != null && table.graph.isPatchOf(graph) && table.weights == weights && table.revision == revision)
+				return table;
+		}
+
+		float[] costs = new float[graph.getSegmentCount()];
+		for (int s = 0; s < costs.length; s++)
+			costs[s] = profile.getCost(graph.getSegment(s));
+		CostTable table = new CostTable(graph, weights, revision, costs);
+		synchronized (costTables) {
+			// Tables scored while a segment changed could miss the patch
+			if (network.getWeightsVersion() == weights)
+				costTables.put(profile, table);
+		}
+		return table;
+	}
+
+	/**
+	 * Rescores one segment in every cached cost table of the current graph.
+	 *
+	 * @param segment
+	 */
+	private void patchCosts(RailNetSegment segment) {
+		long weights = network.getWeightsVersion();
+		synchronized (costTables) {
+			for (Map.Entry<RouteProfile, CostTable> entry : costTables.entrySet()) {
+				CostTable table = entry.getValue();
+				int s = table.graph.indexOf(segment);
+				if (s >= 0) {
+					table.costs[s] = entry.getKey().getCost(segment);
+					float[] linkCosts = table.linkCosts;
+					if (linkCosts != null) {
+						ContractedGraph contracted = table.graph.getContracted();
+						int link = contracted.getLink(s);
+						if (link >= 0)
+							linkCosts[link] = contracted.getLinkCost(link, table.costs);
+					}
+				}
+				table.weights = weights;
+			}
+		}
+	}
+
+	/**
+	 * Segment costs of one profile and the state they were scored against.
+	 */
+	private static class CostTable {
+		private final RailNetGraph graph;
+		private long weights;
+		private final int revision;
+		private final float[] costs;
+
+		/** Costs of the links of the contracted graph, summed on first use */
+		private volatile float[] linkCosts;
+
+		private CostTable(RailNetGraph graph, long weights, int revision, float[] costs) {
+			this.graph = graph;
+			this.weights = weights;
+			this.revision = revision;
+			this.costs = costs;
+		}
+
+		private float[] getLinkCosts(ContractedGraph contracted) {
+			float[] current = linkCosts;
+			if (current == null)
+				linkCosts = current = contracted.getLinkCosts(costs);
+			return current;
+		}
+	}
+
+	/**
+	 * The shared end and profile of a group of batched requests.
+	 */
+	private static class GroupKey {
+		private final RailNetClient client;
+		private final RouteProfile profile;
+
+		private GroupKey(RailNetClient client, RouteProfile profile) {
+			this.client = client;
+			this.profile = profile;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(client) + profile.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof GroupKey))
+				return false;
+			GroupKey other = (GroupKey) obj;
+			return client == other.client && profile.equals(other.profile);
+		}
+	}
+
+	public RailNetwork getNetwork() {
+		return network;
+	}
+}
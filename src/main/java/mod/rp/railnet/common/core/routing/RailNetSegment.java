@@ -1,8 +1,11 @@
 package mod.rp.railnet.common.core.routing;
 
-import java.util.LinkedList;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.UUID;
 
 import mod.rp.railnet.common.core.clients.RailNetClient;
+import mod.rp.railnet.common.core.routing.RailNetworkListener.Change;
 import net.minecraft.block.BlockRailBase;
 
 /**
@@ -27,6 +30,15 @@ public class RailNetSegment {
 	 */
 	public static final long UNDEFINED_BASE_TIME = -1L;
 
+	/** Unique ID of segment */
+	private final UUID uuid;
+
+	/** The network the segment is registered to */
+	private RailNetwork network;
+
+	/** Travel times learned from the carts travelling the segment */
+	private final TravelTimeStats travelTime = new TravelTimeStats();
+
 	/** The clients associated with the segment. */
 	private RailNetClient clientA, clientB;
 
@@ -37,17 +49,20 @@ public class RailNetSegment {
 	private long baseTime;
 
 	/**
-	 * If all {@link #segmentParts segment parts} are mapped, this will reflect
+	 * If all {@link #geometry segment parts} are mapped, this will reflect
 	 * the number of blocks traveled along this segment; otherwise,
 	 * <code>actualLength = {@link #UNDEFINED_BASE_TIME}</code>
 	 */
 	private int actualLength;
 
 	/**
-	 * Individual pieces of track data for map generation as collected by a
-	 * mapping engine
+	 * Individual pieces of track data for map generation as collected by the
+	 * {@link mod.rp.railnet.common.background.TrackMapper mapping engine}
 	 */
-	private LinkedList<SegmentParts> segmentParts = new LinkedList<SegmentParts>();
+	private SegmentGeometry geometry = SegmentGeometry.EMPTY;
+
+	/** Reads the parts for the {@link SegmentParts} views */
+	private final SegmentGeometry.Cursor partCursor = new SegmentGeometry.Cursor();
 
 	// ====================
 
@@ -66,7 +81,30 @@ public class RailNetSegment {
 	 *            segment
 	 */
 	public RailNetSegment(RailNetClient clientA, RailNetClient clientB, SegmentDirection direction,
-			LinkedList<SegmentParts> segmentParts, long baseTime) {
+			List<SegmentParts> segmentParts, long baseTime) {
+		this(UUID.randomUUID(), clientA, clientB, direction, segmentParts, baseTime);
+	}
+
+	/**
+	 * Restores a saved segment.
+	 * 
+	 * @param id
+	 *            The unique ID the segment was saved with
+	 * @param clientA
+	 *            The client connecting to the first segment
+	 * @param clientB
+	 *            The client connecting to the last segment
+	 * @param direction
+	 *            The direction of travel allowed along segment
+	 * @param segmentParts
+	 *            The individual mapped parts of this segment
+	 * @param baseTime
+	 *            The amount of time taken by the base model to travel this
+	 *            segment
+	 */
+	public RailNetSegment(UUID id, RailNetClient clientA, RailNetClient clientB, SegmentDirection direction,
+			List<SegmentParts> segmentParts, long baseTime) {
+		this.uuid = id;
 		setClientA(clientA);
 		setClientB(clientB);
 		setDirection(direction);
@@ -86,7 +124,7 @@ public class RailNetSegment {
 	 *            The individual mapped parts of this segment
 	 */
 	public RailNetSegment(RailNetClient clientA, RailNetClient clientB, SegmentDirection direction,
-			LinkedList<SegmentParts> segmentParts) {
+			List<SegmentParts> segmentParts) {
 		this(clientA, clientB, direction, segmentParts, RailNetSegment.UNDEFINED_BASE_TIME);
 	}
 
@@ -94,21 +132,21 @@ public class RailNetSegment {
 		this(clientA, clientB, direction, null, RailNetSegment.UNDEFINED_BASE_TIME);
 	}
 
-	public RailNetSegment(RailNetClient clientA, RailNetClient clientB, LinkedList<SegmentParts> segments,
+	public RailNetSegment(RailNetClient clientA, RailNetClient clientB, List<SegmentParts> segments,
 			long baseTime) {
 		this(clientA, clientB, SegmentDirection.BIDIRECTIONAL, segments, baseTime);
 	}
 
-	public RailNetSegment(RailNetClient clientA, RailNetClient clientB, LinkedList<SegmentParts> segments) {
+	public RailNetSegment(RailNetClient clientA, RailNetClient clientB, List<SegmentParts> segments) {
 		this(clientA, clientB, SegmentDirection.BIDIRECTIONAL, segments);
 	}
 
-	public RailNetSegment(RailNetClient clientA, SegmentDirection direction, LinkedList<SegmentParts> segments,
+	public RailNetSegment(RailNetClient clientA, SegmentDirection direction, List<SegmentParts> segments,
 			long baseTime) {
 		this(clientA, null, direction, segments, baseTime);
 	}
 
-	public RailNetSegment(RailNetClient clientA, SegmentDirection direction, LinkedList<SegmentParts> segments) {
+	public RailNetSegment(RailNetClient clientA, SegmentDirection direction, List<SegmentParts> segments) {
 		this(clientA, null, direction, segments);
 	}
 
@@ -201,54 +239,222 @@ public class RailNetSegment {
 		/** The type of rail the segment part represents */
 		private Class<? extends BlockRailBase> railType;
 
+		/**
+		 * Index of the part in the geometry of the segment if this is a view;
+		 * otherwise <code>-1</code>
+		 */
+		private final int index;
+
 		// ===========================
 		// Constructors
 		// ===========================
 		public SegmentParts(int xA, int yA, int zA, int xB, int yB, int zB, Class<? extends BlockRailBase> railType) {
+			this.index = -1;
 			setPointA(xA, yA, zA);
 			setPointB(xB, yB, zB);
 			setRailType(railType);
 		}
 
 		public SegmentParts(int xA, int yA, int zA, int xB, int yB, int zB) {
+			this.index = -1;
 			setPointA(xA, yA, zA);
 			setPointB(xB, yB, zB);
 
 		}
 
 		public SegmentParts(int xA, int yA, int zA) {
+			this.index = -1;
 			setPointA(xA, yA, zA);
 		}
 
+		/**
+		 * Creates a view of a part stored in the geometry of the segment.
+		 */
+		private SegmentParts(int index) {
+			this.index = index;
+		}
+
+		/**
+		 * Loads the part from the geometry if this is a view.
+		 * 
+		 * @return <code>false</code> if the part is no longer stored.
+		 */
+		private boolean load() {
+			if (index < 0)
+				return true;
+			SegmentGeometry.Cursor cursor = partCursor.reset(geometry);
+			if (!cursor.seek(index))
+				return false;
+			xA = cursor.getXA();
+			yA = cursor.getYA();
+			zA = cursor.getZA();
+			xB = cursor.getXB();
+			yB = cursor.getYB();
+			zB = cursor.getZB();
+			railType = cursor.getRailType();
+			return true;
+		}
+
+		/**
+		 * Writes the part back to the geometry if this is a view.
+		 */
+		private void store() {
+			if (index >= 0 && index < geometry.size()) {
+				SegmentGeometry next = new SegmentGeometry(geometry);
+				next.set(index, xA, yA, zA, xB, yB, zB, railType);
+				setGeometry(next);
+			}
+		}
+
 		public void setPointA(int x, int y, int z) {
+			load();
 			this.xA = x;
 			this.yA = y;
 			this.zA = z;
+			store();
 		}
 
 		public void setPointB(int x, int y, int z) {
+			load();
 			this.xB = x;
 			this.yB = y;
 			this.zB = z;
+			store();
 		}
 
 		public int[] getPointA() {
+			load();
 			int[] out = { xA, yA, zA };
 			return out;
 		}
 
 		public int[] getPointB() {
+			load();
 			int[] out = { xB, yB, zB };
 			return out;
 		}
 
 		public Class<? extends BlockRailBase> getRailType() {
+			load();
 			return railType;
 		}
 
 		public void setRailType(Class<? extends BlockRailBase> railType) {
+			load();
 			this.railType = railType;
+			store();
+		}
+	}
+
+	/**
+	 * The parts of the segment as {@link SegmentParts} views over its
+	 * geometry. Changing the list sets a new geometry on the segment.
+	 */
+	private class SegmentPartsView extends AbstractList<SegmentParts> {
+		@Override
+		public SegmentParts get(int index) {
+			checkIndex(index, geometry.size());
+			return new SegmentParts(index);
+		}
+
+		@Override
+		public int size() {
+			return geometry.size();
+		}
+
+		@Override
+		public SegmentParts set(int index, SegmentParts part) {
+			SegmentParts old = detach(index);
+			splice(index, part, true);
+			return old;
+		}
+
+		@Override
+		public void add(int index, SegmentParts part) {
+			checkIndex(index, geometry.size() + 1);
+			if (index == geometry.size()) {
+				part.load();
+				SegmentGeometry next = new SegmentGeometry(geometry);
+				next.add(part.xA, part.yA, part.zA, part.xB, part.yB, part.zB, part.railType);
+				modCount++;
+				setGeometry(next);
+			} else
+				splice(index, part, false);
 		}
+
+		@Override
+		public SegmentParts remove(int index) {
+			SegmentParts old = detach(index);
+			splice(index, null, true);
+			return old;
+		}
+
+		@Override
+		public void clear() {
+			modCount++;
+			setGeometry(null);
+		}
+
+		/**
+		 * @return a copy of a part that is not a view, as the view would show
+		 *         the part that takes its place.
+		 */
+		private SegmentParts detach(int index) {
+			checkIndex(index, geometry.size());
+			SegmentParts part = new SegmentParts(index);
+			part.load();
+			return new SegmentParts(part.xA, part.yA, part.zA, part.xB, part.yB, part.zB, part.railType);
+		}
+
+		/**
+		 * Encodes the parts again with one part inserted, replaced or removed.
+		 *
+		 * @param index
+		 * @param part
+		 *            The part put at the index; otherwise <code>null</code>.
+		 * @param replace
+		 *            Whether the part at the index is left out.
+		 */
+		private void splice(int index, SegmentParts part, boolean replace) {
+			if (part != null)
+				part.load();
+			SegmentGeometry next = new SegmentGeometry();
+			SegmentGeometry.Cursor cursor = partCursor.reset(geometry);
+			for (int i = 0;; i++) {
+				if (i == index && part != null)
+					next.add(part.xA, part.yA, part.zA, part.xB, part.yB, part.zB, part.railType);
+				if (!cursor.next())
+					break;
+				if (i != index || !replace)
+					next.add(cursor.getXA(), cursor.getYA(), cursor.getZA(), cursor.getXB(), cursor.getYB(),
+							cursor.getZB(), cursor.getRailType());
+			}
+			modCount++;
+			setGeometry(next);
+		}
+
+		private void checkIndex(int index, int size) {
+			if (index < 0 || index >= size)
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + geometry.size());
+		}
+	}
+
+	public UUID getID() {
+		return uuid;
+	}
+
+	public RailNetwork getNetwork() {
+		return network;
+	}
+
+	/**
+	 * Sets the network of the segment. Use
+	 * {@link RailNetwork#addSegment(RailNetSegment)} to register the segment.
+	 * 
+	 * @param network
+	 */
+	void setNetwork(RailNetwork network) {
+		this.network = network;
 	}
 
 	public RailNetClient getClientA() {
@@ -258,6 +464,7 @@ public class RailNetSegment {
 	public void setClientA(RailNetClient clientA) {
 		this.clientA = clientA;
 		invalidateMap();
+		changed(clientA == null ? Change.DISCONNECTED : Change.CONNECTED);
 	}
 
 	public RailNetClient getClientB() {
@@ -267,6 +474,7 @@ public class RailNetSegment {
 	public void setClientB(RailNetClient clientB) {
 		this.clientB = clientB;
 		invalidateMap();
+		changed(clientB == null ? Change.DISCONNECTED : Change.CONNECTED);
 	}
 
 	public SegmentDirection getDirection() {
@@ -275,17 +483,21 @@ public class RailNetSegment {
 
 	public void setDirection(SegmentDirection direction) {
 		this.direction = direction;
+		changed(Change.DIRECTION);
 	}
 
 	/**
 	 * Used for terrain mapping, includes individual straight lines that connect
 	 * throughout the rail segment and may include individual track data.
 	 * 
-	 * @return a LinkedList of the segment parts.
+	 * @return a list of views over the parts of the segment. Changing the list
+	 *         or one of its parts encodes the parts again and notifies the
+	 *         network. Use {@link #getGeometry()} to read many parts without
+	 *         allocating.
 	 * @see SegmentParts
 	 */
-	public LinkedList<SegmentParts> getSegmentParts() {
-		return segmentParts;
+	public List<SegmentParts> getSegmentParts() {
+		return new SegmentPartsView();
 	}
 
 	/**
@@ -293,8 +505,37 @@ public class RailNetSegment {
 	 * 
 	 * @param segmentParts
 	 */
-	public void setSegmentParts(LinkedList<SegmentParts> segmentParts) {
-		this.segmentParts = segmentParts;
+	public void setSegmentParts(List<SegmentParts> segmentParts) {
+		SegmentGeometry geometry = new SegmentGeometry();
+		if (segmentParts != null)
+			for (SegmentParts part : segmentParts) {
+				part.load();
+				geometry.add(part.xA, part.yA, part.zA, part.xB, part.yB, part.zB, part.railType);
+			}
+		geometry.trimToSize();
+		setGeometry(geometry);
+	}
+
+	/**
+	 * @return the packed parts of the segment, which are read-only. Use
+	 *         {@link #setGeometry(SegmentGeometry)} or
+	 *         {@link #getSegmentParts()} to change them.
+	 * @see SegmentGeometry.Cursor
+	 */
+	public SegmentGeometry getGeometry() {
+		return geometry;
+	}
+
+	/**
+	 * Replaces the parts of the segment. The geometry becomes read-only.
+	 * 
+	 * @param geometry
+	 */
+	public void setGeometry(SegmentGeometry geometry) {
+		if (geometry != null)
+			geometry.freeze();
+		this.geometry = geometry != null ? geometry : SegmentGeometry.EMPTY;
+		changed(Change.MAP);
 	}
 
 	/**
@@ -313,7 +554,8 @@ public class RailNetSegment {
 
 	/**
 	 * Connects a client as ClientA if empty; otherwise connects as ClientB. If
-	 * client is connected, the map is invalidated.
+	 * client is connected, the map is invalidated. Connecting a client that is
+	 * already on the segment does nothing.
 	 * 
 	 * @param railNetClient
 	 * @return <code>true</code> if client is connected; otherwise
@@ -322,6 +564,8 @@ public class RailNetSegment {
 	 * @see RailNetSegment#invalidateMap()
 	 */
 	public boolean connectClient(RailNetClient railNetClient) {
+		if (getClientA() == railNetClient || getClientB() == railNetClient)
+			return true;
 		if (getClientA() == null)
 			setClientA(railNetClient);
 		else if (getClientB() == null)
@@ -356,8 +600,36 @@ public class RailNetSegment {
 	 * Deletes the SegmentParts Map.
 	 */
 	public void invalidateMap() {
-		this.segmentParts.clear();
+		this.geometry = SegmentGeometry.EMPTY;
 		this.baseTime = UNDEFINED_BASE_TIME;
+		changed(Change.MAP);
+	}
+
+	/**
+	 * Notifies the network of a change to the segment.
+	 * 
+	 * @param change
+	 */
+	private void changed(Change change) {
+		if (network != null)
+			network.segmentChanged(this, change);
+	}
+
+	/**
+	 * Notifies the network that the learned travel time changed.
+	 * 
+	 * @see TravelTimes#publish()
+	 */
+	void travelTimeChanged() {
+		changed(Change.TIME);
+	}
+
+	/**
+	 * @return the travel times learned from carts, which unlike
+	 *         {@link #getBaseTime()} do not depend on the map.
+	 */
+	public TravelTimeStats getTravelTime() {
+		return travelTime;
 	}
 
 	public long getBaseTime() {
@@ -366,6 +638,7 @@ public class RailNetSegment {
 
 	public void setBaseTime(long baseTime) {
 		this.baseTime = baseTime;
+		changed(Change.TIME);
 	}
 
 	public int getActualLength() {
@@ -374,5 +647,6 @@ public class RailNetSegment {
 
 	public void setActualLength(int actualLength) {
 		this.actualLength = actualLength;
+		changed(Change.TIME);
 	}
 }
\ No newline at end of file
@@ -1,12 +1,18 @@
 package mod.rp.railnet.common.core.routing;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.clients.ClientRegistry;
 import mod.rp.railnet.common.core.clients.RailNetClient;
+import mod.rp.railnet.common.core.routing.RailNetworkListener.Change;
 
 public class RailNetwork {
 
@@ -26,18 +32,529 @@ public class RailNetwork {
 	private final Map<UUID, RailNetSegment> segments = new HashMap<UUID, RailNetSegment>();
 
 	/** Routing table */
-	private final Map<UUID, RailNetRoute> routingTable = new HashMap<UUID, RailNetRoute>();
+	private final RouteCache routingTable = new RouteCache(this, CONFIG.ROUTING.ROUTE_CACHE_SIZE,
+			CONFIG.ROUTING.ROUTE_CACHE_BYTES);
+
+	/** Lines run on the network */
+	private final Map<UUID, RailNetLineWrapper> lines = new HashMap<UUID, RailNetLineWrapper>();
+
+	/** Segments by block position */
+	private final SegmentIndex segmentIndex = new SegmentIndex(this);
+
+	/** Travel times learned from carts */
+	private final TravelTimes travelTimes = new TravelTimes(this);
+
+	/** Which clients are joined by track */
+	private final ConnectivityIndex connectivity = new ConnectivityIndex(this);
+
+	/** Windows booked by trains on the segments */
+	private final SegmentReservations reservations = new SegmentReservations();
+
+	/** Lines and routes by the segments they use */
+	private final SegmentUsageIndex segmentUsage = new SegmentUsageIndex();
+
 	/** Client Map in form of nodes */
+	private volatile RailNetGraph graph;
+
+	/**
+	 * Incremented every time a client or segment is added, removed,
+	 * reconnected or changes direction.
+	 *
+	 * @see #getTopologyVersion()
+	 */
+	private volatile long topologyVersion;
+
+	/**
+	 * Incremented every time a client or segment is added or a segment is
+	 * connected to a client. Other changes publish a patched copy of the
+	 * current graph instead of rebuilding it.
+	 */
+	private volatile long structureVersion;
+
+	/**
+	 * Incremented every time the time or length of a segment changes.
+	 *
+	 * @see #getWeightsVersion()
+	 */
+	private volatile long weightsVersion;
+
+	/** Route engine of the network */
+	private final RailNetRouter router = new RailNetRouter(this);
+
+	/** Listeners notified of changes to clients and segments */
+	private final List<RailNetworkListener> listeners = new CopyOnWriteArrayList<RailNetworkListener>();
+
+	/** Supplies clients and segments not loaded yet */
+	private RailNetworkSource source;
+
+	/** Whether the source is loading, which is not a change of the network */
+	private boolean loading;
+
+	/** Whether clients and segments are moving to or from another network */
+	private boolean moving;
+
+	/** Set once the network was merged into another */
+	private boolean removed;
 
 	/** Generated rail map from a terrain map engine */
 
 	public RailNetwork() {
-		uuid = UUID.randomUUID();
+		this(UUID.randomUUID());
+	}
+
+	/**
+	 * Restores a saved network.
+	 *
+	 * @param id
+	 *            The unique ID the network was saved with
+	 */
+	public RailNetwork(UUID id) {
+		uuid = id;
+		networks.add(this);
+	}
+
+	// ===========================
+	// Network Methods
+	// ===========================
+
+	/**
+	 * Adds a client to the network and points the client at this network.
+	 *
+	 * @param client
+	 */
+	public void addClient(RailNetClient client) {
+		if (clients.put(client.getID(), client) == client)
+			return;
+		if (client.getNetwork() != this)
+			client.setNetwork(this);
+		ClientRegistry.get().register(client);
+		clientChanged(client, Change.ADDED);
+	}
+
+	/**
+	 * Removes a client from the network. Segments of the client are left
+	 * untouched.
+	 *
+	 * @param client
+	 * @return <code>true</code> if the client was part of the network.
+	 */
+	public boolean removeClient(RailNetClient client) {
+		if (clients.remove(client.getID()) == null)
+			return false;
+		ClientRegistry.get().unregister(client);
+		clientChanged(client, Change.REMOVED);
+		return true;
+	}
+
+	/**
+	 * Adds a segment to the network. Called automatically when a segment is
+	 * connected to a client of this network. A segment of another network
+	 * joins the two networks into one.
+	 *
+	 * @param segment
+	 * @see RailNetClient#connectSegment(RailNetSegment)
+	 */
+	public void addSegment(RailNetSegment segment) {
+		RailNetwork other = segment.getNetwork();
+		if (other != null && other != this && !other.removed && !loading && !other.loading && !moving
+				&& !other.moving) {
+			merge(other);
+			return;
+		}
+		if (segments.put(segment.getID(), segment) == segment)
+			return;
+		segment.setNetwork(this);
+		segmentChanged(segment, Change.ADDED);
+	}
+
+	/**
+	 * Removes a segment from the network.
+	 *
+	 * @param segment
+	 * @return <code>true</code> if the segment was part of the network.
+	 */
+	public boolean removeSegment(RailNetSegment segment) {
+		if (segments.remove(segment.getID()) == null)
+			return false;
+		if (segment.getNetwork() == this)
+			segment.setNetwork(null);
+		segmentChanged(segment, Change.REMOVED);
+		return true;
+	}
+
+	/**
+	 * Adds a line to the network.
+	 *
+	 * @param line
+	 */
+	public void addLine(RailNetLineWrapper line) {
+		RailNetLineWrapper old = lines.put(line.getLineID(), line);
+		if (old == line)
+			return;
+		if (old != null) {
+			segmentUsage.lineRemoved(old);
+			old.setNetwork(null);
+		}
+		line.setNetwork(this);
+		segmentUsage.lineAdded(line);
+	}
+
+	/**
+	 * Removes a line from the network.
+	 *
+	 * @param line
+	 * @return <code>true</code> if the line was part of the network.
+	 */
+	public boolean removeLine(RailNetLineWrapper line) {
+		RailNetLineWrapper removed = lines.remove(line.getLineID());
+		if (removed == null)
+			return false;
+		segmentUsage.lineRemoved(removed);
+		removed.setNetwork(null);
+		return true;
+	}
+
+	/**
+	 * Returns the routing graph of the network. The graph is a snapshot that
+	 * never changes once returned. It is only rebuilt when clients or segments
+	 * were added or connected since the last call; closing, removing or
+	 * disconnecting segments publishes a patched copy of the current
+	 * snapshot.
+	 *
+	 * @return the current routing graph.
+	 * @see RailNetGraph
+	 */
+	public RailNetGraph getGraph() {
+		RailNetGraph current = graph;
+		if (current == null || current.getVersion() != structureVersion) {
+			synchronized (this) {
+				current = graph;
+				// Read first, so a change during the build stamps it as older
+				long topology = topologyVersion;
+				long version = structureVersion;
+				if (current == null || current.getVersion() != version) {
+					current = RailNetGraph.build(this, version, topology);
+					graph = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Updates the routing state of the network after a segment has changed,
+	 * {@link RailNetRouter#reroute reroutes} the lines it cuts off and notifies
+	 * the listeners.
+	 *
+	 * @param segment
+	 * @param change
+	 */
+	void segmentChanged(RailNetSegment segment, Change change) {
+		if (loading) {
+			if (change == Change.ADDED)
+				segmentIndex.segmentChanged(segment, change);
+			return;
+		}
+		switch (change) {
+		case ADDED:
+			segmentIndex.segmentChanged(segment, change);
+			structureChanged(segment, change);
+			break;
+		case CONNECTED:
+			structureChanged(segment, change);
+			break;
+		case REMOVED:
+			segmentIndex.segmentChanged(segment, change);
+			reservations.segmentRemoved(segment);
+			connectivity.segmentChanged(segment, true);
+			topologyChanged(segment, change);
+			break;
+		case DISCONNECTED:
+			connectivity.segmentChanged(segment, true);
+			topologyChanged(segment, change);
+			break;
+		case DIRECTION:
+			topologyChanged(segment, change);
+			break;
+		case MAP:
+			segmentIndex.segmentChanged(segment, change);
+			weightsChanged(segment, change);
+			break;
+		case TIME:
+			weightsChanged(segment, change);
+			break;
+		}
+		for (RailNetworkListener listener : listeners)
+			listener.segmentChanged(segment, change);
+	}
+
+	/** Track was added or connected, so the graph must be rebuilt. */
+	private void structureChanged(RailNetSegment segment, Change change) {
+		structureVersion++;
+		topologyVersion++;
+		routingTable.invalidate();
+		connectivity.segmentChanged(segment, false);
+		router.segmentChanged(segment, change);
+	}
+
+	/** Track was removed, disconnected or turned, which the graph patches. */
+	private void topologyChanged(RailNetSegment segment, Change change) {
+		topologyVersion++;
+		// A turned segment may open better routes than the cached ones
+		if (change == Change.DIRECTION)
+			routingTable.invalidate();
+		else
+			routingTable.segmentChanged(segment);
+		patchGraph(segment);
+		router.segmentChanged(segment, change);
+		if (!moving && segmentUsage.isUsed(segment.getID()))
+			router.reroute(segment);
+	}
+
+	/** The cost of a segment changed. */
+	private void weightsChanged(RailNetSegment segment, Change change) {
+		weightsVersion++;
+		routingTable.segmentChanged(segment);
+		router.segmentChanged(segment, change);
+	}
+
+	/**
+	 * Updates the routing state of the network after a client was added or
+	 * removed and notifies the listeners.
+	 *
+	 * @param client
+	 * @param change
+	 */
+	void clientChanged(RailNetClient client, Change change) {
+		if (loading)
+			return;
+		if (change == Change.ADDED) {
+			structureVersion++;
+			connectivity.clientAdded(client);
+		} else {
+			connectivity.clientRemoved(client);
+		}
+		topologyVersion++;
+		if (change != Change.ADDED)
+			patchGraph(null);
+		routingTable.invalidate();
+		for (RailNetworkListener listener : listeners)
+			listener.clientChanged(client, change);
+	}
+
+	/**
+	 * Publishes a patched copy of the current graph, unless it is rebuilt
+	 * anyway, stamped with the current topology version.
+	 *
+	 * @param segment
+	 *            May be <code>null</code> if only the version changed.
+	 */
+	private synchronized void patchGraph(RailNetSegment segment) {
+		RailNetGraph current = graph;
+		if (current != null && current.getVersion() == structureVersion)
+			graph = current.patch(segment, topologyVersion);
+	}
+
+	// ===========================
+	// Connectivity
+	// ===========================
+
+	/**
+	 * Tells whether track joins two clients, in any direction, without
+	 * searching for a route. Must be called on the server thread.
+	 *
+	 * @param a
+	 * @param b
+	 * @return <code>true</code> if both clients are part of this network and a
+	 *         route between them may exist; <code>false</code> if none can.
+	 */
+	public boolean isReachable(RailNetClient a, RailNetClient b) {
+		return connectivity.isConnected(a, b);
+	}
+
+	/**
+	 * Moves the track that no longer joins the rest of the network into
+	 * networks of their own. The largest part keeps this network; clients
+	 * without any segment stay as well. Lines are kept by this network. Called
+	 * once per server tick.
+	 *
+	 * @return the networks split off.
+	 */
+	public List<RailNetwork> splitDisconnected() {
+		if (removed || loading || !connectivity.takeSplit())
+			return Collections.emptyList();
+		List<List<RailNetClient>> components = connectivity.getComponents();
+		if (components.size() < 2)
+			return Collections.emptyList();
+		List<RailNetClient> largest = null;
+		for (List<RailNetClient> component : components)
+			if (largest == null || component.size() > largest.size())
+				largest = component;
+
+		List<RailNetwork> split = new ArrayList<RailNetwork>();
+		for (List<RailNetClient> component : components) {
+			if (component == largest || component.size() == 1
+					&& component.get(0).getConnectedSegments().isEmpty())
+				continue;
+			RailNetwork network = new RailNetwork();
+			network.setNewDomain(domain);
+			moving = true;
+			try {
+				moveTo(network, component);
+			} finally {
+				moving = false;
+			}
+			split.add(network);
+		}
+		return split;
+	}
+
+	/**
+	 * Joins this network and another into the larger of the two. The smaller
+	 * network is emptied and removed.
+	 *
+	 * @param other
+	 */
+	private void merge(RailNetwork other) {
+		loadAll();
+		other.loadAll();
+		RailNetwork keep = this;
+		RailNetwork gone = other;
+		if (other.clients.size() + other.segments.size() > clients.size() + segments.size()) {
+			keep = other;
+			gone = this;
+		}
+		gone.moving = true;
+		try {
+			gone.moveTo(keep, new ArrayList<RailNetClient>(gone.clients.values()));
+			// Segments without clients
+			for (RailNetSegment segment : new ArrayList<RailNetSegment>(gone.segments.values())) {
+				gone.reservations.moveTo(segment, keep.reservations);
+				gone.removeSegment(segment);
+				keep.addSegment(segment);
+			}
+		} finally {
+			gone.moving = false;
+		}
+		for (RailNetLineWrapper line : gone.lines.values())
+			keep.addLine(line);
+		gone.lines.clear();
+		gone.remove();
+	}
+
+	/**
+	 * Moves clients and their segments to another network. Must be called
+	 * while {@link #moving}.
+	 */
+	private void moveTo(RailNetwork network, List<RailNetClient> moved) {
+		for (RailNetClient client : moved) {
+			removeClient(client);
+			network.addClient(client);
+		}
+		for (RailNetClient client : moved)
+			for (RailNetSegment segment : new ArrayList<RailNetSegment>(client.getConnectedSegments()))
+				if (segment.getNetwork() == this) {
+					reservations.moveTo(segment, network.reservations);
+					removeSegment(segment);
+					network.addSegment(segment);
+				}
+	}
+
+	/**
+	 * Drops the network from the list of networks.
+	 */
+	private void remove() {
+		removed = true;
+		networks.remove(this);
+		ClientRegistry.get().unregister(this);
+	}
+
+	boolean isMoving() {
+		return moving;
+	}
+
+	/**
+	 * @return <code>true</code> if the network was merged into another and is
+	 *         no longer used.
+	 */
+	public boolean isRemoved() {
+		return removed;
+	}
+
+	// ===========================
+	// Lazy Loading
+	// ===========================
+
+	/**
+	 * Sets the source of the clients and segments that were restored without
+	 * being loaded. Clients and segments are loaded the first time they are
+	 * looked up, when a block of their chunk is looked up in the
+	 * {@link SegmentIndex}, or all at once when every client or segment of the
+	 * network is requested.
+	 *
+	 * @param source
+	 *            The source; <code>null</code> if everything is loaded.
+	 */
+	public void setSource(RailNetworkSource source) {
+		this.source = source;
+	}
+
+	/**
+	 * @return <code>true</code> if no client or segment remains to be loaded
+	 *         from a source.
+	 */
+	public boolean isLoaded() {
+		return source == null;
+	}
+
+	/**
+	 * Loads everything the source still holds and drops the source.
+	 */
+	public void loadAll() {
+		RailNetworkSource current = source;
+		if (current == null)
+			return;
+		source = null;
+		loading = true;
+		try {
+			current.loadAll(this);
+		} finally {
+			loading = false;
+		}
+	}
+
+	/**
+	 * Loads the segments of a chunk column that are not loaded yet.
+	 *
+	 * @param chunkX
+	 * @param chunkZ
+	 */
+	void loadChunk(int chunkX, int chunkZ) {
+		if (source == null || loading)
+			return;
+		loading = true;
+		try {
+			source.loadChunk(this, chunkX, chunkZ);
+		} finally {
+			loading = false;
+		}
+	}
+
+	public void addListener(RailNetworkListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(RailNetworkListener listener) {
+		listeners.remove(listener);
 	}
 
 	// ===========================
 	// Getters and Setters
 	// ===========================
+	public UUID getID() {
+		return uuid;
+	}
+
 	public String getNetDomain() {
 		return domain;
 	}
@@ -46,6 +563,105 @@ public class RailNetwork {
 		this.domain = domain;
 	}
 
+	public RailNetClient getClient(UUID id) {
+		RailNetClient client = clients.get(id);
+		if (client != null || source == null || loading)
+			return client;
+		loading = true;
+		try {
+			return source.loadClient(this, id);
+		} finally {
+			loading = false;
+		}
+	}
+
+	/**
+	 * @return every client of the network, loading the clients not loaded
+	 *         yet.
+	 */
+	public Collection<RailNetClient> getClients() {
+		loadAll();
+		return Collections.unmodifiableCollection(clients.values());
+	}
+
+	public RailNetSegment getSegment(UUID id) {
+		RailNetSegment segment = segments.get(id);
+		if (segment != null || source == null || loading)
+			return segment;
+		loading = true;
+		try {
+			return source.loadSegment(this, id);
+		} finally {
+			loading = false;
+		}
+	}
+
+	/**
+	 * @return every segment of the network, loading the segments not loaded
+	 *         yet.
+	 */
+	public Collection<RailNetSegment> getSegments() {
+		loadAll();
+		return Collections.unmodifiableCollection(segments.values());
+	}
+
+	public RailNetLineWrapper getLine(UUID id) {
+		return lines.get(id);
+	}
+
+	public Collection<RailNetLineWrapper> getLines() {
+		return Collections.unmodifiableCollection(lines.values());
+	}
+
+	public long getTopologyVersion() {
+		return topologyVersion;
+	}
+
+	public long getWeightsVersion() {
+		return weightsVersion;
+	}
+
+	public RouteCache getRoutingTable() {
+		return routingTable;
+	}
+
+	/**
+	 * @return the index finding the segment of a block position.
+	 */
+	public SegmentIndex getSegmentIndex() {
+		return segmentIndex;
+	}
+
+	public TravelTimes getTravelTimes() {
+		return travelTimes;
+	}
+
+	/** @return the lines and routes by the segments they use. */
+	public SegmentUsageIndex getSegmentUsage() {
+		return segmentUsage;
+	}
+
+	/** @return the windows booked by trains on the segments. */
+	public SegmentReservations getReservations() {
+		return reservations;
+	}
+
+	public RailNetRouter getRouter() {
+		return router;
+	}
+
+	public static List<RailNetwork> getNetworks() {
+		return Collections.unmodifiableList(networks);
+	}
+
+	/**
+	 * Forgets every network, so nothing of a world outlives its server. Called
+	 * when the server stops, once the networks were saved.
+	 */
+	public static void unloadAll() {
+		networks.clear();
+	}
+
 	// ===========================
 	// RailNet Commands
 	// ===========================
@@ -0,0 +1,48 @@
+package mod.rp.railnet.common.core.routing;
+
+import mod.rp.railnet.common.core.clients.RailNetClient;
+
+/**
+ * Receives changes made to the clients and segments of a {@link RailNetwork}.
+ * Listeners are called on the thread making the change, after the network has
+ * updated its own routing state.
+ *
+ * @author MajorR
+ * @see RailNetwork#addListener(RailNetworkListener)
+ *
+ */
+public interface RailNetworkListener {
+
+	/**
+	 * The kind of change made to a client or segment.
+	 */
+	public static enum Change {
+		/** Added to the network */
+		ADDED,
+		/** Removed from the network */
+		REMOVED,
+		/** A client was connected to the segment */
+		CONNECTED,
+		/** A client was disconnected from the segment */
+		DISCONNECTED,
+		/** The direction of the segment changed */
+		DIRECTION,
+		/** The segment parts of the segment were replaced or invalidated */
+		MAP,
+		/** The base time or actual length of the segment changed */
+		TIME
+	}
+
+	/**
+	 * @param segment
+	 * @param change
+	 */
+	public void segmentChanged(RailNetSegment segment, Change change);
+
+	/**
+	 * @param client
+	 * @param change
+	 *            Either {@link Change#ADDED} or {@link Change#REMOVED}.
+	 */
+	public void clientChanged(RailNetClient client, Change change);
+}
@@ -0,0 +1,56 @@
+package mod.rp.railnet.common.core.routing;
+
+import java.util.UUID;
+
+import mod.rp.railnet.common.core.clients.RailNetClient;
+
+/**
+ * Supplies the clients and segments of a {@link RailNetwork} that were
+ * restored without creating their objects. The network asks its source the
+ * first time a client or segment it does not hold yet is looked up, and loads
+ * everything before handing out all of its clients or segments.
+ * <p>
+ * A source registers what it loads with {@link RailNetwork#addClient} and
+ * {@link RailNetwork#addSegment}. The network does not count these as changes:
+ * listeners are not notified and the versions of the network stay the same.
+ * Sources are only called on the server thread.
+ * </p>
+ *
+ * @author MajorR
+ * @see RailNetwork#setSource(RailNetworkSource)
+ *
+ */
+public interface RailNetworkSource {
+
+	/**
+	 * @param network
+	 * @param id
+	 * @return the loaded client; otherwise <code>null</code> if the source does
+	 *         not hold it.
+	 */
+	public RailNetClient loadClient(RailNetwork network, UUID id);
+
+	/**
+	 * @param network
+	 * @param id
+	 * @return the loaded segment; otherwise <code>null</code> if the source
+	 *         does not hold it.
+	 */
+	public RailNetSegment loadSegment(RailNetwork network, UUID id);
+
+	/**
+	 * Loads every segment with a part in a 16x16 chunk column.
+	 *
+	 * @param network
+	 * @param chunkX
+	 * @param chunkZ
+	 */
+	public void loadChunk(RailNetwork network, int chunkX, int chunkZ);
+
+	/**
+	 * Loads every client and segment that was not loaded yet.
+	 *
+	 * @param network
+	 */
+	public void loadAll(RailNetwork network);
+}
@@ -0,0 +1,165 @@
+package mod.rp.railnet.common.core.routing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.clients.RailNetClient;
+
+/**
+ * Many route requests answered together by
+ * {@link RailNetRouter#findRoutes(RouteBatch)}.
+ * <p>
+ * Requests sharing an origin, or a destination, and a {@link RouteProfile}
+ * form a group. Each group is answered from one full search from the shared
+ * client, so a batch costs one search per distinct origin or destination
+ * rather than one per request. Searches towards a shared destination run
+ * backwards over the graph.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+public class RouteBatch {
+
+	/**
+	 * Which end of the requests is shared by a group.
+	 */
+	public static enum Grouping {
+		/** Requests with the same origin share a search */
+		ORIGIN,
+		/** Requests with the same destination share a search */
+		DESTINATION,
+		/** Whichever of the two needs fewer searches */
+		AUTO
+	}
+
+	private final int maxSize;
+
+	private final Grouping grouping;
+
+	final List<RailNetClient> origins = new ArrayList<RailNetClient>();
+	final List<RailNetClient> destinations = new ArrayList<RailNetClient>();
+	final List<RouteProfile> profiles = new ArrayList<RouteProfile>();
+	final List<RailNetLineWrapper> lines = new ArrayList<RailNetLineWrapper>();
+
+	/** Results, filled in once the batch has been run */
+	RailNetRoute[] routes;
+
+	public RouteBatch(int maxSize, Grouping grouping) {
+		this.maxSize = maxSize;
+		this.grouping = grouping;
+	}
+
+	public RouteBatch() {
+		this(CONFIG.ROUTING.BATCH_SIZE, CONFIG.ROUTING.BATCH_GROUPING);
+	}
+
+	// ===========================
+	// Requests
+	// ===========================
+
+	/**
+	 * Requests the route of a line between two clients.
+	 *
+	 * @param line
+	 * @param origin
+	 * @param destination
+	 * @return the index of the request; otherwise <code>-1</code> if the batch
+	 *         is full.
+	 */
+	public int add(RailNetLineWrapper line, RailNetClient origin, RailNetClient destination) {
+		return add(origin, destination, line.getRouteProfile(), line);
+	}
+
+	/**
+	 * Requests a route between two clients.
+	 *
+	 * @param origin
+	 * @param destination
+	 * @param profile
+	 * @return the index of the request; otherwise <code>-1</code> if the batch
+	 *         is full.
+	 */
+	public int add(RailNetClient origin, RailNetClient destination, RouteProfile profile) {
+		return add(origin, destination, profile, null);
+	}
+
+	private int add(RailNetClient origin, RailNetClient destination, RouteProfile profile, RailNetLineWrapper line) {
+		if (isFull())
+			return -1;
+		origins.add(origin);
+		destinations.add(destination);
+		profiles.add(profile);
+		lines.add(line);
+		routes = null;
+		return origins.size() - 1;
+	}
+
+	/**
+	 * Removes every request and result.
+	 */
+	public void clear() {
+		origins.clear();
+		destinations.clear();
+		profiles.clear();
+		lines.clear();
+		routes = null;
+	}
+
+	public boolean isFull() {
+		return origins.size() >= maxSize;
+	}
+
+	public int size() {
+		return origins.size();
+	}
+
+	// ===========================
+	// Results
+	// ===========================
+
+	/** @return <code>true</code> once the batch has been run. */
+	public boolean isDone() {
+		return routes != null;
+	}
+
+	/**
+	 * @param index
+	 *            The index returned when the request was added.
+	 * @return the route; otherwise <code>null</code> if no route exists or the
+	 *         batch has not been run.
+	 */
+	public RailNetRoute getRoute(int index) {
+		return routes == null ? null : routes[index];
+	}
+
+	// ===========================
+	// Getters
+	// ===========================
+
+	public RailNetClient getOrigin(int index) {
+		return origins.get(index);
+	}
+
+	public RailNetClient getDestination(int index) {
+		return destinations.get(index);
+	}
+
+	public RouteProfile getProfile(int index) {
+		return profiles.get(index);
+	}
+
+	/** @return the line of the request; otherwise <code>null</code>. */
+	public RailNetLineWrapper getLine(int index) {
+		return lines.get(index);
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public Grouping getGrouping() {
+		return grouping;
+	}
+}
@@ -0,0 +1,332 @@
+package mod.rp.railnet.common.core.routing;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import mod.rp.railnet.common.core.clients.RailNetClient;
+
+/**
+ * The routing table of a {@link RailNetwork}: a bounded cache of calculated
+ * routes keyed by origin, destination and {@link RouteProfile}.
+ * <ul>
+ * <li>The least recently used routes are evicted once the table holds more
+ * than {@link #getMaxRoutes()} routes or its estimated memory exceeds
+ * {@link #getMaxBytes()}.</li>
+ * <li>The network tells the table about every change of its segments. A
+ * segment that was removed, disconnected or whose time changed drops only
+ * the routes through it, which are looked up in an index by segment. Track
+ * that was added, connected or turned drops every route, since any of them
+ * may no longer be the best. A segment becoming faster does not drop the
+ * routes avoiding it; they are calculated again once evicted.</li>
+ * <li>A missing route is cached as well, so repeated requests between
+ * unconnected clients are answered without a search.</li>
+ * </ul>
+ *
+ * @author MajorR
+ *
+ */
+public class RouteCache {
+
+	/** Estimated memory of an entry without its path */
+	private static final int ENTRY_BYTES = 160;
+
+	/** Estimated memory of each segment of a path, with its index entry */
+	private static final int SEGMENT_BYTES = 48;
+
+	/** Marks a cached request that has no route */
+	private static final Entry NO_ROUTE = new Entry(null, null, 0);
+
+	private final RailNetwork network;
+
+	private final int maxRoutes;
+
+	private final long maxBytes;
+
+	/** Routes by key, least recently used first */
+	private final LinkedHashMap<Key, Entry> routes = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+
+	/**
+	 * Routes by the segments they pass. Dropped routes are left in place and
+	 * skipped until the index is rebuilt.
+	 */
+	private final Map<RailNetSegment, List<Entry>> bySegment = new IdentityHashMap<RailNetSegment, List<Entry>>();
+
+	/** Path segments of the routes in the index, live and dropped */
+	private long indexed;
+	private long dropped;
+
+	/** Estimated memory of the cached routes */
+	private long bytes;
+
+	// Statistics
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+
+	public RouteCache(RailNetwork network, int maxRoutes, long maxBytes) {
+		this.network = network;
+		this.maxRoutes = maxRoutes;
+		this.maxBytes = maxBytes;
+	}
+
+	// ===========================
+	// Cache Methods
+	// ===========================
+
+	/**
+	 * Looks up a route.
+	 *
+	 * @param origin
+	 * @param destination
+	 * @param profile
+	 * @return a copy of the cached route, {@link #NO_ROUTE} if the request is
+	 *         known to have no route, or <code>null</code> if it is not
+	 *         cached.
+	 */
+	synchronized Entry get(RailNetClient origin, RailNetClient destination, RouteProfile profile) {
+		Entry entry = routes.get(new Key(origin.getID(), destination.getID(), profile));
+		if (entry == null)
+			misses++;
+		else
+			hits++;
+		return entry;
+	}
+
+	/**
+	 * Caches the result of a request, unless the network changed while it was
+	 * calculated.
+	 *
+	 * @param origin
+	 * @param destination
+	 * @param profile
+	 * @param route
+	 *            The calculated route, or <code>null</code> if there is none.
+	 * @param topologyVersion
+	 *            The topology version of the network before the route was
+	 *            calculated.
+	 * @param weightsVersion
+	 *            The weights version of the network before the route was
+	 *            calculated.
+	 */
+	synchronized void put(RailNetClient origin, RailNetClient destination, RouteProfile profile,
+			RailNetRoute route, long topologyVersion, long weightsVersion) {
+		if (topologyVersion != network.getTopologyVersion() || weightsVersion != network.getWeightsVersion())
+			return;
+		Key key = new Key(origin.getID(), destination.getID(), profile);
+		Entry entry = route == null ? NO_ROUTE
+				: new Entry(key, route, ENTRY_BYTES + SEGMENT_BYTES * route.getPath().size());
+		Entry old = routes.put(key, entry);
+		if (old != null)
+			drop(old);
+		bytes += entry.bytes;
+		if (route != null)
+			index(entry);
+
+		Iterator<Entry> it = routes.values().iterator();
+		while ((routes.size() > maxRoutes || bytes > maxBytes) && it.hasNext()) {
+			Entry evicted = it.next();
+			it.remove();
+			drop(evicted);
+			evictions++;
+		}
+		if (dropped > 1024 && dropped > indexed / 2)
+			reindex();
+	}
+
+	/**
+	 * Drops the cached routes through a segment.
+	 *
+	 * @param segment
+	 */
+	synchronized void segmentChanged(RailNetSegment segment) {
+		List<Entry> entries = bySegment.remove(segment);
+		if (entries == null)
+			return;
+		indexed -= entries.size();
+		for (Entry entry : entries) {
+			if (!entry.dropped) {
+				routes.remove(entry.key);
+				drop(entry);
+				invalidations++;
+			}
+			// This part of the entry left the index with the segment
+			dropped--;
+		}
+	}
+
+	/**
+	 * Drops every cached route as the network changed.
+	 */
+	synchronized void invalidate() {
+		invalidations += routes.size();
+		clear();
+	}
+
+	/**
+	 * Drops every cached route.
+	 */
+	public synchronized void clear() {
+		routes.clear();
+		bySegment.clear();
+		indexed = 0;
+		dropped = 0;
+		bytes = 0;
+	}
+
+	// ===========================
+	// Index
+	// ===========================
+
+	private void index(Entry entry) {
+		for (RailNetRoute.RoutePathSegment part : entry.route.getPath()) {
+			List<Entry> entries = bySegment.get(part.getSegment());
+			if (entries == null)
+				bySegment.put(part.getSegment(), entries = new ArrayList<Entry>(2));
+			entries.add(entry);
+		}
+		indexed += entry.route.getPath().size();
+	}
+
+	/**
+	 * Marks an entry that left the table, leaving it in the index.
+	 */
+	private void drop(Entry entry) {
+		bytes -= entry.bytes;
+		if (entry.route == null || entry.dropped)
+			return;
+		entry.dropped = true;
+		dropped += entry.route.getPath().size();
+	}
+
+	/**
+	 * Rebuilds the index without the dropped entries.
+	 */
+	private void reindex() {
+		bySegment.clear();
+		indexed = 0;
+		dropped = 0;
+		for (Entry entry : routes.values())
+			if (entry.route != null)
+				index(entry);
+	}
+
+	// ===========================
+	// Statistics
+	// ===========================
+
+	public synchronized int size() {
+		return routes.size();
+	}
+
+	/** @return the estimated memory of the cached routes in bytes. */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** @return the number of routes dropped to stay within the bounds. */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/** @return the number of routes dropped because the network changed. */
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	/** @return the share of lookups answered by the cache. */
+	public synchronized float getHitRate() {
+		long total = hits + misses;
+		return total == 0 ? 0f : (float) hits / total;
+	}
+
+	public synchronized void resetStatistics() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+		invalidations = 0;
+	}
+
+	public int getMaxRoutes() {
+		return maxRoutes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d routes (%d KiB), %d hits, %d misses, %d evictions, %d invalidations", routes.size(),
+				bytes / 1024, hits, misses, evictions, invalidations);
+	}
+
+	/**
+	 * A cached result.
+	 */
+	static class Entry {
+		private final Key key;
+		private final RailNetRoute route;
+		private final int bytes;
+		/** Set once the entry left the table */
+		private boolean dropped;
+
+		private Entry(Key key, RailNetRoute route, int bytes) {
+			this.key = key;
+			this.route = route;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * @return a copy of the route so that callers can own it, or
+		 *         <code>null</code> if the request has no route.
+		 */
+		RailNetRoute copyRoute() {
+			return route == null ? null : new RailNetRoute(route);
+		}
+	}
+
+	/**
+	 * Origin, destination and profile of a request.
+	 */
+	private static class Key {
+		private final UUID origin;
+		private final UUID destination;
+		private final RouteProfile profile;
+		private final int hash;
+
+		private Key(UUID origin, UUID destination, RouteProfile profile) {
+			this.origin = origin;
+			this.destination = destination;
+			this.profile = profile;
+			this.hash = 31 * (31 * origin.hashCode() + destination.hashCode()) + profile.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return hash == other.hash && origin.equals(other.origin) && destination.equals(other.destination)
+					&& profile.equals(other.profile);
+		}
+	}
+}
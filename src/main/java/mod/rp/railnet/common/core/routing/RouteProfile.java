@@ -0,0 +1,238 @@
+package mod.rp.railnet.common.core.routing;
+
+import java.util.UUID;
+
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.routing.RailNetLineWrapper.LineSegmentWrapper;
+
+/**
+ * The weights and options used to score segments when calculating a route.
+ * A profile is an immutable copy of the settings of a
+ * {@link RailNetLineWrapper}; lines that share the same settings and have no
+ * {@link LineSegmentWrapper line segments} produce equal profiles, which
+ * allows them to share cached results.
+ * <p>
+ * The cost of a segment is
+ * <code>(time * weight_time + distance * weight_distance + fuel * weight_fuel
+ * + (time / distance) * weight_speed) * segment weight</code>, where unknown
+ * times and distances are estimated from each other using
+ * {@link #TICKS_PER_BLOCK}. A profile without any enabled weight counts
+ * segments.
+ * </p>
+ * <p>
+ * The time of a segment is the time set or learned by the line for its line
+ * segment if <code>allowRealTimeSync</code> is set, then the time learned from
+ * every cart if <code>allowRealTimeAssume</code> is also set, then the base
+ * time of the map if <code>allowBaseModel</code> is set. Learned times count
+ * once {@link CONFIG.ROUTING#TRAVEL_TIME_MIN_SAMPLES} trains were timed.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+public class RouteProfile {
+
+	/**
+	 * Time taken by a cart at full speed to travel one block, used to estimate
+	 * unknown times and distances.<br>
+	 * <code>TICKS_PER_BLOCK = {@value #TICKS_PER_BLOCK}</code>
+	 */
+	public static final float TICKS_PER_BLOCK = 2.5f;
+
+	/**
+	 * Length assumed for segments with neither a length nor a time.<br>
+	 * <code>UNKNOWN_LENGTH = {@value #UNKNOWN_LENGTH}</code>
+	 */
+	public static final float UNKNOWN_LENGTH = 1f;
+
+	/** Profile weighted by time only, used when no line is given */
+	public static final RouteProfile DEFAULT = new RouteProfile(1f, 0f, 0f, 0f);
+
+	// Weights, zero if disabled
+	private final float weightTime;
+	private final float weightDistance;
+	private final float weightFuel;
+	private final float weightSpeed;
+
+	// Options
+	private final boolean allowRealTimeSync;
+	private final boolean allowRealTimeAssume;
+	private final boolean allowBaseModel;
+	private final boolean weightedSegments;
+
+	/** The line owning the line segments; otherwise <code>null</code> */
+	private final RailNetLineWrapper line;
+
+	/** The revision of the line this profile was copied from */
+	private final int revision;
+
+	/**
+	 * Creates a profile without line segments.
+	 *
+	 * @param weightTime
+	 * @param weightDistance
+	 * @param weightFuel
+	 * @param weightSpeed
+	 */
+	public RouteProfile(float weightTime, float weightDistance, float weightFuel, float weightSpeed) {
+		this.weightTime = Math.max(0f, weightTime);
+		this.weightDistance = Math.max(0f, weightDistance);
+		this.weightFuel = Math.max(0f, weightFuel);
+		this.weightSpeed = Math.max(0f, weightSpeed);
+		this.allowRealTimeSync = false;
+		this.allowRealTimeAssume = false;
+		this.allowBaseModel = true;
+		this.weightedSegments = false;
+		this.line = null;
+		this.revision = 0;
+	}
+
+	/**
+	 * Copies the settings of a line.
+	 *
+	 * @param line
+	 * @see RailNetLineWrapper#getRouteProfile()
+	 */
+	RouteProfile(RailNetLineWrapper line) {
+		this.weightTime = line.isWeightedTime() ? Math.max(0f, line.getWeight_time()) : 0f;
+		this.weightDistance = line.isWeightedDistance() ? Math.max(0f, line.getWeight_distance()) : 0f;
+		this.weightFuel = line.isWeightedFuel() ? Math.max(0f, line.getWeight_fuel()) : 0f;
+		this.weightSpeed = line.isWeightedSpeed() ? Math.max(0f, line.getWeight_speed()) : 0f;
+		this.allowRealTimeSync = line.isAllowRealTimeSync();
+		this.allowRealTimeAssume = line.isAllowRealTimeSync() && line.isAllowRealTimeAssume();
+		this.allowBaseModel = line.isAllowBaseModel();
+		this.weightedSegments = line.isWeightedSegments();
+		this.line = line.getLineSegments().isEmpty() ? null : line;
+		this.revision = line.getRevision();
+	}
+
+	// ===========================
+	// Costs
+	// ===========================
+
+	/**
+	 * Scores a segment.
+	 *
+	 * @param segment
+	 * @return the cost of travelling the segment; otherwise
+	 *         {@link Float#POSITIVE_INFINITY} if the line may not use the
+	 *         segment.
+	 */
+	public float getCost(RailNetSegment segment) {
+		LineSegmentWrapper lineSegment = line == null ? null : line.getLineSegment(segment.getID());
+		if (lineSegment != null && lineSegment.isRestricted())
+			return Float.POSITIVE_INFINITY;
+
+		float time = getKnownTime(segment, lineSegment);
+		float distance = segment.getActualLength();
+		if (distance <= 0f)
+			distance = time >= 0f ? Math.max(UNKNOWN_LENGTH, time / TICKS_PER_BLOCK) : UNKNOWN_LENGTH;
+		if (time < 0f)
+			time = distance * TICKS_PER_BLOCK;
+		float fuel = lineSegment != null && lineSegment.getFuel_comsumption() > 0 ? lineSegment.getFuel_comsumption()
+				: distance;
+
+		float cost = weightTime * time + weightDistance * distance + weightFuel * fuel
+				+ weightSpeed * (time / distance);
+		if (weightTime == 0f && weightDistance == 0f && weightFuel == 0f && weightSpeed == 0f)
+			cost = 1f;
+		if (lineSegment != null && weightedSegments)
+			cost *= lineSegment.getWeight();
+		return cost > 0f ? cost : 0f;
+	}
+
+	/**
+	 * Estimates the time a train of this profile takes to travel a segment,
+	 * the same way the segment is scored.
+	 *
+	 * @param segment
+	 * @return the time in ticks.
+	 */
+	public float getTime(RailNetSegment segment) {
+		LineSegmentWrapper lineSegment = line == null ? null : line.getLineSegment(segment.getID());
+		float time = getKnownTime(segment, lineSegment);
+		if (time >= 0f)
+			return time;
+		float distance = segment.getActualLength();
+		return (distance > 0f ? distance : UNKNOWN_LENGTH) * TICKS_PER_BLOCK;
+	}
+
+	/**
+	 * @return the time of a segment from the sources this profile allows;
+	 *         otherwise <code>-1</code> if none knows it.
+	 */
+	private float getKnownTime(RailNetSegment segment, LineSegmentWrapper lineSegment) {
+		if (lineSegment != null && allowRealTimeSync
+				&& lineSegment.getRealTime() != LineSegmentWrapper.TIME_NOT_DETERMINED)
+			return lineSegment.getRealTime();
+		TravelTimeStats learned = segment.getTravelTime();
+		if (allowRealTimeAssume && learned.isSettled())
+			return learned.getMean();
+		if (allowBaseModel && segment.getBaseTime() != RailNetSegment.UNDEFINED_BASE_TIME)
+			return segment.getBaseTime();
+		return -1f;
+	}
+
+	// ===========================
+	// Getters
+	// ===========================
+
+	/** @return the line this profile reads line segments from, if any. */
+	public RailNetLineWrapper getLine() {
+		return line;
+	}
+
+	public float getWeightTime() {
+		return weightTime;
+	}
+
+	public float getWeightDistance() {
+		return weightDistance;
+	}
+
+	public float getWeightFuel() {
+		return weightFuel;
+	}
+
+	public float getWeightSpeed() {
+		return weightSpeed;
+	}
+
+	// ===========================
+	// Object
+	// ===========================
+
+	@Override
+	public int hashCode() {
+		int hash = Float.floatToIntBits(weightTime);
+		hash = 31 * hash + Float.floatToIntBits(weightDistance);
+		hash = 31 * hash + Float.floatToIntBits(weightFuel);
+		hash = 31 * hash + Float.floatToIntBits(weightSpeed);
+		hash = 31 * hash + (allowRealTimeSync ? 1 : 0);
+		hash = 31 * hash + (allowBaseModel ? 2 : 0);
+		hash = 31 * hash + (weightedSegments ? 4 : 0);
+		hash = 31 * hash + (allowRealTimeAssume ? 8 : 0);
+		if (line != null)
+			hash = 31 * hash + line.getLineID().hashCode() + revision;
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof RouteProfile))
+			return false;
+		RouteProfile other = (RouteProfile) obj;
+		if (weightTime != other.weightTime || weightDistance != other.weightDistance
+				|| weightFuel != other.weightFuel || weightSpeed != other.weightSpeed)
+			return false;
+		if (allowRealTimeSync != other.allowRealTimeSync || allowRealTimeAssume != other.allowRealTimeAssume
+				|| allowBaseModel != other.allowBaseModel || weightedSegments != other.weightedSegments)
+			return false;
+		if (line == null || other.line == null)
+			return line == other.line;
+		UUID id = line.getLineID();
+		return id.equals(other.line.getLineID()) && revision == other.revision;
+	}
+}
@@ -0,0 +1,315 @@
+package mod.rp.railnet.common.core.routing;
+
+import java.util.Arrays;
+
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.routing.RailNetSegment.SegmentDirection;
+
+import mod.rp.railnet.common.util.collections.IntMinHeap;
+
+/**
+ * Scratch space of a shortest-path search over a {@link RoutingGraph}. Each
+ * thread owns one instance, obtained through {@link #get()}, whose arrays are
+ * only reallocated when a larger graph is searched. Entries are invalidated by
+ * bumping a stamp rather than clearing the arrays, so starting a search costs
+ * nothing and a search in steady state does not allocate.
+ *
+ * @author MajorR
+ *
+ */
+public final class RouteSearch {
+
+	private static final ThreadLocal<RouteSearch> LOCAL = new ThreadLocal<RouteSearch>() {
+		@Override
+		protected RouteSearch initialValue() {
+			return new RouteSearch();
+		}
+	};
+
+	/** Best known cost per node */
+	private float[] costs = new float[0];
+
+	/** The edge used to reach each node */
+	private int[] parents = new int[0];
+
+	/** Search stamp per node; entries are valid if equal to {@link #stamp} */
+	private int[] stamps = new int[0];
+
+	/** Nodes still to settle by {@link #searchMany}, marked with the stamp */
+	private int[] pending = new int[0];
+
+	private int stamp;
+
+	private final IntMinHeap heap = new IntMinHeap();
+
+	private RouteSearch() {
+	}
+
+	/**
+	 * @return the search scratch space of the current thread.
+	 */
+	public static RouteSearch get() {
+		return LOCAL.get();
+	}
+
+	/**
+	 * Runs Dijkstra's algorithm from the source until the target is settled,
+	 * or over the whole graph if <code>target &lt; 0</code>. Edges that are
+	 * not open or whose link cost is infinite are skipped.
+	 *
+	 * @param graph
+	 * @param linkCosts
+	 *            Cost of each link of the graph.
+	 * @param source
+	 *            Index of the starting node.
+	 * @param target
+	 *            Index of the destination node, or <code>-1</code>.
+	 * @return <code>true</code> if the target was reached (always
+	 *         <code>true</code> for a full search).
+	 */
+	public boolean search(RoutingGraph graph, float[] linkCosts, int source, int target) {
+		prepare(graph.getNodeCount());
+		final int[] offsets = graph.offsets;
+		final int[] targets = graph.targets;
+		final int[] edgeLinks = graph.edgeLinks;
+		final byte[] edgeFlags = graph.edgeFlags;
+
+		reach(source, 0f, -1);
+		while (!heap.isEmpty()) {
+			int u = heap.poll();
+			if (u == target)
+				return true;
+			float base = costs[u];
+			for (int e = offsets[u], end = offsets[u + 1]; e < end; e++) {
+				if ((edgeFlags[e] & RoutingGraph.FLAG_OPEN) == 0)
+					continue;
+				float cost = linkCosts[edgeLinks[e]];
+				if (cost == Float.POSITIVE_INFINITY)
+					continue;
+				int v = targets[e];
+				float total = base + cost;
+				if (stamps[v] != stamp || total < costs[v])
+					reach(v, total, e);
+			}
+		}
+		return target < 0;
+	}
+
+	/**
+	 * Runs Dijkstra's algorithm from the source until every target is settled,
+	 * which finds the costs from one node to many in a single search.
+	 *
+	 * @param graph
+	 * @param linkCosts
+	 *            Cost of each link of the graph.
+	 * @param source
+	 *            Index of the starting node.
+	 * @param targets
+	 *            Indices of the destination nodes; may repeat, and negative
+	 *            indices are ignored.
+	 * @return <code>true</code> if every target was reached.
+	 * @see #getCost(int)
+	 */
+	public boolean searchMany(RoutingGraph graph, float[] linkCosts, int source, int[] targets) {
+		prepare(graph.getNodeCount());
+		int remaining = 0;
+		for (int t : targets)
+			if (t >= 0 && pending[t] != stamp) {
+				pending[t] = stamp;
+				remaining++;
+			}
+		if (remaining == 0)
+			return true;
+		final int[] offsets = graph.offsets;
+		final int[] heads = graph.targets;
+		final int[] edgeLinks = graph.edgeLinks;
+		final byte[] edgeFlags = graph.edgeFlags;
+
+		reach(source, 0f, -1);
+		while (!heap.isEmpty()) {
+			int u = heap.poll();
+			if (pending[u] == stamp) {
+				pending[u] = 0;
+				if (--remaining == 0)
+					return true;
+			}
+			float base = costs[u];
+			for (int e = offsets[u], end = offsets[u + 1]; e < end; e++) {
+				if ((edgeFlags[e] & RoutingGraph.FLAG_OPEN) == 0)
+					continue;
+				float cost = linkCosts[edgeLinks[e]];
+				if (cost == Float.POSITIVE_INFINITY)
+					continue;
+				int v = heads[e];
+				float total = base + cost;
+				if (stamps[v] != stamp || total < costs[v])
+					reach(v, total, e);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Runs Dijkstra's algorithm backwards from the source, following edges
+	 * against their direction of travel, until the target is settled or over
+	 * the whole graph if <code>target &lt; 0</code>. The cost of a node is then
+	 * the cost of travelling from it to the source, and its parent edge is the
+	 * first edge of that route, travelled forwards.
+	 *
+	 * @param graph
+	 * @param linkCosts
+	 *            Cost of each link of the graph.
+	 * @param source
+	 *            Index of the node routes end at.
+	 * @param target
+	 *            Index of the node routes start at, or <code>-1</code>.
+	 * @return <code>true</code> if the target was reached (always
+	 *         <code>true</code> for a full search).
+	 * @see #search(RoutingGraph, float[], int, int)
+	 */
+	public boolean searchReverse(RoutingGraph graph, float[] linkCosts, int source, int target) {
+		prepare(graph.getNodeCount());
+		final int[] offsets = graph.offsets;
+		final int[] targets = graph.targets;
+		final int[] edgeLinks = graph.edgeLinks;
+		final byte[] edgeFlags = graph.edgeFlags;
+		final int[] linkEdges = graph.linkEdges;
+
+		reach(source, 0f, -1);
+		while (!heap.isEmpty()) {
+			int u = heap.poll();
+			if (u == target)
+				return true;
+			float base = costs[u];
+			for (int e = offsets[u], end = offsets[u + 1]; e < end; e++) {
+				// The twin travels from the neighbour to this node
+				int link = edgeLinks[e];
+				int twin = linkEdges[2 * link] == e ? linkEdges[2 * link + 1] : linkEdges[2 * link];
+				if ((edgeFlags[twin] & RoutingGraph.FLAG_OPEN) == 0)
+					continue;
+				float cost = linkCosts[link];
+				if (cost == Float.POSITIVE_INFINITY)
+					continue;
+				int v = targets[e];
+				float total = base + cost;
+				if (stamps[v] != stamp || total < costs[v])
+					reach(v, total, twin);
+			}
+		}
+		return target < 0;
+	}
+
+	/**
+	 * Runs Dijkstra's algorithm from the source until the target is settled,
+	 * keyed by the ticks taken to reach each node rather than by cost. A train
+	 * that would meet a booked window head-on on a bidirectional segment
+	 * waits before the segment until it is free; waiting never lets a train
+	 * arrive earlier, so the first arrival found is the earliest.
+	 *
+	 * @param graph
+	 * @param linkCosts
+	 *            Cost of each segment of the graph, only to skip those that may
+	 *            not be used.
+	 * @param profile
+	 *            Estimates the time taken to travel each segment.
+	 * @param reservations
+	 * @param departure
+	 *            The tick the train leaves the source.
+	 * @param source
+	 * @param target
+	 * @return <code>true</code> if the target was reached.
+	 * @see SegmentReservations#getEarliestEntry
+	 */
+	public boolean searchScheduled(RailNetGraph graph, float[] linkCosts, RouteProfile profile,
+			SegmentReservations reservations, long departure, int source, int target) {
+		prepare(graph.getNodeCount());
+		final int[] offsets = graph.offsets;
+		final int[] targets = graph.targets;
+		final int[] edgeLinks = graph.edgeLinks;
+		final byte[] edgeFlags = graph.edgeFlags;
+		final long margin = CONFIG.ROUTING.RESERVATION_MARGIN;
+
+		reach(source, 0f, -1);
+		while (!heap.isEmpty()) {
+			int u = heap.poll();
+			if (u == target)
+				return true;
+			long at = departure + (long) Math.ceil(costs[u]);
+			for (int e = offsets[u], end = offsets[u + 1]; e < end; e++) {
+				int flags = edgeFlags[e];
+				if ((flags & RoutingGraph.FLAG_OPEN) == 0 || linkCosts[edgeLinks[e]] == Float.POSITIVE_INFINITY)
+					continue;
+				RailNetSegment segment = graph.getSegment(edgeLinks[e]);
+				long duration = Math.max(1L, (long) Math.ceil(profile.getTime(segment)));
+				long entry = at;
+				if ((flags & RoutingGraph.FLAG_DIRECTION) == SegmentDirection.BIDIRECTIONAL.ordinal())
+					entry = reservations.getEarliestEntry(segment, (flags & RoutingGraph.FLAG_REVERSED) == 0, at,
+							duration + margin);
+				int v = targets[e];
+				float total = entry + duration - departure;
+				if (stamps[v] != stamp || total < costs[v])
+					reach(v, total, e);
+			}
+		}
+		return false;
+	}
+
+	private void reach(int node, float cost, int edge) {
+		stamps[node] = stamp;
+		costs[node] = cost;
+		parents[node] = edge;
+		heap.offer(node, cost);
+	}
+
+	/**
+	 * Readies the scratch space for a graph of the given size.
+	 */
+	private void prepare(int nodes) {
+		if (stamps.length < nodes) {
+			int length = Math.max(nodes, stamps.length + (stamps.length >> 1));
+			costs = new float[length];
+			parents = new int[length];
+			stamps = new int[length];
+			pending = new int[length];
+			stamp = 0;
+		}
+		if (++stamp == 0) {
+			Arrays.fill(stamps, 0);
+			Arrays.fill(pending, 0);
+			stamp = 1;
+		}
+		heap.clear();
+		heap.ensureCapacity(nodes);
+	}
+
+	// ===========================
+	// Results
+	// ===========================
+
+	/**
+	 * @param node
+	 * @return <code>true</code> if the last search reached the node.
+	 */
+	public boolean isReached(int node) {
+		return stamps[node] == stamp;
+	}
+
+	/**
+	 * @param node
+	 * @return the cost of reaching the node in the last search; otherwise
+	 *         {@link Float#POSITIVE_INFINITY} if it was not reached.
+	 */
+	public float getCost(int node) {
+		return stamps[node] == stamp ? costs[node] : Float.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @param node
+	 * @return the edge used to reach the node in the last search, or the
+	 *         edge leaving it after a reverse search; otherwise
+	 *         <code>-1</code> for the source or an unreached node.
+	 */
+	public int getParentEdge(int node) {
+		return stamps[node] == stamp ? parents[node] : -1;
+	}
+}
@@ -0,0 +1,210 @@
+package mod.rp.railnet.common.core.routing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import mod.rp.railnet.common.core.clients.RailNetClient;
+
+/**
+ * Keeps the tracked {@link RailNetRoute routes} of a network valid as its
+ * segments close, open, change direction or change cost.
+ * <p>
+ * Routes are grouped by origin and {@link RouteProfile}; every group shares a
+ * {@link ShortestPathTree}. When a segment changes, each tree is repaired for
+ * the two edges of the segment and only the routes whose destination was
+ * affected by the repair are rebuilt from the tree. Track that was added or
+ * connected is repaired for once per tick, after the graph of the network
+ * has been rebuilt, by {@link ShortestPathTree#carryOver carrying} every tree
+ * over to the new graph.
+ * </p>
+ *
+ * @author MajorR
+ * @see RailNetRouter#track(RailNetRoute)
+ *
+ */
+class RouteTreeIndex {
+
+	private final RailNetRouter router;
+
+	/** Trees by origin and profile */
+	private final Map<TreeKey, ShortestPathTree> trees = new HashMap<TreeKey, ShortestPathTree>();
+
+	/** The tree each tracked route is kept on */
+	private final Map<RailNetRoute, ShortestPathTree> routes = new IdentityHashMap<RailNetRoute, ShortestPathTree>();
+
+	private final ShortestPathTree.Scratch scratch = new ShortestPathTree.Scratch();
+
+	/** Set when track was added or connected since the trees were repaired */
+	private boolean opened;
+
+	RouteTreeIndex(RailNetRouter router) {
+		this.router = router;
+	}
+
+	/**
+	 * Starts keeping a route valid. The path of the route is replaced by the
+	 * path of its tree.
+	 *
+	 * @param route
+	 */
+	synchronized void track(RailNetRoute route) {
+		if (routes.containsKey(route))
+			return;
+		RailNetwork network = router.getNetwork();
+		RailNetGraph graph = network.getGraph();
+		TreeKey key = new TreeKey(route.getOrigin(), route.getProfile());
+		ShortestPathTree tree = trees.get(key);
+		if (tree == null) {
+			tree = new ShortestPathTree(route.getOrigin(), route.getProfile());
+			if (!tree.compute(graph, router.getSegmentCosts(graph, route.getProfile())))
+				return;
+			trees.put(key, tree);
+		} else if (!tree.getGraph().isPatchOf(graph)) {
+			// Repairs the routes already kept on the trees as well
+			segmentChanged(null);
+			tree = trees.get(key);
+			if (tree == null)
+				return;
+		}
+		tree.routes.add(route);
+		routes.put(route, tree);
+		tree.repoint(graph);
+		tree.rebuild(route, graph.indexOf(route.getDestination()), router.getSegmentCosts(graph, tree.getProfile()),
+				graph.getTopologyVersion());
+	}
+
+	/**
+	 * Stops keeping a route valid. Trees without routes are dropped.
+	 *
+	 * @param route
+	 */
+	synchronized void untrack(RailNetRoute route) {
+		ShortestPathTree tree = routes.remove(route);
+		if (tree == null)
+			return;
+		tree.routes.remove(route);
+		if (tree.routes.isEmpty())
+			trees.remove(new TreeKey(tree.getOrigin(), tree.getProfile()));
+	}
+
+	/**
+	 * Notes that track was added or connected. The trees are repaired by the
+	 * next {@link #repairOpened()} or change of a segment, so that track added
+	 * in bulk rebuilds the graph once.
+	 */
+	synchronized void segmentOpened() {
+		if (!trees.isEmpty())
+			opened = true;
+	}
+
+	/**
+	 * Repairs every tree for the track added or connected since the last
+	 * repair and rebuilds the affected routes.
+	 *
+	 * @return the routes that were rebuilt.
+	 */
+	synchronized List<RailNetRoute> repairOpened() {
+		if (!opened)
+			return new ArrayList<RailNetRoute>();
+		return segmentChanged(null);
+	}
+
+	/**
+	 * Repairs every tree for a changed segment and rebuilds the affected
+	 * routes.
+	 *
+	 * @param segment
+	 *            May be <code>null</code> to only carry the trees over to a
+	 *            rebuilt graph.
+	 * @return the routes that were rebuilt.
+	 */
+	synchronized List<RailNetRoute> segmentChanged(RailNetSegment segment) {
+		List<RailNetRoute> repaired = new ArrayList<RailNetRoute>();
+		opened = false;
+		if (trees.isEmpty())
+			return repaired;
+		RailNetwork network = router.getNetwork();
+		RailNetGraph graph = network.getGraph();
+		int s = segment == null ? -1 : graph.indexOf(segment);
+		long version = graph.getTopologyVersion();
+
+		for (Iterator<ShortestPathTree> it = trees.values().iterator(); it.hasNext();) {
+			ShortestPathTree tree = it.next();
+			float[] costs = router.getSegmentCosts(graph, tree.getProfile());
+			if (!tree.getGraph().isPatchOf(graph)) {
+				// Carrying the tree over also repairs it for the segment
+				scratch.prepare(graph.getClientCount());
+				boolean carried = tree.carryOver(graph, costs, scratch);
+				if (!carried && !tree.compute(graph, costs)) {
+					for (RailNetRoute route : tree.routes) {
+						route.reset(version, false);
+						routes.remove(route);
+						repaired.add(route);
+					}
+					it.remove();
+					continue;
+				}
+				for (RailNetRoute route : tree.routes) {
+					int target = graph.indexOf(route.getDestination());
+					if (!carried || target < 0 || scratch.isMarked(target)) {
+						tree.rebuild(route, target, costs, version);
+						repaired.add(route);
+					}
+				}
+				continue;
+			}
+			tree.repoint(graph);
+			if (s < 0)
+				continue;
+			scratch.prepare(graph.getClientCount());
+			tree.update(graph.getForwardEdge(s), costs, scratch);
+			tree.update(graph.getReverseEdge(s), costs, scratch);
+			for (RailNetRoute route : tree.routes) {
+				int target = graph.indexOf(route.getDestination());
+				if (target < 0 || scratch.isMarked(target)) {
+					tree.rebuild(route, target, costs, version);
+					repaired.add(route);
+				}
+			}
+		}
+		return repaired;
+	}
+
+	synchronized int getTreeCount() {
+		return trees.size();
+	}
+
+	synchronized int getRouteCount() {
+		return routes.size();
+	}
+
+	/**
+	 * Origin and profile of a tree.
+	 */
+	private static class TreeKey {
+		private final RailNetClient origin;
+		private final RouteProfile profile;
+
+		private TreeKey(RailNetClient origin, RouteProfile profile) {
+			this.origin = origin;
+			this.profile = profile;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(origin) + profile.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof TreeKey))
+				return false;
+			TreeKey other = (TreeKey) obj;
+			return origin == other.origin && profile.equals(other.profile);
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package mod.rp.railnet.common.core.routing;
+
+/**
+ * Compressed sparse row adjacency shared by the graphs the route engine
+ * searches. Nodes are numbered <code>0..n-1</code>; every link between two
+ * nodes produces a pair of twin edges, one per direction of travel, whose
+ * flags tell whether the edge is open.
+ *
+ * @author MajorR
+ * @see RailNetGraph
+ * @see ContractedGraph
+ *
+ */
+public abstract class RoutingGraph {
+
+	/** Mask of the {@link RailNetSegment.SegmentDirection} ordinal in the edge flags */
+	static final int FLAG_DIRECTION = 0x07;
+
+	/** Set if the edge travels the link from its second node to its first */
+	static final int FLAG_REVERSED = 0x08;
+
+	/** Set if the edge may be travelled */
+	static final int FLAG_OPEN = 0x10;
+
+	/** Offset of the first outgoing edge per node, length n+1 */
+	final int[] offsets;
+
+	/** Target node of each edge */
+	final int[] targets;
+
+	/** Link of each edge */
+	final int[] edgeLinks;
+
+	/** Packed direction and traversal flags of each edge */
+	final byte[] edgeFlags;
+
+	/** Forward and reverse edge of each link */
+	final int[] linkEdges;
+
+	RoutingGraph(int nodes, int links) {
+		this.offsets = new int[nodes + 1];
+		this.targets = new int[links * 2];
+		this.edgeLinks = new int[links * 2];
+		this.edgeFlags = new byte[links * 2];
+		this.linkEdges = new int[links * 2];
+	}
+
+	/**
+	 * Shares the adjacency of another graph.
+	 *
+	 * @param other
+	 * @param edgeFlags
+	 *            The flags of the new graph; a copy if they will be patched.
+	 */
+	RoutingGraph(RoutingGraph other, byte[] edgeFlags) {
+		this.offsets = other.offsets;
+		this.targets = other.targets;
+		this.edgeLinks = other.edgeLinks;
+		this.edgeFlags = edgeFlags;
+		this.linkEdges = other.linkEdges;
+	}
+
+	public int getNodeCount() {
+		return offsets.length - 1;
+	}
+
+	public int getLinkCount() {
+		return linkEdges.length / 2;
+	}
+
+	public int getEdgeCount() {
+		return targets.length;
+	}
+
+	/** @return the first outgoing edge of the node */
+	public int firstEdge(int node) {
+		return offsets[node];
+	}
+
+	/** @return one past the last outgoing edge of the node */
+	public int endEdge(int node) {
+		return offsets[node + 1];
+	}
+
+	/** @return the node the edge leads to */
+	public int getTarget(int edge) {
+		return targets[edge];
+	}
+
+	/** @return the node the edge starts from */
+	public int getSource(int edge) {
+		return targets[getTwinEdge(edge)];
+	}
+
+	/** @return the link the edge travels */
+	public int getEdgeLink(int edge) {
+		return edgeLinks[edge];
+	}
+
+	/** @return <code>true</code> if the edge travels its link backwards */
+	public boolean isReversed(int edge) {
+		return (edgeFlags[edge] & FLAG_REVERSED) != 0;
+	}
+
+	/** @return <code>true</code> if the edge may be travelled */
+	public boolean isOpen(int edge) {
+		return (edgeFlags[edge] & FLAG_OPEN) != 0;
+	}
+
+	/** @return the edge travelling the link from its first node */
+	public int getForwardEdge(int link) {
+		return linkEdges[2 * link];
+	}
+
+	/** @return the edge travelling the link from its second node */
+	public int getReverseEdge(int link) {
+		return linkEdges[2 * link + 1];
+	}
+
+	/** @return the edge travelling the same link in the other direction */
+	public int getTwinEdge(int edge) {
+		int link = edgeLinks[edge];
+		return (edgeFlags[edge] & FLAG_REVERSED) != 0 ? linkEdges[2 * link] : linkEdges[2 * link + 1];
+	}
+}
@@ -0,0 +1,487 @@
+package mod.rp.railnet.common.core.routing;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import net.minecraft.block.BlockRailBase;
+
+/**
+ * Compact store of the mapped parts of a {@link RailNetSegment}.
+ * <p>
+ * Parts are packed into a <code>long[]</code>. The start of a part is stored
+ * relative to the end of the previous part and its end relative to its start,
+ * so the common case of a continuous track fits in a single <code>long</code>:
+ * </p>
+ *
+ * <pre>
+ * bit  63     wide flag (0)
+ * bits 51-58  rail type index
+ * bits 33-50  start delta x, y, z (6 bits each)
+ * bits 21-32  end delta x (12 bits)
+ * bits 12-20  end delta y (9 bits)
+ * bits  0-11  end delta z (12 bits)
+ * </pre>
+ * <p>
+ * Parts whose deltas do not fit are stored wide: a header with the flag and
+ * rail type followed by three <code>long</code>s holding the absolute start
+ * and end of each axis. Rail types are interned into a shared table of up to
+ * 255 classes. The offset of every {@value #KEY_INTERVAL}th part is kept so
+ * that seeking to a part decodes at most that many parts.
+ * </p>
+ * <p>
+ * Parts are read with a {@link Cursor}, which does not allocate. A geometry
+ * becomes read-only once it is set on a segment; to change the parts of a
+ * segment, change a {@link #SegmentGeometry(SegmentGeometry) copy} and set it
+ * again, so that the network is notified.
+ * </p>
+ *
+ * @author MajorR
+ * @see RailNetSegment#getSegmentParts()
+ *
+ */
+public final class SegmentGeometry {
+
+	/** Parts between two seek keys */
+	static final int KEY_INTERVAL = 64;
+
+	private static final long WIDE = 1L << 63;
+
+	/** Rail types by index; index 0 is <code>null</code> */
+	private static volatile Class<?>[] railTypes = new Class<?>[] { null };
+
+	/** The read-only geometry of a segment that is not mapped */
+	static final SegmentGeometry EMPTY = new SegmentGeometry();
+
+	static {
+		EMPTY.readOnly = true;
+	}
+
+	private long[] data = new long[4];
+
+	/** Used length of {@link #data} */
+	private int length;
+
+	private int count;
+
+	/**
+	 * Per {@value #KEY_INTERVAL} parts: the data offset of the part and the
+	 * end of the part before it
+	 */
+	private int[] keys = new int[4];
+
+	/** End of the last part */
+	private int lastX, lastY, lastZ;
+
+	/** Set once the geometry belongs to a segment */
+	private boolean readOnly;
+
+	public SegmentGeometry() {
+	}
+
+	/**
+	 * Copies the parts of a geometry. The copy can be changed even if the
+	 * geometry is read-only.
+	 *
+	 * @param other
+	 */
+	public SegmentGeometry(SegmentGeometry other) {
+		data = Arrays.copyOf(other.data, Math.max(4, other.length));
+		length = other.length;
+		count = other.count;
+		keys = other.keys.clone();
+		lastX = other.lastX;
+		lastY = other.lastY;
+		lastZ = other.lastZ;
+	}
+
+	// ===========================
+	// Writing
+	// ===========================
+
+	/**
+	 * Appends a part.
+	 *
+	 * @param xA
+	 * @param yA
+	 * @param zA
+	 * @param xB
+	 * @param yB
+	 * @param zB
+	 * @param railType
+	 *            The type of rail of the part; otherwise <code>null</code>.
+	 */
+	public void add(int xA, int yA, int zA, int xB, int yB, int zB, Class<? extends BlockRailBase> railType) {
+		checkWritable();
+		if (count % KEY_INTERVAL == 0) {
+			int key = count / KEY_INTERVAL * 4;
+			if (key + 4 > keys.length)
+				keys = Arrays.copyOf(keys, Math.max(4, keys.length * 2));
+			keys[key] = length;
+			keys[key + 1] = lastX;
+			keys[key + 2] = lastY;
+			keys[key + 3] = lastZ;
+		}
+		long type = (long) intern(railType) << 51;
+		int dAx = xA - lastX, dAy = yA - lastY, dAz = zA - lastZ;
+		int dBx = xB - xA, dBy = yB - yA, dBz = zB - zA;
+		if (fits(dAx, 6) && fits(dAy, 6) && fits(dAz, 6) && fits(dBx, 12) && fits(dBy, 9) && fits(dBz, 12)) {
+			ensureCapacity(1);
+			data[length++] = type | (dAx & 0x3FL) << 45 | (dAy & 0x3FL) << 39 | (dAz & 0x3FL) << 33
+					| (dBx & 0xFFFL) << 21 | (dBy & 0x1FFL) << 12 | (dBz & 0xFFFL);
+		} else {
+			ensureCapacity(4);
+			data[length++] = WIDE | type;
+			data[length++] = (long) xA << 32 | (xB & 0xFFFFFFFFL);
+			data[length++] = (long) yA << 32 | (yB & 0xFFFFFFFFL);
+			data[length++] = (long) zA << 32 | (zB & 0xFFFFFFFFL);
+		}
+		lastX = xB;
+		lastY = yB;
+		lastZ = zB;
+		count++;
+	}
+
+	/**
+	 * Replaces one part. Every part after it is encoded again.
+	 *
+	 * @param index
+	 */
+	public void set(int index, int xA, int yA, int zA, int xB, int yB, int zB,
+			Class<? extends BlockRailBase> railType) {
+		checkWritable();
+		if (index < 0 || index >= count)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+		SegmentGeometry copy = new SegmentGeometry();
+		Cursor cursor = new Cursor(this);
+		for (int i = 0; cursor.next(); i++)
+			if (i == index)
+				copy.add(xA, yA, zA, xB, yB, zB, railType);
+			else
+				copy.add(cursor.xA, cursor.yA, cursor.zA, cursor.xB, cursor.yB, cursor.zB, cursor.getRailType());
+		data = copy.data;
+		length = copy.length;
+		keys = copy.keys;
+		lastX = copy.lastX;
+		lastY = copy.lastY;
+		lastZ = copy.lastZ;
+	}
+
+	/**
+	 * Removes every part.
+	 */
+	public void clear() {
+		checkWritable();
+		length = 0;
+		count = 0;
+		lastX = lastY = lastZ = 0;
+	}
+
+	/**
+	 * Releases unused capacity.
+	 */
+	public void trimToSize() {
+		checkWritable();
+		data = Arrays.copyOf(data, length);
+		keys = Arrays.copyOf(keys, Math.max(4, (count + KEY_INTERVAL - 1) / KEY_INTERVAL * 4));
+	}
+
+	/**
+	 * Makes the geometry read-only. Called when it is set on a segment.
+	 */
+	void freeze() {
+		readOnly = true;
+	}
+
+	private void checkWritable() {
+		if (readOnly)
+			throw new UnsupportedOperationException("The geometry of a segment is read-only");
+	}
+
+	private void ensureCapacity(int extra) {
+		if (length + extra > data.length)
+			data = Arrays.copyOf(data, Math.max(length + extra, data.length * 2));
+	}
+
+	private static boolean fits(int value, int bits) {
+		return value >= -(1 << bits - 1) && value < 1 << bits - 1;
+	}
+
+	private static int signed(long word, int shift, int bits) {
+		return (int) (word << 64 - shift - bits >> 64 - bits);
+	}
+
+	// ===========================
+	// Serialization
+	// ===========================
+
+	/**
+	 * Writes the packed parts. Rail types are written by class name since the
+	 * shared table differs between runs.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(DataOutput out) throws IOException {
+		// Number the rail types used by this geometry
+		int[] local = new int[0x100];
+		Class<?>[] types = railTypes;
+		int used = 0;
+		Class<?>[] names = new Class<?>[0x100];
+		for (int i = 0; i < length; i += (data[i] & WIDE) == 0 ? 1 : 4) {
+			int type = (int) (data[i] >>> 51) & 0xFF;
+			if (type != 0 && local[type] == 0) {
+				local[type] = ++used;
+				names[used] = types[type];
+			}
+		}
+		out.writeInt(count);
+		out.writeInt(length);
+		out.writeByte(used);
+		for (int i = 1; i <= used; i++)
+			out.writeUTF(names[i].getName());
+		for (int i = 0; i < length; i++) {
+			long word = data[i];
+			out.writeLong(word & ~(0xFFL << 51) | (long) local[(int) (word >>> 51) & 0xFF] << 51);
+			if ((word & WIDE) != 0) {
+				out.writeLong(data[++i]);
+				out.writeLong(data[++i]);
+				out.writeLong(data[++i]);
+			}
+		}
+	}
+
+	/**
+	 * Reads parts written by {@link #write(DataOutput)}. Rail types whose
+	 * class no longer exists are read as <code>null</code>.
+	 *
+	 * @param in
+	 * @return the geometry.
+	 * @throws IOException
+	 */
+	public static SegmentGeometry read(DataInput in) throws IOException {
+		int count = in.readInt();
+		int length = in.readInt();
+		int used = in.readUnsignedByte();
+		int[] global = new int[used + 1];
+		for (int i = 1; i <= used; i++)
+			global[i] = intern(findRailType(in.readUTF()));
+
+		SegmentGeometry packed = new SegmentGeometry();
+		packed.data = new long[length];
+		for (int i = 0; i < length; i++) {
+			long word = in.readLong();
+			int type = (int) (word >>> 51) & 0xFF;
+			if (type > used)
+				throw new IOException("Unknown rail type " + type);
+			packed.data[i] = word & ~(0xFFL << 51) | (long) global[type] << 51;
+			if ((word & WIDE) != 0)
+				for (int j = 0; j < 3; j++)
+					packed.data[++i] = in.readLong();
+		}
+		packed.length = length;
+		packed.count = count;
+
+		// Encode again to rebuild the seek keys
+		SegmentGeometry geometry = new SegmentGeometry();
+		Cursor cursor = new Cursor(packed);
+		while (cursor.next())
+			geometry.add(cursor.xA, cursor.yA, cursor.zA, cursor.xB, cursor.yB, cursor.zB, cursor.getRailType());
+		geometry.trimToSize();
+		return geometry;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Class<? extends BlockRailBase> findRailType(String name) {
+		try {
+			Class<?> type = Class.forName(name);
+			return BlockRailBase.class.isAssignableFrom(type) ? (Class<? extends BlockRailBase>) type : null;
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+	}
+
+	// ===========================
+	// Rail Types
+	// ===========================
+
+	/**
+	 * @param railType
+	 * @return the index of the rail type in the shared table.
+	 */
+	static int intern(Class<? extends BlockRailBase> railType) {
+		if (railType == null)
+			return 0;
+		Class<?>[] types = railTypes;
+		for (int i = 1; i < types.length; i++)
+			if (types[i] == railType)
+				return i;
+		synchronized (SegmentGeometry.class) {
+			types = railTypes;
+			for (int i = 1; i < types.length; i++)
+				if (types[i] == railType)
+					return i;
+			if (types.length > 0xFF)
+				throw new IllegalStateException("More than 255 rail types");
+			types = Arrays.copyOf(types, types.length + 1);
+			types[types.length - 1] = railType;
+			railTypes = types;
+			return types.length - 1;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static Class<? extends BlockRailBase> getRailType(int index) {
+		return (Class<? extends BlockRailBase>) railTypes[index];
+	}
+
+	// ===========================
+	// Getters
+	// ===========================
+
+	/** @return the number of parts. */
+	public int size() {
+		return count;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/** @return <code>true</code> once the geometry is set on a segment. */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/** @return the memory used by the packed parts in bytes. */
+	public long getBytes() {
+		return 8L * data.length + 4L * keys.length;
+	}
+
+	/**
+	 * Reads the parts of a {@link SegmentGeometry} in order. A cursor may be
+	 * kept and {@link #reset(SegmentGeometry) reset} to read again without
+	 * allocating.
+	 */
+	public static final class Cursor {
+		private long[] data;
+		private int[] keys;
+		private int length;
+		private int count;
+
+		private int index;
+		private int offset;
+		private int xA, yA, zA, xB, yB, zB;
+		private int railType;
+
+		public Cursor() {
+		}
+
+		public Cursor(SegmentGeometry geometry) {
+			reset(geometry);
+		}
+
+		/**
+		 * Positions the cursor before the first part of a geometry.
+		 *
+		 * @param geometry
+		 * @return this cursor.
+		 */
+		public Cursor reset(SegmentGeometry geometry) {
+			data = geometry.data;
+			keys = geometry.keys;
+			length = geometry.length;
+			count = geometry.count;
+			index = -1;
+			offset = 0;
+			xB = yB = zB = 0;
+			return this;
+		}
+
+		/**
+		 * Moves to the next part.
+		 *
+		 * @return <code>false</code> if there are no more parts.
+		 */
+		public boolean next() {
+			if (offset >= length)
+				return false;
+			long word = data[offset++];
+			railType = (int) (word >>> 51) & 0xFF;
+			if ((word & WIDE) == 0) {
+				xA = xB + signed(word, 45, 6);
+				yA = yB + signed(word, 39, 6);
+				zA = zB + signed(word, 33, 6);
+				xB = xA + signed(word, 21, 12);
+				yB = yA + signed(word, 12, 9);
+				zB = zA + signed(word, 0, 12);
+			} else {
+				long x = data[offset++], y = data[offset++], z = data[offset++];
+				xA = (int) (x >> 32);
+				xB = (int) x;
+				yA = (int) (y >> 32);
+				yB = (int) y;
+				zA = (int) (z >> 32);
+				zB = (int) z;
+			}
+			index++;
+			return true;
+		}
+
+		/**
+		 * Moves to a part.
+		 *
+		 * @param part
+		 * @return <code>false</code> if there is no such part.
+		 */
+		public boolean seek(int part) {
+			if (part < 0 || part >= count)
+				return false;
+			if (part < index || part - index > KEY_INTERVAL) {
+				int key = part / KEY_INTERVAL * 4;
+				offset = keys[key];
+				xB = keys[key + 1];
+				yB = keys[key + 2];
+				zB = keys[key + 3];
+				index = part / KEY_INTERVAL * KEY_INTERVAL - 1;
+			}
+			while (index < part)
+				next();
+			return true;
+		}
+
+		/** @return the index of the current part. */
+		public int getIndex() {
+			return index;
+		}
+
+		public int getXA() {
+			return xA;
+		}
+
+		public int getYA() {
+			return yA;
+		}
+
+		public int getZA() {
+			return zA;
+		}
+
+		public int getXB() {
+			return xB;
+		}
+
+		public int getYB() {
+			return yB;
+		}
+
+		public int getZB() {
+			return zB;
+		}
+
+		public Class<? extends BlockRailBase> getRailType() {
+			return SegmentGeometry.getRailType(railType);
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package mod.rp.railnet.common.core.routing;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import mod.rp.railnet.common.core.routing.RailNetworkListener.Change;
+import mod.rp.railnet.common.util.collections.LongObjectMap;
+
+/**
+ * Finds the {@link RailNetSegment} a block belongs to.
+ * <p>
+ * The bounding box of every mapped part of a segment is filed under each
+ * 16x16 chunk column it overlaps. A lookup only checks the boxes of the chunk
+ * of the block, so it takes constant time on average and does not allocate.
+ * When boxes overlap, the smallest box containing the block wins, which
+ * favours straight parts over long diagonals.
+ * </p>
+ * <p>
+ * The index is kept up to date by its {@link RailNetwork} whenever the map of
+ * a segment changes or a segment is added or removed, and loads the segments
+ * of a chunk from the source of the network before looking them up. It is not
+ * thread-safe and must be used on the server thread.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+public class SegmentIndex {
+
+	private final RailNetwork network;
+
+	/** Chunks by packed chunk coordinates */
+	private final LongObjectMap<Cell> cells = new LongObjectMap<Cell>(256);
+
+	/** Chunks each indexed segment is filed under */
+	private final Map<RailNetSegment, long[]> filed = new IdentityHashMap<RailNetSegment, long[]>();
+
+	private final SegmentGeometry.Cursor cursor = new SegmentGeometry.Cursor();
+
+	/** Reusable list of the chunks of the segment being filed */
+	private long[] chunks = new long[16];
+
+	SegmentIndex(RailNetwork network) {
+		this.network = network;
+	}
+
+	/**
+	 * Updates the index after a segment changed.
+	 *
+	 * @param segment
+	 * @param change
+	 */
+	void segmentChanged(RailNetSegment segment, Change change) {
+		switch (change) {
+		case ADDED:
+		case MAP:
+			remove(segment);
+			if (segment.getNetwork() != null)
+				add(segment);
+			break;
+		case REMOVED:
+			remove(segment);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void add(RailNetSegment segment) {
+		int count = 0;
+		cursor.reset(segment.getGeometry());
+		while (cursor.next()) {
+			int minX = Math.min(cursor.getXA(), cursor.getXB());
+			int minY = Math.min(cursor.getYA(), cursor.getYB());
+			int minZ = Math.min(cursor.getZA(), cursor.getZB());
+			int maxX = Math.max(cursor.getXA(), cursor.getXB());
+			int maxY = Math.max(cursor.getYA(), cursor.getYB());
+			int maxZ = Math.max(cursor.getZA(), cursor.getZB());
+			for (int cx = minX >> 4; cx <= maxX >> 4; cx++)
+				for (int cz = minZ >> 4; cz <= maxZ >> 4; cz++) {
+					long key = key(cx, cz);
+					Cell cell = cells.get(key);
+					if (cell == null)
+						cells.put(key, cell = new Cell());
+					if (cell.add(minX, minY, minZ, maxX, maxY, maxZ, segment)) {
+						if (count == chunks.length)
+							chunks = Arrays.copyOf(chunks, count * 2);
+						chunks[count++] = key;
+					}
+				}
+		}
+		if (count > 0)
+			filed.put(segment, Arrays.copyOf(chunks, count));
+	}
+
+	private void remove(RailNetSegment segment) {
+		long[] keys = filed.remove(segment);
+		if (keys == null)
+			return;
+		for (long key : keys) {
+			Cell cell = cells.get(key);
+			if (cell != null && cell.remove(segment) == 0)
+				cells.remove(key);
+		}
+	}
+
+	// ===========================
+	// Lookup
+	// ===========================
+
+	/**
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return the segment with a part covering the block; otherwise
+	 *         <code>null</code>.
+	 */
+	public RailNetSegment getSegment(int x, int y, int z) {
+		network.loadChunk(x >> 4, z >> 4);
+		Cell cell = cells.get(key(x >> 4, z >> 4));
+		return cell == null ? null : cell.find(x, y, z);
+	}
+
+	/**
+	 * @param chunkX
+	 * @param chunkZ
+	 * @param radius
+	 *            In chunks.
+	 * @return <code>true</code> if a segment has a part in one of the chunks
+	 *         within the radius of a chunk.
+	 */
+	public boolean hasSegmentsNear(int chunkX, int chunkZ, int radius) {
+		for (int cx = chunkX - radius; cx <= chunkX + radius; cx++)
+			for (int cz = chunkZ - radius; cz <= chunkZ + radius; cz++) {
+				network.loadChunk(cx, cz);
+				if (cells.containsKey(key(cx, cz)))
+					return true;
+			}
+		return false;
+	}
+
+	/** @return the number of indexed segments. */
+	public int size() {
+		return filed.size();
+	}
+
+	/** @return the number of chunks holding parts. */
+	public int getChunkCount() {
+		return cells.size();
+	}
+
+	/**
+	 * @param chunkX
+	 * @param chunkZ
+	 * @return the coordinates of a chunk column packed into one key.
+	 */
+	public static long key(int chunkX, int chunkZ) {
+		return (long) chunkX << 32 | (chunkZ & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * The part boxes filed under one chunk column.
+	 */
+	private static class Cell {
+		/** minX, minY, minZ, maxX, maxY, maxZ per box */
+		private int[] boxes = new int[6 * 4];
+		private RailNetSegment[] segments = new RailNetSegment[4];
+		private int size;
+
+		/**
+		 * @return <code>true</code> if this is the first box of the segment in
+		 *         the cell.
+		 */
+		private boolean add(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, RailNetSegment segment) {
+			boolean first = size == 0 || segments[size - 1] != segment;
+			for (int i = 0; first && i < size; i++)
+				first = segments[i] != segment;
+			if (size == segments.length) {
+				segments = Arrays.copyOf(segments, size * 2);
+				boxes = Arrays.copyOf(boxes, size * 12);
+			}
+			int b = size * 6;
+			boxes[b] = minX;
+			boxes[b + 1] = minY;
+			boxes[b + 2] = minZ;
+			boxes[b + 3] = maxX;
+			boxes[b + 4] = maxY;
+			boxes[b + 5] = maxZ;
+			segments[size++] = segment;
+			return first;
+		}
+
+		/**
+		 * Removes every box of a segment.
+		 *
+		 * @return the number of boxes left.
+		 */
+		private int remove(RailNetSegment segment) {
+			int kept = 0;
+			for (int i = 0; i < size; i++) {
+				if (segments[i] == segment)
+					continue;
+				if (kept != i) {
+					segments[kept] = segments[i];
+					System.arraycopy(boxes, i * 6, boxes, kept * 6, 6);
+				}
+				kept++;
+			}
+			Arrays.fill(segments, kept, size, null);
+			size = kept;
+			return size;
+		}
+
+		private RailNetSegment find(int x, int y, int z) {
+			RailNetSegment best = null;
+			long bestVolume = Long.MAX_VALUE;
+			for (int i = 0, b = 0; i < size; i++, b += 6) {
+				if (x < boxes[b] || y < boxes[b + 1] || z < boxes[b + 2] || x > boxes[b + 3] || y > boxes[b + 4]
+						|| z > boxes[b + 5])
+					continue;
+				long volume = (long) (boxes[b + 3] - boxes[b] + 1) * (boxes[b + 4] - boxes[b + 1] + 1)
+						* (boxes[b + 5] - boxes[b + 2] + 1);
+				if (volume < bestVolume) {
+					best = segments[i];
+					bestVolume = volume;
+				}
+			}
+			return best;
+		}
+	}
+}
@@ -0,0 +1,341 @@
+package mod.rp.railnet.common.core.routing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.clients.RailNetClient;
+import mod.rp.railnet.common.core.routing.RailNetSegment.SegmentDirection;
+import mod.rp.railnet.common.util.collections.IntervalTree;
+
+/**
+ * Time windows booked by trains on the segments of a {@link RailNetwork}, so
+ * that trains never meet head-on on {@link SegmentDirection#BIDIRECTIONAL
+ * BIDIRECTIONAL} track.
+ * <p>
+ * Each segment keeps the windows booked in either direction of travel in an
+ * {@link IntervalTree}. A window may be booked on a bidirectional segment if
+ * it overlaps no window booked the other way; trains following each other the
+ * same way are not kept apart. Checking and booking a window take
+ * <code>O(log n)</code> in the number of windows of the segment, and finding
+ * the earliest free window takes one such step per window in the way.
+ * </p>
+ * <p>
+ * Times are server ticks, see {@link #advance(long)}. Windows that ended are
+ * dropped as time advances, and every window of a train is dropped when it is
+ * {@link #release(UUID) released}. Routes that plan around the booked windows
+ * are found by {@link RailNetRouter#scheduleRoute}. Must be used on the server
+ * thread.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+public class SegmentReservations {
+
+	/** Windows by end, to drop them once they ended */
+	private static final Comparator<Reservation> BY_END = new Comparator<Reservation>() {
+		@Override
+		public int compare(Reservation a, Reservation b) {
+			if (a.end != b.end)
+				return a.end < b.end ? -1 : 1;
+			return a.order < b.order ? -1 : a.order == b.order ? 0 : 1;
+		}
+	};
+
+	/** Booked windows of each segment, from A to B and from B to A */
+	private final Map<RailNetSegment, Schedule> schedules = new IdentityHashMap<RailNetSegment, Schedule>();
+
+	/** Booked windows of each train */
+	private final Map<UUID, List<Reservation>> trains = new HashMap<UUID, List<Reservation>>();
+
+	private final TreeSet<Reservation> byEnd = new TreeSet<Reservation>(BY_END);
+
+	/** The latest time the reservations were advanced to */
+	private long time;
+
+	private long sequence;
+
+	SegmentReservations() {
+	}
+
+	/**
+	 * A window booked by a train on a segment.
+	 */
+	public static final class Reservation {
+		private final RailNetSegment segment;
+		private final UUID train;
+		private final boolean forward;
+		private final long start;
+		private final long end;
+		private final long order;
+		private IntervalTree.Entry<Reservation> entry;
+
+		private Reservation(RailNetSegment segment, UUID train, boolean forward, long start, long end, long order) {
+			this.segment = segment;
+			this.train = train;
+			this.forward = forward;
+			this.start = start;
+			this.end = end;
+			this.order = order;
+		}
+
+		public RailNetSegment getSegment() {
+			return segment;
+		}
+
+		public UUID getTrain() {
+			return train;
+		}
+
+		/**
+		 * @return <code>true</code> if the train travels from client A to
+		 *         client B.
+		 */
+		public boolean isForward() {
+			return forward;
+		}
+
+		/** @return the tick the train may enter the segment. */
+		public long getStart() {
+			return start;
+		}
+
+		/** @return the tick the train must have left the segment by. */
+		public long getEnd() {
+			return end;
+		}
+	}
+
+	/**
+	 * The windows of one segment, per direction of travel.
+	 */
+	private static final class Schedule {
+		private final IntervalTree<Reservation> forward = new IntervalTree<Reservation>();
+		private final IntervalTree<Reservation> reverse = new IntervalTree<Reservation>();
+
+		private IntervalTree<Reservation> get(boolean forward) {
+			return forward ? this.forward : reverse;
+		}
+
+		private boolean isEmpty() {
+			return forward.isEmpty() && reverse.isEmpty();
+		}
+	}
+
+	// ===========================
+	// Queries
+	// ===========================
+
+	/**
+	 * @param segment
+	 * @param forward
+	 *            <code>true</code> if travelling from client A to client B.
+	 * @param start
+	 * @param end
+	 * @return <code>true</code> if a train may travel the segment during the
+	 *         window without meeting another head-on.
+	 */
+	public boolean isFree(RailNetSegment segment, boolean forward, long start, long end) {
+		if (segment.getDirection() != SegmentDirection.BIDIRECTIONAL)
+			return true;
+		Schedule schedule = schedules.get(segment);
+		return schedule == null || schedule.get(!forward).findOverlap(start, end) == null;
+	}
+
+	/**
+	 * Finds the earliest tick a train may enter a segment to travel it without
+	 * meeting another head-on, waiting before the segment if needed.
+	 *
+	 * @param segment
+	 * @param forward
+	 *            <code>true</code> if travelling from client A to client B.
+	 * @param earliest
+	 *            The tick the train reaches the segment
+	 * @param duration
+	 *            The ticks the train needs the segment for
+	 * @return the tick, at least <code>earliest</code>.
+	 */
+	public long getEarliestEntry(RailNetSegment segment, boolean forward, long earliest, long duration) {
+		if (segment.getDirection() != SegmentDirection.BIDIRECTIONAL)
+			return earliest;
+		Schedule schedule = schedules.get(segment);
+		return schedule == null ? earliest : schedule.get(!forward).findGap(earliest, duration);
+	}
+
+	/**
+	 * @param train
+	 * @return the windows booked by a train, by order of booking.
+	 */
+	public List<Reservation> getReservations(UUID train) {
+		List<Reservation> booked = trains.get(train);
+		return booked == null ? Collections.<Reservation> emptyList() : Collections.unmodifiableList(booked);
+	}
+
+	/**
+	 * @return the number of booked windows.
+	 */
+	public int size() {
+		return byEnd.size();
+	}
+
+	/**
+	 * @return the latest time the reservations were advanced to.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	// ===========================
+	// Booking
+	// ===========================
+
+	/**
+	 * Books a window on a segment for a train.
+	 *
+	 * @param segment
+	 * @param forward
+	 *            <code>true</code> if travelling from client A to client B.
+	 * @param start
+	 * @param end
+	 *            Must be after <code>start</code>
+	 * @param train
+	 * @return the reservation; otherwise <code>null</code> if the window is not
+	 *         {@link #isFree free} or already ended.
+	 */
+	public Reservation reserve(RailNetSegment segment, boolean forward, long start, long end, UUID train) {
+		if (end <= start || end <= time || !isFree(segment, forward, start, end))
+			return null;
+		Reservation reservation = new Reservation(segment, train, forward, start, end, sequence++);
+		Schedule schedule = schedules.get(segment);
+		if (schedule == null)
+			schedules.put(segment, schedule = new Schedule());
+		reservation.entry = schedule.get(forward).add(start, end, reservation);
+		List<Reservation> booked = trains.get(train);
+		if (booked == null)
+			trains.put(train, booked = new ArrayList<Reservation>());
+		booked.add(reservation);
+		byEnd.add(reservation);
+		return reservation;
+	}
+
+	/**
+	 * Books the bidirectional segments of a route for its train, entering each
+	 * as early as the other trains allow.
+	 *
+	 * @param route
+	 * @param departure
+	 *            The tick the train leaves the origin
+	 * @return the tick the train reaches the destination.
+	 */
+	long reserve(RailNetRoute route, long departure) {
+		UUID train = route.getTrainID();
+		long at = departure;
+		RailNetClient from = route.getOrigin();
+		for (RailNetRoute.RoutePathSegment part : route.getPath()) {
+			RailNetSegment segment = part.getSegment();
+			boolean forward = segment.getClientA() == from;
+			long duration = Math.max(1L, part.getAverageTime());
+			if (segment.getDirection() == SegmentDirection.BIDIRECTIONAL) {
+				long margin = CONFIG.ROUTING.RESERVATION_MARGIN;
+				at = getEarliestEntry(segment, forward, at, duration + margin);
+				reserve(segment, forward, at, at + duration + margin, train);
+			}
+			at += duration;
+			from = segment.getConnectingClient(from);
+		}
+		return at;
+	}
+
+	/**
+	 * Drops a booked window.
+	 *
+	 * @param reservation
+	 */
+	public void release(Reservation reservation) {
+		if (!byEnd.remove(reservation))
+			return;
+		Schedule schedule = schedules.get(reservation.segment);
+		if (schedule != null) {
+			schedule.get(reservation.forward).remove(reservation.entry);
+			if (schedule.isEmpty())
+				schedules.remove(reservation.segment);
+		}
+		List<Reservation> booked = trains.get(reservation.train);
+		if (booked != null) {
+			booked.remove(reservation);
+			if (booked.isEmpty())
+				trains.remove(reservation.train);
+		}
+	}
+
+	/**
+	 * Drops every window booked by a train, such as before it is routed again.
+	 *
+	 * @param train
+	 */
+	public void release(UUID train) {
+		List<Reservation> booked = trains.get(train);
+		if (booked == null)
+			return;
+		for (Reservation reservation : new ArrayList<Reservation>(booked))
+			release(reservation);
+	}
+
+	/**
+	 * Moves time forward and drops the windows that ended. Called every server
+	 * tick.
+	 *
+	 * @param now
+	 *            The current server tick
+	 */
+	public void advance(long now) {
+		if (now > time)
+			time = now;
+		while (!byEnd.isEmpty() && byEnd.first().end <= time)
+			release(byEnd.first());
+	}
+
+	// ===========================
+	// Network Changes
+	// ===========================
+
+	/**
+	 * Drops the windows of a segment removed from the network.
+	 *
+	 * @param segment
+	 */
+	void segmentRemoved(RailNetSegment segment) {
+		for (Reservation reservation : getReservations(segment))
+			release(reservation);
+	}
+
+	/**
+	 * Hands the windows of a segment over to the network it is moving to.
+	 *
+	 * @param segment
+	 * @param other
+	 */
+	void moveTo(RailNetSegment segment, SegmentReservations other) {
+		for (Reservation reservation : getReservations(segment)) {
+			release(reservation);
+			other.reserve(segment, reservation.forward, reservation.start, reservation.end, reservation.train);
+		}
+	}
+
+	private List<Reservation> getReservations(RailNetSegment segment) {
+		Schedule schedule = schedules.get(segment);
+		if (schedule == null)
+			return Collections.emptyList();
+		List<Reservation> reservations = schedule.forward.values();
+		reservations.addAll(schedule.reverse.values());
+		return reservations;
+	}
+}
@@ -0,0 +1,185 @@
+package mod.rp.railnet.common.core.routing;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Finds the lines and routes of a {@link RailNetwork} that use a segment.
+ * <p>
+ * Every segment ID maps to the lines listing it as a line segment and to the
+ * routes passing it, so the lines affected by a change to a segment are found
+ * in time proportional to their number rather than by scanning every line.
+ * Only routes assigned to a line of the network are indexed. The index is
+ * updated when a line is added or removed, when a line segment is put or
+ * removed, when a route is assigned to a line, and when a route is repaired.
+ * </p>
+ * <p>
+ * Must be used on the server thread.
+ * </p>
+ *
+ * @author MajorR
+ * @see RailNetRouter#reroute(RailNetSegment)
+ *
+ */
+public class SegmentUsageIndex {
+
+	/** Users of each segment by segment ID */
+	private final Map<UUID, Usage> usages = new HashMap<UUID, Usage>();
+
+	/** The line each indexed route is assigned to */
+	private final Map<RailNetRoute, RailNetLineWrapper> owners = new IdentityHashMap<RailNetRoute, RailNetLineWrapper>();
+
+	SegmentUsageIndex() {
+	}
+
+	/**
+	 * The lines and routes using one segment.
+	 */
+	private static final class Usage {
+		private final Set<RailNetLineWrapper> lines = Collections
+				.newSetFromMap(new IdentityHashMap<RailNetLineWrapper, Boolean>());
+
+		private final Set<RailNetRoute> routes = Collections
+				.newSetFromMap(new IdentityHashMap<RailNetRoute, Boolean>());
+
+		private boolean isEmpty() {
+			return lines.isEmpty() && routes.isEmpty();
+		}
+	}
+
+	// ===========================
+	// Queries
+	// ===========================
+
+	/**
+	 * @param segmentID
+	 * @return the lines listing the segment as a line segment or assigned a
+	 *         route passing it.
+	 */
+	public Set<RailNetLineWrapper> getLines(UUID segmentID) {
+		Usage usage = usages.get(segmentID);
+		if (usage == null)
+			return Collections.emptySet();
+		Set<RailNetLineWrapper> lines = Collections.newSetFromMap(new IdentityHashMap<RailNetLineWrapper, Boolean>());
+		lines.addAll(usage.lines);
+		for (RailNetRoute route : usage.routes)
+			lines.add(owners.get(route));
+		return lines;
+	}
+
+	/**
+	 * @param segmentID
+	 * @return the routes assigned to lines that pass the segment.
+	 */
+	public Collection<RailNetRoute> getRoutes(UUID segmentID) {
+		Usage usage = usages.get(segmentID);
+		return usage == null ? Collections.<RailNetRoute> emptySet()
+				: Collections.unmodifiableSet(usage.routes);
+	}
+
+	/**
+	 * @param segmentID
+	 * @return <code>true</code> if any line or route uses the segment.
+	 */
+	public boolean isUsed(UUID segmentID) {
+		return usages.containsKey(segmentID);
+	}
+
+	// ===========================
+	// Lines
+	// ===========================
+
+	void lineAdded(RailNetLineWrapper line) {
+		for (UUID segmentID : line.getLineSegments().keySet())
+			lineSegmentAdded(line, segmentID);
+		index(line, line.getPrimaryRoute());
+		index(line, line.getSecondaryRoute());
+	}
+
+	void lineRemoved(RailNetLineWrapper line) {
+		for (UUID segmentID : line.getLineSegments().keySet())
+			lineSegmentRemoved(line, segmentID);
+		unindex(line, line.getPrimaryRoute());
+		unindex(line, line.getSecondaryRoute());
+	}
+
+	void lineSegmentAdded(RailNetLineWrapper line, UUID segmentID) {
+		getUsage(segmentID).lines.add(line);
+	}
+
+	void lineSegmentRemoved(RailNetLineWrapper line, UUID segmentID) {
+		Usage usage = usages.get(segmentID);
+		if (usage != null && usage.lines.remove(line) && usage.isEmpty())
+			usages.remove(segmentID);
+	}
+
+	// ===========================
+	// Routes
+	// ===========================
+
+	/**
+	 * Moves the index of a line from the route it was assigned to the one it
+	 * is assigned now. Called after the route of the line was set.
+	 *
+	 * @param line
+	 * @param old
+	 *            The route the line was assigned; may be <code>null</code>.
+	 * @param route
+	 *            The route the line is assigned now; may be <code>null</code>.
+	 */
+	void routeAssigned(RailNetLineWrapper line, RailNetRoute old, RailNetRoute route) {
+		if (old != line.getPrimaryRoute() && old != line.getSecondaryRoute())
+			unindex(line, old);
+		index(line, route);
+	}
+
+	private void index(RailNetLineWrapper line, RailNetRoute route) {
+		if (route == null)
+			return;
+		RailNetLineWrapper owner = owners.put(route, line);
+		if (owner == null) {
+			route.usage = this;
+			for (RailNetRoute.RoutePathSegment part : route.getPath())
+				routeSegmentAdded(route, part.getSegment());
+		}
+	}
+
+	private void unindex(RailNetLineWrapper line, RailNetRoute route) {
+		if (route == null || owners.get(route) != line)
+			return;
+		owners.remove(route);
+		routeCleared(route);
+		route.usage = null;
+	}
+
+	/**
+	 * Called by an indexed route that appended a segment.
+	 */
+	void routeSegmentAdded(RailNetRoute route, RailNetSegment segment) {
+		getUsage(segment.getID()).routes.add(route);
+	}
+
+	/**
+	 * Called by an indexed route before its path is cleared.
+	 */
+	void routeCleared(RailNetRoute route) {
+		for (RailNetRoute.RoutePathSegment part : route.getPath()) {
+			UUID segmentID = part.getSegment().getID();
+			Usage usage = usages.get(segmentID);
+			if (usage != null && usage.routes.remove(route) && usage.isEmpty())
+				usages.remove(segmentID);
+		}
+	}
+
+	private Usage getUsage(UUID segmentID) {
+		Usage usage = usages.get(segmentID);
+		if (usage == null)
+			usages.put(segmentID, usage = new Usage());
+		return usage;
+	}
+}
@@ -0,0 +1,352 @@
+package mod.rp.railnet.common.core.routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mod.rp.railnet.common.core.clients.RailNetClient;
+import mod.rp.railnet.common.util.collections.IntMinHeap;
+
+/**
+ * The shortest routes from one client to every other client of a
+ * {@link RailNetGraph} for one {@link RouteProfile}, kept up to date as
+ * segments change.
+ * <p>
+ * When an edge becomes more expensive or closes, only the subtree hanging
+ * below it is reset and re-settled from its neighbours outside the subtree.
+ * When an edge becomes cheaper or opens, the improvement is propagated
+ * outwards from its target. Either way the work is proportional to the part of
+ * the tree that actually changes.
+ * </p>
+ * <p>
+ * Track that is added or connected rebuilds the graph. The tree is then
+ * carried over to the new graph by client and segment, and every edge is
+ * relaxed once so that the new edges improve the clients they lead to; only
+ * a tree edge that became more expensive forces a full recalculation.
+ * </p>
+ *
+ * @author MajorR
+ * @see RouteTreeIndex
+ *
+ */
+class ShortestPathTree {
+
+	/** The client the tree is rooted at */
+	private final RailNetClient origin;
+
+	private final RouteProfile profile;
+
+	/** The graph the distances refer to */
+	private RailNetGraph graph;
+
+	/** Index of the origin in the graph */
+	private int root;
+
+	/** Cost of the best route to each client */
+	private float[] costs;
+
+	/** The edge used to reach each client; otherwise <code>-1</code> */
+	private int[] parents;
+
+	/** Routes from the origin kept on this tree */
+	final List<RailNetRoute> routes = new ArrayList<RailNetRoute>();
+
+	ShortestPathTree(RailNetClient origin, RouteProfile profile) {
+		this.origin = origin;
+		this.profile = profile;
+	}
+
+	/**
+	 * Recalculates the whole tree on a graph.
+	 *
+	 * @param graph
+	 * @param linkCosts
+	 *            Segment costs of the profile on the graph.
+	 * @return <code>false</code> if the origin is not part of the graph.
+	 */
+	boolean compute(RailNetGraph graph, float[] linkCosts) {
+		this.graph = graph;
+		this.root = graph.indexOf(origin);
+		if (root < 0)
+			return false;
+		int n = graph.getClientCount();
+		RouteSearch search = RouteSearch.get();
+		search.search(graph, linkCosts, root, -1);
+		if (costs == null || costs.length != n) {
+			costs = new float[n];
+			parents = new int[n];
+		}
+		for (int v = 0; v < n; v++) {
+			costs[v] = search.getCost(v);
+			parents[v] = search.getParentEdge(v);
+		}
+		return true;
+	}
+
+	/**
+	 * Carries the tree over to a rebuilt graph and relaxes every edge of it.
+	 * Every client whose cost or parent edge changed is marked in the scratch
+	 * space.
+	 *
+	 * @param next
+	 *            The rebuilt graph.
+	 * @param linkCosts
+	 *            Segment costs of the profile on the rebuilt graph.
+	 * @param scratch
+	 *            Prepared for the rebuilt graph.
+	 * @return <code>false</code> if the tree must be computed again, as the
+	 *         origin or an edge of the tree is gone or became more expensive.
+	 */
+	boolean carryOver(RailNetGraph next, float[] linkCosts, Scratch scratch) {
+		int nextRoot = next.indexOf(origin);
+		if (nextRoot < 0)
+			return false;
+		int n = next.getClientCount();
+		float[] nextCosts = new float[n];
+		int[] nextParents = new int[n];
+		for (int v = 0; v < n; v++) {
+			int old = graph.indexOf(next.getClient(v));
+			if (old < 0) {
+				nextCosts[v] = Float.POSITIVE_INFINITY;
+				nextParents[v] = -1;
+				continue;
+			}
+			nextCosts[v] = costs[old];
+			nextParents[v] = -1;
+			if (parents[old] >= 0) {
+				int s = next.indexOf(graph.getSegment(graph.edgeLinks[parents[old]]));
+				if (s < 0)
+					return false;
+				int edge = graph.isReversed(parents[old]) ? next.getReverseEdge(s) : next.getForwardEdge(s);
+				if (next.targets[edge] != v)
+					return false;
+				nextParents[v] = edge;
+			}
+		}
+		graph = next;
+		root = nextRoot;
+		costs = nextCosts;
+		parents = nextParents;
+
+		// The costs below a tree edge that became more expensive are too low
+		for (int v = 0; v < n; v++) {
+			int edge = parents[v];
+			if (edge >= 0 && costs[graph.getSource(edge)] + cost(edge, linkCosts) > costs[v])
+				return false;
+		}
+		for (int x = 0; x < n; x++) {
+			if (costs[x] == Float.POSITIVE_INFINITY)
+				continue;
+			for (int e = graph.offsets[x], end = graph.offsets[x + 1]; e < end; e++) {
+				int y = graph.targets[e];
+				float total = costs[x] + cost(e, linkCosts);
+				if (total < costs[y] && y != root)
+					improve(y, total, e, scratch);
+			}
+		}
+		propagate(linkCosts, scratch);
+		return true;
+	}
+
+	/**
+	 * Moves the tree to a patched copy of its graph, whose indices are the
+	 * same. The tree must still be {@link #update updated} for the patched
+	 * segment.
+	 *
+	 * @param next
+	 * @see RailNetGraph#isPatchOf(RailNetGraph)
+	 */
+	void repoint(RailNetGraph next) {
+		graph = next;
+	}
+
+	/**
+	 * Repairs the tree after the cost or flags of an edge changed. Every
+	 * client whose cost or parent edge changed is marked in the scratch space.
+	 *
+	 * @param edge
+	 * @param linkCosts
+	 *            The new segment costs.
+	 * @param scratch
+	 */
+	void update(int edge, float[] linkCosts, Scratch scratch) {
+		int u = graph.getSource(edge);
+		int v = graph.targets[edge];
+		if (v == root)
+			return;
+		float total = costs[u] + cost(edge, linkCosts);
+		if (parents[v] == edge) {
+			if (total == costs[v])
+				return;
+			if (total < costs[v])
+				improve(v, total, edge, scratch);
+			else
+				detach(v, linkCosts, scratch);
+		} else if (total < costs[v])
+			improve(v, total, edge, scratch);
+		propagate(linkCosts, scratch);
+	}
+
+	private float cost(int edge, float[] linkCosts) {
+		return (graph.edgeFlags[edge] & RoutingGraph.FLAG_OPEN) != 0 ? linkCosts[graph.edgeLinks[edge]]
+				: Float.POSITIVE_INFINITY;
+	}
+
+	private void improve(int v, float total, int edge, Scratch scratch) {
+		costs[v] = total;
+		parents[v] = edge;
+		scratch.mark(v);
+		scratch.heap.offer(v, total);
+	}
+
+	/**
+	 * Resets the subtree below a client and queues each of its clients with
+	 * the best edge entering it from outside the subtree.
+	 */
+	private void detach(int v, float[] linkCosts, Scratch scratch) {
+		int start = scratch.size;
+		scratch.mark(v);
+		scratch.queue(v);
+		for (int i = start; i < scratch.size; i++) {
+			int x = scratch.queue[i];
+			for (int e = graph.offsets[x], end = graph.offsets[x + 1]; e < end; e++) {
+				int y = graph.targets[e];
+				if (parents[y] == e && !scratch.isMarked(y)) {
+					scratch.mark(y);
+					scratch.queue(y);
+				}
+			}
+		}
+		for (int i = start; i < scratch.size; i++) {
+			int x = scratch.queue[i];
+			costs[x] = Float.POSITIVE_INFINITY;
+			parents[x] = -1;
+		}
+		for (int i = start; i < scratch.size; i++) {
+			int x = scratch.queue[i];
+			for (int e = graph.offsets[x], end = graph.offsets[x + 1]; e < end; e++) {
+				int y = graph.targets[e];
+				if (scratch.isMarked(y) && costs[y] == Float.POSITIVE_INFINITY)
+					continue;
+				int in = graph.getTwinEdge(e);
+				float total = costs[y] + cost(in, linkCosts);
+				if (total < costs[x]) {
+					costs[x] = total;
+					parents[x] = in;
+				}
+			}
+			if (costs[x] != Float.POSITIVE_INFINITY)
+				scratch.heap.offer(x, costs[x]);
+		}
+	}
+
+	/**
+	 * Settles the queued clients, relaxing their edges like Dijkstra's
+	 * algorithm and marking every client that improves.
+	 */
+	private void propagate(float[] linkCosts, Scratch scratch) {
+		IntMinHeap heap = scratch.heap;
+		while (!heap.isEmpty()) {
+			int x = heap.poll();
+			float base = costs[x];
+			for (int e = graph.offsets[x], end = graph.offsets[x + 1]; e < end; e++) {
+				int y = graph.targets[e];
+				float total = base + cost(e, linkCosts);
+				if (total < costs[y] && y != root)
+					improve(y, total, e, scratch);
+			}
+		}
+	}
+
+	/**
+	 * Writes the edges from the origin to a client into a route.
+	 *
+	 * @param route
+	 * @param target
+	 *            Index of the destination.
+	 * @param linkCosts
+	 * @param topologyVersion
+	 */
+	void rebuild(RailNetRoute route, int target, float[] linkCosts, long topologyVersion) {
+		if (target < 0 || costs[target] == Float.POSITIVE_INFINITY) {
+			route.reset(topologyVersion, false);
+			return;
+		}
+		route.reset(topologyVersion, true);
+		int hops = 0;
+		for (int v = target; v != root; v = graph.getSource(parents[v]))
+			hops++;
+		int[] edges = new int[hops];
+		for (int v = target; v != root; v = graph.getSource(parents[v]))
+			edges[--hops] = parents[v];
+		RailNetLineWrapper line = profile.getLine();
+		for (int edge : edges) {
+			int s = graph.edgeLinks[edge];
+			RailNetSegment segment = graph.getSegment(s);
+			RailNetLineWrapper.LineSegmentWrapper lineSegment = line == null ? null
+					: line.getLineSegment(segment.getID());
+			route.addSegment(segment, lineSegment != null && lineSegment.isRequired(), segment.getBaseTime(),
+					linkCosts[s]);
+		}
+	}
+
+	// ===========================
+	// Getters
+	// ===========================
+
+	RailNetClient getOrigin() {
+		return origin;
+	}
+
+	RouteProfile getProfile() {
+		return profile;
+	}
+
+	RailNetGraph getGraph() {
+		return graph;
+	}
+
+	float getCost(int client) {
+		return costs[client];
+	}
+
+	/**
+	 * Marks and work queue shared by the repairs of one change.
+	 */
+	static class Scratch {
+		private int[] marks = new int[0];
+		private int stamp;
+		private int[] queue = new int[16];
+		private int size;
+		final IntMinHeap heap = new IntMinHeap();
+
+		/** Starts a new change on a graph of the given size. */
+		void prepare(int clients) {
+			if (marks.length < clients) {
+				marks = new int[clients];
+				stamp = 0;
+			}
+			if (++stamp == 0) {
+				Arrays.fill(marks, 0);
+				stamp = 1;
+			}
+			size = 0;
+			heap.clear();
+			heap.ensureCapacity(clients);
+		}
+
+		void mark(int client) {
+			marks[client] = stamp;
+		}
+
+		boolean isMarked(int client) {
+			return marks[client] == stamp;
+		}
+
+		private void queue(int client) {
+			if (size == queue.length)
+				queue = Arrays.copyOf(queue, size * 2);
+			queue[size++] = client;
+		}
+	}
+}
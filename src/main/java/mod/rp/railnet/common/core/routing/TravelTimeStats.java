@@ -0,0 +1,161 @@
+package mod.rp.railnet.common.core.routing;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mod.rp.railnet.CONFIG;
+
+/**
+ * Learned travel time of a segment: an exponentially weighted moving average
+ * and variance of the observed times.
+ * <p>
+ * The mean and variance are packed into one {@link AtomicLong} and updated
+ * with compare-and-set, so any number of threads may record traversals while
+ * routing reads a consistent mean without locking or allocating. The first
+ * samples are averaged evenly until the moving average takes over.
+ * </p>
+ *
+ * @author MajorR
+ * @see TravelTimes
+ *
+ */
+public final class TravelTimeStats {
+
+	/** Mean and variance of a segment that was never travelled */
+	private static final long EMPTY = pack(Float.NaN, 0f);
+
+	/** Mean in the high, variance in the low 32 bits */
+	private final AtomicLong state = new AtomicLong(EMPTY);
+
+	private final AtomicInteger samples = new AtomicInteger();
+
+	/** The mean routing costs were last updated with */
+	private volatile float published = Float.NaN;
+
+	/** Set while the segment waits to be published */
+	final AtomicBoolean queued = new AtomicBoolean();
+
+	/**
+	 * Adds an observed travel time.
+	 *
+	 * @param ticks
+	 *            The time taken to travel the segment.
+	 * @param alpha
+	 *            Weight of the new sample, between 0 and 1.
+	 * @return the mean after the sample.
+	 */
+	public float record(float ticks, float alpha) {
+		int n = samples.incrementAndGet();
+		// Average evenly until the moving average weighs more
+		float weight = Math.max(alpha, 1f / n);
+		while (true) {
+			long current = state.get();
+			float mean = unpackMean(current);
+			float variance = unpackVariance(current);
+			if (mean != mean) {
+				mean = ticks;
+				variance = 0f;
+			} else {
+				float diff = ticks - mean;
+				float increment = weight * diff;
+				mean += increment;
+				variance = (1f - weight) * (variance + diff * increment);
+			}
+			if (state.compareAndSet(current, pack(mean, variance)))
+				return mean;
+		}
+	}
+
+	/**
+	 * Forgets every sample.
+	 */
+	public void reset() {
+		state.set(EMPTY);
+		samples.set(0);
+	}
+
+	/**
+	 * @param tolerance
+	 *            Relative change of the mean that is significant.
+	 * @return <code>true</code> if the mean changed by more than the tolerance
+	 *         since it was last published.
+	 */
+	boolean isDrifted(float tolerance) {
+		float mean = getMean();
+		if (mean != mean)
+			return false;
+		float last = published;
+		return last != last || Math.abs(mean - last) > tolerance * Math.max(1f, last);
+	}
+
+	/**
+	 * Marks the current mean as used by routing.
+	 */
+	void publish() {
+		published = getMean();
+	}
+
+	// ===========================
+	// Getters
+	// ===========================
+
+	/** @return <code>true</code> once a sample has been recorded. */
+	public boolean hasMean() {
+		float mean = getMean();
+		return mean == mean;
+	}
+
+	/**
+	 * @return <code>true</code> once enough samples were recorded for the mean
+	 *         to affect routing.
+	 * @see CONFIG.ROUTING#TRAVEL_TIME_MIN_SAMPLES
+	 */
+	public boolean isSettled() {
+		return getSamples() >= CONFIG.ROUTING.TRAVEL_TIME_MIN_SAMPLES && hasMean();
+	}
+
+	/**
+	 * @return the average travel time; otherwise {@link Float#NaN} if the
+	 *         segment was never travelled.
+	 */
+	public float getMean() {
+		return unpackMean(state.get());
+	}
+
+	public float getVariance() {
+		return unpackVariance(state.get());
+	}
+
+	public float getDeviation() {
+		return (float) Math.sqrt(getVariance());
+	}
+
+	/** @return the number of recorded samples. */
+	public int getSamples() {
+		return samples.get();
+	}
+
+	@Override
+	public String toString() {
+		long current = state.get();
+		return String.format("%.1f +/- %.1f ticks (%d samples)", unpackMean(current),
+				Math.sqrt(unpackVariance(current)), samples.get());
+	}
+
+	// ===========================
+	// Packing
+	// ===========================
+
+	private static long pack(float mean, float variance) {
+		return ((long) Float.floatToRawIntBits(mean) << 32) | (Float.floatToRawIntBits(variance) & 0xFFFFFFFFL);
+	}
+
+	private static float unpackMean(long state) {
+		return Float.intBitsToFloat((int) (state >>> 32));
+	}
+
+	private static float unpackVariance(long state) {
+		return Float.intBitsToFloat((int) state);
+	}
+}
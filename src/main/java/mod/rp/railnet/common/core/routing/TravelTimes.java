@@ -0,0 +1,98 @@
+package mod.rp.railnet.common.core.routing;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.routing.RailNetLineWrapper.LineSegmentWrapper;
+
+/**
+ * Learns the travel times of the segments of a {@link RailNetwork} from the
+ * carts travelling them.
+ * <p>
+ * Each traversal is recorded into the {@link TravelTimeStats} of the segment
+ * and, if the line of the train lists the segment, of its
+ * {@link LineSegmentWrapper}. Recording never locks and may be done from any
+ * thread. Routing reads the learned means directly; segments whose mean
+ * drifted by more than {@link CONFIG.ROUTING#TRAVEL_TIME_TOLERANCE} are queued
+ * and announced as a {@link RailNetworkListener.Change#TIME TIME} change by
+ * {@link #publish()} on the server thread, which rescores them in the cached
+ * segment costs.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+public class TravelTimes {
+
+	/** Segments waiting to be published */
+	private final Queue<RailNetSegment> drifted = new ConcurrentLinkedQueue<RailNetSegment>();
+
+	private final RailNetwork network;
+
+	TravelTimes(RailNetwork network) {
+		this.network = network;
+	}
+
+	/**
+	 * Records an observed traversal of a segment.
+	 *
+	 * @param segment
+	 * @param line
+	 *            The line of the train; otherwise <code>null</code>.
+	 * @param ticks
+	 *            The time taken to travel the segment.
+	 */
+	public void record(RailNetSegment segment, RailNetLineWrapper line, long ticks) {
+		if (ticks <= 0 || segment.getNetwork() != network)
+			return;
+		float alpha = CONFIG.ROUTING.TRAVEL_TIME_ALPHA;
+		TravelTimeStats stats = segment.getTravelTime();
+		stats.record(ticks, alpha);
+		boolean drift = isDrifted(stats);
+
+		LineSegmentWrapper lineSegment = line == null ? null : line.getLineSegment(segment.getID());
+		if (lineSegment != null) {
+			TravelTimeStats lineStats = lineSegment.getTravelTime();
+			lineStats.record(ticks, alpha);
+			if (isDrifted(lineStats)) {
+				// Published with the segment, which is rescored for every line
+				lineStats.publish();
+				drift = true;
+			}
+		}
+		if (drift && stats.queued.compareAndSet(false, true))
+			drifted.add(segment);
+	}
+
+	private static boolean isDrifted(TravelTimeStats stats) {
+		return stats.getSamples() >= CONFIG.ROUTING.TRAVEL_TIME_MIN_SAMPLES
+				&& stats.isDrifted(CONFIG.ROUTING.TRAVEL_TIME_TOLERANCE);
+	}
+
+	/**
+	 * Announces the segments whose learned times drifted. Must be called on
+	 * the server thread.
+	 *
+	 * @return the number of segments announced.
+	 */
+	public int publish() {
+		int count = 0;
+		RailNetSegment segment;
+		while ((segment = drifted.poll()) != null) {
+			TravelTimeStats stats = segment.getTravelTime();
+			stats.queued.set(false);
+			if (segment.getNetwork() != network)
+				continue;
+			stats.publish();
+			segment.travelTimeChanged();
+			count++;
+		}
+		return count;
+	}
+
+	/** @return the number of segments waiting to be published. */
+	public int getPending() {
+		return drifted.size();
+	}
+}
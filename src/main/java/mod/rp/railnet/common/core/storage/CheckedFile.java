@@ -0,0 +1,150 @@
+package mod.rp.railnet.common.core.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A RailNet save file: a header of {@link #MAGIC} and the format version, the
+ * contents, and a CRC-32 of everything before it.
+ * <p>
+ * Files are written to a temporary file which only replaces the old file once
+ * it is complete, so a crash during a save never leaves a half written file.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+final class CheckedFile {
+
+	/** "RNET" */
+	static final int MAGIC = 0x524E4554;
+
+	/** Version of the file layouts */
+	static final short FORMAT = 1;
+
+	private CheckedFile() {
+	}
+
+	/**
+	 * Reads a file, verifying its header and checksum.
+	 *
+	 * @param file
+	 * @return the contents after the header.
+	 * @throws IOException
+	 *             if the file cannot be read or is damaged.
+	 */
+	static DataInputStream open(File file) throws IOException {
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		if (bytes.length < 10)
+			throw new IOException("Truncated file " + file);
+		int length = bytes.length - 4;
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, length);
+		int expected = (bytes[length] & 0xFF) << 24 | (bytes[length + 1] & 0xFF) << 16
+				| (bytes[length + 2] & 0xFF) << 8 | bytes[length + 3] & 0xFF;
+		if ((int) crc.getValue() != expected)
+			throw new IOException("Checksum mismatch in " + file);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a RailNet file " + file);
+		short format = in.readShort();
+		if (format > FORMAT)
+			throw new IOException("Unsupported format " + format + " of " + file);
+		return in;
+	}
+
+	/**
+	 * Starts writing a file. Nothing replaces the file until
+	 * {@link Writer#commit()}.
+	 *
+	 * @param file
+	 * @return the writer, positioned after the header.
+	 * @throws IOException
+	 */
+	static Writer create(File file) throws IOException {
+		Writer writer = new Writer(file, new File(file.getPath() + ".tmp"), new CRC32());
+		writer.writeInt(MAGIC);
+		writer.writeShort(FORMAT);
+		return writer;
+	}
+
+	/**
+	 * Moves a finished temporary file over the file it replaces.
+	 */
+	static void replace(File temp, File file) throws IOException {
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Writes the temporary file of a {@link CheckedFile}.
+	 */
+	static final class Writer extends DataOutputStream {
+		private final File file;
+		private final File temp;
+		private final CRC32 crc;
+		private final FileOutputStream stream;
+		private boolean closed;
+
+		private Writer(File file, File temp, CRC32 crc) throws IOException {
+			this(file, temp, crc, new FileOutputStream(temp));
+		}
+
+		private Writer(File file, File temp, CRC32 crc, FileOutputStream stream) {
+			super(new CheckedOutputStream(new BufferedOutputStream(stream), crc));
+			this.file = file;
+			this.temp = temp;
+			this.crc = crc;
+			this.stream = stream;
+		}
+
+		/**
+		 * Appends the checksum and replaces the file once its contents reached
+		 * the disk, so a crash cannot leave a renamed but empty file.
+		 *
+		 * @throws IOException
+		 */
+		void commit() throws IOException {
+			flush();
+			writeInt((int) crc.getValue());
+			flush();
+			stream.getChannel().force(true);
+			close();
+			replace(temp, file);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			super.close();
+		}
+
+		/**
+		 * Abandons the file if it was not committed.
+		 */
+		void discard() {
+			try {
+				close();
+			} catch (IOException e) {
+				// Deleted below either way
+			}
+			temp.delete();
+		}
+	}
+}
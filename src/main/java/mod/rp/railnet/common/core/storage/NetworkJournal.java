@@ -0,0 +1,320 @@
+package mod.rp.railnet.common.core.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import cpw.mods.fml.common.FMLLog;
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.clients.RailNetClient;
+import mod.rp.railnet.common.core.routing.RailNetSegment;
+import mod.rp.railnet.common.core.routing.RailNetwork;
+import mod.rp.railnet.common.core.routing.RailNetworkListener.Change;
+
+/**
+ * An append-only log of the clients and segments changed since the network
+ * was last saved, so a crash loses at most the changes of one tick.
+ * <p>
+ * Changes are collected during a tick and appended by {@link #flush()}: one
+ * entry with the whole record of every client or segment that changed, or a
+ * removal. Replaying an entry sets a record to its state when the entry was
+ * written, so entries can be replayed more than once. Every entry carries a
+ * CRC-32; replay stops at the first entry that is incomplete or damaged, which
+ * is where the crash happened, and later entries are written over it.
+ * </p>
+ * <p>
+ * The journal starts over whenever the buckets of the network are saved. It is
+ * replayed on load if it was started for the generation of the buckets or for
+ * the generation before, in case the save that followed was cut short.
+ * </p>
+ *
+ * <pre>
+ * header   "RNJL", version, network UUID, generation
+ * entries  length, CRC-32, kind, record
+ * </pre>
+ *
+ * @author MajorR
+ *
+ */
+class NetworkJournal {
+
+	/** "RNJL" */
+	static final int MAGIC = 0x524E4A4C;
+
+	static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 4 + 4 + 16 + 8;
+
+	private static final byte ENTRY_CLIENT = 0;
+	private static final byte ENTRY_SEGMENT = 1;
+	private static final byte ENTRY_CLIENT_REMOVED = 2;
+	private static final byte ENTRY_SEGMENT_REMOVED = 3;
+
+	private final RailNetwork network;
+
+	private final File file;
+
+	/** The journal file while open */
+	private RandomAccessFile out;
+
+	/** Changed clients, or <code>null</code> for removed ones */
+	private final Map<UUID, RailNetClient> clients = new LinkedHashMap<UUID, RailNetClient>();
+
+	/** Changed segments, or <code>null</code> for removed ones */
+	private final Map<UUID, RailNetSegment> segments = new LinkedHashMap<UUID, RailNetSegment>();
+
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+	private final DataOutputStream record = new DataOutputStream(buffer);
+	private final CRC32 crc = new CRC32();
+
+	NetworkJournal(RailNetwork network, File file) {
+		this.network = network;
+		this.file = file;
+	}
+
+	// ===========================
+	// Recording
+	// ===========================
+
+	void segmentChanged(RailNetSegment segment, Change change) {
+		segments.put(segment.getID(), change == Change.REMOVED ? null : segment);
+	}
+
+	void clientChanged(RailNetClient client, Change change) {
+		clients.put(client.getID(), change == Change.REMOVED ? null : client);
+	}
+
+	/**
+	 * @return <code>true</code> if there are changes that were not appended
+	 *         yet.
+	 */
+	boolean hasChanges() {
+		return !clients.isEmpty() || !segments.isEmpty();
+	}
+
+	/**
+	 * Appends the collected changes. Clients are written before the segments
+	 * referring to them, and removed clients after them.
+	 *
+	 * @return the number of entries appended.
+	 * @throws IOException
+	 *             if the journal is not open or cannot be written.
+	 */
+	int flush() throws IOException {
+		if (!hasChanges())
+			return 0;
+		if (out == null)
+			throw new IOException("Journal " + file + " is not open");
+		buffer.reset();
+		ByteArrayOutputStream entries = new ByteArrayOutputStream(1024);
+		int count = 0;
+		for (Map.Entry<UUID, RailNetClient> entry : clients.entrySet())
+			if (entry.getValue() != null) {
+				record.writeByte(ENTRY_CLIENT);
+				RecordCodec.writeClient(record, entry.getValue());
+				append(entries);
+				count++;
+			}
+		for (Map.Entry<UUID, RailNetSegment> entry : segments.entrySet()) {
+			if (entry.getValue() != null) {
+				record.writeByte(ENTRY_SEGMENT);
+				RecordCodec.writeSegment(record, entry.getValue());
+			} else {
+				record.writeByte(ENTRY_SEGMENT_REMOVED);
+				RecordCodec.writeUUID(record, entry.getKey());
+			}
+			append(entries);
+			count++;
+		}
+		for (Map.Entry<UUID, RailNetClient> entry : clients.entrySet())
+			if (entry.getValue() == null) {
+				record.writeByte(ENTRY_CLIENT_REMOVED);
+				RecordCodec.writeUUID(record, entry.getKey());
+				append(entries);
+				count++;
+			}
+		clients.clear();
+		segments.clear();
+
+		out.write(entries.toByteArray());
+		if (CONFIG.STORAGE.JOURNAL_SYNC)
+			out.getChannel().force(false);
+		return count;
+	}
+
+	/**
+	 * Moves the record in the buffer into the entries, framed by its length and
+	 * checksum.
+	 */
+	private void append(ByteArrayOutputStream entries) throws IOException {
+		record.flush();
+		crc.reset();
+		byte[] bytes = buffer.toByteArray();
+		crc.update(bytes, 0, bytes.length);
+		DataOutputStream frame = new DataOutputStream(entries);
+		frame.writeInt(bytes.length);
+		frame.writeInt((int) crc.getValue());
+		frame.write(bytes);
+		buffer.reset();
+	}
+
+	boolean isOpen() {
+		return out != null;
+	}
+
+	/**
+	 * @return the size of the journal file.
+	 */
+	long length() throws IOException {
+		return out == null ? 0 : out.length();
+	}
+
+	// ===========================
+	// Starting and Replaying
+	// ===========================
+
+	/**
+	 * Discards the journal and starts an empty one for a generation of the
+	 * buckets.
+	 *
+	 * @param generation
+	 * @throws IOException
+	 */
+	void reset(long generation) throws IOException {
+		clients.clear();
+		segments.clear();
+		close();
+		out = new RandomAccessFile(file, "rw");
+		out.setLength(0);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		RecordCodec.writeUUID(out, network.getID());
+		out.writeLong(generation);
+		if (CONFIG.STORAGE.JOURNAL_SYNC)
+			out.getChannel().force(false);
+	}
+
+	/**
+	 * Replays the journal into the network if it continues the loaded
+	 * generation, and opens it for appending. Otherwise an empty journal is
+	 * started.
+	 *
+	 * @param generation
+	 *            The generation of the loaded buckets.
+	 * @return the number of entries replayed.
+	 * @throws IOException
+	 *             if the journal cannot be opened for appending.
+	 */
+	int replay(long generation) throws IOException {
+		if (!file.exists()) {
+			reset(generation);
+			return 0;
+		}
+		RandomAccessFile in = new RandomAccessFile(file, "rw");
+		try {
+			if (in.length() < HEADER_SIZE || in.readInt() != MAGIC || in.readInt() != VERSION
+					|| !RecordCodec.readUUID(in).equals(network.getID())) {
+				FMLLog.warning("RailNet: journal %s is not a journal of this network and was discarded", file);
+				in.close();
+				reset(generation);
+				return 0;
+			}
+			long base = in.readLong();
+			if (base != generation && base != generation - 1) {
+				in.close();
+				reset(generation);
+				return 0;
+			}
+
+			int count = 0;
+			long end = in.getFilePointer();
+			while (true) {
+				byte[] bytes;
+				int checksum;
+				try {
+					int length = in.readInt();
+					checksum = in.readInt();
+					if (length < 0 || length > in.length() - in.getFilePointer())
+						break;
+					bytes = new byte[length];
+					in.readFully(bytes);
+				} catch (EOFException e) {
+					break;
+				}
+				crc.reset();
+				crc.update(bytes, 0, bytes.length);
+				if ((int) crc.getValue() != checksum)
+					break;
+				apply(new DataInputStream(new ByteArrayInputStream(bytes)));
+				end = in.getFilePointer();
+				count++;
+			}
+			if (end < in.length()) {
+				FMLLog.warning("RailNet: dropped the incomplete end of journal %s", file);
+				in.setLength(end);
+			}
+			in.seek(end);
+			if (base != generation) {
+				// The save after this journal was cut short; keep the replayed
+				// changes but record them against the new generation
+				in.seek(HEADER_SIZE - 8);
+				in.writeLong(generation);
+				in.seek(end);
+			}
+			// Replaying changed the network, which was recorded again
+			clients.clear();
+			segments.clear();
+			close();
+			out = in;
+			return count;
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	private void apply(DataInputStream in) throws IOException {
+		byte kind = in.readByte();
+		switch (kind) {
+		case ENTRY_CLIENT:
+			RecordCodec.readClient(in, network);
+			break;
+		case ENTRY_SEGMENT:
+			RecordCodec.readSegment(in, network);
+			break;
+		case ENTRY_CLIENT_REMOVED:
+			RailNetClient client = network.getClient(RecordCodec.readUUID(in));
+			if (client != null)
+				network.removeClient(client);
+			break;
+		case ENTRY_SEGMENT_REMOVED:
+			RailNetSegment segment = network.getSegment(RecordCodec.readUUID(in));
+			if (segment != null)
+				RecordCodec.removeSegment(network, segment);
+			break;
+		default:
+			throw new IOException("Unknown journal entry " + kind);
+		}
+	}
+
+	void close() throws IOException {
+		if (out != null) {
+			RandomAccessFile closing = out;
+			out = null;
+			closing.close();
+		}
+	}
+
+	File getFile() {
+		return file;
+	}
+}
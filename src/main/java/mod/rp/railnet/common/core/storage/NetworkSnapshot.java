@@ -0,0 +1,643 @@
+package mod.rp.railnet.common.core.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import cpw.mods.fml.common.FMLLog;
+import mod.rp.railnet.common.core.clients.RailNetClient;
+import mod.rp.railnet.common.core.routing.RailNetLineWrapper;
+import mod.rp.railnet.common.core.routing.RailNetSegment;
+import mod.rp.railnet.common.core.routing.RailNetSegment.SegmentDirection;
+import mod.rp.railnet.common.core.routing.RailNetwork;
+import mod.rp.railnet.common.core.routing.RailNetworkSource;
+import mod.rp.railnet.common.core.routing.SegmentGeometry;
+import mod.rp.railnet.common.core.routing.SegmentIndex;
+
+/**
+ * A read-only image of a {@link RailNetwork} in fixed-size tables, mapped into
+ * memory instead of being read.
+ * <p>
+ * Opening a snapshot only checks its header, so restoring a network takes the
+ * same time whatever its size. The snapshot then serves as the
+ * {@link RailNetworkSource} of the network: a client or segment is only
+ * created when it is first looked up, by binary search of the table sorted by
+ * UUID, and the segments of a chunk are found through a table sorted by chunk
+ * key. Lines are few and are restored right away.
+ * </p>
+ * <p>
+ * The snapshot is a {@link CheckedFile}, but its checksum is only verified by
+ * {@link #verify()}, as that reads the whole file. Snapshots are written
+ * atomically and are only used when their generation matches the saved
+ * buckets of the network.
+ * </p>
+ *
+ * <pre>
+ * header    64 bytes
+ * clients   40 bytes each: UUID, type, name, max segments, segments, count
+ * segments  48 bytes each: UUID, client A, client B, direction, length, base time, geometry
+ * chunks    12 bytes each: chunk key, segment
+ * data      names, segment lists, geometries, types, domain, lines
+ * </pre>
+ *
+ * @author MajorR
+ *
+ */
+public final class NetworkSnapshot implements RailNetworkSource {
+
+	/** "RNSS" */
+	static final int MAGIC = 0x524E5353;
+
+	/** Version of the table layout */
+	static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 64;
+	private static final int CLIENT_SIZE = 40;
+	private static final int SEGMENT_SIZE = 48;
+	private static final int CHUNK_SIZE = 12;
+
+	/** Bytes of the {@link CheckedFile} header before the snapshot */
+	private static final int FILE_HEADER = 6;
+
+	private static final SegmentDirection[] DIRECTIONS = SegmentDirection.values();
+
+	private final File file;
+
+	/** The snapshot, without the file header and checksum */
+	private final ByteBuffer buffer;
+
+	private final UUID networkID;
+	private final long generation;
+	private final int clientCount;
+	private final int segmentCount;
+	private final int chunkCount;
+	private final int segmentTable;
+	private final int chunkTable;
+
+	/** Client class names by index */
+	private String[] types;
+
+	/** Loaded clients and segments by table index */
+	private RailNetClient[] clients;
+	private RailNetSegment[] segments;
+
+	/** Clients that were loaded or could not be restored */
+	private final BitSet clientsDone = new BitSet();
+
+	/** Chunk table entries whose chunk was loaded */
+	private final BitSet chunksDone = new BitSet();
+
+	private NetworkSnapshot(File file, ByteBuffer buffer) throws IOException {
+		this.file = file;
+		this.buffer = buffer;
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new IOException("Not a network snapshot " + file);
+		if (buffer.getInt(4) != VERSION)
+			throw new IOException("Unsupported snapshot version " + buffer.getInt(4) + " of " + file);
+		networkID = new UUID(buffer.getLong(8), buffer.getLong(16));
+		generation = buffer.getLong(24);
+		clientCount = buffer.getInt(32);
+		segmentCount = buffer.getInt(36);
+		chunkCount = buffer.getInt(40);
+		segmentTable = HEADER_SIZE + clientCount * CLIENT_SIZE;
+		chunkTable = segmentTable + segmentCount * SEGMENT_SIZE;
+		if (clientCount < 0 || segmentCount < 0 || chunkCount < 0
+				|| chunkTable + (long) chunkCount * CHUNK_SIZE > buffer.capacity())
+			throw new IOException("Truncated snapshot " + file);
+	}
+
+	/**
+	 * Maps a snapshot and checks its header.
+	 *
+	 * @param file
+	 * @return the snapshot.
+	 * @throws IOException
+	 *             if the file is not a snapshot of this version.
+	 */
+	static NetworkSnapshot open(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			long size = in.length();
+			if (size < FILE_HEADER + HEADER_SIZE + 4 || size > Integer.MAX_VALUE)
+				throw new IOException("Bad snapshot size of " + file);
+			ByteBuffer mapped = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (mapped.getInt(0) != CheckedFile.MAGIC || mapped.getShort(4) > CheckedFile.FORMAT)
+				throw new IOException("Not a RailNet file " + file);
+			mapped.position(FILE_HEADER);
+			mapped.limit((int) size - 4);
+			return new NetworkSnapshot(file, mapped.slice());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Makes the snapshot the source of a network with the same ID and restores
+	 * the domain and lines.
+	 *
+	 * @param network
+	 * @throws IOException
+	 *             if the client types or the domain cannot be read.
+	 */
+	void attach(RailNetwork network) throws IOException {
+		DataInputStream in = input(buffer.getInt(48));
+		String[] names = new String[buffer.getInt(44)];
+		for (int i = 0; i < names.length; i++)
+			names[i] = in.readUTF();
+		int domain = buffer.getInt(52);
+		network.setNewDomain(domain < 0 ? null : input(domain).readUTF());
+		types = names;
+		clients = new RailNetClient[clientCount];
+		segments = new RailNetSegment[segmentCount];
+		network.setSource(this);
+
+		int offset = buffer.getInt(56);
+		for (int i = buffer.getInt(60); i > 0; i--) {
+			int length = buffer.getInt(offset);
+			try {
+				RecordCodec.readLine(input(offset + 4), network);
+			} catch (IOException e) {
+				FMLLog.warning("RailNet: skipped a damaged line of %s: %s", file, e.getMessage());
+			}
+			offset += 4 + length;
+		}
+	}
+
+	// ===========================
+	// Loading
+	// ===========================
+
+	@Override
+	public RailNetClient loadClient(RailNetwork network, UUID id) {
+		int index = find(HEADER_SIZE, CLIENT_SIZE, clientCount, id);
+		return index < 0 ? null : client(network, index);
+	}
+
+	@Override
+	public RailNetSegment loadSegment(RailNetwork network, UUID id) {
+		int index = find(segmentTable, SEGMENT_SIZE, segmentCount, id);
+		return index < 0 ? null : segment(network, index);
+	}
+
+	@Override
+	public void loadChunk(RailNetwork network, int chunkX, int chunkZ) {
+		long key = SegmentIndex.key(chunkX, chunkZ);
+		int low = 0;
+		int high = chunkCount;
+		while (low < high) {
+			int mid = low + high >>> 1;
+			if (buffer.getLong(chunkTable + mid * CHUNK_SIZE) < key)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		if (low == chunkCount || buffer.getLong(chunkTable + low * CHUNK_SIZE) != key || chunksDone.get(low))
+			return;
+		chunksDone.set(low);
+		for (int i = low; i < chunkCount; i++) {
+			int entry = chunkTable + i * CHUNK_SIZE;
+			if (buffer.getLong(entry) != key)
+				break;
+			segment(network, buffer.getInt(entry + 8));
+		}
+	}
+
+	@Override
+	public void loadAll(RailNetwork network) {
+		for (int i = 0; i < clientCount; i++)
+			client(network, i);
+		for (int i = 0; i < segmentCount; i++)
+			segment(network, i);
+	}
+
+	private RailNetClient client(RailNetwork network, int index) {
+		if (clientsDone.get(index))
+			return clients[index];
+		clientsDone.set(index);
+		int entry = HEADER_SIZE + index * CLIENT_SIZE;
+		UUID id = new UUID(buffer.getLong(entry), buffer.getLong(entry + 8));
+		RailNetClient client;
+		try {
+			int name = buffer.getInt(entry + 20);
+			client = RecordCodec.createClient(types[buffer.getInt(entry + 16)], id, network,
+					name < 0 ? null : input(name).readUTF());
+		} catch (IOException e) {
+			FMLLog.warning("RailNet: skipped damaged client %s of %s: %s", id, file, e.getMessage());
+			return null;
+		}
+		if (client == null)
+			return null;
+		client.setMaxSegments(buffer.getInt(entry + 24));
+		client.setConnectedSegments(new SegmentList(network, buffer.getInt(entry + 28), buffer.getInt(entry + 32)));
+		clients[index] = client;
+		return client;
+	}
+
+	private RailNetSegment segment(RailNetwork network, int index) {
+		RailNetSegment segment = segments[index];
+		if (segment != null)
+			return segment;
+		int entry = segmentTable + index * SEGMENT_SIZE;
+		UUID id = new UUID(buffer.getLong(entry), buffer.getLong(entry + 8));
+		int clientA = buffer.getInt(entry + 16);
+		int clientB = buffer.getInt(entry + 20);
+		int direction = buffer.get(entry + 24);
+		segment = new RailNetSegment(id, clientA < 0 ? null : client(network, clientA),
+				clientB < 0 ? null : client(network, clientB), direction < 0 ? null : DIRECTIONS[direction], null,
+				buffer.getLong(entry + 32));
+		try {
+			segment.setGeometry(SegmentGeometry.read(input(buffer.getInt(entry + 40))));
+		} catch (IOException e) {
+			FMLLog.warning("RailNet: segment %s of %s lost its map: %s", id, file, e.getMessage());
+		}
+		segment.setActualLength(buffer.getInt(entry + 28));
+		segments[index] = segment;
+		network.addSegment(segment);
+		return segment;
+	}
+
+	/**
+	 * Binary search of a table sorted by UUID.
+	 *
+	 * @return the index of the entry; otherwise <code>-1</code>.
+	 */
+	private int find(int table, int size, int count, UUID id) {
+		long most = id.getMostSignificantBits();
+		long least = id.getLeastSignificantBits();
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int mid = low + high >>> 1;
+			int entry = table + mid * size;
+			long m = buffer.getLong(entry);
+			long l = buffer.getLong(entry + 8);
+			if (m < most || m == most && l < least)
+				low = mid + 1;
+			else if (m != most || l != least)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	private DataInputStream input(int offset) {
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		return new DataInputStream(new BufferInput(view));
+	}
+
+	/**
+	 * The connected segments of a loaded client, which loads the segments the
+	 * first time the list is used.
+	 */
+	private final class SegmentList extends AbstractList<RailNetSegment> {
+		private final RailNetwork network;
+		private final int offset;
+		private final int count;
+		private List<RailNetSegment> list;
+
+		private SegmentList(RailNetwork network, int offset, int count) {
+			this.network = network;
+			this.offset = offset;
+			this.count = count;
+		}
+
+		private List<RailNetSegment> list() {
+			if (list == null) {
+				list = new ArrayList<RailNetSegment>(count);
+				for (int i = 0; i < count; i++) {
+					int index = buffer.getInt(offset + i * 4);
+					RailNetSegment segment = segments[index];
+					if (segment == null) {
+						int entry = segmentTable + index * SEGMENT_SIZE;
+						segment = network.getSegment(new UUID(buffer.getLong(entry), buffer.getLong(entry + 8)));
+					}
+					if (segment != null)
+						list.add(segment);
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public RailNetSegment get(int index) {
+			return list().get(index);
+		}
+
+		@Override
+		public int size() {
+			return list().size();
+		}
+
+		@Override
+		public RailNetSegment set(int index, RailNetSegment element) {
+			return list().set(index, element);
+		}
+
+		@Override
+		public void add(int index, RailNetSegment element) {
+			list().add(index, element);
+		}
+
+		@Override
+		public RailNetSegment remove(int index) {
+			return list().remove(index);
+		}
+	}
+
+	/**
+	 * Reads a mapped buffer as a stream.
+	 */
+	private static final class BufferInput extends InputStream {
+		private final ByteBuffer buffer;
+
+		private BufferInput(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (!buffer.hasRemaining())
+				return -1;
+			length = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, length);
+			return length;
+		}
+
+		@Override
+		public long skip(long count) {
+			int skipped = (int) Math.max(0, Math.min(count, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+	// ===========================
+	// Writing
+	// ===========================
+
+	private static final Comparator<RailNetClient> CLIENT_ORDER = new Comparator<RailNetClient>() {
+		@Override
+		public int compare(RailNetClient a, RailNetClient b) {
+			return a.getID().compareTo(b.getID());
+		}
+	};
+
+	private static final Comparator<RailNetSegment> SEGMENT_ORDER = new Comparator<RailNetSegment>() {
+		@Override
+		public int compare(RailNetSegment a, RailNetSegment b) {
+			return a.getID().compareTo(b.getID());
+		}
+	};
+
+	/**
+	 * Writes a snapshot of a network, loading whatever is not loaded yet.
+	 *
+	 * @param network
+	 * @param file
+	 * @param generation
+	 *            The generation of the saved buckets the snapshot matches.
+	 * @throws IOException
+	 */
+	static void write(RailNetwork network, File file, long generation) throws IOException {
+		List<RailNetClient> clients = new ArrayList<RailNetClient>(network.getClients());
+		List<RailNetSegment> segments = new ArrayList<RailNetSegment>(network.getSegments());
+		Collections.sort(clients, CLIENT_ORDER);
+		Collections.sort(segments, SEGMENT_ORDER);
+		Map<Object, Integer> index = new IdentityHashMap<Object, Integer>();
+		for (int i = 0; i < clients.size(); i++)
+			index.put(clients.get(i), i);
+		for (int i = 0; i < segments.size(); i++)
+			index.put(segments.get(i), i);
+
+		// Chunk keys of each segment, sorted by key
+		List<long[]> chunks = new ArrayList<long[]>();
+		SegmentGeometry.Cursor cursor = new SegmentGeometry.Cursor();
+		for (int i = 0; i < segments.size(); i++) {
+			long[] keys = new long[16];
+			int count = 0;
+			cursor.reset(segments.get(i).getGeometry());
+			while (cursor.next())
+				for (int cx = Math.min(cursor.getXA(), cursor.getXB()) >> 4; cx <= Math.max(cursor.getXA(),
+						cursor.getXB()) >> 4; cx++)
+					for (int cz = Math.min(cursor.getZA(), cursor.getZB()) >> 4; cz <= Math.max(cursor.getZA(),
+							cursor.getZB()) >> 4; cz++) {
+						if (count == keys.length)
+							keys = Arrays.copyOf(keys, count * 2);
+						keys[count++] = SegmentIndex.key(cx, cz);
+					}
+			Arrays.sort(keys, 0, count);
+			for (int k = 0; k < count; k++)
+				if (k == 0 || keys[k] != keys[k - 1])
+					chunks.add(new long[] { keys[k], i });
+		}
+		Collections.sort(chunks, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : Long.compare(a[1], b[1]);
+			}
+		});
+
+		int dataStart = HEADER_SIZE + clients.size() * CLIENT_SIZE + segments.size() * SEGMENT_SIZE
+				+ chunks.size() * CHUNK_SIZE;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(dataStart);
+		DataOutputStream data = new DataOutputStream(bytes);
+		Map<String, Integer> types = new HashMap<String, Integer>();
+		List<String> typeNames = new ArrayList<String>();
+
+		ByteArrayOutputStream tableBytes = new ByteArrayOutputStream(dataStart);
+		DataOutputStream tables = new DataOutputStream(tableBytes);
+		for (RailNetClient client : clients) {
+			String type = client.getClass().getName();
+			Integer typeIndex = types.get(type);
+			if (typeIndex == null) {
+				types.put(type, typeIndex = typeNames.size());
+				typeNames.add(type);
+			}
+			RecordCodec.writeUUID(tables, client.getID());
+			tables.writeInt(typeIndex);
+			if (client.getName() == null)
+				tables.writeInt(-1);
+			else {
+				tables.writeInt(dataStart + data.size());
+				data.writeUTF(client.getName());
+			}
+			tables.writeInt(client.getMaxSegments());
+			tables.writeInt(dataStart + data.size());
+			int count = 0;
+			for (RailNetSegment segment : client.getConnectedSegments()) {
+				Integer segmentIndex = index.get(segment);
+				if (segmentIndex != null) {
+					data.writeInt(segmentIndex);
+					count++;
+				}
+			}
+			tables.writeInt(count);
+			tables.writeInt(0);
+		}
+		for (RailNetSegment segment : segments) {
+			RecordCodec.writeUUID(tables, segment.getID());
+			tables.writeInt(indexOf(index, segment.getClientA()));
+			tables.writeInt(indexOf(index, segment.getClientB()));
+			tables.writeByte(segment.getDirection() == null ? -1 : segment.getDirection().ordinal());
+			tables.write(new byte[3]);
+			tables.writeInt(segment.getActualLength());
+			tables.writeLong(segment.getBaseTime());
+			tables.writeInt(dataStart + data.size());
+			segment.getGeometry().write(data);
+			tables.writeInt(0);
+		}
+		for (long[] chunk : chunks) {
+			tables.writeLong(chunk[0]);
+			tables.writeInt((int) chunk[1]);
+		}
+
+		int typesOffset = dataStart + data.size();
+		for (String type : typeNames)
+			data.writeUTF(type);
+		int domainOffset = -1;
+		if (network.getNetDomain() != null) {
+			domainOffset = dataStart + data.size();
+			data.writeUTF(network.getNetDomain());
+		}
+		int linesOffset = dataStart + data.size();
+		ByteArrayOutputStream lineBytes = new ByteArrayOutputStream(256);
+		DataOutputStream line = new DataOutputStream(lineBytes);
+		for (RailNetLineWrapper value : network.getLines()) {
+			lineBytes.reset();
+			RecordCodec.writeLine(line, value);
+			line.flush();
+			data.writeInt(lineBytes.size());
+			lineBytes.writeTo(data);
+		}
+		data.flush();
+		tables.flush();
+
+		CheckedFile.Writer out = CheckedFile.create(file);
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			RecordCodec.writeUUID(out, network.getID());
+			out.writeLong(generation);
+			out.writeInt(clients.size());
+			out.writeInt(segments.size());
+			out.writeInt(chunks.size());
+			out.writeInt(typeNames.size());
+			out.writeInt(typesOffset);
+			out.writeInt(domainOffset);
+			out.writeInt(linesOffset);
+			out.writeInt(network.getLines().size());
+			tableBytes.writeTo(out);
+			bytes.writeTo(out);
+			out.commit();
+		} finally {
+			out.discard();
+		}
+	}
+
+	private static int indexOf(Map<Object, Integer> index, Object value) {
+		Integer found = value == null ? null : index.get(value);
+		return found == null ? -1 : found;
+	}
+
+	// ===========================
+	// Getters
+	// ===========================
+
+	/**
+	 * Reads the whole snapshot and verifies its checksum.
+	 *
+	 * @return <code>true</code> if the snapshot is intact.
+	 * @throws IOException
+	 */
+	public boolean verify() throws IOException {
+		ByteBuffer all;
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			all = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+		} finally {
+			in.close();
+		}
+		int length = all.capacity() - 4;
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[8192];
+		for (int position = 0; position < length; position += chunk.length) {
+			int count = Math.min(chunk.length, length - position);
+			all.get(chunk, 0, count);
+			crc.update(chunk, 0, count);
+		}
+		return (int) crc.getValue() == all.getInt(length);
+	}
+
+	public UUID getNetworkID() {
+		return networkID;
+	}
+
+	public long getGeneration() {
+		return generation;
+	}
+
+	public int getClientCount() {
+		return clientCount;
+	}
+
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+
+	/**
+	 * @param index
+	 * @return the UUID of a client, without loading it.
+	 */
+	public UUID getClientID(int index) {
+		int entry = HEADER_SIZE + index * CLIENT_SIZE;
+		return new UUID(buffer.getLong(entry), buffer.getLong(entry + 8));
+	}
+
+	/**
+	 * @param index
+	 * @return the UUID of a segment, without loading it.
+	 */
+	public UUID getSegmentID(int index) {
+		int entry = segmentTable + index * SEGMENT_SIZE;
+		return new UUID(buffer.getLong(entry), buffer.getLong(entry + 8));
+	}
+
+	/** @return the number of clients created from the snapshot so far. */
+	public int getLoadedClients() {
+		return clientsDone.cardinality();
+	}
+
+	public File getFile() {
+		return file;
+	}
+}
@@ -0,0 +1,548 @@
+package mod.rp.railnet.common.core.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import cpw.mods.fml.common.FMLLog;
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.clients.RailNetClient;
+import mod.rp.railnet.common.core.routing.RailNetLineWrapper;
+import mod.rp.railnet.common.core.routing.RailNetSegment;
+import mod.rp.railnet.common.core.routing.RailNetwork;
+import mod.rp.railnet.common.core.routing.RailNetworkListener;
+
+/**
+ * Saves one {@link RailNetwork} into its own folder, rewriting only what
+ * changed since the last save.
+ * <p>
+ * Clients, segments and lines are spread over a fixed number of bucket files
+ * per kind by the hash of their UUID. The store listens to the network and
+ * marks the bucket of every changed or removed client and segment dirty; lines
+ * are compared with the revision and contents they were saved with. A save
+ * rewrites the dirty buckets only, so its cost follows the amount of change
+ * rather than the size of the network. The store keeps the UUIDs of the
+ * clients and segments in each bucket, so a save only looks up the records of
+ * the dirty buckets and a network restored from a snapshot stays lazily
+ * loaded.
+ * </p>
+ * <p>
+ * Every file is a {@link CheckedFile}, so a crash during a save leaves the
+ * previous version of a file intact and damaged files are detected on load.
+ * </p>
+ * <p>
+ * Each save that writes anything raises the generation of the network, which
+ * is written before the buckets. A {@link NetworkSnapshot} of the same
+ * generation holds exactly what the buckets hold and is restored instead of
+ * them. Snapshots alternate between two files, as a mapped file cannot be
+ * replaced on every platform.
+ * </p>
+ * <p>
+ * Between saves, changed clients and segments are appended to a
+ * {@link NetworkJournal} every tick, which is replayed after a crash and
+ * started over by every save.
+ * </p>
+ *
+ * <pre>
+ * network.dat       network UUID, domain, bucket count, generation
+ * clients-NN.dat    kind, record count, (length, record)...
+ * segments-NN.dat
+ * lines-NN.dat
+ * snapshot-N.dat    see {@link NetworkSnapshot}
+ * journal.dat       see {@link NetworkJournal}
+ * </pre>
+ *
+ * @author MajorR
+ *
+ */
+public class NetworkStore implements RailNetworkListener {
+
+	static final byte KIND_CLIENTS = 0;
+	static final byte KIND_SEGMENTS = 1;
+	static final byte KIND_LINES = 2;
+
+	private static final String[] KIND_NAMES = { "clients", "segments", "lines" };
+
+	private final RailNetwork network;
+
+	private final File folder;
+
+	private final int buckets;
+
+	/** Dirty buckets per kind */
+	private final BitSet[] dirty = { new BitSet(), new BitSet(), new BitSet() };
+
+	/** UUIDs of the clients and of the segments per bucket */
+	private final List<Set<UUID>> clientBuckets, segmentBuckets;
+
+	/** Whether the network file needs to be written */
+	private boolean headerDirty;
+
+	/** The domain the network file was written with */
+	private String savedDomain;
+
+	/** Stamp of each line when it was last saved */
+	private final Map<UUID, Long> savedLines = new HashMap<UUID, Long>();
+
+	/** Number of saves that wrote anything */
+	private long generation;
+
+	/** The snapshot file the network was restored from; otherwise -1 */
+	private int snapshotFile = -1;
+
+	/** The generation of the newest snapshot; otherwise -1 */
+	private long snapshotGeneration = -1;
+
+	/** Changes since the last save */
+	private final NetworkJournal journal;
+
+	private NetworkStore(RailNetwork network, File folder, int buckets) {
+		this.network = network;
+		this.folder = folder;
+		this.buckets = buckets;
+		this.journal = new NetworkJournal(network, new File(folder, "journal.dat"));
+		this.clientBuckets = new ArrayList<Set<UUID>>(buckets);
+		this.segmentBuckets = new ArrayList<Set<UUID>>(buckets);
+		for (int bucket = 0; bucket < buckets; bucket++) {
+			clientBuckets.add(new HashSet<UUID>());
+			segmentBuckets.add(new HashSet<UUID>());
+		}
+	}
+
+	/**
+	 * Creates the store of a network that has not been saved yet. Everything
+	 * is written on the first save, which also starts the journal.
+	 *
+	 * @param network
+	 * @param folder
+	 * @param buckets
+	 *            The number of files per kind; a power of two.
+	 * @return the store, listening to the network.
+	 */
+	static NetworkStore create(RailNetwork network, File folder, int buckets) {
+		NetworkStore store = new NetworkStore(network, folder, buckets);
+		store.headerDirty = true;
+		for (BitSet kind : store.dirty)
+			kind.set(0, buckets);
+		store.addMembers();
+		network.addListener(store);
+		return store;
+	}
+
+	/**
+	 * Restores a network from its folder, from a snapshot if an up to date one
+	 * exists and snapshots are enabled.
+	 *
+	 * @param folder
+	 * @return the store of the restored network, listening to it.
+	 * @throws IOException
+	 *             if the network file cannot be read or the journal cannot be
+	 *             opened.
+	 */
+	static NetworkStore load(File folder) throws IOException {
+		DataInputStream in = CheckedFile.open(new File(folder, "network.dat"));
+		UUID id;
+		String domain;
+		int buckets;
+		long generation;
+		try {
+			id = RecordCodec.readUUID(in);
+			domain = RecordCodec.readString(in);
+			buckets = in.readInt();
+			generation = in.readLong();
+		} finally {
+			in.close();
+		}
+
+		RailNetwork network = new RailNetwork(id);
+		network.setNewDomain(domain);
+		NetworkStore store = new NetworkStore(network, folder, buckets);
+		store.savedDomain = domain;
+		store.generation = generation;
+		if (!CONFIG.STORAGE.SNAPSHOTS || !store.attachSnapshot()) {
+			for (byte kind = KIND_CLIENTS; kind <= KIND_LINES; kind++)
+				for (int bucket = 0; bucket < buckets; bucket++)
+					store.readBucket(kind, bucket);
+			store.addMembers();
+		}
+		for (RailNetLineWrapper line : network.getLines())
+			store.savedLines.put(line.getLineID(), stamp(line));
+		network.addListener(store);
+		int replayed = store.journal.replay(generation);
+		if (replayed > 0)
+			FMLLog.info("RailNet: replayed %d changes of network %s", replayed, id);
+		return store;
+	}
+
+	/**
+	 * Attaches the snapshot of the current generation to the network.
+	 *
+	 * @return <code>true</code> if a snapshot was attached.
+	 */
+	private boolean attachSnapshot() {
+		for (int i = 0; i < 2; i++) {
+			File file = getSnapshotFile(i);
+			if (!file.exists())
+				continue;
+			try {
+				NetworkSnapshot snapshot = NetworkSnapshot.open(file);
+				if (!snapshot.getNetworkID().equals(network.getID()) || snapshot.getGeneration() != generation)
+					continue;
+				if (CONFIG.STORAGE.VERIFY_SNAPSHOTS && !snapshot.verify())
+					throw new IOException("Checksum mismatch");
+				snapshot.attach(network);
+				for (int c = 0; c < snapshot.getClientCount(); c++)
+					clientBuckets.get(bucket(snapshot.getClientID(c))).add(snapshot.getClientID(c));
+				for (int s = 0; s < snapshot.getSegmentCount(); s++)
+					segmentBuckets.get(bucket(snapshot.getSegmentID(s))).add(snapshot.getSegmentID(s));
+			} catch (IOException e) {
+				FMLLog.warning("RailNet: snapshot %s was not used: %s", file, e.getMessage());
+				continue;
+			}
+			snapshotFile = i;
+			snapshotGeneration = generation;
+			return true;
+		}
+		return false;
+	}
+
+	// ===========================
+	// Dirty Tracking
+	// ===========================
+
+	@Override
+	public void segmentChanged(RailNetSegment segment, Change change) {
+		int bucket = bucket(segment.getID());
+		dirty[KIND_SEGMENTS].set(bucket);
+		if (change == Change.ADDED)
+			segmentBuckets.get(bucket).add(segment.getID());
+		else if (change == Change.REMOVED)
+			segmentBuckets.get(bucket).remove(segment.getID());
+		journal.segmentChanged(segment, change);
+	}
+
+	@Override
+	public void clientChanged(RailNetClient client, Change change) {
+		int bucket = bucket(client.getID());
+		dirty[KIND_CLIENTS].set(bucket);
+		if (change == Change.ADDED)
+			clientBuckets.get(bucket).add(client.getID());
+		else if (change == Change.REMOVED)
+			clientBuckets.get(bucket).remove(client.getID());
+		journal.clientChanged(client, change);
+	}
+
+	/**
+	 * Puts every client and segment of a loaded network into its bucket.
+	 */
+	private void addMembers() {
+		for (RailNetClient client : network.getClients())
+			clientBuckets.get(bucket(client.getID())).add(client.getID());
+		for (RailNetSegment segment : network.getSegments())
+			segmentBuckets.get(bucket(segment.getID())).add(segment.getID());
+	}
+
+	/**
+	 * Marks the buckets of added, changed and removed lines dirty.
+	 */
+	private void checkLines() {
+		Map<UUID, Long> current = new HashMap<UUID, Long>();
+		for (RailNetLineWrapper line : network.getLines()) {
+			long stamp = stamp(line);
+			current.put(line.getLineID(), stamp);
+			Long saved = savedLines.get(line.getLineID());
+			if (saved == null || saved != stamp)
+				dirty[KIND_LINES].set(bucket(line.getLineID()));
+		}
+		for (UUID id : savedLines.keySet())
+			if (!current.containsKey(id))
+				dirty[KIND_LINES].set(bucket(id));
+		savedLines.clear();
+		savedLines.putAll(current);
+	}
+
+	/**
+	 * @return a value that changes whenever a setting, the train or the
+	 *         checkpoints of the line change.
+	 */
+	private static long stamp(RailNetLineWrapper line) {
+		int hash = line.getTrainID() == null ? 0 : line.getTrainID().hashCode();
+		for (RailNetClient checkpoint : line.getCheckpoints())
+			hash = 31 * hash + checkpoint.getID().hashCode();
+		return (long) line.getRevision() << 32 | (hash & 0xFFFFFFFFL);
+	}
+
+	private int bucket(UUID id) {
+		return id.hashCode() & (buckets - 1);
+	}
+
+	/**
+	 * @return <code>true</code> if the next save writes anything.
+	 */
+	public boolean isDirty() {
+		checkLines();
+		if (headerDirty || !equal(savedDomain, network.getNetDomain()))
+			return true;
+		for (BitSet kind : dirty)
+			if (!kind.isEmpty())
+				return true;
+		return false;
+	}
+
+	// ===========================
+	// Saving
+	// ===========================
+
+	/**
+	 * Writes the dirty buckets of the network.
+	 *
+	 * @return the number of files written or deleted.
+	 * @throws IOException
+	 */
+	public int save() throws IOException {
+		if (!isDirty())
+			return 0;
+		if (!folder.isDirectory() && !folder.mkdirs())
+			throw new IOException("Cannot create " + folder);
+		// The new generation goes first, so a save that is cut short leaves
+		// no snapshot matching the buckets
+		generation++;
+		writeHeader();
+		int written = 1;
+
+		List<List<Object>> records = new ArrayList<List<Object>>();
+		for (byte kind = KIND_CLIENTS; kind <= KIND_LINES; kind++) {
+			BitSet kindDirty = dirty[kind];
+			if (kindDirty.isEmpty())
+				continue;
+			records.clear();
+			for (int bucket = 0; bucket < buckets; bucket++)
+				records.add(kindDirty.get(bucket) ? new ArrayList<Object>() : null);
+			if (kind == KIND_LINES)
+				for (RailNetLineWrapper line : network.getLines()) {
+					List<Object> bucket = records.get(bucket(line.getLineID()));
+					if (bucket != null)
+						bucket.add(line);
+				}
+			for (int bucket = kindDirty.nextSetBit(0); bucket >= 0; bucket = kindDirty.nextSetBit(bucket + 1)) {
+				if (kind != KIND_LINES)
+					getRecords(kind, bucket, records.get(bucket));
+				writeBucket(kind, bucket, records.get(bucket));
+				written++;
+			}
+			kindDirty.clear();
+		}
+		journal.reset(generation);
+		return written;
+	}
+
+	/**
+	 * Appends the clients and segments changed since the last call to the
+	 * journal. Nothing is appended before the first save of a new network.
+	 *
+	 * @return the number of entries appended.
+	 * @throws IOException
+	 */
+	public int flushJournal() throws IOException {
+		return journal.isOpen() ? journal.flush() : 0;
+	}
+
+	/**
+	 * @return the size of the journal in bytes.
+	 * @throws IOException
+	 */
+	public long getJournalSize() throws IOException {
+		return journal.length();
+	}
+
+	/**
+	 * Stops listening to the network and closes the journal. Changes that were
+	 * not saved or appended are lost.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		network.removeListener(this);
+		journal.close();
+	}
+
+	/**
+	 * Closes the store and deletes its files, once its network was merged into
+	 * another. The header goes first, so a folder that could not be emptied
+	 * is no longer restored.
+	 *
+	 * @throws IOException
+	 *             if the header cannot be deleted.
+	 */
+	public void delete() throws IOException {
+		close();
+		File header = new File(folder, "network.dat");
+		if (header.exists() && !header.delete())
+			throw new IOException("Cannot delete " + header);
+		File[] files = folder.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		folder.delete();
+	}
+
+	/**
+	 * Looks up the clients or segments of one bucket, loading only those that
+	 * are not loaded yet.
+	 */
+	private void getRecords(byte kind, int bucket, List<Object> records) {
+		if (kind == KIND_CLIENTS) {
+			for (UUID id : clientBuckets.get(bucket)) {
+				RailNetClient client = network.getClient(id);
+				if (client != null)
+					records.add(client);
+			}
+		} else {
+			for (UUID id : segmentBuckets.get(bucket)) {
+				RailNetSegment segment = network.getSegment(id);
+				if (segment != null)
+					records.add(segment);
+			}
+		}
+	}
+
+	private void writeHeader() throws IOException {
+		String domain = network.getNetDomain();
+		CheckedFile.Writer out = CheckedFile.create(new File(folder, "network.dat"));
+		try {
+			RecordCodec.writeUUID(out, network.getID());
+			RecordCodec.writeString(out, domain);
+			out.writeInt(buckets);
+			out.writeLong(generation);
+			out.commit();
+		} finally {
+			out.discard();
+		}
+		savedDomain = domain;
+		headerDirty = false;
+	}
+
+	private void writeBucket(byte kind, int bucket, List<Object> records) throws IOException {
+		File file = getBucketFile(kind, bucket);
+		if (records.isEmpty()) {
+			if (file.exists() && !file.delete())
+				throw new IOException("Cannot delete " + file);
+			return;
+		}
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+		DataOutputStream record = new DataOutputStream(buffer);
+		CheckedFile.Writer out = CheckedFile.create(file);
+		try {
+			out.writeByte(kind);
+			out.writeInt(records.size());
+			for (Object value : records) {
+				// Records are length-prefixed so unreadable ones can be skipped
+				buffer.reset();
+				if (kind == KIND_CLIENTS)
+					RecordCodec.writeClient(record, (RailNetClient) value);
+				else if (kind == KIND_SEGMENTS)
+					RecordCodec.writeSegment(record, (RailNetSegment) value);
+				else
+					RecordCodec.writeLine(record, (RailNetLineWrapper) value);
+				record.flush();
+				out.writeInt(buffer.size());
+				buffer.writeTo(out);
+			}
+			out.commit();
+		} finally {
+			out.discard();
+		}
+	}
+
+	private void readBucket(byte kind, int bucket) throws IOException {
+		File file = getBucketFile(kind, bucket);
+		if (!file.exists())
+			return;
+		DataInputStream in;
+		try {
+			in = CheckedFile.open(file);
+		} catch (IOException e) {
+			FMLLog.severe("RailNet: %s is damaged and was skipped: %s", file, e.getMessage());
+			return;
+		}
+		try {
+			if (in.readByte() != kind)
+				throw new IOException("Wrong kind of records");
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes));
+				try {
+					if (kind == KIND_CLIENTS)
+						RecordCodec.readClient(record, network);
+					else if (kind == KIND_SEGMENTS)
+						RecordCodec.readSegment(record, network);
+					else
+						RecordCodec.readLine(record, network);
+				} catch (IOException e) {
+					FMLLog.warning("RailNet: skipped a damaged record of %s: %s", file, e.getMessage());
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Saves the network and writes a snapshot of it, unless the newest
+	 * snapshot is still up to date. This loads every client and segment of the
+	 * network.
+	 *
+	 * @return <code>true</code> if a snapshot was written.
+	 * @throws IOException
+	 */
+	public boolean saveSnapshot() throws IOException {
+		save();
+		if (snapshotGeneration == generation)
+			return false;
+		NetworkSnapshot.write(network, getSnapshotFile(snapshotFile == 0 ? 1 : 0), generation);
+		snapshotGeneration = generation;
+		return true;
+	}
+
+	private File getSnapshotFile(int index) {
+		return new File(folder, "snapshot-" + index + ".dat");
+	}
+
+	private File getBucketFile(byte kind, int bucket) {
+		return new File(folder, String.format("%s-%02x.dat", KIND_NAMES[kind], bucket));
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	// ===========================
+	// Getters
+	// ===========================
+
+	public RailNetwork getNetwork() {
+		return network;
+	}
+
+	public File getFolder() {
+		return folder;
+	}
+
+	/** @return the number of saves of the network that wrote anything. */
+	public long getGeneration() {
+		return generation;
+	}
+}
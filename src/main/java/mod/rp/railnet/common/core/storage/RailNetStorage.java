@@ -0,0 +1,227 @@
+package mod.rp.railnet.common.core.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import cpw.mods.fml.common.FMLLog;
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
+import cpw.mods.fml.common.gameevent.TickEvent.Phase;
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.routing.RailNetwork;
+import mod.rp.railnet.common.util.profiling.Profiler;
+import net.minecraftforge.event.world.WorldEvent;
+
+/**
+ * Saves and restores every {@link RailNetwork} of a world. Each network is
+ * kept by a {@link NetworkStore} in its own folder below
+ * <code>&lt;world&gt;/railnet/networks</code>, and saved incrementally whenever
+ * the overworld is saved. At the end of every server tick the changes of the
+ * tick are appended to the journal of each network; a journal grown past
+ * {@link CONFIG.STORAGE#JOURNAL_LIMIT} is folded into the buckets by saving
+ * its network.
+ * <p>
+ * The storage handles both world and tick events, so it is registered with
+ * both event buses.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+public class RailNetStorage {
+
+	private final File folder;
+
+	/** Stores by network */
+	private final Map<RailNetwork, NetworkStore> stores = new IdentityHashMap<RailNetwork, NetworkStore>();
+
+	/**
+	 * @param worldFolder
+	 *            The save folder of the world.
+	 */
+	public RailNetStorage(File worldFolder) {
+		this.folder = new File(new File(worldFolder, CONFIG.STORAGE.FOLDER), "networks");
+	}
+
+	/**
+	 * Restores every saved network that is not loaded yet.
+	 *
+	 * @return the number of networks restored.
+	 */
+	public int load() {
+		File[] networks = folder.listFiles();
+		if (networks == null)
+			return 0;
+		int loaded = 0;
+		for (File networkFolder : networks) {
+			if (!networkFolder.isDirectory() || isLoaded(networkFolder.getName()))
+				continue;
+			if (!new File(networkFolder, "network.dat").exists()) {
+				// Left behind by a network merged into another
+				deleteFolder(networkFolder);
+				continue;
+			}
+			try {
+				NetworkStore store = NetworkStore.load(networkFolder);
+				stores.put(store.getNetwork(), store);
+				loaded++;
+			} catch (IOException e) {
+				FMLLog.severe("RailNet: network %s could not be restored: %s", networkFolder.getName(),
+						e.getMessage());
+			}
+		}
+		return loaded;
+	}
+
+	private boolean isLoaded(String id) {
+		for (RailNetwork network : RailNetwork.getNetworks())
+			if (network.getID().toString().equals(id))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Writes whatever changed in every network since the last save.
+	 *
+	 * @return the number of files written or deleted.
+	 */
+	public int save() {
+		int written = 0;
+		for (RailNetwork network : RailNetwork.getNetworks()) {
+			NetworkStore store = getOrCreateStore(network);
+			long start = Profiler.start();
+			try {
+				written += store.save();
+			} catch (IOException e) {
+				FMLLog.severe("RailNet: network %s could not be saved: %s", network.getID(), e.getMessage());
+			}
+			Profiler.stop(Profiler.Section.PERSISTENCE, network, start);
+		}
+		deleteRemoved();
+		return written;
+	}
+
+	/**
+	 * Saves every network and writes snapshots of the networks that changed
+	 * since their last snapshot, so the next start can map them instead of
+	 * reading every record.
+	 *
+	 * @return the number of snapshots written.
+	 */
+	public int saveSnapshots() {
+		save();
+		int written = 0;
+		for (NetworkStore store : stores.values()) {
+			long start = Profiler.start();
+			try {
+				if (store.saveSnapshot())
+					written++;
+			} catch (IOException e) {
+				FMLLog.severe("RailNet: snapshot of network %s could not be written: %s", store.getNetwork().getID(),
+						e.getMessage());
+			}
+			Profiler.stop(Profiler.Section.PERSISTENCE, store.getNetwork(), start);
+		}
+		return written;
+	}
+
+	/**
+	 * Appends the changes of the tick to the journals. Networks created since
+	 * the last save are saved first, so they can be restored from their
+	 * journal. The stores of networks merged into others are deleted once the
+	 * networks they merged into were written.
+	 */
+	public void flushJournals() {
+		for (RailNetwork network : RailNetwork.getNetworks()) {
+			NetworkStore store = stores.get(network);
+			long start = Profiler.start();
+			try {
+				if (store == null)
+					getOrCreateStore(network).save();
+				else if (store.flushJournal() > 0 && store.getJournalSize() > CONFIG.STORAGE.JOURNAL_LIMIT)
+					store.save();
+			} catch (IOException e) {
+				FMLLog.severe("RailNet: changes of network %s could not be saved: %s", network.getID(),
+						e.getMessage());
+			}
+			Profiler.stop(Profiler.Section.PERSISTENCE, network, start);
+		}
+		deleteRemoved();
+	}
+
+	private void deleteRemoved() {
+		for (Iterator<NetworkStore> it = stores.values().iterator(); it.hasNext();) {
+			NetworkStore store = it.next();
+			if (!store.getNetwork().isRemoved())
+				continue;
+			it.remove();
+			try {
+				store.delete();
+			} catch (IOException e) {
+				FMLLog.severe("RailNet: merged network %s could not be deleted: %s", store.getNetwork().getID(),
+						e.getMessage());
+			}
+		}
+	}
+
+	private static void deleteFolder(File folder) {
+		File[] files = folder.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		folder.delete();
+	}
+
+	/**
+	 * Stops every store. Called after the last save when the server stops.
+	 */
+	public void close() {
+		for (NetworkStore store : stores.values()) {
+			try {
+				store.close();
+			} catch (IOException e) {
+				FMLLog.warning("RailNet: journal of network %s was not closed: %s", store.getNetwork().getID(),
+						e.getMessage());
+			}
+		}
+		stores.clear();
+	}
+
+	private NetworkStore getOrCreateStore(RailNetwork network) {
+		NetworkStore store = stores.get(network);
+		if (store == null) {
+			store = NetworkStore.create(network, new File(folder, network.getID().toString()),
+					CONFIG.STORAGE.BUCKETS);
+			stores.put(network, store);
+		}
+		return store;
+	}
+
+	@SubscribeEvent
+	public void onWorldSave(WorldEvent.Save event) {
+		if (!event.world.isRemote && event.world.provider.dimensionId == 0)
+			save();
+	}
+
+	@SubscribeEvent
+	public void onServerTick(TickEvent.ServerTickEvent event) {
+		if (event.phase == Phase.END)
+			flushJournals();
+	}
+
+	/**
+	 * @param network
+	 * @return the store of the network; otherwise <code>null</code> if it was
+	 *         neither restored nor saved yet.
+	 */
+	public NetworkStore getStore(RailNetwork network) {
+		return stores.get(network);
+	}
+
+	public File getFolder() {
+		return folder;
+	}
+}
@@ -0,0 +1,304 @@
+package mod.rp.railnet.common.core.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import cpw.mods.fml.common.FMLLog;
+import mod.rp.railnet.common.core.clients.RailNetClient;
+import mod.rp.railnet.common.core.routing.RailNetLineWrapper;
+import mod.rp.railnet.common.core.routing.RailNetLineWrapper.LineSegmentWrapper;
+import mod.rp.railnet.common.core.routing.RailNetSegment;
+import mod.rp.railnet.common.core.routing.RailNetSegment.SegmentDirection;
+import mod.rp.railnet.common.core.routing.RailNetwork;
+import mod.rp.railnet.common.core.routing.SegmentGeometry;
+
+/**
+ * Binary encoding of the clients, segments and lines of a
+ * {@link RailNetwork}, shared by every save format.
+ * <p>
+ * Clients are restored through a public constructor taking
+ * <code>(UUID, RailNetwork, String)</code>; clients whose class is missing or
+ * has no such constructor are skipped. Segments and lines refer to clients and
+ * segments by UUID, so clients must be read before the segments and lines of
+ * a network.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+public final class RecordCodec {
+
+	private RecordCodec() {
+	}
+
+	// ===========================
+	// Clients
+	// ===========================
+
+	public static void writeClient(DataOutput out, RailNetClient client) throws IOException {
+		writeUUID(out, client.getID());
+		out.writeUTF(client.getClass().getName());
+		writeString(out, client.getName());
+		out.writeInt(client.getMaxSegments());
+	}
+
+	/**
+	 * Restores a client into a network.
+	 *
+	 * @param in
+	 * @param network
+	 * @return the client; otherwise <code>null</code> if its class cannot be
+	 *         restored.
+	 * @throws IOException
+	 */
+	public static RailNetClient readClient(DataInput in, RailNetwork network) throws IOException {
+		UUID id = readUUID(in);
+		String type = in.readUTF();
+		String name = readString(in);
+		int maxSegments = in.readInt();
+		RailNetClient client = network.getClient(id);
+		if (client == null) {
+			client = createClient(type, id, network, name);
+			if (client == null)
+				return null;
+		}
+		client.setMaxSegments(maxSegments);
+		return client;
+	}
+
+	static RailNetClient createClient(String type, UUID id, RailNetwork network, String name) {
+		try {
+			Class<? extends RailNetClient> clientClass = Class.forName(type).asSubclass(RailNetClient.class);
+			Constructor<? extends RailNetClient> constructor = clientClass.getConstructor(UUID.class,
+					RailNetwork.class, String.class);
+			return constructor.newInstance(id, network, name);
+		} catch (ClassNotFoundException e) {
+			FMLLog.warning("RailNet: client %s of unknown type %s was not restored", id, type);
+		} catch (NoSuchMethodException e) {
+			FMLLog.warning("RailNet: client type %s cannot be restored", type);
+		} catch (ClassCastException e) {
+			FMLLog.warning("RailNet: %s is not a client type", type);
+		} catch (InstantiationException e) {
+			FMLLog.warning("RailNet: client type %s cannot be restored", type);
+		} catch (IllegalAccessException e) {
+			FMLLog.warning("RailNet: client type %s cannot be restored", type);
+		} catch (InvocationTargetException e) {
+			FMLLog.warning("RailNet: client %s failed to restore: %s", id, e.getCause());
+		}
+		return null;
+	}
+
+	// ===========================
+	// Segments
+	// ===========================
+
+	public static void writeSegment(DataOutput out, RailNetSegment segment) throws IOException {
+		writeUUID(out, segment.getID());
+		writeNullableUUID(out, segment.getClientA() == null ? null : segment.getClientA().getID());
+		writeNullableUUID(out, segment.getClientB() == null ? null : segment.getClientB().getID());
+		out.writeByte(segment.getDirection() == null ? -1 : segment.getDirection().ordinal());
+		out.writeLong(segment.getBaseTime());
+		out.writeInt(segment.getActualLength());
+		segment.getGeometry().write(out);
+	}
+
+	/**
+	 * Restores a segment and connects it to its clients, which registers it
+	 * with the network. A segment that already exists is replaced.
+	 *
+	 * @param in
+	 * @param network
+	 * @return the segment.
+	 * @throws IOException
+	 */
+	public static RailNetSegment readSegment(DataInput in, RailNetwork network) throws IOException {
+		UUID id = readUUID(in);
+		UUID clientA = readNullableUUID(in);
+		UUID clientB = readNullableUUID(in);
+		int direction = in.readByte();
+		long baseTime = in.readLong();
+		int actualLength = in.readInt();
+		SegmentGeometry geometry = SegmentGeometry.read(in);
+
+		RailNetSegment old = network.getSegment(id);
+		if (old != null)
+			removeSegment(network, old);
+		RailNetClient a = findClient(network, clientA, id);
+		RailNetClient b = findClient(network, clientB, id);
+		RailNetSegment segment = new RailNetSegment(id, a, b,
+				direction < 0 ? null : SegmentDirection.values()[direction], null, baseTime);
+		segment.setGeometry(geometry);
+		segment.setActualLength(actualLength);
+		if (a != null)
+			a.connectSegment(segment);
+		if (b != null && b != a)
+			b.connectSegment(segment);
+		if (a == null && b == null)
+			network.addSegment(segment);
+		return segment;
+	}
+
+	/**
+	 * Disconnects a segment from its clients and removes it from the network.
+	 *
+	 * @param network
+	 * @param segment
+	 */
+	public static void removeSegment(RailNetwork network, RailNetSegment segment) {
+		if (segment.getClientA() != null)
+			segment.getClientA().getConnectedSegments().remove(segment);
+		if (segment.getClientB() != null)
+			segment.getClientB().getConnectedSegments().remove(segment);
+		network.removeSegment(segment);
+	}
+
+	private static RailNetClient findClient(RailNetwork network, UUID client, UUID segment) {
+		if (client == null)
+			return null;
+		RailNetClient found = network.getClient(client);
+		if (found == null)
+			FMLLog.warning("RailNet: segment %s lost its missing client %s", segment, client);
+		return found;
+	}
+
+	// ===========================
+	// Lines
+	// ===========================
+
+	public static void writeLine(DataOutput out, RailNetLineWrapper line) throws IOException {
+		writeUUID(out, line.getLineID());
+		writeNullableUUID(out, line.getTrainID());
+		boolean[] flags = { line.isOrderedPoints(), line.isLoop(), line.isAllowSubroutine(),
+				line.isAllowAutoRouteGen(), line.isAllowTemporaryRoutes(), line.isIgnoreOnError(),
+				line.isDockOnError(), line.isAlwaysUpdateRoute(), line.isAllowRealTimeSync(),
+				line.isAllowRealTimeAssume(), line.isAllowAdvancedTimeCalc(), line.isAllowGhostPaths(),
+				line.isPreferMappedPaths(), line.isAllowMapData(), line.isAllowBaseModel(), line.isWeightedFuel(),
+				line.isWeightedSpeed(), line.isWeightedTime(), line.isWeightedDistance(),
+				line.isWeightedSegments() };
+		int bits = 0;
+		for (int i = 0; i < flags.length; i++)
+			if (flags[i])
+				bits |= 1 << i;
+		out.writeInt(bits);
+		out.writeFloat(line.getWeight_fuel());
+		out.writeFloat(line.getWeight_speed());
+		out.writeFloat(line.getWeight_time());
+		out.writeFloat(line.getWeight_distance());
+
+		List<RailNetClient> checkpoints = line.getCheckpoints();
+		out.writeInt(checkpoints.size());
+		for (RailNetClient checkpoint : checkpoints)
+			writeUUID(out, checkpoint.getID());
+
+		out.writeInt(line.getLineSegments().size());
+		for (LineSegmentWrapper lineSegment : line.getLineSegments().values()) {
+			writeUUID(out, lineSegment.getSegmentID());
+			out.writeLong(lineSegment.getSetRealTime());
+			out.writeBoolean(lineSegment.isRequired());
+			out.writeBoolean(lineSegment.isRestricted());
+			out.writeFloat(lineSegment.getWeight());
+			out.writeInt(lineSegment.getFuel_comsumption());
+		}
+	}
+
+	/**
+	 * Restores a line and adds it to the network, replacing a line with the
+	 * same ID.
+	 *
+	 * @param in
+	 * @param network
+	 * @return the line.
+	 * @throws IOException
+	 */
+	public static RailNetLineWrapper readLine(DataInput in, RailNetwork network) throws IOException {
+		RailNetLineWrapper line = new RailNetLineWrapper(readUUID(in), readNullableUUID(in));
+		int bits = in.readInt();
+		line.setOrderedPoints((bits & 1) != 0);
+		line.setLoop((bits & 1 << 1) != 0);
+		line.setAllowSubroutine((bits & 1 << 2) != 0);
+		line.setAllowAutoRouteGen((bits & 1 << 3) != 0);
+		line.setAllowTemporaryRoutes((bits & 1 << 4) != 0);
+		line.setIgnoreOnError((bits & 1 << 5) != 0);
+		line.setDockOnError((bits & 1 << 6) != 0);
+		line.setAlwaysUpdateRoute((bits & 1 << 7) != 0);
+		line.setAllowRealTimeSync((bits & 1 << 8) != 0);
+		line.setAllowRealTimeAssume((bits & 1 << 9) != 0);
+		line.setAllowAdvancedTimeCalc((bits & 1 << 10) != 0);
+		line.setAllowGhostPaths((bits & 1 << 11) != 0);
+		line.setPreferMappedPaths((bits & 1 << 12) != 0);
+		line.setAllowMapData((bits & 1 << 13) != 0);
+		line.setAllowBaseModel((bits & 1 << 14) != 0);
+		line.setWeightedFuel((bits & 1 << 15) != 0);
+		line.setWeightedSpeed((bits & 1 << 16) != 0);
+		line.setWeightedTime((bits & 1 << 17) != 0);
+		line.setWeightedDistance((bits & 1 << 18) != 0);
+		line.setWeightedSegments((bits & 1 << 19) != 0);
+		line.setWeight_fuel(in.readFloat());
+		line.setWeight_speed(in.readFloat());
+		line.setWeight_time(in.readFloat());
+		line.setWeight_distance(in.readFloat());
+
+		int count = in.readInt();
+		List<RailNetClient> checkpoints = new ArrayList<RailNetClient>(count);
+		for (int i = 0; i < count; i++) {
+			RailNetClient checkpoint = network.getClient(readUUID(in));
+			if (checkpoint != null)
+				checkpoints.add(checkpoint);
+		}
+		line.setCheckpoints(checkpoints);
+
+		count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			UUID segment = readUUID(in);
+			long realTime = in.readLong();
+			boolean required = in.readBoolean();
+			boolean restricted = in.readBoolean();
+			float weight = in.readFloat();
+			LineSegmentWrapper lineSegment = line.new LineSegmentWrapper(segment, realTime, required, restricted,
+					weight);
+			lineSegment.setFuel_comsumption(in.readInt());
+			line.putLineSegment(lineSegment);
+		}
+		network.addLine(line);
+		return line;
+	}
+
+	// ===========================
+	// Primitives
+	// ===========================
+
+	public static void writeUUID(DataOutput out, UUID id) throws IOException {
+		out.writeLong(id.getMostSignificantBits());
+		out.writeLong(id.getLeastSignificantBits());
+	}
+
+	public static UUID readUUID(DataInput in) throws IOException {
+		return new UUID(in.readLong(), in.readLong());
+	}
+
+	public static void writeNullableUUID(DataOutput out, UUID id) throws IOException {
+		out.writeBoolean(id != null);
+		if (id != null)
+			writeUUID(out, id);
+	}
+
+	public static UUID readNullableUUID(DataInput in) throws IOException {
+		return in.readBoolean() ? readUUID(in) : null;
+	}
+
+	public static void writeString(DataOutput out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeUTF(value);
+	}
+
+	public static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
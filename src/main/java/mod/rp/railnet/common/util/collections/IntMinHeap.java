@@ -0,0 +1,203 @@
+package mod.rp.railnet.common.util.collections;
+
+import java.util.Arrays;
+
+/**
+ * An indexed binary min-heap of <code>int</code> elements ordered by a
+ * <code>float</code> key. Elements must be in the range
+ * <code>0..capacity-1</code> and each element can be in the heap at most once,
+ * which allows {@link #offer(int, float)} to lower the key of an element that
+ * is already queued.
+ * <p>
+ * The heap only allocates when its capacity grows, so a single instance can be
+ * reused for any number of searches.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+public class IntMinHeap {
+
+	/** The queued elements in heap order */
+	private int[] elements;
+
+	/** The keys in heap order */
+	private float[] keys;
+
+	/** Position of each element in the heap; otherwise <code>-1</code> */
+	private int[] positions;
+
+	/** The number of queued elements */
+	private int size;
+
+	public IntMinHeap(int capacity) {
+		elements = new int[capacity];
+		keys = new float[capacity];
+		positions = new int[capacity];
+		Arrays.fill(positions, -1);
+	}
+
+	public IntMinHeap() {
+		this(16);
+	}
+
+	/**
+	 * Grows the heap so that elements up to <code>capacity-1</code> can be
+	 * queued.
+	 *
+	 * @param capacity
+	 */
+	public void ensureCapacity(int capacity) {
+		if (capacity <= positions.length)
+			return;
+		int length = Math.max(capacity, positions.length + (positions.length >> 1));
+		elements = Arrays.copyOf(elements, length);
+		keys = Arrays.copyOf(keys, length);
+		int old = positions.length;
+		positions = Arrays.copyOf(positions, length);
+		Arrays.fill(positions, old, length, -1);
+	}
+
+	/**
+	 * Queues the element, or lowers its key if it is already queued with a
+	 * higher key.
+	 *
+	 * @param element
+	 * @param key
+	 * @return <code>true</code> if the element was queued or its key lowered.
+	 */
+	public boolean offer(int element, float key) {
+		int i = positions[element];
+		if (i < 0) {
+			i = size++;
+			elements[i] = element;
+			keys[i] = key;
+			positions[element] = i;
+		} else if (key < keys[i]) {
+			keys[i] = key;
+		} else
+			return false;
+		siftUp(i);
+		return true;
+	}
+
+	/**
+	 * Removes the element with the lowest key.
+	 *
+	 * @return the removed element.
+	 * @throws IllegalStateException
+	 *             if the heap is empty.
+	 */
+	public int poll() {
+		if (size == 0)
+			throw new IllegalStateException("Heap is empty");
+		int top = elements[0];
+		positions[top] = -1;
+		if (--size > 0) {
+			elements[0] = elements[size];
+			keys[0] = keys[size];
+			positions[elements[0]] = 0;
+			siftDown(0);
+		}
+		return top;
+	}
+
+	/** @return the element with the lowest key without removing it. */
+	public int peek() {
+		if (size == 0)
+			throw new IllegalStateException("Heap is empty");
+		return elements[0];
+	}
+
+	/** @return the lowest key in the heap. */
+	public float peekKey() {
+		if (size == 0)
+			throw new IllegalStateException("Heap is empty");
+		return keys[0];
+	}
+
+	/**
+	 * Removes an element from the heap if it is queued.
+	 *
+	 * @param element
+	 * @return <code>true</code> if the element was queued.
+	 */
+	public boolean remove(int element) {
+		int i = positions[element];
+		if (i < 0)
+			return false;
+		positions[element] = -1;
+		if (i != --size) {
+			elements[i] = elements[size];
+			keys[i] = keys[size];
+			positions[elements[i]] = i;
+			siftDown(i);
+			siftUp(positions[elements[i]]);
+		}
+		return true;
+	}
+
+	public boolean contains(int element) {
+		return element < positions.length && positions[element] >= 0;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** Removes all elements. Runs in the number of queued elements. */
+	public void clear() {
+		for (int i = 0; i < size; i++)
+			positions[elements[i]] = -1;
+		size = 0;
+	}
+
+	// ===========================
+	// Heap Order
+	// ===========================
+
+	private void siftUp(int i) {
+		int element = elements[i];
+		float key = keys[i];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (keys[parent] <= key)
+				break;
+			move(parent, i);
+			i = parent;
+		}
+		place(element, key, i);
+	}
+
+	private void siftDown(int i) {
+		int element = elements[i];
+		float key = keys[i];
+		int half = size >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			if (child + 1 < size && keys[child + 1] < keys[child])
+				child++;
+			if (key <= keys[child])
+				break;
+			move(child, i);
+			i = child;
+		}
+		place(element, key, i);
+	}
+
+	private void move(int from, int to) {
+		elements[to] = elements[from];
+		keys[to] = keys[from];
+		positions[elements[to]] = to;
+	}
+
+	private void place(int element, float key, int i) {
+		elements[i] = element;
+		keys[i] = key;
+		positions[element] = i;
+	}
+}
@@ -0,0 +1,279 @@
+package mod.rp.railnet.common.util.collections;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A set of half-open <code>long</code> intervals <code>[start, end)</code>,
+ * each with a value, that finds an interval overlapping a given one in
+ * logarithmic time.
+ * <p>
+ * The intervals are kept in a treap ordered by start, where every node also
+ * holds the latest end below it. Adding and removing an interval and finding
+ * an overlap take <code>O(log n)</code> expected time. Several intervals may
+ * share the same bounds; each is removed through the {@link Entry} returned
+ * when it was added.
+ * </p>
+ *
+ * @author MajorR
+ *
+ * @param <V>
+ *            The type of the values.
+ */
+public class IntervalTree<V> {
+
+	private Entry<V> root;
+
+	/** The number of stored intervals */
+	private int size;
+
+	/** Orders entries with the same start */
+	private long sequence;
+
+	/** State of the priority generator */
+	private int seed = 0x2545F491;
+
+	/**
+	 * An interval of the tree.
+	 *
+	 * @param <V>
+	 */
+	public static final class Entry<V> {
+		private final long start;
+		private final long end;
+		private final V value;
+		private final long order;
+		private final int priority;
+
+		/** Latest end of this entry and its subtrees */
+		private long maxEnd;
+		private Entry<V> left, right;
+
+		private Entry(long start, long end, V value, long order, int priority) {
+			this.start = start;
+			this.end = end;
+			this.value = value;
+			this.order = order;
+			this.priority = priority;
+			this.maxEnd = end;
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		public long getEnd() {
+			return end;
+		}
+
+		public V getValue() {
+			return value;
+		}
+
+		/**
+		 * @return <code>true</code> if the entry comes before another in the
+		 *         order of the tree.
+		 */
+		private boolean isBefore(Entry<V> other) {
+			return start < other.start || start == other.start && order < other.order;
+		}
+	}
+
+	// ===========================
+	// Changes
+	// ===========================
+
+	/**
+	 * Adds an interval.
+	 *
+	 * @param start
+	 * @param end
+	 *            Must be after <code>start</code>
+	 * @param value
+	 * @return the entry of the interval, to remove it with.
+	 * @throws IllegalArgumentException
+	 *             if the interval is empty.
+	 */
+	public Entry<V> add(long start, long end, V value) {
+		if (end <= start)
+			throw new IllegalArgumentException("Empty interval");
+		seed ^= seed << 13;
+		seed ^= seed >>> 17;
+		seed ^= seed << 5;
+		Entry<V> entry = new Entry<V>(start, end, value, sequence++, seed);
+		root = insert(root, entry);
+		size++;
+		return entry;
+	}
+
+	private Entry<V> insert(Entry<V> node, Entry<V> entry) {
+		if (node == null)
+			return entry;
+		if (entry.isBefore(node)) {
+			node.left = insert(node.left, entry);
+			if (node.left.priority > node.priority)
+				node = rotateRight(node);
+		} else {
+			node.right = insert(node.right, entry);
+			if (node.right.priority > node.priority)
+				node = rotateLeft(node);
+		}
+		update(node);
+		return node;
+	}
+
+	/**
+	 * Removes an interval.
+	 *
+	 * @param entry
+	 * @return <code>true</code> if the entry was in the tree.
+	 */
+	public boolean remove(Entry<V> entry) {
+		int before = size;
+		root = delete(root, entry);
+		return size < before;
+	}
+
+	private Entry<V> delete(Entry<V> node, Entry<V> entry) {
+		if (node == null)
+			return null;
+		if (node == entry) {
+			size--;
+			return join(node.left, node.right);
+		}
+		if (entry.isBefore(node))
+			node.left = delete(node.left, entry);
+		else
+			node.right = delete(node.right, entry);
+		update(node);
+		return node;
+	}
+
+	/**
+	 * Joins two subtrees where every entry of the first comes before every
+	 * entry of the second.
+	 */
+	private Entry<V> join(Entry<V> a, Entry<V> b) {
+		if (a == null)
+			return b;
+		if (b == null)
+			return a;
+		if (a.priority > b.priority) {
+			a.right = join(a.right, b);
+			update(a);
+			return a;
+		}
+		b.left = join(a, b.left);
+		update(b);
+		return b;
+	}
+
+	public void clear() {
+		root = null;
+		size = 0;
+	}
+
+	// ===========================
+	// Queries
+	// ===========================
+
+	/**
+	 * Finds an interval overlapping <code>[start, end)</code>. If several do,
+	 * any of them may be returned.
+	 *
+	 * @param start
+	 * @param end
+	 * @return the entry; otherwise <code>null</code> if no interval overlaps.
+	 */
+	public Entry<V> findOverlap(long start, long end) {
+		if (start >= end)
+			return null;
+		Entry<V> node = root;
+		while (node != null && node.maxEnd > start) {
+			if (node.start < end && node.end > start)
+				return node;
+			// An overlap on the right means one on the left, if the left
+			// reaches far enough
+			if (node.left != null && node.left.maxEnd > start)
+				node = node.left;
+			else if (node.start < end)
+				node = node.right;
+			else
+				return null;
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the earliest time from which <code>[time, time + length)</code>
+	 * overlaps no interval.
+	 *
+	 * @param from
+	 *            The earliest time to consider
+	 * @param length
+	 * @return the time, at least <code>from</code>.
+	 */
+	public long findGap(long from, long length) {
+		long time = from;
+		Entry<V> overlap;
+		while ((overlap = findOverlap(time, time + Math.max(1L, length))) != null)
+			time = overlap.end;
+		return time;
+	}
+
+	/**
+	 * @return the values of every interval, by start.
+	 */
+	public List<V> values() {
+		List<V> values = new ArrayList<V>(size);
+		collect(root, values);
+		return values;
+	}
+
+	private static <V> void collect(Entry<V> node, List<V> values) {
+		while (node != null) {
+			collect(node.left, values);
+			values.add(node.value);
+			node = node.right;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	// ===========================
+	// Balancing
+	// ===========================
+
+	private Entry<V> rotateRight(Entry<V> node) {
+		Entry<V> left = node.left;
+		node.left = left.right;
+		left.right = node;
+		update(node);
+		update(left);
+		return left;
+	}
+
+	private Entry<V> rotateLeft(Entry<V> node) {
+		Entry<V> right = node.right;
+		node.right = right.left;
+		right.left = node;
+		update(node);
+		update(right);
+		return right;
+	}
+
+	private static <V> void update(Entry<V> node) {
+		long maxEnd = node.end;
+		if (node.left != null && node.left.maxEnd > maxEnd)
+			maxEnd = node.left.maxEnd;
+		if (node.right != null && node.right.maxEnd > maxEnd)
+			maxEnd = node.right.maxEnd;
+		node.maxEnd = maxEnd;
+	}
+}
@@ -0,0 +1,149 @@
+package mod.rp.railnet.common.util.collections;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive <code>long</code> keys to objects, using open
+ * addressing with linear probing. Looking up a key neither boxes it nor
+ * allocates, which makes the map suitable for lookups done many times per
+ * tick.
+ * <p>
+ * <code>null</code> values cannot be stored; {@link #get(long)} returns
+ * <code>null</code> for missing keys.
+ * </p>
+ *
+ * @author MajorR
+ *
+ * @param <V>
+ *            The type of the values.
+ */
+public class LongObjectMap<V> {
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+
+	private Object[] values;
+
+	/** The number of stored entries */
+	private int size;
+
+	public LongObjectMap(int capacity) {
+		int length = Integer.highestOneBit(Math.max(4, (int) (capacity / LOAD_FACTOR)) - 1) << 1;
+		keys = new long[length];
+		values = new Object[length];
+	}
+
+	public LongObjectMap() {
+		this(16);
+	}
+
+	/**
+	 * @param key
+	 * @return the value of the key; otherwise <code>null</code>.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int mask = keys.length - 1;
+		for (int i = slot(key, mask);; i = i + 1 & mask) {
+			Object value = values[i];
+			if (value == null)
+				return null;
+			if (keys[i] == key)
+				return (V) value;
+		}
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * @return the previous value of the key; otherwise <code>null</code>.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null)
+			throw new NullPointerException("Null values are not supported");
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		for (; values[i] != null; i = i + 1 & mask)
+			if (keys[i] == key) {
+				V old = (V) values[i];
+				values[i] = value;
+				return old;
+			}
+		keys[i] = key;
+		values[i] = value;
+		if (++size > keys.length * LOAD_FACTOR)
+			resize(keys.length * 2);
+		return null;
+	}
+
+	/**
+	 * @param key
+	 * @return the removed value; otherwise <code>null</code>.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		for (; values[i] != null; i = i + 1 & mask)
+			if (keys[i] == key)
+				break;
+		V old = (V) values[i];
+		if (old == null)
+			return null;
+
+		// Shift later entries of the probe sequence back into the gap
+		int gap = i;
+		for (int j = gap + 1 & mask; values[j] != null; j = j + 1 & mask) {
+			int home = slot(keys[j], mask);
+			if ((j - home & mask) >= (j - gap & mask)) {
+				keys[gap] = keys[j];
+				values[gap] = values[j];
+				gap = j;
+			}
+		}
+		values[gap] = null;
+		size--;
+		return old;
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	private void resize(int length) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[length];
+		values = new Object[length];
+		int mask = length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldValues[j] == null)
+				continue;
+			int i = slot(oldKeys[j], mask);
+			while (values[i] != null)
+				i = i + 1 & mask;
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+
+	private static int slot(long key, int mask) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ hash >>> 32) & mask;
+	}
+}
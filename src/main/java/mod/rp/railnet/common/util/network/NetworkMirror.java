@@ -0,0 +1,377 @@
+package mod.rp.railnet.common.util.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import cpw.mods.fml.common.FMLLog;
+import mod.rp.railnet.common.core.routing.RailNetSegment.SegmentDirection;
+import mod.rp.railnet.common.core.routing.SegmentGeometry;
+
+/**
+ * The copy of a server network kept by a game client, built from the packets
+ * of {@link NetworkSync}.
+ * <p>
+ * Packets arrive on the network thread and are queued; {@link #applyReceived()}
+ * applies them on the client thread, which is the only thread that may read
+ * the mirrors. Every applied change raises the {@link #getRevision() revision}
+ * of the mirror, so views of it can tell when to update; views that keep
+ * state per segment can register a {@link Listener} instead.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+public class NetworkMirror {
+
+	private static final SegmentDirection[] DIRECTIONS = SegmentDirection.values();
+
+	/** Mirrors by network ID */
+	private static final Map<UUID, NetworkMirror> mirrors = new HashMap<UUID, NetworkMirror>();
+
+	/** Packets waiting for the client thread */
+	private static final Queue<byte[]> received = new ConcurrentLinkedQueue<byte[]>();
+
+	private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	private final UUID id;
+
+	private String domain;
+
+	private final Map<Integer, Client> clients = new HashMap<Integer, Client>();
+
+	private final Map<Integer, Segment> segments = new HashMap<Integer, Segment>();
+
+	private final Map<Integer, Train> trains = new HashMap<Integer, Train>();
+
+	private int revision;
+
+	private NetworkMirror(UUID id) {
+		this.id = id;
+	}
+
+	// ===========================
+	// Receiving
+	// ===========================
+
+	/**
+	 * Queues a packet received from the server. May be called from any thread.
+	 *
+	 * @param packet
+	 */
+	static void receive(byte[] packet) {
+		received.add(packet);
+	}
+
+	/**
+	 * Applies the queued packets. Called on the client thread every tick.
+	 */
+	public static void applyReceived() {
+		byte[] packet;
+		while ((packet = received.poll()) != null) {
+			try {
+				apply(new DataInputStream(new ByteArrayInputStream(packet)));
+			} catch (IOException e) {
+				FMLLog.warning("RailNet: dropped a malformed sync packet: %s", e.getMessage());
+			}
+		}
+	}
+
+	private static void apply(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		UUID network = new UUID(in.readLong(), in.readLong());
+		if (type == SyncCodec.MSG_DROP) {
+			NetworkMirror mirror = mirrors.remove(network);
+			if (mirror != null)
+				for (Listener listener : listeners)
+					listener.mirrorRemoved(mirror);
+			return;
+		}
+		if (type != SyncCodec.MSG_OPS)
+			throw new IOException("Unknown message " + type);
+		NetworkMirror mirror = mirrors.get(network);
+		if (mirror == null)
+			mirrors.put(network, mirror = new NetworkMirror(network));
+		while (true) {
+			byte op;
+			try {
+				op = in.readByte();
+			} catch (EOFException e) {
+				return;
+			}
+			mirror.apply(op, in);
+			mirror.revision++;
+		}
+	}
+
+	private void apply(byte op, DataInputStream in) throws IOException {
+		int id = SyncCodec.readVarInt(in);
+		switch (op) {
+		case SyncCodec.OP_RESET:
+			domain = in.readBoolean() ? in.readUTF() : null;
+			for (Segment removed : segments.values())
+				for (Listener listener : listeners)
+					listener.segmentRemoved(this, removed);
+			clients.clear();
+			segments.clear();
+			trains.clear();
+			break;
+		case SyncCodec.OP_CLIENT:
+			clients.put(id, new Client(id, readUUID(in), in.readBoolean() ? in.readUTF() : null));
+			break;
+		case SyncCodec.OP_CLIENT_REMOVED:
+			clients.remove(id);
+			break;
+		case SyncCodec.OP_SEGMENT:
+			Segment segment = segments.get(id);
+			if (segment == null)
+				segments.put(id, segment = new Segment(id, readUUID(in)));
+			else
+				readUUID(in);
+			segment.clientA = SyncCodec.readVarInt(in) - 1;
+			segment.clientB = SyncCodec.readVarInt(in) - 1;
+			segment.direction = readDirection(in);
+			fireSegmentChanged(segment);
+			break;
+		case SyncCodec.OP_SEGMENT_REMOVED:
+			segment = segments.remove(id);
+			if (segment != null)
+				for (Listener listener : listeners)
+					listener.segmentRemoved(this, segment);
+			break;
+		case SyncCodec.OP_DIRECTION:
+			SegmentDirection direction = readDirection(in);
+			segment = segments.get(id);
+			if (segment != null) {
+				segment.direction = direction;
+				fireSegmentChanged(segment);
+			}
+			break;
+		case SyncCodec.OP_MAP:
+			SegmentGeometry geometry = SegmentGeometry.read(in);
+			segment = segments.get(id);
+			if (segment != null) {
+				segment.geometry = geometry;
+				fireSegmentChanged(segment);
+			}
+			break;
+		case SyncCodec.OP_TRAIN:
+			trains.put(id, new Train(id, readUUID(in)));
+			break;
+		case SyncCodec.OP_TRAIN_REMOVED:
+			trains.remove(id);
+			break;
+		case SyncCodec.OP_TRAIN_POSITION:
+			int x = SyncCodec.readSignedVarInt(in);
+			int y = SyncCodec.readSignedVarInt(in);
+			int z = SyncCodec.readSignedVarInt(in);
+			Train train = trains.get(id);
+			if (train != null) {
+				train.x = SyncCodec.fromFixed(x);
+				train.y = SyncCodec.fromFixed(y);
+				train.z = SyncCodec.fromFixed(z);
+			}
+			break;
+		default:
+			throw new IOException("Unknown operation " + op);
+		}
+	}
+
+	private void fireSegmentChanged(Segment segment) {
+		for (Listener listener : listeners)
+			listener.segmentChanged(this, segment);
+	}
+
+	private static UUID readUUID(DataInputStream in) throws IOException {
+		return new UUID(in.readLong(), in.readLong());
+	}
+
+	private static SegmentDirection readDirection(DataInputStream in) throws IOException {
+		int direction = in.readByte();
+		return direction < 0 || direction >= DIRECTIONS.length ? null : DIRECTIONS[direction];
+	}
+
+	/**
+	 * Forgets every mirror, when leaving a server.
+	 */
+	public static void clear() {
+		received.clear();
+		for (NetworkMirror mirror : mirrors.values())
+			for (Listener listener : listeners)
+				listener.mirrorRemoved(mirror);
+		mirrors.clear();
+	}
+
+	// ===========================
+	// Listeners
+	// ===========================
+
+	/**
+	 * Registers a listener for changes to the segments of every mirror. It is
+	 * called on the client thread.
+	 *
+	 * @param listener
+	 */
+	public static void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public static void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Told when segments of a mirror are added, removed or changed.
+	 */
+	public interface Listener {
+
+		/**
+		 * A segment was added, or its clients, direction or geometry changed.
+		 */
+		void segmentChanged(NetworkMirror mirror, Segment segment);
+
+		/**
+		 * A segment was removed, or the mirror was reset.
+		 */
+		void segmentRemoved(NetworkMirror mirror, Segment segment);
+
+		/**
+		 * The network is no longer followed; all its segments are gone.
+		 */
+		void mirrorRemoved(NetworkMirror mirror);
+	}
+
+	// ===========================
+	// Getters
+	// ===========================
+
+	/**
+	 * @param id
+	 * @return the mirror of a network; otherwise <code>null</code> if the
+	 *         network is not followed.
+	 */
+	public static NetworkMirror get(UUID id) {
+		return mirrors.get(id);
+	}
+
+	public static Collection<NetworkMirror> getMirrors() {
+		return Collections.unmodifiableCollection(mirrors.values());
+	}
+
+	public UUID getID() {
+		return id;
+	}
+
+	public String getDomain() {
+		return domain;
+	}
+
+	public Collection<Client> getClients() {
+		return Collections.unmodifiableCollection(clients.values());
+	}
+
+	public Client getClient(int id) {
+		return clients.get(id);
+	}
+
+	public Collection<Segment> getSegments() {
+		return Collections.unmodifiableCollection(segments.values());
+	}
+
+	public Collection<Train> getTrains() {
+		return Collections.unmodifiableCollection(trains.values());
+	}
+
+	/**
+	 * @return a number that changes whenever the mirror changes.
+	 */
+	public int getRevision() {
+		return revision;
+	}
+
+	/**
+	 * A mirrored client.
+	 */
+	public static final class Client {
+		public final int id;
+		public final UUID uuid;
+		public final String name;
+
+		private Client(int id, UUID uuid, String name) {
+			this.id = id;
+			this.uuid = uuid;
+			this.name = name;
+		}
+	}
+
+	/**
+	 * A mirrored segment. Clients are referred to by sync ID, or -1.
+	 */
+	public static final class Segment {
+		public final int id;
+		public final UUID uuid;
+		int clientA = -1;
+		int clientB = -1;
+		SegmentDirection direction;
+		SegmentGeometry geometry = new SegmentGeometry();
+
+		private Segment(int id, UUID uuid) {
+			this.id = id;
+			this.uuid = uuid;
+		}
+
+		public int getClientA() {
+			return clientA;
+		}
+
+		public int getClientB() {
+			return clientB;
+		}
+
+		public SegmentDirection getDirection() {
+			return direction;
+		}
+
+		public SegmentGeometry getGeometry() {
+			return geometry;
+		}
+	}
+
+	/**
+	 * A mirrored train, at its last position sent by the server.
+	 */
+	public static final class Train {
+		public final int id;
+		public final UUID uuid;
+		double x;
+		double y;
+		double z;
+
+		private Train(int id, UUID uuid) {
+			this.id = id;
+			this.uuid = uuid;
+		}
+
+		public double getX() {
+			return x;
+		}
+
+		public double getY() {
+			return y;
+		}
+
+		public double getZ() {
+			return z;
+		}
+	}
+}
@@ -0,0 +1,653 @@
+package mod.rp.railnet.common.util.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.PlayerEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
+import cpw.mods.fml.common.gameevent.TickEvent.Phase;
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.clients.RailNetClient;
+import mod.rp.railnet.common.core.routing.RailNetLineWrapper;
+import mod.rp.railnet.common.core.routing.RailNetSegment;
+import mod.rp.railnet.common.core.routing.RailNetwork;
+import mod.rp.railnet.common.core.routing.RailNetworkListener;
+import mod.rp.railnet.common.util.profiling.Profiler;
+import net.minecraft.entity.item.EntityMinecart;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraftforge.event.entity.minecart.MinecartUpdateEvent;
+
+/**
+ * Keeps the {@link NetworkMirror}s of the players up to date.
+ * <p>
+ * A player follows the networks with track within
+ * {@link CONFIG.SYNC#INTEREST_RADIUS} chunks. When a player starts following a
+ * network, the whole network is sent once. After that, the changes of each
+ * tick are coalesced per client and segment, encoded once per network and sent
+ * to every follower. Train positions are only sent to followers within
+ * {@link CONFIG.SYNC#TRAIN_RADIUS} blocks of the train.
+ * </p>
+ * <p>
+ * A train is the cart a line of a network is assigned to. Carts report their
+ * position every tick they are on rails; a train that was not reported during
+ * a tick, because it left the rails, died or was unloaded, is removed at the
+ * end of the tick. The sync listens on the FML bus for ticks and players and
+ * on the Forge bus for carts.
+ * </p>
+ * <p>
+ * Networks are not tied to a dimension, so interest only depends on the
+ * position of the player. The sync runs on the server thread.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+public class NetworkSync {
+
+	private static final int F_UPSERT = 1;
+	private static final int F_REMOVED = 2;
+	private static final int F_DIRECTION = 4;
+	private static final int F_MAP = 8;
+
+	private final Map<RailNetwork, Tracked> networks = new IdentityHashMap<RailNetwork, Tracked>();
+
+	private final Map<EntityPlayerMP, Follower> players = new IdentityHashMap<EntityPlayerMP, Follower>();
+
+	/** The network of each train, by the UUID of its cart */
+	private final Map<UUID, RailNetwork> trainNetworks = new HashMap<UUID, RailNetwork>();
+
+	private int ticks;
+
+	/** Server ticks since the sync started */
+	private long tick;
+
+	// ===========================
+	// Trains
+	// ===========================
+
+	/**
+	 * Reports the position of a train of a network. Only the last position of a
+	 * tick is sent. A train must be reported every tick to stay in the network.
+	 *
+	 * @param network
+	 * @param train
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	public void trainMoved(RailNetwork network, UUID train, double x, double y, double z) {
+		Tracked tracked = track(network);
+		Train state = tracked.trains.get(train);
+		if (state == null) {
+			tracked.trains.put(train, state = new Train(tracked.nextId++, train));
+			tracked.trainsChanged = true;
+		}
+		state.seen = tick;
+		int fx = SyncCodec.toFixed(x);
+		int fy = SyncCodec.toFixed(y);
+		int fz = SyncCodec.toFixed(z);
+		if (fx != state.x || fy != state.y || fz != state.z) {
+			state.x = fx;
+			state.y = fy;
+			state.z = fz;
+			state.moved = true;
+			tracked.trainsChanged = true;
+		}
+	}
+
+	/**
+	 * Reports that a train left a network.
+	 *
+	 * @param network
+	 * @param train
+	 */
+	public void trainRemoved(RailNetwork network, UUID train) {
+		Tracked tracked = networks.get(network);
+		if (tracked == null)
+			return;
+		Train state = tracked.trains.remove(train);
+		if (state != null)
+			tracked.trainRemoved(state);
+	}
+
+	/**
+	 * Reports the position of a cart if it is the train of a line.
+	 *
+	 * @param cart
+	 */
+	public void cartMoved(EntityMinecart cart) {
+		RailNetwork network = trainNetworks.get(cart.getPersistentID());
+		if (network != null)
+			trainMoved(network, cart.getPersistentID(), cart.posX, cart.posY, cart.posZ);
+	}
+
+	/**
+	 * Finds the network of the train of every line.
+	 */
+	private void indexTrains() {
+		trainNetworks.clear();
+		for (RailNetwork network : RailNetwork.getNetworks())
+			for (RailNetLineWrapper line : network.getLines())
+				if (line.getTrainID() != null)
+					trainNetworks.put(line.getTrainID(), network);
+	}
+
+	// ===========================
+	// Events
+	// ===========================
+
+	@SubscribeEvent
+	public void onPlayerLoggedIn(PlayerEvent.PlayerLoggedInEvent event) {
+		if (event.player instanceof EntityPlayerMP)
+			players.put((EntityPlayerMP) event.player, new PlayerFollower((EntityPlayerMP) event.player));
+	}
+
+	@SubscribeEvent
+	public void onPlayerLoggedOut(PlayerEvent.PlayerLoggedOutEvent event) {
+		Follower follower = players.remove(event.player);
+		if (follower != null)
+			for (Tracked tracked : follower.following)
+				tracked.removeFollower(follower);
+	}
+
+	@SubscribeEvent
+	public void onMinecartUpdate(MinecartUpdateEvent event) {
+		if (!event.minecart.worldObj.isRemote)
+			cartMoved(event.minecart);
+	}
+
+	@SubscribeEvent
+	public void onServerTick(TickEvent.ServerTickEvent event) {
+		if (event.phase == Phase.START) {
+			indexTrains();
+			return;
+		}
+		for (RailNetwork network : RailNetwork.getNetworks())
+			track(network);
+		for (Iterator<Tracked> it = networks.values().iterator(); it.hasNext();) {
+			Tracked tracked = it.next();
+			if (tracked.network.isRemoved()) {
+				// Merged into another network, which the followers pick up
+				drop(tracked);
+				it.remove();
+			} else {
+				long start = Profiler.start();
+				tracked.removeUnseenTrains(tick);
+				tracked.sendChanges();
+				Profiler.stop(Profiler.Section.SYNC, tracked.network, start);
+			}
+		}
+		tick++;
+		if (++ticks >= CONFIG.SYNC.INTEREST_INTERVAL) {
+			ticks = 0;
+			long start = Profiler.start();
+			for (Follower follower : players.values())
+				follower.updateInterest();
+			Profiler.stop(Profiler.Section.SYNC, start);
+		}
+	}
+
+	/**
+	 * Stops listening to the networks when the server stops.
+	 */
+	public void close() {
+		for (Tracked tracked : networks.values())
+			tracked.network.removeListener(tracked);
+		networks.clear();
+		players.clear();
+		trainNetworks.clear();
+	}
+
+	/**
+	 * Adds a follower at a fixed position that collects the packets it is sent
+	 * instead of a player, and sends it the whole network.
+	 *
+	 * @param network
+	 * @param x
+	 * @param z
+	 * @param packets
+	 *            Receives the packets.
+	 */
+	void follow(RailNetwork network, final double x, final double z, final List<byte[]> packets) {
+		Follower follower = new Follower() {
+			@Override
+			double getX() {
+				return x;
+			}
+
+			@Override
+			double getZ() {
+				return z;
+			}
+
+			@Override
+			void send(byte[] packet) {
+				packets.add(packet);
+			}
+		};
+		follower.follow(track(network));
+	}
+
+	private void drop(Tracked tracked) {
+		tracked.network.removeListener(tracked);
+		for (Follower follower : tracked.followers) {
+			follower.following.remove(tracked);
+			follower.send(Packets.header(SyncCodec.MSG_DROP, tracked.network.getID()));
+		}
+		tracked.followers.clear();
+	}
+
+	private Tracked track(RailNetwork network) {
+		Tracked tracked = networks.get(network);
+		if (tracked == null) {
+			networks.put(network, tracked = new Tracked(network));
+			network.addListener(tracked);
+		}
+		return tracked;
+	}
+
+	/**
+	 * Sync state of one network.
+	 */
+	private static final class Tracked implements RailNetworkListener {
+		private final RailNetwork network;
+
+		/** Sync IDs of the clients and segments known to the followers */
+		private final Map<Object, Integer> ids = new IdentityHashMap<Object, Integer>();
+		private int nextId;
+
+		/** Changes of this tick */
+		private final Map<Object, Integer> changes = new LinkedHashMap<Object, Integer>();
+
+		private final Map<UUID, Train> trains = new HashMap<UUID, Train>();
+		private final List<Integer> removedTrains = new ArrayList<Integer>();
+		private boolean trainsChanged;
+
+		private final List<Follower> followers = new ArrayList<Follower>();
+
+		private Tracked(RailNetwork network) {
+			this.network = network;
+		}
+
+		private void removeFollower(Follower follower) {
+			followers.remove(follower);
+			// Nobody knows the sync IDs anymore; they are handed out again
+			if (followers.isEmpty())
+				ids.clear();
+		}
+
+		private void trainRemoved(Train train) {
+			removedTrains.add(train.id);
+			trainsChanged = true;
+		}
+
+		/**
+		 * Removes the trains that were not reported during a tick.
+		 */
+		private void removeUnseenTrains(long tick) {
+			for (Iterator<Train> it = trains.values().iterator(); it.hasNext();) {
+				Train train = it.next();
+				if (train.seen != tick) {
+					it.remove();
+					trainRemoved(train);
+				}
+			}
+		}
+
+		@Override
+		public void segmentChanged(RailNetSegment segment, Change change) {
+			switch (change) {
+			case ADDED:
+			case CONNECTED:
+			case DISCONNECTED:
+				changed(segment, F_UPSERT);
+				break;
+			case DIRECTION:
+				changed(segment, F_DIRECTION);
+				break;
+			case MAP:
+				changed(segment, F_MAP);
+				break;
+			case REMOVED:
+				changed(segment, F_REMOVED);
+				break;
+			default:
+				break;
+			}
+		}
+
+		@Override
+		public void clientChanged(RailNetClient client, Change change) {
+			changed(client, change == Change.REMOVED ? F_REMOVED : F_UPSERT);
+		}
+
+		private void changed(Object value, int flag) {
+			if (followers.isEmpty())
+				return;
+			Integer flags = changes.get(value);
+			if (flag == F_REMOVED)
+				changes.put(value, F_REMOVED);
+			else
+				changes.put(value, (flags == null ? 0 : flags & ~F_REMOVED) | flag);
+		}
+
+		/**
+		 * Sends the changes of the tick to the followers.
+		 */
+		private void sendChanges() {
+			if (followers.isEmpty()) {
+				changes.clear();
+				removedTrains.clear();
+				trainsChanged = false;
+				return;
+			}
+			try {
+				if (!changes.isEmpty()) {
+					Packets packets = new Packets(network.getID());
+					writeChanges(packets);
+					for (Follower follower : followers)
+						packets.sendTo(follower);
+				}
+				if (trainsChanged)
+					sendTrains();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private void writeChanges(Packets packets) throws IOException {
+			// Clients first, as segments refer to them, and removed clients last
+			for (Map.Entry<Object, Integer> change : changes.entrySet())
+				if (change.getKey() instanceof RailNetClient && change.getValue() != F_REMOVED)
+					writeClient(packets, (RailNetClient) change.getKey());
+			for (Map.Entry<Object, Integer> change : changes.entrySet()) {
+				if (!(change.getKey() instanceof RailNetSegment))
+					continue;
+				RailNetSegment segment = (RailNetSegment) change.getKey();
+				int flags = change.getValue();
+				if (flags == F_REMOVED) {
+					Integer id = ids.remove(segment);
+					if (id != null)
+						packets.op(SyncCodec.OP_SEGMENT_REMOVED, id);
+					continue;
+				}
+				boolean known = ids.containsKey(segment);
+				if (!known || (flags & F_UPSERT) != 0)
+					writeSegment(packets, segment);
+				else if ((flags & F_DIRECTION) != 0)
+					writeDirection(packets.op(SyncCodec.OP_DIRECTION, id(segment)), segment);
+				if (known && (flags & F_MAP) != 0 || !known && !segment.getGeometry().isEmpty())
+					segment.getGeometry().write(packets.op(SyncCodec.OP_MAP, id(segment)));
+			}
+			for (Map.Entry<Object, Integer> change : changes.entrySet())
+				if (change.getKey() instanceof RailNetClient && change.getValue() == F_REMOVED) {
+					Integer id = ids.remove(change.getKey());
+					if (id != null)
+						packets.op(SyncCodec.OP_CLIENT_REMOVED, id);
+				}
+			changes.clear();
+		}
+
+		/**
+		 * Sends everything to a new follower.
+		 */
+		private void sendAll(Follower follower) throws IOException {
+			Packets packets = new Packets(network.getID());
+			DataOutputStream out = packets.op(SyncCodec.OP_RESET, 0);
+			out.writeBoolean(network.getNetDomain() != null);
+			if (network.getNetDomain() != null)
+				out.writeUTF(network.getNetDomain());
+			for (RailNetClient client : network.getClients())
+				writeClient(packets, client);
+			for (RailNetSegment segment : network.getSegments()) {
+				writeSegment(packets, segment);
+				if (!segment.getGeometry().isEmpty())
+					segment.getGeometry().write(packets.op(SyncCodec.OP_MAP, id(segment)));
+			}
+			for (Train train : trains.values()) {
+				writeTrain(packets, train);
+				writePosition(packets, train);
+			}
+			packets.sendTo(follower);
+		}
+
+		private void sendTrains() throws IOException {
+			Packets shared = new Packets(network.getID());
+			for (Integer id : removedTrains)
+				shared.op(SyncCodec.OP_TRAIN_REMOVED, id);
+			for (Train train : trains.values())
+				if (!train.sent)
+					writeTrain(shared, train);
+			for (Follower follower : followers) {
+				shared.sendTo(follower);
+				Packets near = new Packets(network.getID());
+				for (Train train : trains.values())
+					if (train.moved && follower.isNear(train))
+						writePosition(near, train);
+				near.sendTo(follower);
+			}
+			for (Train train : trains.values()) {
+				train.moved = false;
+				train.sent = true;
+			}
+			removedTrains.clear();
+			trainsChanged = false;
+		}
+
+		private void writeClient(Packets packets, RailNetClient client) throws IOException {
+			DataOutputStream out = packets.op(SyncCodec.OP_CLIENT, id(client));
+			writeUUID(out, client.getID());
+			out.writeBoolean(client.getName() != null);
+			if (client.getName() != null)
+				out.writeUTF(client.getName());
+		}
+
+		private void writeSegment(Packets packets, RailNetSegment segment) throws IOException {
+			DataOutputStream out = packets.op(SyncCodec.OP_SEGMENT, id(segment));
+			writeUUID(out, segment.getID());
+			SyncCodec.writeVarInt(out, segment.getClientA() == null ? 0 : id(segment.getClientA()) + 1);
+			SyncCodec.writeVarInt(out, segment.getClientB() == null ? 0 : id(segment.getClientB()) + 1);
+			writeDirection(out, segment);
+		}
+
+		private void writeTrain(Packets packets, Train train) throws IOException {
+			writeUUID(packets.op(SyncCodec.OP_TRAIN, train.id), train.uuid);
+		}
+
+		private void writePosition(Packets packets, Train train) throws IOException {
+			DataOutputStream out = packets.op(SyncCodec.OP_TRAIN_POSITION, train.id);
+			SyncCodec.writeSignedVarInt(out, train.x);
+			SyncCodec.writeSignedVarInt(out, train.y);
+			SyncCodec.writeSignedVarInt(out, train.z);
+		}
+
+		private static void writeDirection(DataOutputStream out, RailNetSegment segment) throws IOException {
+			out.writeByte(segment.getDirection() == null ? -1 : segment.getDirection().ordinal());
+		}
+
+		private static void writeUUID(DataOutputStream out, UUID id) throws IOException {
+			out.writeLong(id.getMostSignificantBits());
+			out.writeLong(id.getLeastSignificantBits());
+		}
+
+		private int id(Object value) {
+			Integer id = ids.get(value);
+			if (id == null)
+				ids.put(value, id = nextId++);
+			return id;
+		}
+	}
+
+	/**
+	 * Last known state of a train of a network.
+	 */
+	private static final class Train {
+		private final int id;
+		private final UUID uuid;
+		private int x;
+		private int y;
+		private int z;
+		/** Moved since the last tick */
+		private boolean moved;
+		/** Announced to the followers */
+		private boolean sent;
+		/** The last tick the train was reported */
+		private long seen;
+
+		private Train(int id, UUID uuid) {
+			this.id = id;
+			this.uuid = uuid;
+		}
+	}
+
+	/**
+	 * A player, or anything else receiving packets, and the networks it follows.
+	 */
+	private abstract class Follower {
+		private final List<Tracked> following = new ArrayList<Tracked>();
+
+		abstract double getX();
+
+		abstract double getZ();
+
+		abstract void send(byte[] packet);
+
+		private void updateInterest() {
+			int chunkX = (int) Math.floor(getX()) >> 4;
+			int chunkZ = (int) Math.floor(getZ()) >> 4;
+			int radius = CONFIG.SYNC.INTEREST_RADIUS;
+			for (Tracked tracked : networks.values()) {
+				boolean follows = following.contains(tracked);
+				// Drop networks a little further away than they are picked up,
+				// so walking along the edge does not resend them
+				boolean near = tracked.network.getSegmentIndex().hasSegmentsNear(chunkX, chunkZ,
+						follows ? radius + 2 : radius);
+				if (near == follows)
+					continue;
+				if (near) {
+					follow(tracked);
+				} else {
+					following.remove(tracked);
+					tracked.removeFollower(this);
+					send(Packets.header(SyncCodec.MSG_DROP, tracked.network.getID()));
+				}
+			}
+		}
+
+		private void follow(Tracked tracked) {
+			following.add(tracked);
+			tracked.followers.add(this);
+			try {
+				tracked.sendAll(this);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private boolean isNear(Train train) {
+			double dx = SyncCodec.fromFixed(train.x) - getX();
+			double dz = SyncCodec.fromFixed(train.z) - getZ();
+			double radius = CONFIG.SYNC.TRAIN_RADIUS;
+			return dx * dx + dz * dz <= radius * radius;
+		}
+	}
+
+	/**
+	 * A player following networks.
+	 */
+	private final class PlayerFollower extends Follower {
+		private final EntityPlayerMP player;
+
+		private PlayerFollower(EntityPlayerMP player) {
+			this.player = player;
+		}
+
+		@Override
+		double getX() {
+			return player.posX;
+		}
+
+		@Override
+		double getZ() {
+			return player.posZ;
+		}
+
+		@Override
+		void send(byte[] packet) {
+			PacketHandler.sendTo(player, packet);
+		}
+	}
+
+	/**
+	 * Operations of one network split into packets of at most
+	 * {@link CONFIG.SYNC#MAX_PACKET} bytes.
+	 */
+	private static final class Packets {
+		private final byte[] header;
+		private final List<byte[]> finished = new ArrayList<byte[]>();
+		private final ByteArrayOutputStream packet = new ByteArrayOutputStream(256);
+		private final ByteArrayOutputStream op = new ByteArrayOutputStream(64);
+		private final DataOutputStream out = new DataOutputStream(op);
+
+		private Packets(UUID network) {
+			header = header(SyncCodec.MSG_OPS, network);
+		}
+
+		private static byte[] header(byte type, UUID network) {
+			byte[] header = new byte[17];
+			header[0] = type;
+			long most = network.getMostSignificantBits();
+			long least = network.getLeastSignificantBits();
+			for (int i = 0; i < 8; i++) {
+				header[1 + i] = (byte) (most >>> 56 - i * 8);
+				header[9 + i] = (byte) (least >>> 56 - i * 8);
+			}
+			return header;
+		}
+
+		/**
+		 * Starts an operation; its fields are written to the returned stream.
+		 */
+		private DataOutputStream op(byte type, int id) throws IOException {
+			close();
+			out.writeByte(type);
+			SyncCodec.writeVarInt(out, id);
+			return out;
+		}
+
+		/** Moves the last operation into the current packet */
+		private void close() throws IOException {
+			if (op.size() == 0)
+				return;
+			if (packet.size() > 0 && packet.size() + op.size() > CONFIG.SYNC.MAX_PACKET) {
+				finished.add(packet.toByteArray());
+				packet.reset();
+			}
+			if (packet.size() == 0)
+				packet.write(header, 0, header.length);
+			op.writeTo(packet);
+			op.reset();
+		}
+
+		private void sendTo(Follower follower) throws IOException {
+			close();
+			for (byte[] bytes : finished)
+				follower.send(bytes);
+			if (packet.size() > 0) {
+				finished.add(packet.toByteArray());
+				follower.send(finished.get(finished.size() - 1));
+				packet.reset();
+			}
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package mod.rp.railnet.common.util.network;
+
+import cpw.mods.fml.common.FMLCommonHandler;
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
+import cpw.mods.fml.common.gameevent.TickEvent.Phase;
+import cpw.mods.fml.common.network.FMLEventChannel;
+import cpw.mods.fml.common.network.FMLNetworkEvent;
+import cpw.mods.fml.common.network.NetworkRegistry;
+import cpw.mods.fml.common.network.internal.FMLProxyPacket;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import mod.rp.railnet.CONFIG;
+import net.minecraft.entity.player.EntityPlayerMP;
+
+/**
+ * Sets up the {@link CONFIG.MOD#NET_CHANNEL} channel between the server and
+ * the game clients. The server sends the packets of {@link NetworkSync}; the
+ * game client hands them to {@link NetworkMirror} and applies them on its
+ * next tick.
+ *
+ * @author MajorR
+ *
+ */
+public final class PacketHandler {
+
+	private static FMLEventChannel channel;
+
+	private PacketHandler() {
+	}
+
+	/**
+	 * Creates the channel. Called once during pre-initialization.
+	 */
+	public static void init() {
+		if (channel != null)
+			return;
+		PacketHandler handler = new PacketHandler();
+		channel = NetworkRegistry.INSTANCE.newEventDrivenChannel(CONFIG.MOD.NET_CHANNEL);
+		channel.register(handler);
+		FMLCommonHandler.instance().bus().register(handler);
+	}
+
+	/**
+	 * Sends a packet to a player.
+	 *
+	 * @param player
+	 * @param packet
+	 */
+	public static void sendTo(EntityPlayerMP player, byte[] packet) {
+		channel.sendTo(new FMLProxyPacket(Unpooled.wrappedBuffer(packet), CONFIG.MOD.NET_CHANNEL), player);
+	}
+
+	@SubscribeEvent
+	public void onClientPacket(FMLNetworkEvent.ClientCustomPacketEvent event) {
+		ByteBuf payload = event.packet.payload();
+		byte[] packet = new byte[payload.readableBytes()];
+		payload.readBytes(packet);
+		NetworkMirror.receive(packet);
+	}
+
+	@SubscribeEvent
+	public void onClientTick(TickEvent.ClientTickEvent event) {
+		if (event.phase == Phase.END)
+			NetworkMirror.applyReceived();
+	}
+
+	@SubscribeEvent
+	public void onDisconnect(FMLNetworkEvent.ClientDisconnectionFromServerEvent event) {
+		NetworkMirror.clear();
+	}
+}
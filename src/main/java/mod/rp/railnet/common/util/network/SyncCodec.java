@@ -0,0 +1,97 @@
+package mod.rp.railnet.common.util.network;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The binary encoding of the network sync channel.
+ * <p>
+ * Every packet starts with a message type and the UUID of a network. A
+ * {@link #MSG_OPS} packet then holds operations until its end, each a type
+ * and an ID followed by its fields. Clients, segments and trains are referred
+ * to by a sync ID the server assigns per network, written as a
+ * variable-length integer, so most operations take a few bytes. A full sync is a
+ * {@link #OP_RESET} followed by an upsert of everything; it may span several
+ * packets as every operation stands on its own.
+ * </p>
+ *
+ * <pre>
+ * OP_RESET             0, domain
+ * OP_CLIENT            id, UUID, name              (added or replaced)
+ * OP_CLIENT_REMOVED    id
+ * OP_SEGMENT           id, UUID, client A + 1, client B + 1, direction
+ * OP_SEGMENT_REMOVED   id
+ * OP_DIRECTION         id, direction
+ * OP_MAP               id, geometry
+ * OP_TRAIN             id, UUID
+ * OP_TRAIN_REMOVED     id
+ * OP_TRAIN_POSITION    id, x, y, z                 (1/8 block, zigzag)
+ * </pre>
+ *
+ * @author MajorR
+ *
+ */
+public final class SyncCodec {
+
+	/** Operations on the mirror of a network */
+	public static final byte MSG_OPS = 0;
+	/** The player no longer follows the network */
+	public static final byte MSG_DROP = 1;
+
+	public static final byte OP_RESET = 0;
+	public static final byte OP_CLIENT = 1;
+	public static final byte OP_CLIENT_REMOVED = 2;
+	public static final byte OP_SEGMENT = 3;
+	public static final byte OP_SEGMENT_REMOVED = 4;
+	public static final byte OP_DIRECTION = 5;
+	public static final byte OP_MAP = 6;
+	public static final byte OP_TRAIN = 7;
+	public static final byte OP_TRAIN_REMOVED = 8;
+	public static final byte OP_TRAIN_POSITION = 9;
+
+	/** Fractions of a block train positions are sent in */
+	public static final int POSITION_SCALE = 8;
+
+	private SyncCodec() {
+	}
+
+	public static void writeVarInt(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte(value & 0x7F | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	public static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed variable-length integer");
+	}
+
+	/**
+	 * Writes a signed value so that small magnitudes take few bytes.
+	 */
+	public static void writeSignedVarInt(DataOutput out, int value) throws IOException {
+		writeVarInt(out, value << 1 ^ value >> 31);
+	}
+
+	public static int readSignedVarInt(DataInput in) throws IOException {
+		int value = readVarInt(in);
+		return value >>> 1 ^ -(value & 1);
+	}
+
+	public static int toFixed(double coordinate) {
+		return (int) Math.floor(coordinate * POSITION_SCALE);
+	}
+
+	public static double fromFixed(int value) {
+		return (double) value / POSITION_SCALE;
+	}
+}
@@ -0,0 +1,153 @@
+package mod.rp.railnet.common.util.profiling;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in nanoseconds in buckets of logarithmic width, like an HDR
+ * histogram with a fixed range.
+ * <p>
+ * Every power of two is split into {@link #SUB_BUCKETS} buckets, so a
+ * percentile is off by less than 1/16 of its value. Latencies up to about 18
+ * minutes are counted exactly; longer ones are counted in the last bucket. A
+ * latency is recorded by a few atomic additions, without locking or
+ * allocating, from any thread.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+public final class LatencyHistogram {
+
+	/** Buckets per power of two */
+	static final int SUB_BUCKETS = 16;
+
+	private static final int SUB_BITS = 4;
+
+	/** Highest power of two counted exactly */
+	private static final int MAX_EXPONENT = 39;
+
+	static final int BUCKETS = 2 * SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Counts a latency.
+	 *
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		if (nanos < 0L)
+			nanos = 0L;
+		counts.incrementAndGet(indexOf(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long highest;
+		while (nanos > (highest = max.get()) && !max.compareAndSet(highest, nanos))
+			;
+	}
+
+	/**
+	 * Adds the latencies counted by another histogram.
+	 *
+	 * @param other
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = other.counts.get(i);
+			if (n != 0L)
+				counts.addAndGet(i, n);
+		}
+		count.addAndGet(other.count.get());
+		total.addAndGet(other.total.get());
+		long nanos = other.max.get();
+		long highest;
+		while (nanos > (highest = max.get()) && !max.compareAndSet(highest, nanos))
+			;
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0L);
+		count.set(0L);
+		total.set(0L);
+		max.set(0L);
+	}
+
+	// ===========================
+	// Queries
+	// ===========================
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/** @return the sum of the latencies, in ns. */
+	public long getTotal() {
+		return total.get();
+	}
+
+	/** @return the highest latency, in ns. */
+	public long getMax() {
+		return max.get();
+	}
+
+	/** @return the mean latency, in ns. */
+	public double getMean() {
+		long n = count.get();
+		return n == 0L ? 0.0 : (double) total.get() / n;
+	}
+
+	/**
+	 * @param percentile
+	 *            From 0 to 100
+	 * @return the highest latency of the bucket holding the percentile, at
+	 *         most the highest latency counted, in ns; 0 if none was counted.
+	 */
+	public long getPercentile(double percentile) {
+		long n = 0L;
+		for (int i = 0; i < BUCKETS; i++)
+			n += counts.get(i);
+		if (n == 0L)
+			return 0L;
+		long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * n));
+		long seen = 0L;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestOf(i), max.get());
+		}
+		return max.get();
+	}
+
+	// ===========================
+	// Buckets
+	// ===========================
+
+	/**
+	 * Latencies below twice {@link #SUB_BUCKETS} have a bucket each; above,
+	 * the bucket is picked by the highest bit and the {@link #SUB_BITS} bits
+	 * below it.
+	 */
+	static int indexOf(long nanos) {
+		if (nanos < 2 * SUB_BUCKETS)
+			return (int) nanos;
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		if (exponent > MAX_EXPONENT)
+			return BUCKETS - 1;
+		int sub = (int) (nanos >>> exponent - SUB_BITS) - SUB_BUCKETS;
+		return 2 * SUB_BUCKETS + (exponent - SUB_BITS - 1) * SUB_BUCKETS + sub;
+	}
+
+	static long highestOf(int index) {
+		if (index < 2 * SUB_BUCKETS)
+			return index;
+		int k = index - 2 * SUB_BUCKETS;
+		int exponent = k / SUB_BUCKETS + SUB_BITS + 1;
+		long sub = k % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << exponent - SUB_BITS) - 1;
+	}
+}
@@ -0,0 +1,202 @@
+package mod.rp.railnet.common.util.profiling;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+import mod.rp.railnet.common.core.routing.RailNetwork;
+import mod.rp.railnet.common.util.profiling.Profiler.Section;
+import mod.rp.railnet.common.util.profiling.Profiler.Usage;
+
+/**
+ * The measurements of the {@link Profiler} over a window of ticks, merged per
+ * section, network and line.
+ *
+ * @author MajorR
+ *
+ */
+public class ProfileReport {
+
+	private static final Section[] SECTIONS = Profiler.getSections();
+
+	private final LatencyHistogram[] sections = new LatencyHistogram[SECTIONS.length];
+	private final Map<UUID, Usage> networks = new HashMap<UUID, Usage>();
+	private final Map<UUID, Usage> lines = new HashMap<UUID, Usage>();
+
+	/** The ticks covered */
+	private int ticks;
+
+	/** The first server tick covered */
+	private long first = Long.MAX_VALUE;
+
+	ProfileReport() {
+		for (int i = 0; i < sections.length; i++)
+			sections[i] = new LatencyHistogram();
+	}
+
+	void add(Profiler.Frame frame) {
+		for (int i = 0; i < sections.length; i++)
+			sections[i].add(frame.sections[i]);
+		merge(networks, frame.networks);
+		merge(lines, frame.lines);
+		ticks += frame.ticks;
+		first = Math.min(first, frame.first);
+	}
+
+	private static void merge(Map<UUID, Usage> into, Map<UUID, Usage> from) {
+		for (Map.Entry<UUID, Usage> entry : from.entrySet()) {
+			Usage usage = into.get(entry.getKey());
+			if (usage == null)
+				into.put(entry.getKey(), usage = new Usage());
+			usage.add(entry.getValue());
+		}
+	}
+
+	// ===========================
+	// Queries
+	// ===========================
+
+	/** @return the ticks the report covers. */
+	public int getTicks() {
+		return ticks;
+	}
+
+	/** @return the first server tick the report covers. */
+	public long getFirstTick() {
+		return ticks == 0 ? 0L : first;
+	}
+
+	public LatencyHistogram getSection(Section section) {
+		return sections[section.ordinal()];
+	}
+
+	/**
+	 * @param section
+	 * @return the time the section took per tick on average, in ns.
+	 */
+	public double getNanosPerTick(Section section) {
+		return ticks == 0 ? 0.0 : (double) sections[section.ordinal()].getTotal() / ticks;
+	}
+
+	// ===========================
+	// Formatting
+	// ===========================
+
+	/**
+	 * Summarises the report in a few lines, for the chat.
+	 *
+	 * @param top
+	 *            The number of networks and of lines listed
+	 * @return the lines.
+	 */
+	public List<String> format(int top) {
+		List<String> out = new ArrayList<String>();
+		out.add(String.format(Locale.ROOT, "RailNet profile of %d ticks (%.1f s)%s", ticks, ticks / 20.0,
+				Profiler.isEnabled() ? "" : ", profiling is off"));
+		for (Section section : SECTIONS) {
+			LatencyHistogram histogram = getSection(section);
+			if (histogram.getCount() == 0L)
+				continue;
+			out.add(String.format(Locale.ROOT, "%s: %s/tick, %d calls, p50 %s, p99 %s, max %s", section,
+					time(getNanosPerTick(section)), histogram.getCount(), time(histogram.getPercentile(50)),
+					time(histogram.getPercentile(99)), time(histogram.getMax())));
+		}
+		addTop(out, "Networks", networks, top);
+		addTop(out, "Lines", lines, top);
+		return out;
+	}
+
+	private void addTop(List<String> out, String title, Map<UUID, Usage> usages, int top) {
+		List<Map.Entry<UUID, Usage>> sorted = sortByTickTime(usages);
+		if (sorted.isEmpty())
+			return;
+		out.add(title + " by tick time:");
+		for (int i = 0; i < Math.min(top, sorted.size()); i++)
+			out.add("  " + formatUsage(sorted.get(i).getKey(), sorted.get(i).getValue()));
+	}
+
+	/**
+	 * Writes the whole report, with every percentile, network and line.
+	 *
+	 * @param writer
+	 */
+	public void write(PrintWriter writer) {
+		writer.printf(Locale.ROOT, "RailNet profile of %d ticks from tick %d%n%n", ticks, getFirstTick());
+		writer.printf(Locale.ROOT, "%-12s %10s %10s %10s %10s %10s %10s %10s %10s%n", "section", "calls",
+				"per tick", "mean", "p50", "p90", "p99", "p99.9", "max");
+		for (Section section : SECTIONS) {
+			LatencyHistogram histogram = getSection(section);
+			writer.printf(Locale.ROOT, "%-12s %10d %10s %10s %10s %10s %10s %10s %10s%n", section,
+					histogram.getCount(), time(getNanosPerTick(section)), time(histogram.getMean()),
+					time(histogram.getPercentile(50)), time(histogram.getPercentile(90)),
+					time(histogram.getPercentile(99)), time(histogram.getPercentile(99.9)),
+					time(histogram.getMax()));
+		}
+		writeUsages(writer, "networks", networks);
+		writeUsages(writer, "lines", lines);
+		writer.flush();
+	}
+
+	private void writeUsages(PrintWriter writer, String title, Map<UUID, Usage> usages) {
+		writer.printf(Locale.ROOT, "%n%s by tick time%n", title);
+		for (Map.Entry<UUID, Usage> entry : sortByTickTime(usages))
+			writer.println(formatUsage(entry.getKey(), entry.getValue()));
+	}
+
+	private List<Map.Entry<UUID, Usage>> sortByTickTime(Map<UUID, Usage> usages) {
+		List<Map.Entry<UUID, Usage>> sorted = new ArrayList<Map.Entry<UUID, Usage>>(usages.entrySet());
+		Collections.sort(sorted, new Comparator<Map.Entry<UUID, Usage>>() {
+			@Override
+			public int compare(Map.Entry<UUID, Usage> a, Map.Entry<UUID, Usage> b) {
+				long x = a.getValue().getTickNanos();
+				long y = b.getValue().getTickNanos();
+				return x > y ? -1 : x == y ? 0 : 1;
+			}
+		});
+		return sorted;
+	}
+
+	private String formatUsage(UUID id, Usage usage) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(name(id)).append(": ").append(time(ticks == 0 ? 0.0 : (double) usage.getTickNanos() / ticks))
+				.append("/tick");
+		for (Section section : SECTIONS) {
+			long calls = usage.getCalls(section);
+			if (calls > 0L)
+				sb.append(", ").append(section).append(' ').append(time(usage.getNanos(section))).append(" (")
+						.append(calls).append(')');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the domain of the network with the ID, if it has one, followed
+	 *         by the ID.
+	 */
+	private static String name(UUID id) {
+		for (RailNetwork network : RailNetwork.getNetworks())
+			if (network.getID().equals(id) && network.getNetDomain() != null)
+				return network.getNetDomain() + " " + id;
+		return id.toString();
+	}
+
+	/**
+	 * @param nanos
+	 * @return the time in the largest unit that keeps it above 1.
+	 */
+	static String time(double nanos) {
+		if (nanos >= 1e9)
+			return String.format(Locale.ROOT, "%.2fs", nanos / 1e9);
+		if (nanos >= 1e6)
+			return String.format(Locale.ROOT, "%.2fms", nanos / 1e6);
+		if (nanos >= 1e3)
+			return String.format(Locale.ROOT, "%.1fus", nanos / 1e3);
+		return String.format(Locale.ROOT, "%.0fns", nanos);
+	}
+}
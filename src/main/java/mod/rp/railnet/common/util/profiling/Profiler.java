@@ -0,0 +1,324 @@
+package mod.rp.railnet.common.util.profiling;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.routing.RailNetLineWrapper;
+import mod.rp.railnet.common.core.routing.RailNetwork;
+
+/**
+ * Measures the time RailNet spends on its hot paths, per section, network and
+ * line, over a rolling window of server ticks.
+ * <p>
+ * A measured path calls {@link #start()} and hands the result to
+ * {@link #stop}. While profiling is off, <code>start</code> returns
+ * {@link #OFF} after one volatile read and <code>stop</code> returns at once,
+ * so the calls may stay in place. While on, each stop records the latency in
+ * the {@link LatencyHistogram} of its section and adds it to the counters of
+ * its network and line, with a few atomic additions from any thread.
+ * </p>
+ * <p>
+ * Measurements go into frames of {@link CONFIG.PROFILING#FRAME_TICKS} ticks.
+ * The frames of the last {@link CONFIG.PROFILING#WINDOW_TICKS} ticks are kept
+ * and merged into a {@link ProfileReport} on request.
+ * </p>
+ *
+ * @author MajorR
+ *
+ */
+public final class Profiler {
+
+	/**
+	 * The measured paths.
+	 */
+	public static enum Section {
+		/** The background work of a server tick, as a whole */
+		TICK(true),
+		/** Routes calculated or handed back on the server thread */
+		ROUTING(true),
+		/** Routes calculated by the planner threads, off the tick */
+		PLANNING(false),
+		/** Track walked by the mapper */
+		MAPPING(true),
+		/** Commands handed to clients, once per tick */
+		COMMANDS(true),
+		/** Changes sent to players */
+		SYNC(true),
+		/** Networks and journals written */
+		PERSISTENCE(true);
+
+		private final boolean onTick;
+
+		private Section(boolean onTick) {
+			this.onTick = onTick;
+		}
+
+		/**
+		 * @return <code>true</code> if the section runs on the server thread
+		 *         and adds to the tick.
+		 */
+		public boolean isOnTick() {
+			return onTick;
+		}
+	}
+
+	/** Returned by {@link #start()} while profiling is off */
+	public static final long OFF = Long.MIN_VALUE;
+
+	private static final Section[] SECTIONS = Section.values();
+
+	private static volatile boolean enabled = CONFIG.PROFILING.ENABLED;
+
+	private static Frame[] frames = createFrames();
+
+	/** Index of the frame measured into */
+	private static volatile int current;
+
+	private Profiler() {
+	}
+
+	/**
+	 * The measurements of a number of ticks.
+	 */
+	static final class Frame {
+		/** The server tick the frame started at */
+		long first;
+		/** The ticks measured into the frame */
+		int ticks;
+		final LatencyHistogram[] sections = new LatencyHistogram[SECTIONS.length];
+		final ConcurrentMap<UUID, Usage> networks = new ConcurrentHashMap<UUID, Usage>();
+		final ConcurrentMap<UUID, Usage> lines = new ConcurrentHashMap<UUID, Usage>();
+
+		Frame() {
+			for (int i = 0; i < sections.length; i++)
+				sections[i] = new LatencyHistogram();
+		}
+
+		void reset(long first) {
+			this.first = first;
+			this.ticks = 0;
+			for (LatencyHistogram histogram : sections)
+				histogram.reset();
+			networks.clear();
+			lines.clear();
+		}
+	}
+
+	/**
+	 * The calls and time of one network or line, per section.
+	 */
+	static final class Usage {
+		/** Calls and ns of each section, interleaved */
+		private final AtomicLongArray values = new AtomicLongArray(2 * SECTIONS.length);
+
+		void add(Section section, long nanos) {
+			values.incrementAndGet(2 * section.ordinal());
+			values.addAndGet(2 * section.ordinal() + 1, nanos);
+		}
+
+		void add(Usage other) {
+			for (int i = 0; i < values.length(); i++)
+				values.addAndGet(i, other.values.get(i));
+		}
+
+		long getCalls(Section section) {
+			return values.get(2 * section.ordinal());
+		}
+
+		long getNanos(Section section) {
+			return values.get(2 * section.ordinal() + 1);
+		}
+
+		/** @return the time taken on the server thread, in ns. */
+		long getTickNanos() {
+			long nanos = 0L;
+			for (Section section : SECTIONS)
+				if (section.isOnTick() && section != Section.TICK)
+					nanos += getNanos(section);
+			return nanos;
+		}
+	}
+
+	// ===========================
+	// Measuring
+	// ===========================
+
+	/**
+	 * @return the time to hand to {@link #stop}; otherwise {@link #OFF} if
+	 *         profiling is off.
+	 */
+	public static long start() {
+		return enabled ? System.nanoTime() : OFF;
+	}
+
+	/**
+	 * Records the time since a {@link #start()}.
+	 *
+	 * @param section
+	 * @param start
+	 */
+	public static void stop(Section section, long start) {
+		stop(section, (UUID) null, null, start);
+	}
+
+	/**
+	 * Records the time since a {@link #start()} spent on a network.
+	 *
+	 * @param section
+	 * @param network
+	 *            May be <code>null</code>.
+	 * @param start
+	 */
+	public static void stop(Section section, RailNetwork network, long start) {
+		if (start != OFF)
+			stop(section, network == null ? null : network.getID(), null, start);
+	}
+
+	/**
+	 * Records the time since a {@link #start()} spent on a line of a network.
+	 *
+	 * @param section
+	 * @param network
+	 *            May be <code>null</code>.
+	 * @param line
+	 *            May be <code>null</code>.
+	 * @param start
+	 */
+	public static void stop(Section section, RailNetwork network, RailNetLineWrapper line, long start) {
+		if (start != OFF)
+			stop(section, network == null ? null : network.getID(), line == null ? null : line.getLineID(), start);
+	}
+
+	/**
+	 * Adds the time since a {@link #start()}, or since the last split, to the
+	 * counters of a network without recording a call of the section. Work
+	 * that is measured as a whole with {@link #stop} is shared out between
+	 * networks this way, reading the clock only where the network changes.
+	 *
+	 * @param section
+	 * @param network
+	 *            May be <code>null</code>.
+	 * @param start
+	 * @return the time to hand to the next split; otherwise {@link #OFF} if
+	 *         profiling was off at the start.
+	 */
+	public static long split(Section section, RailNetwork network, long start) {
+		if (start == OFF)
+			return OFF;
+		long now = System.nanoTime();
+		if (network != null)
+			getUsage(frames[current].networks, network.getID()).add(section, now - start);
+		return now;
+	}
+
+	private static void stop(Section section, UUID network, UUID line, long start) {
+		if (start == OFF)
+			return;
+		long nanos = System.nanoTime() - start;
+		Frame frame = frames[current];
+		frame.sections[section.ordinal()].record(nanos);
+		if (network != null)
+			getUsage(frame.networks, network).add(section, nanos);
+		if (line != null)
+			getUsage(frame.lines, line).add(section, nanos);
+	}
+
+	private static Usage getUsage(ConcurrentMap<UUID, Usage> usages, UUID id) {
+		Usage usage = usages.get(id);
+		if (usage == null) {
+			Usage created = new Usage();
+			usage = usages.putIfAbsent(id, created);
+			if (usage == null)
+				usage = created;
+		}
+		return usage;
+	}
+
+	/**
+	 * Counts a server tick and starts a new frame every
+	 * {@link CONFIG.PROFILING#FRAME_TICKS} ticks, dropping the oldest. Must be
+	 * called once per server tick, on the server thread.
+	 *
+	 * @param now
+	 *            The current server tick
+	 */
+	public static void tick(long now) {
+		if (!enabled)
+			return;
+		Frame frame = frames[current];
+		if (frame.ticks >= CONFIG.PROFILING.FRAME_TICKS) {
+			int next = (current + 1) % frames.length;
+			frames[next].reset(now);
+			current = next;
+			frame = frames[next];
+		} else if (frame.ticks == 0) {
+			frame.first = now;
+		}
+		frame.ticks++;
+	}
+
+	// ===========================
+	// Control
+	// ===========================
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Turns profiling on or off. Measurements taken so far are kept.
+	 *
+	 * @param enabled
+	 */
+	public static void setEnabled(boolean enabled) {
+		Profiler.enabled = enabled;
+	}
+
+	/**
+	 * Drops every measurement. Must be called on the server thread.
+	 */
+	public static void reset() {
+		frames = createFrames();
+		current = 0;
+	}
+
+	private static Frame[] createFrames() {
+		int count = Math.max(1, (CONFIG.PROFILING.WINDOW_TICKS + CONFIG.PROFILING.FRAME_TICKS - 1)
+				/ CONFIG.PROFILING.FRAME_TICKS) + 1;
+		Frame[] created = new Frame[count];
+		for (int i = 0; i < count; i++)
+			created[i] = new Frame();
+		return created;
+	}
+
+	/**
+	 * Merges the frames of the last ticks. Must be called on the server
+	 * thread.
+	 *
+	 * @param ticks
+	 *            The length of the window; rounded up to whole frames and
+	 *            capped at {@link CONFIG.PROFILING#WINDOW_TICKS}.
+	 * @return the report.
+	 */
+	public static ProfileReport report(int ticks) {
+		Frame[] frames = Profiler.frames;
+		int at = current;
+		ProfileReport report = new ProfileReport();
+		int covered = 0;
+		for (int i = 0; i < frames.length && covered < ticks; i++) {
+			Frame frame = frames[(at - i + frames.length) % frames.length];
+			if (frame.ticks == 0)
+				break;
+			report.add(frame);
+			covered += frame.ticks;
+		}
+		return report;
+	}
+
+	static Section[] getSections() {
+		return SECTIONS;
+	}
+}
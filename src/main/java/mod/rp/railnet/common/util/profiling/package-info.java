@@ -0,0 +1,8 @@
+/**
+ * 
+ */
+/**
+ * @author MajorR
+ *
+ */
+package mod.rp.railnet.common.util.profiling;
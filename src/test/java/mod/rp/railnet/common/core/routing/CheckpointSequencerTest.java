@@ -0,0 +1,169 @@
+package mod.rp.railnet.common.core.routing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import mod.rp.railnet.common.core.clients.PassThroughClient;
+import mod.rp.railnet.common.core.clients.RailNetClient;
+
+import org.junit.Test;
+
+/**
+ * @author MajorR
+ *
+ */
+public class CheckpointSequencerTest {
+
+	/** Instances per size and kind */
+	private static final int INSTANCES = 50;
+
+	/** The largest size up to which every order must be the best */
+	private static final int EXACT = 4;
+
+	/** The most an order may cost over the best */
+	private static final double MAX_RATIO = 1.2;
+
+	/** The least share of orders that must be the best */
+	private static final double MIN_OPTIMAL = 0.9;
+
+	@Test
+	public void symmetricLine() {
+		compareWithBruteForce(true, false, 1L);
+	}
+
+	@Test
+	public void symmetricLoop() {
+		compareWithBruteForce(true, true, 2L);
+	}
+
+	@Test
+	public void oneWayLine() {
+		compareWithBruteForce(false, false, 3L);
+	}
+
+	@Test
+	public void oneWayLoop() {
+		compareWithBruteForce(false, true, 4L);
+	}
+
+	@Test
+	public void unreachablePairsAreAvoided() {
+		// Only 0 -> 2 -> 1 -> 3 can be travelled
+		double u = CheckpointSequencer.UNREACHABLE;
+		double[][] costs = { { 0, 1, 5, u }, { u, 0, u, 1 }, { u, 1, 0, u }, { u, u, u, 0 } };
+		int[] order = CheckpointSequencer.solve(costs, false);
+		assertEquals("[0, 2, 1, 3]", Arrays.toString(order));
+	}
+
+	@Test
+	public void failedSearchIsThrown() {
+		RailNetwork network = new RailNetwork();
+		List<RailNetClient> clients = new ArrayList<RailNetClient>();
+		for (int i = 0; i < 6; i++) {
+			clients.add(new PassThroughClient(network, "c" + i));
+			if (i > 0) {
+				RailNetSegment segment = new RailNetSegment(null);
+				clients.get(i - 1).connectSegment(segment);
+				clients.get(i).connectSegment(segment);
+			}
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			// Costs missing for the segments fail every search
+			CheckpointSequencer.getCosts(network.getGraph(), new float[0], clients, executor, 2);
+			fail("The failed searches were not thrown");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getCause() instanceof ArrayIndexOutOfBoundsException);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void compareWithBruteForce(boolean symmetric, boolean loop, long seed) {
+		Random random = new Random(seed);
+		int optimal = 0;
+		for (int n = 1; n <= 8; n++) {
+			for (int instance = 0; instance < INSTANCES; instance++) {
+				double[][] costs = createCosts(random, n, symmetric);
+				int[] order = CheckpointSequencer.solve(costs, loop);
+				assertPermutation(order, n);
+				double cost = CheckpointSequencer.getCost(costs, order, loop);
+				double best = bruteForce(costs, loop);
+				String message = "n=" + n + " instance " + instance + " " + Arrays.toString(order);
+				if (cost <= best + 1e-9)
+					optimal++;
+				if (n <= EXACT)
+					assertEquals(message, best, cost, 1e-9);
+				else
+					assertTrue(message + " costs " + cost + " over " + best, cost <= best * MAX_RATIO);
+			}
+		}
+		assertTrue(optimal + " best orders", optimal >= MIN_OPTIMAL * 8 * INSTANCES);
+	}
+
+	/**
+	 * Checkpoints on a grid, costed by Manhattan distance, with a random
+	 * surcharge per direction unless symmetric.
+	 */
+	private static double[][] createCosts(Random random, int n, boolean symmetric) {
+		int[] x = new int[n];
+		int[] z = new int[n];
+		for (int i = 0; i < n; i++) {
+			x[i] = random.nextInt(100);
+			z[i] = random.nextInt(100);
+		}
+		double[][] costs = new double[n][n];
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < n; j++)
+				if (i != j)
+					costs[i][j] = Math.abs(x[i] - x[j]) + Math.abs(z[i] - z[j])
+							+ (symmetric ? 0 : random.nextInt(30));
+		return costs;
+	}
+
+	private static void assertPermutation(int[] order, int n) {
+		assertEquals(n, order.length);
+		assertEquals(0, order[0]);
+		boolean[] seen = new boolean[n];
+		for (int i : order) {
+			assertTrue(!seen[i]);
+			seen[i] = true;
+		}
+	}
+
+	/**
+	 * @return the cost of the best order starting with the first checkpoint.
+	 */
+	private static double bruteForce(double[][] costs, boolean loop) {
+		int[] order = new int[costs.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		return permute(costs, order, 1, loop);
+	}
+
+	private static double permute(double[][] costs, int[] order, int k, boolean loop) {
+		if (k >= order.length)
+			return CheckpointSequencer.getCost(costs, order, loop);
+		double best = Double.MAX_VALUE;
+		for (int i = k; i < order.length; i++) {
+			swap(order, k, i);
+			best = Math.min(best, permute(costs, order, k + 1, loop));
+			swap(order, k, i);
+		}
+		return best;
+	}
+
+	private static void swap(int[] order, int i, int j) {
+		int t = order[i];
+		order[i] = order[j];
+		order[j] = t;
+	}
+}
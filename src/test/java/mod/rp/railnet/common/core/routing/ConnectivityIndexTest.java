@@ -0,0 +1,80 @@
+package mod.rp.railnet.common.core.routing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import mod.rp.railnet.common.core.clients.PassThroughClient;
+import mod.rp.railnet.common.core.clients.RailNetClient;
+
+import org.junit.Test;
+
+/**
+ * @author MajorR
+ *
+ */
+public class ConnectivityIndexTest {
+
+	private static RailNetSegment link(RailNetClient a, RailNetClient b) {
+		RailNetSegment segment = new RailNetSegment(null);
+		a.connectSegment(segment);
+		b.connectSegment(segment);
+		return segment;
+	}
+
+	private static PassThroughClient[] chain(RailNetwork network, int length) {
+		PassThroughClient[] clients = new PassThroughClient[length];
+		for (int i = 0; i < length; i++) {
+			clients[i] = new PassThroughClient(network, "c" + i);
+			if (i > 0)
+				link(clients[i - 1], clients[i]);
+		}
+		return clients;
+	}
+
+	@Test
+	public void removedClientIsNotReachable() {
+		RailNetwork network = new RailNetwork();
+		PassThroughClient[] c = chain(network, 5);
+		assertTrue(network.isReachable(c[0], c[4]));
+
+		assertTrue(network.removeClient(c[3]));
+		assertFalse(network.isReachable(c[3], c[3]));
+		assertFalse(network.isReachable(c[2], c[3]));
+		assertFalse(network.isReachable(c[3], c[4]));
+		assertFalse(network.isReachable(c[0], c[4]));
+		assertTrue(network.isReachable(c[0], c[2]));
+	}
+
+	@Test
+	public void removedClientIsNotSplitOff() {
+		RailNetwork network = new RailNetwork();
+		PassThroughClient[] c = chain(network, 5);
+		assertTrue(network.isReachable(c[0], c[4]));
+
+		network.removeClient(c[3]);
+		List<RailNetwork> split = network.splitDisconnected();
+		assertEquals(1, split.size());
+		RailNetwork other = split.get(0);
+		assertFalse(other.getClients().contains(c[3]));
+		assertFalse(network.getClients().contains(c[3]));
+		assertEquals(1, other.getClients().size());
+		assertTrue(other.getClients().contains(c[4]));
+		assertEquals(3, network.getClients().size());
+	}
+
+	@Test
+	public void removedClientInLoopKeepsRestJoined() {
+		RailNetwork network = new RailNetwork();
+		PassThroughClient[] c = chain(network, 5);
+		link(c[4], c[0]);
+		assertTrue(network.isReachable(c[0], c[3]));
+
+		network.removeClient(c[2]);
+		assertFalse(network.isReachable(c[2], c[2]));
+		assertTrue(network.isReachable(c[1], c[3]));
+		assertTrue(network.splitDisconnected().isEmpty());
+	}
+}
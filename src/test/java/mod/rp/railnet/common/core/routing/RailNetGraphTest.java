@@ -0,0 +1,77 @@
+package mod.rp.railnet.common.core.routing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import mod.rp.railnet.common.core.clients.PassThroughClient;
+import mod.rp.railnet.common.core.clients.RailNetClient;
+import mod.rp.railnet.common.core.routing.RailNetSegment.SegmentDirection;
+
+import org.junit.Test;
+
+/**
+ * @author MajorR
+ *
+ */
+public class RailNetGraphTest {
+
+	private static RailNetSegment link(RailNetClient a, RailNetClient b) {
+		RailNetSegment segment = new RailNetSegment(null);
+		a.connectSegment(segment);
+		b.connectSegment(segment);
+		segment.setActualLength(16);
+		segment.setBaseTime(40L);
+		return segment;
+	}
+
+	private static PassThroughClient[] chain(RailNetwork network, int length, RailNetSegment[] segments) {
+		PassThroughClient[] clients = new PassThroughClient[length];
+		for (int i = 0; i < length; i++) {
+			clients[i] = new PassThroughClient(network, "c" + i);
+			if (i > 0)
+				segments[i - 1] = link(clients[i - 1], clients[i]);
+		}
+		return clients;
+	}
+
+	@Test
+	public void closingSegmentLeavesPublishedSnapshot() {
+		RailNetwork network = new RailNetwork();
+		RailNetSegment[] segments = new RailNetSegment[4];
+		PassThroughClient[] c = chain(network, 5, segments);
+		RailNetGraph before = c[0].getNetwork().getGraph();
+		ContractedGraph contracted = before.getContracted();
+		int s = before.indexOf(segments[2]);
+
+		segments[2].setDirection(SegmentDirection.CLOSED);
+		RailNetGraph after = c[0].getNetwork().getGraph();
+		assertNotSame(before, after);
+		assertTrue(after.isPatchOf(before));
+		assertTrue(before.isOpen(before.getForwardEdge(s)));
+		assertFalse(after.isOpen(after.getForwardEdge(s)));
+		assertTrue(contracted.isOpen(contracted.getForwardEdge(contracted.getLink(s))));
+		ContractedGraph patched = after.getContracted();
+		assertFalse(patched.isOpen(patched.getForwardEdge(patched.getLink(s))));
+		assertEquals(c[0].getNetwork().getTopologyVersion(), after.getTopologyVersion());
+		assertTrue(before.getTopologyVersion() < after.getTopologyVersion());
+	}
+
+	@Test
+	public void routeIsStampedWithSearchedSnapshot() {
+		RailNetwork network = new RailNetwork();
+		RailNetSegment[] segments = new RailNetSegment[4];
+		PassThroughClient[] c = chain(network, 5, segments);
+		network = c[0].getNetwork();
+		RailNetGraph before = network.getGraph();
+
+		segments[3].setDirection(SegmentDirection.CLOSED);
+		RouteProfile profile = new RailNetLineWrapper().getRouteProfile();
+		RailNetRoute route = network.getRouter().calculateRoute(before, c[0], c[2], profile);
+		assertNotNull(route);
+		assertEquals(before.getTopologyVersion(), route.getTopologyVersion());
+		assertTrue(route.getTopologyVersion() < network.getTopologyVersion());
+	}
+}
@@ -0,0 +1,85 @@
+package mod.rp.railnet.common.core.routing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import mod.rp.railnet.common.core.clients.PassThroughClient;
+import mod.rp.railnet.common.core.clients.RailNetClient;
+import mod.rp.railnet.common.core.routing.RailNetSegment.SegmentParts;
+import mod.rp.railnet.common.core.routing.RailNetworkListener.Change;
+
+import org.junit.Test;
+
+/**
+ * @author MajorR
+ *
+ */
+public class SegmentGeometryTest {
+
+	private static RailNetSegment mapped(RailNetwork network, int parts) {
+		RailNetSegment segment = new RailNetSegment(null);
+		new PassThroughClient(network, "a").connectSegment(segment);
+		new PassThroughClient(network, "b").connectSegment(segment);
+		SegmentGeometry geometry = new SegmentGeometry();
+		for (int i = 0; i < parts; i++)
+			geometry.add(i, 64, 0, i + 1, 64, 0, null);
+		segment.setGeometry(geometry);
+		return segment;
+	}
+
+	@Test
+	public void trimmedEmptyGeometryAcceptsParts() {
+		SegmentGeometry geometry = new SegmentGeometry();
+		geometry.trimToSize();
+		for (int i = 0; i < 200; i++)
+			geometry.add(i, 64, 0, i + 1, 64, 0, null);
+		assertEquals(200, geometry.size());
+		SegmentGeometry.Cursor cursor = new SegmentGeometry.Cursor(geometry);
+		assertTrue(cursor.seek(130));
+		assertEquals(130, cursor.getXA());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void geometryOfSegmentIsReadOnly() {
+		RailNetSegment segment = mapped(new RailNetwork(), 3);
+		segment.getGeometry().add(3, 64, 0, 4, 64, 0, null);
+	}
+
+	@Test
+	public void changingPartsNotifiesNetwork() {
+		RailNetSegment segment = mapped(new RailNetwork(), 3);
+		final int[] maps = new int[1];
+		segment.getNetwork().addListener(new RailNetworkListener() {
+			@Override
+			public void segmentChanged(RailNetSegment segment, Change change) {
+				if (change == Change.MAP)
+					maps[0]++;
+			}
+
+			@Override
+			public void clientChanged(RailNetClient client, Change change) {
+			}
+		});
+
+		List<SegmentParts> parts = segment.getSegmentParts();
+		parts.add(segment.new SegmentParts(3, 64, 0, 4, 64, 0));
+		parts.add(0, segment.new SegmentParts(-1, 64, 0, 0, 64, 0));
+		SegmentParts removed = parts.remove(2);
+		parts.get(0).setPointA(-2, 64, 0);
+		assertEquals(4, maps[0]);
+
+		assertArrayEquals(new int[] { 1, 64, 0 }, removed.getPointA());
+		assertEquals(4, parts.size());
+		assertArrayEquals(new int[] { -2, 64, 0 }, parts.get(0).getPointA());
+		assertArrayEquals(new int[] { 0, 64, 0 }, parts.get(1).getPointA());
+		assertArrayEquals(new int[] { 2, 64, 0 }, parts.get(2).getPointA());
+		assertArrayEquals(new int[] { 4, 64, 0 }, parts.get(3).getPointB());
+
+		parts.clear();
+		assertEquals(5, maps[0]);
+		assertTrue(segment.getGeometry().isEmpty());
+	}
+}
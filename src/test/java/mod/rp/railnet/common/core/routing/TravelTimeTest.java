@@ -0,0 +1,53 @@
+package mod.rp.railnet.common.core.routing;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.UUID;
+
+import mod.rp.railnet.CONFIG;
+import mod.rp.railnet.common.core.routing.RailNetLineWrapper.LineSegmentWrapper;
+
+import org.junit.Test;
+
+/**
+ * @author MajorR
+ *
+ */
+public class TravelTimeTest {
+
+	private static void record(TravelTimeStats stats, int samples, float ticks) {
+		for (int i = 0; i < samples; i++)
+			stats.record(ticks, CONFIG.ROUTING.TRAVEL_TIME_ALPHA);
+	}
+
+	@Test
+	public void learnedTimeNeedsEnoughSamples() {
+		RailNetSegment segment = new RailNetSegment(null);
+		segment.setActualLength(10);
+		segment.setBaseTime(40L);
+		RailNetLineWrapper line = new RailNetLineWrapper();
+		line.setAllowRealTimeSync(true);
+		line.setAllowRealTimeAssume(true);
+		line.setAllowBaseModel(true);
+		RouteProfile profile = line.getRouteProfile();
+
+		record(segment.getTravelTime(), CONFIG.ROUTING.TRAVEL_TIME_MIN_SAMPLES - 1, 100f);
+		assertEquals(40f, profile.getTime(segment), 0f);
+		record(segment.getTravelTime(), 1, 100f);
+		assertEquals(100f, profile.getTime(segment), 0.01f);
+	}
+
+	@Test
+	public void setTimeWinsOverLearnedTime() {
+		RailNetLineWrapper line = new RailNetLineWrapper();
+		LineSegmentWrapper lineSegment = line.new LineSegmentWrapper(UUID.randomUUID());
+		record(lineSegment.getTravelTime(), CONFIG.ROUTING.TRAVEL_TIME_MIN_SAMPLES - 1, 100f);
+		assertEquals(LineSegmentWrapper.TIME_NOT_DETERMINED, lineSegment.getRealTime());
+		record(lineSegment.getTravelTime(), 1, 100f);
+		assertEquals(100L, lineSegment.getRealTime());
+
+		lineSegment.setRealTime(60L);
+		assertEquals(60L, lineSegment.getRealTime());
+		assertEquals(60L, lineSegment.getSetRealTime());
+	}
+}
@@ -0,0 +1,75 @@
+package mod.rp.railnet.common.util.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import cpw.mods.fml.common.gameevent.TickEvent;
+import cpw.mods.fml.common.gameevent.TickEvent.Phase;
+import mod.rp.railnet.common.core.clients.PassThroughClient;
+import mod.rp.railnet.common.core.routing.RailNetSegment;
+import mod.rp.railnet.common.core.routing.RailNetwork;
+
+import org.junit.Test;
+
+/**
+ * @author MajorR
+ *
+ */
+public class NetworkSyncTest {
+
+	private static RailNetwork network() {
+		RailNetwork network = new RailNetwork();
+		PassThroughClient a = new PassThroughClient(network, "a");
+		PassThroughClient b = new PassThroughClient(network, "b");
+		RailNetSegment segment = new RailNetSegment(null);
+		a.connectSegment(segment);
+		b.connectSegment(segment);
+		return a.getNetwork();
+	}
+
+	private static void tick(NetworkSync sync) {
+		sync.onServerTick(new TickEvent.ServerTickEvent(Phase.START));
+		sync.onServerTick(new TickEvent.ServerTickEvent(Phase.END));
+	}
+
+	private static NetworkMirror mirror(RailNetwork network, List<byte[]> packets) {
+		for (byte[] packet : packets)
+			NetworkMirror.receive(packet);
+		packets.clear();
+		NetworkMirror.applyReceived();
+		return NetworkMirror.get(network.getID());
+	}
+
+	@Test
+	public void movedTrainIsSentWithTick() {
+		NetworkSync sync = new NetworkSync();
+		RailNetwork network = network();
+		List<byte[]> packets = new ArrayList<byte[]>();
+		sync.follow(network, 0, 0, packets);
+		NetworkMirror mirror = mirror(network, packets);
+		assertNotNull(mirror);
+		assertTrue(mirror.getTrains().isEmpty());
+
+		UUID train = UUID.randomUUID();
+		sync.onServerTick(new TickEvent.ServerTickEvent(Phase.START));
+		sync.trainMoved(network, train, 8.5, 64, -3.25);
+		sync.onServerTick(new TickEvent.ServerTickEvent(Phase.END));
+		assertEquals(1, mirror(network, packets).getTrains().size());
+		NetworkMirror.Train mirrored = mirror.getTrains().iterator().next();
+		assertEquals(train, mirrored.uuid);
+		assertEquals(8.5, mirrored.getX(), 0.01);
+		assertEquals(64, mirrored.getY(), 0.01);
+		assertEquals(-3.25, mirrored.getZ(), 0.01);
+
+		// Not reported during the next tick, so it left the network
+		tick(sync);
+		assertTrue(mirror(network, packets).getTrains().isEmpty());
+		sync.close();
+		NetworkMirror.clear();
+	}
+}